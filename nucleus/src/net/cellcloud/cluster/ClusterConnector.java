@@ -314,6 +314,11 @@ public final class ClusterConnector extends Observable implements MessageHandler
 		// Nothing
 	}
 
+	@Override
+	public void writabilityChanged(Session session, boolean writable) {
+		// Nothing
+	}
+
 	@Override
 	public void errorOccurred(int errorCode, Session session) {
 		if (errorCode == MessageErrorCode.CONNECT_TIMEOUT
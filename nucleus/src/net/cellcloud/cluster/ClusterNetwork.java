@@ -218,6 +218,11 @@ public final class ClusterNetwork extends Observable implements Service, Message
 		// Nothing
 	}
 
+	@Override
+	public void writabilityChanged(Session session, boolean writable) {
+		// Nothing
+	}
+
 	@Override
 	public void errorOccurred(int errorCode, Session session) {
 		// Nothing
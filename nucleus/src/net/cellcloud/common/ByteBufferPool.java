@@ -0,0 +1,188 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** 直接内存缓存池。
+ * 
+ * 缓存按容量划分为 2 的幂次大小的等级，每个等级独立维护空闲缓存队列。
+ * 超过最大等级的缓存不进行池化。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class ByteBufferPool {
+
+	// 最小等级容量
+	private static final int MIN_CLASS_SHIFT = 10;
+	// 最大等级容量
+	private static final int MAX_CLASS_SHIFT = 20;
+
+	private final ConcurrentLinkedQueue<ByteBuffer>[] idleBuffers;
+	private final AtomicInteger[] idleCounts;
+	// 每个等级最多保留的空闲缓存数量
+	private int maxIdlePerClass;
+
+	// 已分配的池化缓存总字节数
+	private final AtomicLong allocatedBytes;
+	// 空闲缓存总字节数
+	private final AtomicLong idleBytes;
+	// 已借出的缓存数量
+	private final AtomicInteger borrowedNum;
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public ByteBufferPool() {
+		int num = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+		this.idleBuffers = new ConcurrentLinkedQueue[num];
+		this.idleCounts = new AtomicInteger[num];
+		for (int i = 0; i < num; ++i) {
+			this.idleBuffers[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			this.idleCounts[i] = new AtomicInteger(0);
+		}
+		this.maxIdlePerClass = 32;
+		this.allocatedBytes = new AtomicLong(0);
+		this.idleBytes = new AtomicLong(0);
+		this.borrowedNum = new AtomicInteger(0);
+	}
+
+	/** 设置每个容量等级最多保留的空闲缓存数量。
+	 */
+	public void setMaxIdlePerClass(int num) {
+		this.maxIdlePerClass = num;
+	}
+
+	/** 借出不小于指定容量的缓存。缓存的 limit 被设置为指定容量。
+	 */
+	public ByteBuffer borrowBuffer(int capacity) {
+		int index = classIndex(capacity);
+		if (index < 0) {
+			// 不进行池化
+			return ByteBuffer.allocate(capacity);
+		}
+
+		this.borrowedNum.incrementAndGet();
+
+		ByteBuffer buffer = this.idleBuffers[index].poll();
+		if (null != buffer) {
+			this.idleCounts[index].decrementAndGet();
+			this.idleBytes.addAndGet(-buffer.capacity());
+			buffer.clear();
+		}
+		else {
+			buffer = ByteBuffer.allocateDirect(1 << (index + MIN_CLASS_SHIFT));
+			this.allocatedBytes.addAndGet(buffer.capacity());
+		}
+
+		buffer.limit(capacity);
+		return buffer;
+	}
+
+	/** 归还缓存。
+	 */
+	public void returnBuffer(ByteBuffer buffer) {
+		if (!buffer.isDirect()) {
+			return;
+		}
+
+		int capacity = buffer.capacity();
+		int index = classIndex(capacity);
+		if (index < 0 || (1 << (index + MIN_CLASS_SHIFT)) != capacity) {
+			return;
+		}
+
+		this.borrowedNum.decrementAndGet();
+
+		if (this.idleCounts[index].incrementAndGet() > this.maxIdlePerClass) {
+			// 超过保留上限，交由 GC 回收
+			this.idleCounts[index].decrementAndGet();
+			this.allocatedBytes.addAndGet(-capacity);
+			return;
+		}
+
+		this.idleBytes.addAndGet(capacity);
+		this.idleBuffers[index].offer(buffer);
+	}
+
+	/** 返回已分配的池化缓存总字节数。
+	 */
+	public long getAllocatedBytes() {
+		return this.allocatedBytes.get();
+	}
+
+	/** 返回空闲缓存总字节数。
+	 */
+	public long getIdleBytes() {
+		return this.idleBytes.get();
+	}
+
+	/** 返回已借出的缓存数量。
+	 */
+	public int getBorrowedNum() {
+		return this.borrowedNum.get();
+	}
+
+	/** 返回空闲缓存数量。
+	 */
+	public int getIdleNum() {
+		int num = 0;
+		for (AtomicInteger count : this.idleCounts) {
+			num += count.get();
+		}
+		return num;
+	}
+
+	/** 清空所有空闲缓存。
+	 */
+	public void clear() {
+		for (int i = 0; i < this.idleBuffers.length; ++i) {
+			ByteBuffer buffer = null;
+			while (null != (buffer = this.idleBuffers[i].poll())) {
+				this.idleCounts[i].decrementAndGet();
+				this.idleBytes.addAndGet(-buffer.capacity());
+				this.allocatedBytes.addAndGet(-buffer.capacity());
+			}
+		}
+	}
+
+	/** 返回容量对应的等级下标，超过最大等级返回 -1 。
+	 */
+	private static int classIndex(int capacity) {
+		if (capacity > (1 << MAX_CLASS_SHIFT)) {
+			return -1;
+		}
+
+		if (capacity <= (1 << MIN_CLASS_SHIFT)) {
+			return 0;
+		}
+
+		int shift = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+		return shift - MIN_CLASS_SHIFT;
+	}
+}
@@ -0,0 +1,382 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** 会话的消息压缩上下文。
+ * 
+ * 每个会话持有一个上下文，复用同一个 Deflater 与 Inflater 。
+ * 压缩在发送线程上执行，解压在接收线程上执行，两个方向分别只被一个 I/O 线程使用。
+ * 压缩输出存放在可复用的缓存里：同一发送批次的压缩帧依次存放在压缩输出缓存，下一批次开始时复用；
+ * 解压输出缓存在下一次解压前有效。
+ * 压缩帧的数据格式：原始数据长度(4字节，大端序)|Deflate 数据。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class CompressionContext {
+
+	/** 默认压缩阈值，小于该长度的消息不压缩。 */
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	// 压缩帧中原始数据长度字段的长度
+	private static final int RAW_LENGTH_BYTES = 4;
+	// 压缩输出缓存的最大长度，超过该长度的消息单独分配输出数组
+	private static final int MAX_OUTPUT_CACHE = 256 * 1024;
+
+	// 是否压缩发送的消息
+	private volatile boolean enabled;
+	// 是否接受对端发送的压缩帧
+	private volatile boolean acceptable;
+	private volatile int threshold;
+	private volatile int level;
+
+	private Deflater deflater;
+	private Inflater inflater;
+	// 复制直接缓存数据时使用的临时数组
+	private byte[] deflateInput;
+	private byte[] inflateInput;
+	// 压缩输出缓存及本批次已使用的长度
+	private byte[] deflateOutput;
+	private int deflateOffset;
+	// 解压输出缓存
+	private byte[] inflateOutput;
+
+	// 发送方向统计
+	private AtomicLong deflatedMessages;
+	private AtomicLong deflateRawBytes;
+	private AtomicLong deflateBytes;
+	private AtomicLong deflateNanos;
+	// 接收方向统计
+	private AtomicLong inflatedMessages;
+	private AtomicLong inflateRawBytes;
+	private AtomicLong inflateBytes;
+	private AtomicLong inflateNanos;
+
+	public CompressionContext() {
+		this.enabled = false;
+		this.acceptable = false;
+		this.threshold = DEFAULT_THRESHOLD;
+		this.level = Deflater.BEST_SPEED;
+		this.deflater = null;
+		this.inflater = null;
+		this.deflatedMessages = new AtomicLong(0);
+		this.deflateRawBytes = new AtomicLong(0);
+		this.deflateBytes = new AtomicLong(0);
+		this.deflateNanos = new AtomicLong(0);
+		this.inflatedMessages = new AtomicLong(0);
+		this.inflateRawBytes = new AtomicLong(0);
+		this.inflateBytes = new AtomicLong(0);
+		this.inflateNanos = new AtomicLong(0);
+	}
+
+	/** 设置是否压缩发送的消息。
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/** 是否压缩发送的消息。
+	 */
+	public boolean isEnabled() {
+		return this.enabled;
+	}
+
+	/** 设置是否接受对端发送的压缩帧。只有协商过压缩的会话才接受压缩帧，否则丢弃。
+	 */
+	public void setAcceptable(boolean acceptable) {
+		this.acceptable = acceptable;
+	}
+
+	/** 是否接受对端发送的压缩帧。
+	 */
+	public boolean isAcceptable() {
+		return this.acceptable;
+	}
+
+	/** 设置压缩阈值。小于该长度的消息不压缩。
+	 */
+	public void setThreshold(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/** 返回压缩阈值。
+	 */
+	public int getThreshold() {
+		return this.threshold;
+	}
+
+	/** 设置压缩级别，取值范围 0 - 9 。
+	 */
+	public void setLevel(int level) {
+		this.level = level;
+	}
+
+	/** 返回压缩级别。
+	 */
+	public int getLevel() {
+		return this.level;
+	}
+
+	/** 返回已压缩发送的消息数量。
+	 */
+	public long getDeflatedMessages() {
+		return this.deflatedMessages.get();
+	}
+
+	/** 返回已压缩消息的原始字节数。
+	 */
+	public long getDeflateRawBytes() {
+		return this.deflateRawBytes.get();
+	}
+
+	/** 返回已压缩消息压缩后的字节数。
+	 */
+	public long getDeflateBytes() {
+		return this.deflateBytes.get();
+	}
+
+	/** 返回压缩耗时，单位：纳秒。
+	 */
+	public long getDeflateTime() {
+		return this.deflateNanos.get();
+	}
+
+	/** 返回已解压的消息数量。
+	 */
+	public long getInflatedMessages() {
+		return this.inflatedMessages.get();
+	}
+
+	/** 返回已解压消息的原始字节数。
+	 */
+	public long getInflateRawBytes() {
+		return this.inflateRawBytes.get();
+	}
+
+	/** 返回已解压消息压缩时的字节数。
+	 */
+	public long getInflateBytes() {
+		return this.inflateBytes.get();
+	}
+
+	/** 返回解压耗时，单位：纳秒。
+	 */
+	public long getInflateTime() {
+		return this.inflateNanos.get();
+	}
+
+	/** 返回发送方向的压缩比，即压缩后字节数与原始字节数之比。没有压缩过消息时返回 1 。
+	 */
+	public double getCompressionRatio() {
+		long raw = this.deflateRawBytes.get();
+		return (raw > 0) ? (double) this.deflateBytes.get() / (double) raw : 1.0;
+	}
+
+	/** 返回接收方向的压缩比。没有解压过消息时返回 1 。
+	 */
+	public double getInflateRatio() {
+		long raw = this.inflateRawBytes.get();
+		return (raw > 0) ? (double) this.inflateBytes.get() / (double) raw : 1.0;
+	}
+
+	/** 释放压缩器与解压器占用的本地内存。
+	 */
+	public synchronized void close() {
+		if (null != this.deflater) {
+			this.deflater.end();
+			this.deflater = null;
+		}
+		if (null != this.inflater) {
+			this.inflater.end();
+			this.inflater = null;
+		}
+		this.deflateInput = null;
+		this.inflateInput = null;
+		this.deflateOutput = null;
+		this.deflateOffset = 0;
+		this.inflateOutput = null;
+	}
+
+	/** 开始新的发送批次。上一批次的压缩帧已经全部写出，复用压缩输出缓存。
+	 */
+	protected synchronized void rewind() {
+		this.deflateOffset = 0;
+	}
+
+	/** 压缩消息数据。返回的数据在下一次调用 {@link #rewind()} 之前有效。
+	 * 
+	 * @return 返回压缩帧数据。未启用压缩、消息小于阈值或者压缩后没有变小时返回 null 。
+	 */
+	protected synchronized ByteBuffer deflate(Message message) {
+		int length = message.length();
+		if (!this.enabled || length < this.threshold) {
+			return null;
+		}
+
+		long time = System.nanoTime();
+
+		byte[] input = null;
+		if (message.hasBuffer()) {
+			if (null == this.deflateInput || this.deflateInput.length < length) {
+				this.deflateInput = new byte[length];
+			}
+			input = this.deflateInput;
+			message.getBuffer().get(input, 0, length);
+		}
+		else {
+			input = message.get();
+		}
+
+		if (null == this.deflater) {
+			this.deflater = new Deflater(this.level);
+		}
+		else {
+			this.deflater.reset();
+			this.deflater.setLevel(this.level);
+		}
+
+		this.deflater.setInput(input, 0, length);
+		this.deflater.finish();
+
+		// 压缩后的数据必须小于原始数据才有意义
+		byte[] output = null;
+		int start = 0;
+		if (length > MAX_OUTPUT_CACHE) {
+			output = new byte[length];
+		}
+		else {
+			if (null == this.deflateOutput || this.deflateOutput.length - this.deflateOffset < length) {
+				// 本批次已输出的压缩帧继续引用原来的缓存
+				int capacity = (null == this.deflateOutput) ? length
+						: Math.min(Math.max(this.deflateOutput.length * 2, length), MAX_OUTPUT_CACHE);
+				this.deflateOutput = new byte[capacity];
+				this.deflateOffset = 0;
+			}
+			output = this.deflateOutput;
+			start = this.deflateOffset;
+		}
+
+		int end = start + length;
+		int offset = start + RAW_LENGTH_BYTES;
+		while (!this.deflater.finished() && offset < end) {
+			offset += this.deflater.deflate(output, offset, end - offset);
+		}
+
+		if (!this.deflater.finished()) {
+			return null;
+		}
+
+		output[start] = (byte) (length >>> 24);
+		output[start + 1] = (byte) (length >>> 16);
+		output[start + 2] = (byte) (length >>> 8);
+		output[start + 3] = (byte) length;
+
+		if (output == this.deflateOutput) {
+			this.deflateOffset = offset;
+		}
+
+		this.deflatedMessages.incrementAndGet();
+		this.deflateRawBytes.addAndGet(length);
+		this.deflateBytes.addAndGet(offset - start);
+		this.deflateNanos.addAndGet(System.nanoTime() - time);
+
+		return ByteBuffer.wrap(output, start, offset - start).slice();
+	}
+
+	/** 解压缓存指定区间内的压缩帧数据。返回的数据在下一次解压之前有效。
+	 * 
+	 * @return 返回解压后的数据，数据格式错误时返回 null 。
+	 */
+	protected synchronized ByteBuffer inflate(ByteBuffer data, int from, int to, int maxLength) {
+		int length = to - from;
+		if (length < RAW_LENGTH_BYTES) {
+			return null;
+		}
+
+		int rawLength = data.getInt(from);
+		if (rawLength < 0 || rawLength > maxLength) {
+			Logger.w(CompressionContext.class, "Inflated length exceeds the limit " + maxLength);
+			return null;
+		}
+
+		long time = System.nanoTime();
+
+		int inputLength = length - RAW_LENGTH_BYTES;
+		if (null == this.inflateInput || this.inflateInput.length < inputLength) {
+			this.inflateInput = new byte[inputLength];
+		}
+
+		ByteBuffer src = data.duplicate();
+		src.limit(to);
+		src.position(from + RAW_LENGTH_BYTES);
+		src.get(this.inflateInput, 0, inputLength);
+
+		if (null == this.inflater) {
+			this.inflater = new Inflater();
+		}
+		else {
+			this.inflater.reset();
+		}
+
+		this.inflater.setInput(this.inflateInput, 0, inputLength);
+
+		if (null == this.inflateOutput || this.inflateOutput.length < rawLength) {
+			this.inflateOutput = new byte[rawLength];
+		}
+		byte[] output = this.inflateOutput;
+		int offset = 0;
+		try {
+			while (offset < rawLength && !this.inflater.finished()) {
+				int n = this.inflater.inflate(output, offset, rawLength - offset);
+				if (n == 0 && (this.inflater.needsInput() || this.inflater.needsDictionary())) {
+					break;
+				}
+				offset += n;
+			}
+		} catch (DataFormatException e) {
+			Logger.log(CompressionContext.class, e, LogLevel.WARNING);
+			return null;
+		}
+
+		if (offset != rawLength) {
+			Logger.w(CompressionContext.class, "Inflated length mismatch : " + offset + " != " + rawLength);
+			return null;
+		}
+
+		this.inflatedMessages.incrementAndGet();
+		this.inflateRawBytes.addAndGet(rawLength);
+		this.inflateBytes.addAndGet(length);
+		this.inflateNanos.addAndGet(System.nanoTime() - time);
+
+		return ByteBuffer.wrap(output, 0, rawLength);
+	}
+}
@@ -0,0 +1,402 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** 连接器事件循环线程。
+ * 
+ * 每个事件循环拥有独立的选择器，负责多个连接器通道的连接、读写事件。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class ConnectorEventLoop extends Thread {
+
+	// 是否处于自旋
+	private volatile boolean spinning = false;
+	// 是否正在工作
+	private volatile boolean working = false;
+
+	private Selector selector;
+
+	// 等待注册到选择器的连接器队列
+	private ConcurrentLinkedQueue<NonblockingConnector> registerQueue = new ConcurrentLinkedQueue<NonblockingConnector>();
+	// 请求写数据的连接器队列
+	private ConcurrentLinkedQueue<NonblockingConnector> writeQueue = new ConcurrentLinkedQueue<NonblockingConnector>();
+	// 在事件循环线程里执行的任务队列
+	private ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<Runnable>();
+
+	// 正在建立连接的连接器，用于检查连接超时
+	private ArrayList<NonblockingConnector> connectingList = new ArrayList<NonblockingConnector>();
+	// 延迟发送的连接器
+	private ArrayList<NonblockingConnector> corkedList = new ArrayList<NonblockingConnector>();
+
+	// 是否处于忙轮询阶段，轮询阶段的写请求不需要唤醒选择器
+	private volatile boolean polling = false;
+	// 连续空闲的轮询次数
+	private int idleRounds = 0;
+	// 注册的连接器使用的轮询策略，在注册的连接器数量变化时更新
+	private PollStrategy pollStrategy = null;
+	private int strategyKeyNum = 0;
+
+	// 事件循环独立的缓存池
+	private ByteBufferPool bufferPool = new ByteBufferPool();
+
+	public ConnectorEventLoop(String name) throws IOException {
+		this.selector = Selector.open();
+		this.setName(name);
+		this.setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		this.working = true;
+		this.spinning = true;
+
+		while (this.spinning) {
+			int selected = 0;
+			try {
+				selected = this.select();
+			} catch (IOException e) {
+				Logger.log(ConnectorEventLoop.class, e, LogLevel.WARNING);
+				break;
+			} catch (Exception e) {
+				Logger.log(ConnectorEventLoop.class, e, LogLevel.DEBUG);
+				break;
+			}
+
+			if (!this.spinning) {
+				break;
+			}
+
+			if (selected == 0 && this.writeQueue.isEmpty()
+				&& this.registerQueue.isEmpty() && this.taskQueue.isEmpty()) {
+				if (this.idleRounds < Integer.MAX_VALUE) {
+					++this.idleRounds;
+				}
+			}
+			else {
+				this.idleRounds = 0;
+			}
+
+			// 执行任务
+			this.processTask();
+			// 注册新的连接器
+			this.processRegister();
+			// 处理新的写请求
+			this.processWriteRequest();
+			// 发送到达截止时间的延迟数据
+			this.processCorked();
+
+			Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				NonblockingConnector connector = (NonblockingConnector) key.attachment();
+				if (null == connector) {
+					continue;
+				}
+
+				try {
+					if (key.isValid() && key.isConnectable()) {
+						this.connectingList.remove(connector);
+						connector.processConnect(key);
+						continue;
+					}
+
+					if (key.isValid() && key.isReadable()) {
+						connector.receive(key);
+					}
+
+					if (key.isValid() && key.isWritable()) {
+						connector.send(key);
+					}
+				} catch (Exception e) {
+					Logger.log(ConnectorEventLoop.class, e, LogLevel.DEBUG);
+					connector.doClose();
+				}
+			}
+
+			// 检查连接超时
+			this.checkTimeout();
+		}
+
+		// 关闭所有连接器
+		for (SelectionKey key : this.selector.keys()) {
+			NonblockingConnector connector = (NonblockingConnector) key.attachment();
+			if (null != connector) {
+				connector.doClose();
+			}
+		}
+
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			Logger.log(ConnectorEventLoop.class, e, LogLevel.DEBUG);
+		}
+
+		this.registerQueue.clear();
+		this.writeQueue.clear();
+		this.taskQueue.clear();
+		this.connectingList.clear();
+		this.corkedList.clear();
+
+		this.bufferPool.clear();
+
+		this.working = false;
+	}
+
+	/** 停止事件循环。
+	 */
+	protected void stopSpinning() {
+		this.spinning = false;
+		this.selector.wakeup();
+	}
+
+	/** 是否正在工作。
+	 */
+	public boolean isWorking() {
+		return this.working;
+	}
+
+	/** 返回当前管理的连接器数量。
+	 */
+	public int getConnectorNum() {
+		return this.selector.keys().size();
+	}
+
+	/** 返回事件循环的缓存池。
+	 */
+	protected ByteBufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+
+	/** 将连接器注册到事件循环。
+	 */
+	protected void register(NonblockingConnector connector) {
+		this.registerQueue.offer(connector);
+		this.selector.wakeup();
+	}
+
+	/** 通知事件循环连接器有数据需要发送。
+	 */
+	protected void requestWrite(NonblockingConnector connector) {
+		this.writeQueue.offer(connector);
+		if (!this.polling) {
+			this.selector.wakeup();
+		}
+	}
+
+	/** 在事件循环线程里执行任务。
+	 */
+	protected void execute(Runnable task) {
+		this.taskQueue.offer(task);
+		this.selector.wakeup();
+	}
+
+	private void processTask() {
+		Runnable task = null;
+		while (null != (task = this.taskQueue.poll())) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				Logger.log(ConnectorEventLoop.class, e, LogLevel.DEBUG);
+			}
+		}
+	}
+
+	private void processRegister() {
+		NonblockingConnector connector = null;
+		while (null != (connector = this.registerQueue.poll())) {
+			if (connector.processRegister(this.selector)) {
+				// 等待连接完成
+				this.connectingList.add(connector);
+			}
+		}
+	}
+
+	private void processWriteRequest() {
+		NonblockingConnector connector = null;
+		while (null != (connector = this.writeQueue.poll())) {
+			SelectionKey key = connector.getSelectionKey();
+			if (null == key || !key.isValid() || !connector.isConnected()) {
+				// 连接建立后再发送
+				continue;
+			}
+
+			if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+				if (connector.deferFlush()) {
+					// 延迟到截止时间或者达到字节阈值后发送
+					if (!this.corkedList.contains(connector)) {
+						this.corkedList.add(connector);
+					}
+					continue;
+				}
+
+				this.send(connector, key);
+			}
+		}
+	}
+
+	private void processCorked() {
+		for (int i = this.corkedList.size() - 1; i >= 0; --i) {
+			NonblockingConnector connector = this.corkedList.get(i);
+			SelectionKey key = connector.getSelectionKey();
+			if (!connector.isCorked() || null == key || !key.isValid()) {
+				// 已经解除延迟或者已经关闭
+				this.corkedList.remove(i);
+			}
+			else if (!connector.deferFlush()) {
+				this.corkedList.remove(i);
+				this.send(connector, key);
+			}
+		}
+	}
+
+	private void send(NonblockingConnector connector, SelectionKey key) {
+		try {
+			connector.send(key);
+		} catch (Exception e) {
+			Logger.log(ConnectorEventLoop.class, e, LogLevel.DEBUG);
+			connector.doClose();
+		}
+	}
+
+	/** 按连接超时、延迟发送的截止时间与轮询策略等待事件。
+	 * 
+	 * @return 返回就绪的通道数量。
+	 */
+	private int select() throws IOException {
+		long timeout = this.nextTimeout();
+		long corkTimeout = this.nextCorkTimeout();
+		PollStrategy strategy = this.getPollStrategy();
+
+		if (null != strategy && corkTimeout != 0 && strategy.isPolling(this.idleRounds)) {
+			// 忙轮询
+			this.polling = true;
+			strategy.pause(this.idleRounds);
+			return this.selector.selectNow();
+		}
+
+		// 阻塞前关闭轮询标记，再检查期间到达的写请求
+		this.polling = false;
+		if (corkTimeout == 0 || !this.writeQueue.isEmpty()) {
+			int num = this.selector.selectNow();
+			if (num == 0 && corkTimeout == 0) {
+				// 截止时间不足 1 毫秒，不阻塞
+				Thread.yield();
+			}
+			return num;
+		}
+
+		if (corkTimeout > 0 && (timeout == 0 || corkTimeout < timeout)) {
+			timeout = corkTimeout;
+		}
+
+		return (timeout > 0) ? this.selector.select(timeout) : this.selector.select();
+	}
+
+	/** 返回注册的连接器使用的轮询策略，多个连接器设置了策略时使用轮询次数最多的策略。
+	 */
+	private PollStrategy getPollStrategy() {
+		Set<SelectionKey> keys = this.selector.keys();
+		if (keys.size() == this.strategyKeyNum) {
+			return this.pollStrategy;
+		}
+
+		PollStrategy strategy = null;
+		for (SelectionKey key : keys) {
+			NonblockingConnector connector = (NonblockingConnector) key.attachment();
+			PollStrategy s = (null != connector) ? connector.getPollStrategy() : null;
+			if (null != s && (null == strategy || s.getBudget() > strategy.getBudget())) {
+				strategy = s;
+			}
+		}
+
+		this.pollStrategy = strategy;
+		this.strategyKeyNum = keys.size();
+		return strategy;
+	}
+
+	/** 返回延迟发送的等待时间，单位：毫秒。没有延迟发送的连接器时返回 -1 。
+	 */
+	private long nextCorkTimeout() {
+		if (this.corkedList.isEmpty()) {
+			return -1;
+		}
+
+		long now = System.nanoTime();
+		long remaining = Long.MAX_VALUE;
+		for (int i = 0, size = this.corkedList.size(); i < size; ++i) {
+			remaining = Math.min(remaining, this.corkedList.get(i).getCorkDeadline() - now);
+		}
+
+		return (remaining > 0) ? remaining / 1000000L : 0;
+	}
+
+	/** 返回选择器等待时间。没有正在建立的连接时返回 0 表示一直等待。
+	 */
+	private long nextTimeout() {
+		if (this.connectingList.isEmpty()) {
+			return 0;
+		}
+
+		long now = System.currentTimeMillis();
+		long deadline = Long.MAX_VALUE;
+		for (int i = 0, size = this.connectingList.size(); i < size; ++i) {
+			deadline = Math.min(deadline, this.connectingList.get(i).getConnectDeadline());
+		}
+
+		return Math.max(1, deadline - now);
+	}
+
+	private void checkTimeout() {
+		if (this.connectingList.isEmpty()) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		Iterator<NonblockingConnector> iter = this.connectingList.iterator();
+		while (iter.hasNext()) {
+			NonblockingConnector connector = iter.next();
+			if (connector.isConnected() || !connector.isConnecting()) {
+				iter.remove();
+			}
+			else if (now >= connector.getConnectDeadline()) {
+				iter.remove();
+				connector.processTimeout();
+			}
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 连接器事件循环组。
+ * 
+ * 多个连接器共享组内固定数量的事件循环线程，出站连接数量与线程数量无关。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class ConnectorEventLoopGroup {
+
+	private static ConnectorEventLoopGroup defaultGroup = null;
+
+	private ConnectorEventLoop[] loops;
+	private AtomicInteger index;
+
+	/** 构造函数。
+	 */
+	public ConnectorEventLoopGroup(int loopNum) throws IOException {
+		if (loopNum <= 0) {
+			loopNum = 1;
+		}
+
+		this.loops = new ConnectorEventLoop[loopNum];
+		this.index = new AtomicInteger(0);
+
+		try {
+			for (int i = 0; i < loopNum; ++i) {
+				this.loops[i] = new ConnectorEventLoop("ConnectorEventLoop-" + i);
+			}
+		} catch (IOException e) {
+			this.loops = null;
+			throw e;
+		}
+
+		for (ConnectorEventLoop loop : this.loops) {
+			loop.start();
+		}
+	}
+
+	/** 返回默认的事件循环组。
+	 */
+	public synchronized static ConnectorEventLoopGroup getDefault() {
+		if (null == defaultGroup) {
+			int num = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+			try {
+				defaultGroup = new ConnectorEventLoopGroup(num);
+			} catch (IOException e) {
+				Logger.log(ConnectorEventLoopGroup.class, e, LogLevel.ERROR);
+			}
+		}
+
+		return defaultGroup;
+	}
+
+	/** 返回事件循环数量。
+	 */
+	public int getLoopNum() {
+		return this.loops.length;
+	}
+
+	/** 返回组内管理的连接器数量。
+	 */
+	public int getConnectorNum() {
+		int num = 0;
+		for (ConnectorEventLoop loop : this.loops) {
+			num += loop.getConnectorNum();
+		}
+		return num;
+	}
+
+	/** 关闭事件循环组，关闭组内所有连接。
+	 */
+	public void shutdown() {
+		for (ConnectorEventLoop loop : this.loops) {
+			loop.stopSpinning();
+		}
+
+		synchronized (ConnectorEventLoopGroup.class) {
+			if (defaultGroup == this) {
+				defaultGroup = null;
+			}
+		}
+	}
+
+	/** 选择下一个事件循环。
+	 */
+	protected ConnectorEventLoop next() {
+		int i = Math.abs(this.index.getAndIncrement() % this.loops.length);
+		return this.loops[i];
+	}
+}
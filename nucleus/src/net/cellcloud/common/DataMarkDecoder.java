@@ -0,0 +1,105 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** 数据掩码流式解码器。
+ * 
+ * 已经扫描过的数据不再重复扫描，帧长度不受读缓存块大小的限制。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class DataMarkDecoder extends FrameDecoder {
+
+	private final byte[] headMark;
+	private final byte[] tailMark;
+	// Horspool 跳转表
+	private final int[] headShift;
+	private final int[] tailShift;
+
+	public DataMarkDecoder(byte[] headMark, byte[] tailMark) {
+		this(headMark, tailMark, null);
+	}
+
+	public DataMarkDecoder(byte[] headMark, byte[] tailMark, ByteBufferPool pool) {
+		super(pool);
+		this.headMark = headMark;
+		this.tailMark = tailMark;
+		this.headShift = createShiftTable(headMark);
+		this.tailShift = createShiftTable(tailMark);
+		this.reset();
+	}
+
+	@Override
+	protected int scanFrames(ByteBuffer data, List<Message> output) {
+		int count = 0;
+
+		while (true) {
+			if (!this.inFrame) {
+				int index = indexOf(data, this.scan, this.end, this.headMark, this.headShift);
+				if (index < 0) {
+					// 保留可能被截断的头掩码
+					this.start = Math.max(this.start, this.end - (this.headMark.length - 1));
+					this.scan = this.start;
+					break;
+				}
+
+				this.inFrame = true;
+				this.start = index;
+				this.frameStart = index + this.headMark.length;
+				this.scan = this.frameStart;
+			}
+
+			int index = indexOf(data, this.scan, this.end, this.tailMark, this.tailShift);
+			if (index < 0) {
+				if (this.end - this.frameStart > this.maxFrameLength) {
+					// 帧过长，丢弃已缓存数据并重新查找头掩码
+					Logger.w(DataMarkDecoder.class, "Frame length exceeds the limit " + this.maxFrameLength);
+					this.inFrame = false;
+					this.start = this.end;
+					this.scan = this.end;
+					break;
+				}
+
+				// 保留可能被截断的尾掩码
+				this.scan = Math.max(this.frameStart, this.end - (this.tailMark.length - 1));
+				break;
+			}
+
+			output.add(this.createFrame(data, this.frameStart, index));
+			++count;
+
+			this.inFrame = false;
+			this.start = index + this.tailMark.length;
+			this.scan = this.start;
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,85 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+
+/** 数据掩码帧格式。
+ * 
+ * 消息数据前后分别添加头掩码与尾掩码，接收端通过查找掩码切分数据帧。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class DataMarkFraming implements Framing {
+
+	private final byte[] headMark;
+	private final byte[] tailMark;
+
+	public DataMarkFraming(byte[] headMark, byte[] tailMark) {
+		this.headMark = headMark;
+		this.tailMark = tailMark;
+	}
+
+	/** 返回数据头掩码。
+	 */
+	public byte[] getHeadMark() {
+		return this.headMark;
+	}
+
+	/** 返回数据尾掩码。
+	 */
+	public byte[] getTailMark() {
+		return this.tailMark;
+	}
+
+	@Override
+	public FrameDecoder createDecoder(MessageService service, ByteBufferPool pool) {
+		return new DataMarkDecoder(this.headMark, this.tailMark, pool);
+	}
+
+	@Override
+	public ByteBuffer encodeHead(Message message) {
+		return ByteBuffer.wrap(this.headMark);
+	}
+
+	@Override
+	public ByteBuffer encodeTail(Message message) {
+		return ByteBuffer.wrap(this.tailMark);
+	}
+
+	/** 数据掩码帧无法标识压缩帧。
+	 */
+	@Override
+	public boolean isCompressible() {
+		return false;
+	}
+
+	@Override
+	public ByteBuffer encodeCompressedHead(Message message, int length) {
+		return null;
+	}
+}
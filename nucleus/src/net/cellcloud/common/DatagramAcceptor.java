@@ -0,0 +1,303 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** 数据报消息接收器。
+ * 
+ * 使用单个 DatagramChannel 接收所有对端的数据报，按照对端地址区分会话。
+ * 收到新地址的数据消息时创建会话，会话空闲超时或者对端关闭时销毁会话。
+ * 
+ * @author Jiangwei Xu
+ */
+public class DatagramAcceptor extends DatagramService implements MessageAcceptor {
+
+	private DatagramChannel channel;
+	private Selector selector;
+
+	private InetSocketAddress bindAddress;
+	private Thread handleThread;
+	private volatile boolean spinning;
+	private volatile boolean running;
+
+	// 会话空闲超时时间，单位：毫秒
+	private long sessionTimeout;
+	// 上一次检查空闲会话的时间
+	private long lastIdleCheck;
+
+	// 对端地址与会话的映射
+	private ConcurrentHashMap<SocketAddress, DatagramSession> sessions;
+
+	public DatagramAcceptor() {
+		this.spinning = false;
+		this.running = false;
+		this.sessionTimeout = 120000;
+		this.lastIdleCheck = 0;
+		this.sessions = new ConcurrentHashMap<SocketAddress, DatagramSession>();
+	}
+
+	@Override
+	public boolean bind(int port) {
+		return this.bind(new InetSocketAddress("0.0.0.0", port));
+	}
+
+	@Override
+	public boolean bind(InetSocketAddress address) {
+		try {
+			this.channel = DatagramChannel.open();
+			this.channel.configureBlocking(false);
+			this.channel.socket().bind(address);
+
+			this.selector = Selector.open();
+			this.channel.register(this.selector, SelectionKey.OP_READ);
+
+			this.bindAddress = address;
+		} catch (IOException e) {
+			Logger.log(DatagramAcceptor.class, e, LogLevel.ERROR);
+
+			this.closeChannel();
+
+			// 返回失败
+			return false;
+		}
+
+		this.spinning = true;
+
+		this.handleThread = new Thread() {
+			@Override
+			public void run() {
+				running = true;
+
+				try {
+					loopDispatch();
+				} catch (Exception e) {
+					Logger.log(DatagramAcceptor.class, e, LogLevel.ERROR);
+				}
+
+				running = false;
+			}
+		};
+		this.handleThread.setName("DatagramAcceptor@" + this.bindAddress.getAddress().getHostAddress()
+				+ ":" + this.bindAddress.getPort());
+		this.handleThread.start();
+
+		return true;
+	}
+
+	@Override
+	public void unbind() {
+		Iterator<DatagramSession> iter = this.sessions.values().iterator();
+		while (iter.hasNext()) {
+			DatagramSession session = iter.next();
+			this.close(session);
+		}
+
+		// 退出事件循环
+		this.spinning = false;
+		if (null != this.selector) {
+			this.selector.wakeup();
+		}
+
+		// 等待线程结束
+		int count = 0;
+		while (this.running && count < 300) {
+			++count;
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Logger.log(DatagramAcceptor.class, e, LogLevel.DEBUG);
+			}
+		}
+
+		this.closeChannel();
+		this.handleThread = null;
+		this.sessions.clear();
+	}
+
+	@Override
+	public void close(Session session) {
+		DatagramSession ds = this.sessions.remove(session.getAddress());
+		if (null == ds) {
+			return;
+		}
+
+		// 通知对端
+		this.sendControl(ds, TYPE_CLOSE, 0);
+
+		this.destroySession(ds);
+	}
+
+	@Override
+	public void write(Session session, Message message) {
+		DatagramSession ds = this.sessions.get(session.getAddress());
+		if (null != ds) {
+			this.sendMessage(ds, message);
+		}
+	}
+
+	/** 返回绑定地址。
+	 */
+	public final InetSocketAddress getBindAddress() {
+		return this.bindAddress;
+	}
+
+	/** 设置会话空闲超时时间。超过该时间没有收到对端数据的会话被销毁。
+	 */
+	public void setSessionTimeout(long timeout) {
+		this.sessionTimeout = timeout;
+	}
+
+	/** 返回会话空闲超时时间。
+	 */
+	public long getSessionTimeout() {
+		return this.sessionTimeout;
+	}
+
+	/** 返回所有会话。
+	 */
+	public Collection<DatagramSession> getSessions() {
+		return this.sessions.values();
+	}
+
+	@Override
+	protected int send(DatagramSession session, ByteBuffer datagram) throws IOException {
+		return this.channel.send(datagram, session.getAddress());
+	}
+
+	@Override
+	protected DatagramSession findSession(SocketAddress address, boolean create) {
+		DatagramSession session = this.sessions.get(address);
+		if (null != session || !create) {
+			return session;
+		}
+
+		if (this.sessions.size() >= this.getMaxConnectNum()) {
+			return null;
+		}
+
+		session = new DatagramSession(this, (InetSocketAddress) address);
+		this.sessions.put(address, session);
+
+		this.fireSessionCreated(session);
+		this.fireSessionOpened(session);
+
+		return session;
+	}
+
+	@Override
+	protected void remoteClosed(DatagramSession session) {
+		if (null != this.sessions.remove(session.getAddress())) {
+			this.destroySession(session);
+		}
+	}
+
+	private void destroySession(DatagramSession session) {
+		this.clearPending(session);
+
+		this.fireSessionClosed(session);
+		this.fireSessionDestroyed(session);
+	}
+
+	/** 事件循环。 */
+	private void loopDispatch() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(65536);
+
+		while (this.spinning) {
+			if (!this.selector.isOpen()) {
+				break;
+			}
+
+			if (this.selector.select(TICK_INTERVAL) > 0) {
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (key.isValid() && key.isReadable()) {
+						try {
+							this.receive(this.channel, buffer);
+						} catch (IOException e) {
+							Logger.log(DatagramAcceptor.class, e, LogLevel.DEBUG);
+						}
+					}
+				}
+			}
+
+			long now = System.currentTimeMillis();
+			this.checkRetransmit(now);
+
+			if (now - this.lastIdleCheck >= 1000) {
+				this.lastIdleCheck = now;
+				this.checkIdle(now);
+			}
+		}
+	}
+
+	/** 销毁空闲超时的会话。 */
+	private void checkIdle(long now) {
+		if (this.sessionTimeout <= 0) {
+			return;
+		}
+
+		Iterator<DatagramSession> iter = this.sessions.values().iterator();
+		while (iter.hasNext()) {
+			DatagramSession session = iter.next();
+			if (now - session.lastActive > this.sessionTimeout) {
+				iter.remove();
+				this.destroySession(session);
+			}
+		}
+	}
+
+	private void closeChannel() {
+		try {
+			if (null != this.channel) {
+				this.channel.close();
+			}
+		} catch (IOException e) {
+			Logger.log(DatagramAcceptor.class, e, LogLevel.DEBUG);
+		}
+
+		try {
+			if (null != this.selector) {
+				this.selector.close();
+			}
+		} catch (IOException e) {
+			Logger.log(DatagramAcceptor.class, e, LogLevel.DEBUG);
+		}
+	}
+}
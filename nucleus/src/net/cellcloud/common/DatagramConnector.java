@@ -0,0 +1,277 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+
+/** 数据报消息连接器。
+ * 
+ * 数据报没有连接过程，连接器绑定本地端口后即打开会话。
+ * 连接器只接收来自连接地址的数据报。
+ * 
+ * @author Jiangwei Xu
+ */
+public class DatagramConnector extends DatagramService implements MessageConnector {
+
+	private InetSocketAddress address;
+	private long connectTimeout;
+	private int block;
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private Thread handleThread;
+	private volatile boolean spinning;
+	private volatile boolean running;
+
+	private volatile DatagramSession session;
+
+	public DatagramConnector() {
+		this.connectTimeout = 10000;
+		this.block = 65536;
+		this.spinning = false;
+		this.running = false;
+		this.session = null;
+	}
+
+	/** 返回连接地址。
+	 */
+	public InetSocketAddress getAddress() {
+		return this.address;
+	}
+
+	@Override
+	public boolean connect(InetSocketAddress address) {
+		if (this.running) {
+			// 关闭当前的会话
+			this.disconnect();
+		}
+
+		try {
+			this.channel = DatagramChannel.open();
+			this.channel.configureBlocking(false);
+			this.channel.connect(address);
+
+			this.selector = Selector.open();
+			this.channel.register(this.selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			Logger.log(DatagramConnector.class, e, LogLevel.ERROR);
+			this.closeChannel();
+			this.fireErrorOccurred(null, MessageErrorCode.SOCKET_FAILED);
+			return false;
+		}
+
+		this.address = address;
+		this.session = new DatagramSession(this, address);
+		this.spinning = true;
+		this.running = true;
+
+		this.handleThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					loopDispatch();
+				} catch (Exception e) {
+					Logger.log(DatagramConnector.class, e, LogLevel.ERROR);
+				}
+
+				running = false;
+			}
+		};
+		this.handleThread.setName("DatagramConnector@" + address.getAddress().getHostAddress()
+				+ ":" + address.getPort());
+
+		this.fireSessionCreated(this.session);
+		this.fireSessionOpened(this.session);
+
+		this.handleThread.start();
+
+		return true;
+	}
+
+	@Override
+	public void disconnect() {
+		DatagramSession current = this.session;
+		if (null != current && this.spinning) {
+			// 通知对端
+			this.sendControl(current, TYPE_CLOSE, 0);
+		}
+
+		this.spinning = false;
+		if (null != this.selector) {
+			this.selector.wakeup();
+		}
+
+		if (null != this.handleThread && Thread.currentThread() != this.handleThread) {
+			int count = 0;
+			while (this.running && count < 300) {
+				++count;
+				try {
+					Thread.sleep(10);
+				} catch (InterruptedException e) {
+					Logger.log(DatagramConnector.class, e, LogLevel.DEBUG);
+				}
+			}
+		}
+
+		this.closeSession();
+	}
+
+	@Override
+	public void setConnectTimeout(long timeout) {
+		this.connectTimeout = timeout;
+	}
+
+	/** 返回连接超时值。数据报连接不需要握手，该值仅作记录。
+	 */
+	public long getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	@Override
+	public void setBlockSize(int size) {
+		this.block = size;
+	}
+
+	@Override
+	public Session getSession() {
+		return this.session;
+	}
+
+	/** 是否已打开会话。
+	 */
+	public boolean isConnected() {
+		return (null != this.session && this.spinning);
+	}
+
+	@Override
+	public void write(Session session, Message message) {
+		DatagramSession current = this.session;
+		if (null != current && this.spinning) {
+			this.sendMessage(current, message);
+		}
+	}
+
+	/** 写入消息。
+	 */
+	public void write(Message message) {
+		this.write(this.session, message);
+	}
+
+	@Override
+	protected int send(DatagramSession session, ByteBuffer datagram) throws IOException {
+		return this.channel.write(datagram);
+	}
+
+	@Override
+	protected DatagramSession findSession(SocketAddress address, boolean create) {
+		return this.session;
+	}
+
+	@Override
+	protected void remoteClosed(DatagramSession session) {
+		this.spinning = false;
+	}
+
+	/** 事件循环。 */
+	private void loopDispatch() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(this.block);
+
+		while (this.spinning) {
+			if (!this.selector.isOpen()) {
+				break;
+			}
+
+			if (this.selector.select(TICK_INTERVAL) > 0) {
+				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (key.isValid() && key.isReadable()) {
+						try {
+							this.receive(this.channel, buffer);
+						} catch (PortUnreachableException e) {
+							// 对端端口不可达
+							this.fireErrorOccurred(this.session, MessageErrorCode.CONNECT_FAILED);
+						} catch (IOException e) {
+							Logger.log(DatagramConnector.class, e, LogLevel.DEBUG);
+							this.fireErrorOccurred(this.session, MessageErrorCode.READ_FAILED);
+						}
+					}
+				}
+			}
+
+			this.checkRetransmit(System.currentTimeMillis());
+		}
+
+		if (Thread.currentThread() == this.handleThread) {
+			// 对端关闭会话时由事件循环线程关闭
+			this.closeSession();
+		}
+	}
+
+	/** 关闭会话。 */
+	private synchronized void closeSession() {
+		DatagramSession current = this.session;
+		if (null == current) {
+			return;
+		}
+
+		this.session = null;
+		this.clearPending(current);
+		this.closeChannel();
+
+		this.fireSessionClosed(current);
+		this.fireSessionDestroyed(current);
+	}
+
+	private void closeChannel() {
+		try {
+			if (null != this.channel) {
+				this.channel.close();
+			}
+		} catch (IOException e) {
+			Logger.log(DatagramConnector.class, e, LogLevel.DEBUG);
+		}
+
+		try {
+			if (null != this.selector) {
+				this.selector.close();
+			}
+		} catch (IOException e) {
+			Logger.log(DatagramConnector.class, e, LogLevel.DEBUG);
+		}
+	}
+}
@@ -0,0 +1,420 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** 数据报消息服务。
+ * 
+ * 每条消息使用一个数据报发送，不进行分片，消息长度受数据报最大长度限制。
+ * 数据报格式：魔数(2字节)|类型(1字节)|标志(1字节)|序号(4字节，大端序)|消息数据。
+ * 有序标志表示接收端丢弃比已交付消息更旧的消息；
+ * 可靠标志表示接收端需要回复确认，发送端超时未收到确认时重发，接收端丢弃重复消息。
+ * 
+ * @author Jiangwei Xu
+ */
+public abstract class DatagramService extends MessageService {
+
+	/** 数据报魔数。 */
+	public static final byte[] MAGIC = {(byte) 0xCF, (byte) 0x7D};
+
+	/** 数据报头长度。 */
+	public static final int HEAD_LENGTH = 8;
+
+	/** 默认数据报最大长度，以太网 MTU 减去 IP 与 UDP 头长度。 */
+	public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1472;
+
+	protected static final byte TYPE_DATA = 1;
+	protected static final byte TYPE_ACK = 2;
+	protected static final byte TYPE_CLOSE = 3;
+
+	protected static final int FLAG_RELIABLE = 0x01;
+	protected static final int FLAG_SEQUENCED = 0x02;
+
+	// 事件循环的检查间隔，单位：毫秒
+	protected static final long TICK_INTERVAL = 50;
+
+	// 单次唤醒最多接收的数据报数量
+	private static final int MAX_RECEIVE_BATCH = 64;
+
+	// 数据报最大长度
+	private int maxDatagramSize;
+	// 是否发送可靠消息
+	private boolean reliable;
+	// 是否发送有序消息
+	private boolean sequenced;
+	// 重发超时时间，单位：毫秒
+	private long retransmitTimeout;
+	// 最大发送次数
+	private int maxAttempts;
+
+	// 存在等待确认消息的会话
+	private ConcurrentHashMap<DatagramSession, Boolean> pendingSessions;
+
+	public DatagramService() {
+		this.maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+		this.reliable = false;
+		this.sequenced = false;
+		this.retransmitTimeout = 200;
+		this.maxAttempts = 5;
+		this.pendingSessions = new ConcurrentHashMap<DatagramSession, Boolean>();
+	}
+
+	/** 设置数据报最大长度，包含数据报头。
+	 */
+	public void setMaxDatagramSize(int size) {
+		this.maxDatagramSize = size;
+	}
+
+	/** 返回数据报最大长度。
+	 */
+	public int getMaxDatagramSize() {
+		return this.maxDatagramSize;
+	}
+
+	/** 返回单条消息的最大长度。
+	 */
+	public int getMaxMessageLength() {
+		return this.maxDatagramSize - HEAD_LENGTH;
+	}
+
+	/** 设置是否发送可靠消息。可靠消息需要对端确认，超时未确认时重发。
+	 */
+	public void setReliable(boolean reliable) {
+		this.reliable = reliable;
+	}
+
+	/** 是否发送可靠消息。
+	 */
+	public boolean isReliable() {
+		return this.reliable;
+	}
+
+	/** 设置是否发送有序消息。接收端丢弃比已交付消息更旧的有序消息。
+	 */
+	public void setSequenced(boolean sequenced) {
+		this.sequenced = sequenced;
+	}
+
+	/** 是否发送有序消息。
+	 */
+	public boolean isSequenced() {
+		return this.sequenced;
+	}
+
+	/** 设置可靠消息的重发超时时间与最大发送次数。
+	 */
+	public void setRetransmit(long timeout, int maxAttempts) {
+		this.retransmitTimeout = timeout;
+		this.maxAttempts = maxAttempts;
+	}
+
+	/** 返回可靠消息的重发超时时间。
+	 */
+	public long getRetransmitTimeout() {
+		return this.retransmitTimeout;
+	}
+
+	/** 返回可靠消息的最大发送次数。
+	 */
+	public int getMaxAttempts() {
+		return this.maxAttempts;
+	}
+
+	@Override
+	public void read(Message message, Session session) {
+		// Nothing
+	}
+
+	/** 向指定会话的对端发送数据报。
+	 * 
+	 * @return 返回发送的字节数，发送缓冲区已满时返回 0 。
+	 */
+	protected abstract int send(DatagramSession session, ByteBuffer datagram) throws IOException;
+
+	/** 返回数据报来源地址对应的会话，不接受该地址时返回 null 。
+	 */
+	protected abstract DatagramSession findSession(SocketAddress address, boolean create);
+
+	/** 对端关闭了会话。
+	 */
+	protected abstract void remoteClosed(DatagramSession session);
+
+	/** 发送消息。
+	 */
+	protected void sendMessage(DatagramSession session, Message message) {
+		int length = message.length();
+		if (length > this.getMaxMessageLength()) {
+			Logger.w(this.getClass(), "Message length " + length + " exceeds the datagram limit " + this.getMaxMessageLength());
+			this.fireErrorOccurred(session, MessageErrorCode.WRITE_FAILED);
+			return;
+		}
+
+		int flags = (this.reliable ? FLAG_RELIABLE : 0) | (this.sequenced ? FLAG_SEQUENCED : 0);
+		int sequence = session.sendSequence.incrementAndGet();
+
+		ByteBuffer datagram = ByteBuffer.allocate(HEAD_LENGTH + length);
+		encodeHead(datagram, TYPE_DATA, flags, sequence);
+		datagram.put(message.getBuffer());
+		datagram.flip();
+
+		if (this.reliable) {
+			// 确认前持有消息
+			message.retain();
+			session.pending.put(sequence, new DatagramSession.Pending(message, datagram.duplicate()));
+			this.pendingSessions.put(session, Boolean.TRUE);
+		}
+
+		try {
+			if (this.send(session, datagram) == 0 && !this.reliable) {
+				if (Logger.isDebugLevel()) {
+					Logger.d(this.getClass(), "Send buffer is full, drop datagram - session " + session.getId());
+				}
+				return;
+			}
+		} catch (IOException e) {
+			Logger.log(this.getClass(), e, LogLevel.DEBUG);
+			if (!this.reliable) {
+				this.fireErrorOccurred(session, MessageErrorCode.WRITE_FAILED);
+				return;
+			}
+		}
+
+		if (!this.reliable) {
+			this.fireMessageSent(session, message);
+		}
+	}
+
+	/** 发送控制数据报。
+	 */
+	protected void sendControl(DatagramSession session, byte type, int sequence) {
+		ByteBuffer datagram = ByteBuffer.allocate(HEAD_LENGTH);
+		encodeHead(datagram, type, 0, sequence);
+		datagram.flip();
+
+		try {
+			this.send(session, datagram);
+		} catch (IOException e) {
+			Logger.log(this.getClass(), e, LogLevel.DEBUG);
+		}
+	}
+
+	/** 从通道批量接收数据报并处理。
+	 */
+	protected void receive(DatagramChannel channel, ByteBuffer buffer) throws IOException {
+		for (int i = 0; i < MAX_RECEIVE_BATCH; ++i) {
+			buffer.clear();
+			SocketAddress address = channel.receive(buffer);
+			if (null == address) {
+				break;
+			}
+
+			buffer.flip();
+			this.process(address, buffer);
+		}
+	}
+
+	/** 处理一个数据报。
+	 */
+	private void process(SocketAddress address, ByteBuffer datagram) {
+		if (datagram.remaining() < HEAD_LENGTH
+				|| datagram.get(0) != MAGIC[0] || datagram.get(1) != MAGIC[1]) {
+			// 无法识别的数据报
+			return;
+		}
+
+		byte type = datagram.get(2);
+		int flags = datagram.get(3);
+		int sequence = datagram.getInt(4);
+
+		DatagramSession session = this.findSession(address, (type == TYPE_DATA));
+		if (null == session) {
+			return;
+		}
+
+		session.lastActive = System.currentTimeMillis();
+
+		if (type == TYPE_ACK) {
+			DatagramSession.Pending p = session.pending.remove(sequence);
+			if (null != p) {
+				this.fireMessageSent(session, p.message);
+				p.message.release();
+			}
+			return;
+		}
+		else if (type == TYPE_CLOSE) {
+			this.remoteClosed(session);
+			return;
+		}
+		else if (type != TYPE_DATA) {
+			return;
+		}
+
+		if ((flags & FLAG_RELIABLE) != 0) {
+			// 总是回复确认，之前的确认可能已经丢失
+			this.sendControl(session, TYPE_ACK, sequence);
+
+			if (session.checkDuplicate(sequence)) {
+				return;
+			}
+		}
+
+		if ((flags & FLAG_SEQUENCED) != 0 && session.checkStale(sequence)) {
+			return;
+		}
+
+		datagram.position(HEAD_LENGTH);
+		byte[] data = new byte[datagram.remaining()];
+		datagram.get(data);
+
+		// 拦截器返回 true 则该数据被拦截
+		if (this.fireIntercepted(session, data)) {
+			return;
+		}
+
+		this.fireMessageReceived(session, new Message(data));
+	}
+
+	/** 重发超时未确认的可靠消息。
+	 */
+	protected void checkRetransmit(long now) {
+		if (this.pendingSessions.isEmpty()) {
+			return;
+		}
+
+		Iterator<DatagramSession> iter = this.pendingSessions.keySet().iterator();
+		while (iter.hasNext()) {
+			DatagramSession session = iter.next();
+			if (session.pending.isEmpty()) {
+				iter.remove();
+				continue;
+			}
+
+			Iterator<DatagramSession.Pending> piter = session.pending.values().iterator();
+			while (piter.hasNext()) {
+				DatagramSession.Pending p = piter.next();
+				if (now - p.sendTime < this.retransmitTimeout) {
+					continue;
+				}
+
+				if (p.attempts >= this.maxAttempts) {
+					// 放弃重发
+					piter.remove();
+					p.message.release();
+					this.fireErrorOccurred(session, MessageErrorCode.WRITE_TIMEOUT);
+					continue;
+				}
+
+				++p.attempts;
+				p.sendTime = now;
+				try {
+					this.send(session, p.datagram.duplicate());
+				} catch (IOException e) {
+					Logger.log(this.getClass(), e, LogLevel.DEBUG);
+				}
+			}
+		}
+	}
+
+	/** 清空会话等待确认的消息。
+	 */
+	protected void clearPending(DatagramSession session) {
+		this.pendingSessions.remove(session);
+
+		Iterator<DatagramSession.Pending> iter = session.pending.values().iterator();
+		while (iter.hasNext()) {
+			DatagramSession.Pending p = iter.next();
+			iter.remove();
+			p.message.release();
+		}
+	}
+
+	private static void encodeHead(ByteBuffer datagram, byte type, int flags, int sequence) {
+		datagram.put(MAGIC[0]);
+		datagram.put(MAGIC[1]);
+		datagram.put(type);
+		datagram.put((byte) flags);
+		datagram.putInt(sequence);
+	}
+
+	/** 通知创建会话。 */
+	protected void fireSessionCreated(Session session) {
+		if (null != this.handler) {
+			this.handler.sessionCreated(session);
+		}
+	}
+	/** 通知打开会话。 */
+	protected void fireSessionOpened(Session session) {
+		if (null != this.handler) {
+			this.handler.sessionOpened(session);
+		}
+	}
+	/** 通知关闭会话。 */
+	protected void fireSessionClosed(Session session) {
+		if (null != this.handler) {
+			this.handler.sessionClosed(session);
+		}
+	}
+	/** 通知销毁会话。 */
+	protected void fireSessionDestroyed(Session session) {
+		if (null != this.handler) {
+			this.handler.sessionDestroyed(session);
+		}
+	}
+	/** 通知会话错误。 */
+	protected void fireErrorOccurred(Session session, int errorCode) {
+		if (null != this.handler) {
+			this.handler.errorOccurred(errorCode, session);
+		}
+	}
+	/** 通知会话接收到消息。 */
+	protected void fireMessageReceived(Session session, Message message) {
+		if (null != this.handler) {
+			this.handler.messageReceived(session, message);
+		}
+	}
+	/** 通知会话已发送消息。 */
+	protected void fireMessageSent(Session session, Message message) {
+		if (null != this.handler) {
+			this.handler.messageSent(session, message);
+		}
+	}
+	/** 通知消息拦截。 */
+	protected boolean fireIntercepted(Session session, byte[] rawData) {
+		if (null != this.interceptor) {
+			return this.interceptor.intercepted(session, rawData);
+		}
+		else {
+			return false;
+		}
+	}
+}
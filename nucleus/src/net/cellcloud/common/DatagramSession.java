@@ -0,0 +1,150 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 数据报会话。
+ * 
+ * 记录对端地址、发送序号、接收去重窗口以及等待确认的可靠消息。
+ * 
+ * @author Jiangwei Xu
+ */
+public class DatagramSession extends Session {
+
+	// 可靠消息去重窗口大小
+	protected static final int RELIABLE_WINDOW = 4096;
+
+	// 发送序号
+	protected final AtomicInteger sendSequence = new AtomicInteger(0);
+
+	// 是否已经收到过有序消息
+	protected boolean sequenceInitialized = false;
+	// 最后交付的有序消息序号
+	protected int lastSequence = 0;
+
+	// 该序号及之前的可靠消息都已收到，发送序号从 1 开始
+	protected int reliableBase = 0;
+	// reliableBase 之后已收到的序号标记，第 i 位对应序号 reliableBase + 1 + i
+	protected BitSet reliableReceived = new BitSet();
+
+	// 等待确认的可靠消息
+	protected final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+
+	// 最近一次收到数据的时间
+	protected volatile long lastActive;
+
+	/** 构造函数。
+	 */
+	public DatagramSession(MessageService service, InetSocketAddress address) {
+		super(service, address);
+		this.lastActive = System.currentTimeMillis();
+	}
+
+	/** 返回等待确认的消息数量。
+	 */
+	public int getPendingNum() {
+		return this.pending.size();
+	}
+
+	/** 判断可靠消息是否是重复消息，不重复时记录该序号。
+	 * 缺失的序号超出去重窗口时放弃等待，窗口向前移动。
+	 * 序号回退超过去重窗口时视为对端已经重启，重置窗口。
+	 */
+	protected synchronized boolean checkDuplicate(int sequence) {
+		int offset = sequence - this.reliableBase - 1;
+		if (offset < -RELIABLE_WINDOW) {
+			// 对端重新从 1 开始编号
+			this.reliableBase = 0;
+			this.reliableReceived = new BitSet();
+			offset = sequence - 1;
+		}
+
+		if (offset < 0) {
+			return true;
+		}
+
+		if (offset >= RELIABLE_WINDOW) {
+			// 移动窗口，放弃等待最早的缺失序号
+			this.advance(offset - RELIABLE_WINDOW + 1);
+			offset = RELIABLE_WINDOW - 1;
+		}
+		else if (this.reliableReceived.get(offset)) {
+			return true;
+		}
+
+		this.reliableReceived.set(offset);
+
+		// 合并连续收到的序号
+		int count = this.reliableReceived.nextClearBit(0);
+		if (count > 0) {
+			this.advance(count);
+		}
+
+		return false;
+	}
+
+	private void advance(int count) {
+		this.reliableBase += count;
+		int length = this.reliableReceived.length();
+		this.reliableReceived = (count < length) ? this.reliableReceived.get(count, length) : new BitSet();
+	}
+
+	/** 判断有序消息是否过期，不过期时记录该序号。
+	 * 序号回退超过去重窗口时视为对端已经重启，不作为过期消息。
+	 */
+	protected synchronized boolean checkStale(int sequence) {
+		if (this.sequenceInitialized && sequence - this.lastSequence <= 0
+			&& this.lastSequence - sequence <= RELIABLE_WINDOW) {
+			return true;
+		}
+
+		this.sequenceInitialized = true;
+		this.lastSequence = sequence;
+		return false;
+	}
+
+	/** 等待确认的可靠消息。
+	 */
+	protected static final class Pending {
+		protected final Message message;
+		protected final ByteBuffer datagram;
+		protected long sendTime;
+		protected int attempts;
+
+		protected Pending(Message message, ByteBuffer datagram) {
+			this.message = message;
+			this.datagram = datagram;
+			this.sendTime = System.currentTimeMillis();
+			this.attempts = 1;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/** 数据流帧解码器。
+ * 
+ * 没有未完成数据帧时，解码器直接在输入缓存上查找帧，完整的数据帧只复制一次即交付；
+ * 仅当数据帧跨越多次读取时才从缓存池借用累积缓存，帧完成后立即归还。
+ * 启用缓存帧后，较大的数据帧复制到从缓存池借用的缓存里，以缓存形式的消息交付。
+ * 子类负责在缓存的 [start, end) 区间内识别具体格式的数据帧。
+ * 
+ * @author Jiangwei Xu
+ */
+public abstract class FrameDecoder {
+
+	// 默认最大帧长度
+	public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+	// 使用缓存帧的最小帧长度，较小的帧直接复制为字节数组
+	public static final int POOLED_FRAME_THRESHOLD = 1024;
+
+	protected int maxFrameLength;
+
+	// 是否使用缓存帧
+	private boolean pooledFrame;
+
+	// 压缩帧的解压上下文
+	protected CompressionContext compression;
+
+	// 累积缓存池
+	private final ByteBufferPool pool;
+	// 累积缓存，仅在存在未完成数据时持有
+	private ByteBuffer buffer;
+
+	// 未消费数据的起始位置
+	protected int start;
+	// 数据结束位置
+	protected int end;
+	// 下一次扫描的起始位置
+	protected int scan;
+	// 是否已经找到帧起始位置
+	protected boolean inFrame;
+	// 帧数据起始位置
+	protected int frameStart;
+
+	protected FrameDecoder(ByteBufferPool pool) {
+		this.maxFrameLength = DEFAULT_MAX_FRAME_LENGTH;
+		this.pool = pool;
+		this.buffer = null;
+		this.pooledFrame = false;
+		this.compression = null;
+	}
+
+	/** 设置解压压缩帧时使用的上下文。
+	 */
+	public void setCompression(CompressionContext compression) {
+		this.compression = compression;
+	}
+
+	/** 设置是否使用缓存帧。
+	 * 使用缓存帧时交付的消息持有缓存池的缓存，接收方处理完消息后需要释放消息。
+	 */
+	public void setPooledFrame(boolean pooled) {
+		this.pooledFrame = pooled;
+	}
+
+	/** 是否使用缓存帧。
+	 */
+	public boolean isPooledFrame() {
+		return this.pooledFrame;
+	}
+
+	/** 设置最大帧长度。超过该长度的帧被丢弃。
+	 */
+	public void setMaxFrameLength(int length) {
+		this.maxFrameLength = length;
+	}
+
+	/** 返回最大帧长度。
+	 */
+	public int getMaxFrameLength() {
+		return this.maxFrameLength;
+	}
+
+	/** 返回当前缓存的未完成数据长度。
+	 */
+	public int getPendingLength() {
+		return (null != this.buffer) ? this.end - this.start : 0;
+	}
+
+	/** 清空解码状态，归还累积缓存。
+	 */
+	public void reset() {
+		this.start = 0;
+		this.end = 0;
+		this.scan = 0;
+		this.inFrame = false;
+		this.frameStart = 0;
+
+		if (null != this.buffer) {
+			if (null != this.pool) {
+				this.pool.returnBuffer(this.buffer);
+			}
+			this.buffer = null;
+		}
+	}
+
+	/** 解码输入数据，将解析出的完整帧添加到输出列表。
+	 * 
+	 * @return 返回本次解析出的帧数量。
+	 */
+	public int decode(ByteBuffer input, List<Message> output) {
+		int length = input.remaining();
+		if (length == 0) {
+			return 0;
+		}
+
+		int count = 0;
+
+		if (null == this.buffer) {
+			// 直接在输入缓存上解码
+			this.start = input.position();
+			this.end = input.limit();
+			this.scan = this.start;
+			this.inFrame = false;
+
+			count = this.scanFrames(input, output);
+
+			if (this.start < this.end) {
+				// 缓存未完成数据
+				this.store(input);
+			}
+			else {
+				this.reset();
+			}
+
+			input.position(input.limit());
+		}
+		else {
+			this.append(input, length);
+
+			count = this.scanFrames(this.buffer, output);
+
+			if (this.start == this.end) {
+				this.reset();
+			}
+		}
+
+		return count;
+	}
+
+	/** 在指定缓存的 [start, end) 区间内查找完整帧。
+	 * 
+	 * @return 返回解析出的帧数量。
+	 */
+	protected abstract int scanFrames(ByteBuffer data, List<Message> output);
+
+	/** 使用缓存指定区间的数据创建帧消息。
+	 */
+	protected Message createFrame(ByteBuffer data, int from, int to) {
+		int length = to - from;
+
+		if (this.pooledFrame && null != this.pool && length >= POOLED_FRAME_THRESHOLD) {
+			ByteBuffer frame = this.pool.borrowBuffer(length);
+			frame.clear();
+			frame.limit(length);
+
+			ByteBuffer src = data.duplicate();
+			src.limit(to);
+			src.position(from);
+			frame.put(src);
+			frame.flip();
+			return new Message(frame, this.pool);
+		}
+
+		return new Message(copyFrame(data, from, to));
+	}
+
+	/** 复制缓存指定区间的数据。
+	 */
+	protected static byte[] copyFrame(ByteBuffer data, int from, int to) {
+		byte[] frame = new byte[to - from];
+		data.position(from);
+		data.get(frame);
+		return frame;
+	}
+
+	/** 将输入缓存中的未完成数据复制到累积缓存。
+	 */
+	private void store(ByteBuffer input) {
+		int pending = this.end - this.start;
+		this.buffer = this.allocate(pending);
+
+		input.limit(this.end);
+		input.position(this.start);
+		this.buffer.put(input);
+
+		this.scan -= this.start;
+		this.frameStart -= this.start;
+		this.end = pending;
+		this.start = 0;
+	}
+
+	/** 将输入数据追加到累积缓存。
+	 */
+	private void append(ByteBuffer input, int length) {
+		int pending = this.end - this.start;
+
+		if (this.end + length > this.buffer.capacity()) {
+			ByteBuffer old = this.buffer;
+			old.limit(this.end);
+			old.position(this.start);
+
+			if (pending + length <= old.capacity()) {
+				// 压缩缓存
+				old.compact();
+			}
+			else {
+				// 扩容
+				this.buffer = this.allocate(pending + length);
+				this.buffer.put(old);
+				if (null != this.pool) {
+					this.pool.returnBuffer(old);
+				}
+			}
+
+			this.scan -= this.start;
+			this.frameStart -= this.start;
+			this.end = pending;
+			this.start = 0;
+		}
+
+		this.buffer.limit(this.buffer.capacity());
+		this.buffer.position(this.end);
+		this.buffer.put(input);
+		this.end += length;
+	}
+
+	private ByteBuffer allocate(int length) {
+		int capacity = 1024;
+		while (capacity < length) {
+			capacity <<= 1;
+		}
+
+		ByteBuffer buf = (null != this.pool) ? this.pool.borrowBuffer(capacity) : ByteBuffer.allocate(capacity);
+		buf.clear();
+		return buf;
+	}
+
+	/** 使用 Horspool 算法查找掩码位置。
+	 */
+	protected static int indexOf(ByteBuffer data, int from, int to, byte[] pattern, int[] shift) {
+		int last = pattern.length - 1;
+		int i = from;
+		while (i + last < to) {
+			int j = last;
+			while (data.get(i + j) == pattern[j]) {
+				if (j == 0) {
+					return i;
+				}
+				--j;
+			}
+
+			i += shift[data.get(i + last) & 0xFF];
+		}
+
+		return -1;
+	}
+
+	/** 创建 Horspool 跳转表。
+	 */
+	protected static int[] createShiftTable(byte[] pattern) {
+		int[] table = new int[256];
+		Arrays.fill(table, pattern.length);
+		for (int i = 0, last = pattern.length - 1; i < last; ++i) {
+			table[pattern[i] & 0xFF] = last - i;
+		}
+		return table;
+	}
+
+	/** 判断缓存指定位置开始的数据是否与模式的前缀一致。
+	 * 
+	 * @return 返回比较的字节数，不一致时返回 -1 。
+	 */
+	protected static int matchPrefix(ByteBuffer data, int from, int to, byte[] pattern) {
+		int length = Math.min(to - from, pattern.length);
+		for (int i = 0; i < length; ++i) {
+			if (data.get(from + i) != pattern[i]) {
+				return -1;
+			}
+		}
+		return length;
+	}
+}
@@ -0,0 +1,60 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+
+/** 消息帧格式。
+ * 
+ * 帧格式负责为发送的消息生成帧头与帧尾，并为接收的数据流创建解码器。
+ * 
+ * @author Jiangwei Xu
+ */
+public interface Framing {
+
+	/** 创建数据流解码器。
+	 */
+	public FrameDecoder createDecoder(MessageService service, ByteBufferPool pool);
+
+	/** 返回指定消息的帧头，无帧头时返回 null 。
+	 */
+	public ByteBuffer encodeHead(Message message);
+
+	/** 返回指定消息的帧尾，无帧尾时返回 null 。
+	 */
+	public ByteBuffer encodeTail(Message message);
+
+	/** 帧格式是否能够标识压缩帧。
+	 */
+	public boolean isCompressible();
+
+	/** 返回压缩帧的帧头。
+	 * 
+	 * @param length 压缩后的帧数据长度。
+	 */
+	public ByteBuffer encodeCompressedHead(Message message, int length);
+}
@@ -0,0 +1,204 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** 长度前缀帧解码器。
+ * 
+ * 读取定长帧头后直接截取数据，不扫描数据内容。
+ * 如果指定了数据掩码，解码器在每个帧边界上同时识别数据掩码帧，
+ * 以便连接在协商帧格式前后都能正确解码。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class LengthFrameDecoder extends FrameDecoder {
+
+	private final byte[] headMark;
+	private final byte[] tailMark;
+	private final int[] tailShift;
+
+	// 当前帧是否是数据掩码帧
+	private boolean markFrame;
+	// 当前长度前缀帧的数据长度
+	private int frameLength;
+	// 当前长度前缀帧的标志
+	private int frameFlags;
+	// 已丢弃的未协商压缩帧数量，仅在首次丢弃时记录日志
+	private long rejectedFrames;
+
+	public LengthFrameDecoder(ByteBufferPool pool) {
+		this(null, null, pool);
+	}
+
+	public LengthFrameDecoder(byte[] headMark, byte[] tailMark, ByteBufferPool pool) {
+		super(pool);
+		if (null != headMark && null != tailMark) {
+			this.headMark = headMark;
+			this.tailMark = tailMark;
+			this.tailShift = createShiftTable(tailMark);
+		}
+		else {
+			this.headMark = null;
+			this.tailMark = null;
+			this.tailShift = null;
+		}
+		this.rejectedFrames = 0;
+		this.reset();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		this.markFrame = false;
+		this.frameLength = 0;
+		this.frameFlags = 0;
+	}
+
+	@Override
+	protected int scanFrames(ByteBuffer data, List<Message> output) {
+		int count = 0;
+
+		while (true) {
+			if (!this.inFrame) {
+				int available = this.end - this.scan;
+				if (available == 0) {
+					this.start = this.scan;
+					break;
+				}
+
+				int matched = matchPrefix(data, this.scan, this.end, LengthFraming.MAGIC);
+				if (matched > 0) {
+					if (available < LengthFraming.HEAD_LENGTH) {
+						// 等待完整帧头
+						this.start = this.scan;
+						break;
+					}
+
+					int length = data.getInt(this.scan + 4);
+					if (length < 0 || length > this.maxFrameLength) {
+						Logger.w(LengthFrameDecoder.class, "Frame length exceeds the limit " + this.maxFrameLength);
+						// 跳过一个字节重新同步
+						++this.scan;
+						continue;
+					}
+
+					this.inFrame = true;
+					this.markFrame = false;
+					this.frameLength = length;
+					this.frameFlags = data.get(this.scan + 2);
+					this.start = this.scan;
+					this.frameStart = this.scan + LengthFraming.HEAD_LENGTH;
+					this.scan = this.frameStart;
+				}
+				else if (null != this.headMark
+						&& (matched = matchPrefix(data, this.scan, this.end, this.headMark)) > 0) {
+					if (matched < this.headMark.length) {
+						// 等待完整头掩码
+						this.start = this.scan;
+						break;
+					}
+
+					this.inFrame = true;
+					this.markFrame = true;
+					this.start = this.scan;
+					this.frameStart = this.scan + this.headMark.length;
+					this.scan = this.frameStart;
+				}
+				else {
+					// 无法识别的数据，跳过一个字节重新同步
+					++this.scan;
+					this.start = this.scan;
+					continue;
+				}
+			}
+
+			if (this.markFrame) {
+				int index = indexOf(data, this.scan, this.end, this.tailMark, this.tailShift);
+				if (index < 0) {
+					if (this.end - this.frameStart > this.maxFrameLength) {
+						// 帧过长，丢弃已缓存数据
+						Logger.w(LengthFrameDecoder.class, "Frame length exceeds the limit " + this.maxFrameLength);
+						this.inFrame = false;
+						this.start = this.end;
+						this.scan = this.end;
+						break;
+					}
+
+					// 保留可能被截断的尾掩码
+					this.scan = Math.max(this.frameStart, this.end - (this.tailMark.length - 1));
+					break;
+				}
+
+				output.add(this.createFrame(data, this.frameStart, index));
+				++count;
+
+				this.inFrame = false;
+				this.start = index + this.tailMark.length;
+				this.scan = this.start;
+			}
+			else {
+				int frameEnd = this.frameStart + this.frameLength;
+				if (frameEnd > this.end) {
+					// 等待完整帧数据
+					break;
+				}
+
+				if ((this.frameFlags & LengthFraming.FLAG_DEFLATE) != 0
+					&& (null == this.compression || !this.compression.isAcceptable())) {
+					// 没有协商压缩，丢弃压缩帧
+					if (this.rejectedFrames++ == 0) {
+						Logger.w(LengthFrameDecoder.class, "Discard compressed frame, compression is not negotiated");
+					}
+				}
+				else if ((this.frameFlags & LengthFraming.FLAG_DEFLATE) != 0) {
+					// 解压压缩帧
+					ByteBuffer inflated = this.compression.inflate(data, this.frameStart, frameEnd, this.maxFrameLength);
+					if (null != inflated) {
+						// 解压缓存会被复用，复制为帧消息
+						output.add(this.createFrame(inflated, 0, inflated.limit()));
+						++count;
+					}
+					else {
+						Logger.w(LengthFrameDecoder.class, "Discard broken compressed frame");
+					}
+				}
+				else {
+					output.add(this.createFrame(data, this.frameStart, frameEnd));
+					++count;
+				}
+
+				this.inFrame = false;
+				this.start = frameEnd;
+				this.scan = frameEnd;
+			}
+		}
+
+		return count;
+	}
+}
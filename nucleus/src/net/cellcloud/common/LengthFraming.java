@@ -0,0 +1,91 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+
+/** 长度前缀帧格式。
+ * 
+ * 帧头格式：魔数(2字节)|标志(1字节)|保留(1字节)|数据长度(4字节，大端序)。
+ * 标志位 {@link #FLAG_DEFLATE} 表示帧数据经过 Deflate 压缩。
+ * 接收端读取定长帧头后直接截取数据，不需要扫描数据内容。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class LengthFraming implements Framing {
+
+	/** 帧头魔数。 */
+	public static final byte[] MAGIC = {(byte) 0xCF, (byte) 0x7C};
+
+	/** 帧头长度。 */
+	public static final int HEAD_LENGTH = 8;
+
+	/** 压缩帧标志。 */
+	public static final int FLAG_DEFLATE = 0x01;
+
+	public LengthFraming() {
+	}
+
+	/** 创建解码器。
+	 * 如果服务定义了数据掩码，解码器同时兼容数据掩码帧。
+	 */
+	@Override
+	public FrameDecoder createDecoder(MessageService service, ByteBufferPool pool) {
+		return new LengthFrameDecoder(service.getHeadMark(), service.getTailMark(), pool);
+	}
+
+	@Override
+	public ByteBuffer encodeHead(Message message) {
+		return encodeHead(0, message.length());
+	}
+
+	@Override
+	public ByteBuffer encodeTail(Message message) {
+		return null;
+	}
+
+	@Override
+	public boolean isCompressible() {
+		return true;
+	}
+
+	@Override
+	public ByteBuffer encodeCompressedHead(Message message, int length) {
+		return encodeHead(FLAG_DEFLATE, length);
+	}
+
+	private static ByteBuffer encodeHead(int flags, int length) {
+		ByteBuffer head = ByteBuffer.allocate(HEAD_LENGTH);
+		head.put(MAGIC[0]);
+		head.put(MAGIC[1]);
+		head.put((byte) flags);
+		head.put((byte) 0);
+		head.putInt(length);
+		head.flip();
+		return head;
+	}
+}
@@ -26,9 +26,16 @@ THE SOFTWARE.
 
 package net.cellcloud.common;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** 消息描述类。
+ * 
+ * 消息数据可以是字节数组，也可以是从缓存池借用的缓存。
+ * 缓存形式的消息使用引用计数管理缓存，计数归零时缓存归还缓存池，
+ * 因此使用完缓存形式的消息后必须调用 {@link #release()} 。
+ * 消息也可以携带延迟打包的数据包，由 I/O 线程在发送时打包，参见 {@link PacketCoalescer} 。
  * 
  * @author Jiangwei Xu
  */
@@ -36,39 +43,157 @@ public class Message {
 
 	private byte[] data;
 
+	// 消息数据缓存，数据区间为 [position, limit)
+	private ByteBuffer buffer;
+	// 缓存所属的缓存池
+	private ByteBufferPool pool;
+	// 引用计数
+	private AtomicInteger refCount;
+	// 数据长度
+	private int length;
+	// 延迟打包的数据包
+	private Packet packet;
+
 	/** 构造函数。
 	 */
 	public Message(byte[] data) {
 		this.data = data;
+		this.length = data.length;
 	}
 
 	/** 构造函数。
 	 */
 	public Message(String data) {
 		this.data = data.getBytes(Charset.forName("UTF-8"));
+		this.length = this.data.length;
+	}
+
+	/** 构造函数。使用缓存的 [position, limit) 区间作为消息数据，初始引用计数为 1 。
+	 * 
+	 * @param buffer 消息数据缓存。
+	 * @param pool 缓存所属的缓存池，为 null 时不归还。
+	 */
+	public Message(ByteBuffer buffer, ByteBufferPool pool) {
+		this.buffer = buffer;
+		this.pool = pool;
+		this.refCount = new AtomicInteger(1);
+		this.length = buffer.remaining();
+	}
+
+	/** 构造函数。数据包延迟到发送时打包，写入后不应再修改数据包。
+	 * 
+	 * @param packet 数据包。
+	 * @param length 数据包打包后的长度。
+	 */
+	protected Message(Packet packet, int length) {
+		this.packet = packet;
+		this.length = length;
 	}
 
-	/** 返回消息数据。
+	/** 返回消息数据。缓存形式的消息首次调用时复制缓存数据，延迟打包的消息首次调用时打包。
 	 */
 	public byte[] get() {
+		if (null == this.data) {
+			if (null != this.packet) {
+				this.data = Packet.pack(this.packet);
+			}
+			else {
+				ByteBuffer view = this.getBuffer();
+				if (null != view) {
+					byte[] bytes = new byte[view.remaining()];
+					view.get(bytes);
+					this.data = bytes;
+				}
+			}
+		}
+
 		return this.data;
 	}
 
+	/** 返回消息数据的只读缓存视图。视图在消息释放之前有效。
+	 */
+	public ByteBuffer getBuffer() {
+		ByteBuffer buf = this.buffer;
+		if (null != buf) {
+			return buf.slice().asReadOnlyBuffer();
+		}
+
+		byte[] bytes = (null != this.packet) ? this.get() : this.data;
+		if (null != bytes) {
+			return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		}
+
+		return null;
+	}
+
+	/** 返回延迟打包的数据包，其他形式的消息返回 null 。
+	 */
+	public Packet getPacket() {
+		return this.packet;
+	}
+
+	/** 是否是缓存形式的消息。
+	 */
+	public boolean hasBuffer() {
+		return (null != this.buffer);
+	}
+
+	/** 增加引用计数。
+	 */
+	public Message retain() {
+		if (null != this.refCount) {
+			this.refCount.incrementAndGet();
+		}
+		return this;
+	}
+
+	/** 减少引用计数，计数归零时将缓存归还缓存池。
+	 * 
+	 * @return 如果缓存被归还返回 true 。
+	 */
+	public boolean release() {
+		if (null == this.refCount) {
+			return false;
+		}
+
+		int count = this.refCount.decrementAndGet();
+		if (count == 0) {
+			ByteBuffer buf = this.buffer;
+			this.buffer = null;
+			if (null != buf && null != this.pool) {
+				this.pool.returnBuffer(buf);
+			}
+			return true;
+		}
+		else if (count < 0) {
+			Logger.w(Message.class, "Message released too many times");
+			this.refCount.set(0);
+		}
+
+		return false;
+	}
+
+	/** 返回引用计数。字节数组形式的消息始终返回 1 。
+	 */
+	public int refCount() {
+		return (null != this.refCount) ? this.refCount.get() : 1;
+	}
+
 	/** 消息数据长度。
 	 */
 	public int length() {
-		return this.data.length;
+		return this.length;
 	}
 
 	/** 返回 UTF-8 字符集编码的字符串形式的消息数据。
 	 */
 	public String getAsString() {
-		return new String(this.data, Charset.forName("UTF-8"));
+		return new String(this.get(), Charset.forName("UTF-8"));
 	}
 
 	/** 返回指定字符集的消息数据的字符串形式。
 	 */
 	public String getAsString(String charsetName) {
-		return new String(this.data, Charset.forName(charsetName));
+		return new String(this.get(), Charset.forName(charsetName));
 	}
 }
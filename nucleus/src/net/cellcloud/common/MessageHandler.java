@@ -57,6 +57,10 @@ public interface MessageHandler {
 	*/
 	public void messageSent(Session session, Message message);
 
+	/** 会话可写状态发生变化。
+	*/
+	public void writabilityChanged(Session session, boolean writable);
+
 	/** 发生错误。
 	*/
 	public void errorOccurred(int errorCode, Session session);
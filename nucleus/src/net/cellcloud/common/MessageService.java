@@ -26,36 +26,113 @@ THE SOFTWARE.
 
 package net.cellcloud.common;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
 /** 消息服务。
  * 
  * @author Jiangwei Xu
  */
 public abstract class MessageService {
 
+	/** 默认的延迟发送字节阈值。 */
+	public final static int DEFAULT_CORK_THRESHOLD = 16384;
+	/** 默认的延迟发送时间上限，单位：微秒。 */
+	public final static long DEFAULT_CORK_DELAY = 200;
+	// 自适应策略下切换为延迟发送的消息数量
+	private final static int ADAPTIVE_DEPTH = 4;
+
 	protected MessageHandler handler;
+	// 用户设置的消息句柄
+	private MessageHandler rawHandler;
+	// 回调分发执行器
+	private Executor dispatchExecutor;
 	protected MessageInterceptor interceptor;
 	private byte[] headMark;
 	private byte[] tailMark;
+	// 数据掩码帧格式
+	private Framing markFraming;
+	// 协商使用的帧格式
+	private Framing framing;
+	// 是否以缓存形式交付接收到的消息
+	private boolean pooledMessage;
 	private int maxConnectNum;
 
+	// 会话写队列的高水位与低水位，单位：字节
+	private long highWatermark;
+	private long lowWatermark;
+	// 超过高水位时的处理策略
+	private int backpressurePolicy;
+	// 阻塞策略下的最长等待时间，单位：毫秒
+	private long blockTimeout;
+
+	// 发送策略
+	private volatile int flushPolicy;
+	// 延迟发送的字节阈值
+	private volatile int corkThreshold;
+	// 延迟发送的时间上限，单位：微秒
+	private volatile long corkDelay;
+
+	// 选择器线程的忙轮询策略，为 null 时阻塞等待
+	private volatile PollStrategy pollStrategy;
+
 	public MessageService() {
 		this.handler = null;
+		this.rawHandler = null;
+		this.dispatchExecutor = null;
 		this.interceptor = null;
 		this.headMark = null;
 		this.tailMark = null;
+		this.markFraming = null;
+		this.framing = null;
+		this.pooledMessage = false;
 		this.maxConnectNum = 32;
+		// 默认不限制写队列
+		this.highWatermark = 0;
+		this.lowWatermark = 0;
+		this.backpressurePolicy = BackpressurePolicy.BLOCK;
+		this.blockTimeout = 30000;
+		this.flushPolicy = FlushPolicy.IMMEDIATE;
+		this.corkThreshold = DEFAULT_CORK_THRESHOLD;
+		this.corkDelay = DEFAULT_CORK_DELAY;
+		this.pollStrategy = null;
 	}
 
 	/** 返回消息句柄。
 	 */
 	public MessageHandler getHandler() {
-		return this.handler;
+		return this.rawHandler;
 	}
 
 	/** 设置消息句柄。
 	 */
 	public void setHandler(MessageHandler handler) {
-		this.handler = handler;
+		this.rawHandler = handler;
+		this.updateHandler();
+	}
+
+	/** 设置回调分发执行器。
+	 * 设置后消息句柄的回调不在 I/O 线程上执行，而是提交到执行器，同一会话的回调保持顺序。
+	 * 设置为 null 时在 I/O 线程上直接回调。
+	 */
+	public void setDispatchExecutor(Executor executor) {
+		this.dispatchExecutor = executor;
+		this.updateHandler();
+	}
+
+	/** 返回回调分发执行器。
+	 */
+	public Executor getDispatchExecutor() {
+		return this.dispatchExecutor;
+	}
+
+	private void updateHandler() {
+		if (null != this.rawHandler && null != this.dispatchExecutor) {
+			this.handler = new OrderedDispatchHandler(this.rawHandler, this.dispatchExecutor);
+		}
+		else {
+			this.handler = this.rawHandler;
+		}
 	}
 
 	/** 返回消息拦截器。
@@ -76,6 +153,7 @@ public abstract class MessageService {
 	public void defineDataMark(byte[] headMark, byte[] tailMark) {
 		this.headMark = headMark;
 		this.tailMark = tailMark;
+		this.markFraming = (null != headMark && null != tailMark) ? new DataMarkFraming(headMark, tailMark) : null;
 	}
 
 	/** 返回该服务使用使用了数据掩码。
@@ -96,6 +174,94 @@ public abstract class MessageService {
 		return this.tailMark;
 	}
 
+	/** 设置协商使用的帧格式。
+	 * 会话默认使用数据掩码发送数据，协商成功后通过 {@link #upgradeFraming(Session)} 切换到该帧格式。
+	 * 接收数据时由该帧格式创建的解码器负责解码。
+	 */
+	public void setFraming(Framing framing) {
+		this.framing = framing;
+	}
+
+	/** 返回协商使用的帧格式。
+	 */
+	public Framing getFraming() {
+		return this.framing;
+	}
+
+	/** 返回该服务是否对数据进行分帧。
+	 */
+	public boolean existFraming() {
+		return (null != this.framing || null != this.markFraming);
+	}
+
+	/** 将指定会话的发送帧格式切换为协商使用的帧格式。
+	 * 
+	 * @return 如果没有设置协商帧格式返回 false 。
+	 */
+	public boolean upgradeFraming(Session session) {
+		if (null == this.framing) {
+			return false;
+		}
+
+		session.setFraming(this.framing);
+		return true;
+	}
+
+	/** 启用或关闭指定会话的消息压缩，同时设置是否接受对端的压缩帧。
+	 * 只有会话当前的发送帧格式能够标识压缩帧时才能启用压缩。
+	 * 
+	 * @return 返回压缩是否已启用。
+	 */
+	public boolean enableCompression(Session session, boolean enabled) {
+		Framing f = this.getSessionFraming(session);
+		if (enabled && (null == f || !f.isCompressible())) {
+			return false;
+		}
+
+		session.getCompression().setEnabled(enabled);
+		session.getCompression().setAcceptable(enabled);
+		return enabled;
+	}
+
+	/** 返回指定会话当前的发送帧格式。
+	 */
+	public Framing getSessionFraming(Session session) {
+		Framing f = session.getFraming();
+		return (null != f) ? f : this.markFraming;
+	}
+
+	/** 创建数据流解码器。
+	 */
+	public FrameDecoder createDecoder(ByteBufferPool pool) {
+		FrameDecoder decoder = null;
+		if (null != this.framing) {
+			decoder = this.framing.createDecoder(this, pool);
+		}
+		else if (null != this.markFraming) {
+			decoder = this.markFraming.createDecoder(this, pool);
+		}
+
+		if (null != decoder) {
+			decoder.setPooledFrame(this.pooledMessage);
+		}
+
+		return decoder;
+	}
+
+	/** 设置是否以缓存形式交付接收到的消息。
+	 * 启用后较大的消息直接持有缓存池的缓存，处理器处理完消息后必须调用 {@link Message#release()} 。
+	 * 必须在服务启动之前设置。
+	 */
+	public void setPooledMessage(boolean pooled) {
+		this.pooledMessage = pooled;
+	}
+
+	/** 是否以缓存形式交付接收到的消息。
+	 */
+	public boolean isPooledMessage() {
+		return this.pooledMessage;
+	}
+
 	/** 设置最大连接数。
 	 */
 	public void setMaxConnectNum(int num) {
@@ -108,9 +274,254 @@ public abstract class MessageService {
 		return this.maxConnectNum;
 	}
 
+	/** 设置会话写队列的低水位与高水位。
+	 * 会话待发送数据超过高水位时变为不可写，回落到低水位时恢复可写。
+	 * 高水位小于等于 0 时不限制写队列，默认不限制。
+	 */
+	public void setWatermark(long low, long high) {
+		this.lowWatermark = Math.min(low, high);
+		this.highWatermark = high;
+	}
+
+	/** 返回会话写队列的高水位。
+	 */
+	public long getHighWatermark() {
+		return this.highWatermark;
+	}
+
+	/** 返回会话写队列的低水位。
+	 */
+	public long getLowWatermark() {
+		return this.lowWatermark;
+	}
+
+	/** 设置超过高水位时的处理策略，默认为 {@link BackpressurePolicy#BLOCK} 。
+	 * 默认不设置高水位，因此仅在调用 {@link #setWatermark(long, long)} 后生效。
+	 * @see BackpressurePolicy
+	 */
+	public void setBackpressurePolicy(int policy) {
+		this.backpressurePolicy = policy;
+	}
+
+	/** 返回超过高水位时的处理策略。
+	 */
+	public int getBackpressurePolicy() {
+		return this.backpressurePolicy;
+	}
+
+	/** 设置阻塞策略下写入线程的最长等待时间。
+	 */
+	public void setBlockTimeout(long timeout) {
+		this.blockTimeout = timeout;
+	}
+
+	/** 返回阻塞策略下写入线程的最长等待时间。
+	 */
+	public long getBlockTimeout() {
+		return this.blockTimeout;
+	}
+
+	/** 设置写队列的发送策略。
+	 * @see FlushPolicy
+	 */
+	public void setFlushPolicy(int policy) {
+		this.flushPolicy = policy;
+	}
+
+	/** 返回写队列的发送策略。
+	 */
+	public int getFlushPolicy() {
+		return this.flushPolicy;
+	}
+
+	/** 设置延迟发送的字节阈值，待发送数据达到阈值时立即发送。
+	 */
+	public void setCorkThreshold(int bytes) {
+		this.corkThreshold = bytes;
+	}
+
+	/** 返回延迟发送的字节阈值。
+	 */
+	public int getCorkThreshold() {
+		return this.corkThreshold;
+	}
+
+	/** 设置延迟发送的时间上限，单位：微秒。
+	 */
+	public void setCorkDelay(long delay) {
+		this.corkDelay = delay;
+	}
+
+	/** 返回延迟发送的时间上限，单位：微秒。
+	 */
+	public long getCorkDelay() {
+		return this.corkDelay;
+	}
+
+	/** 设置选择器线程的忙轮询策略，为 null 时选择器线程阻塞等待事件。
+	 * 连接器使用事件循环组时，事件循环按其上注册的连接器的策略轮询，应在连接前设置。
+	 */
+	public void setPollStrategy(PollStrategy strategy) {
+		this.pollStrategy = strategy;
+	}
+
+	/** 返回选择器线程的忙轮询策略。
+	 */
+	public PollStrategy getPollStrategy() {
+		return this.pollStrategy;
+	}
+
+	/** 由 I/O 线程判断写队列是否延迟发送。
+	 * 
+	 * @return 如果需要继续等待返回 true ，此时写队列处于延迟发送状态。
+	 */
+	protected boolean deferFlush(WriteQueue queue) {
+		int policy = this.flushPolicy;
+		if (policy == FlushPolicy.IMMEDIATE || queue.isSending()
+			|| (policy == FlushPolicy.ADAPTIVE && queue.getLastBatchSize() < ADAPTIVE_DEPTH)
+			|| queue.getQueuedBytes() >= this.corkThreshold) {
+			queue.uncork();
+			return false;
+		}
+
+		return queue.cork(this.corkDelay * 1000L);
+	}
+
+	/** 由写入线程检查处于延迟发送状态的写队列是否达到字节阈值。
+	 * 
+	 * @return 如果达到阈值并解除了延迟状态返回 true ，此时需要通知 I/O 线程发送。
+	 */
+	protected boolean releaseCork(WriteQueue queue) {
+		return queue.isCorked() && queue.getQueuedBytes() >= this.corkThreshold
+				&& queue.uncork();
+	}
+
+	/** 返回指定会话是否可写。
+	 */
+	public boolean isWritable(Session session) {
+		return true;
+	}
+
+	/** 检查写队列水位，决定消息是否可以入队。
+	 * 
+	 * @param ioThread 当前线程是否是 I/O 线程，I/O 线程不会被阻塞。
+	 * @return 如果消息可以入队返回 true 。
+	 */
+	protected boolean admitWrite(Session session, WriteQueue queue, Message message, boolean ioThread) {
+		if (this.highWatermark <= 0
+			|| queue.getQueuedBytes() + message.length() <= this.highWatermark) {
+			return true;
+		}
+
+		boolean changed = queue.markUnwritable();
+		if (changed) {
+			this.fireWritabilityChanged(session, false);
+		}
+
+		switch (this.backpressurePolicy) {
+		case BackpressurePolicy.BLOCK:
+			if (ioThread) {
+				// 阻塞任何 I/O 线程都会使其管理的所有会话停止收发，直接入队
+				return true;
+			}
+
+			long deadline = System.currentTimeMillis() + this.blockTimeout;
+			while (!queue.isWritable()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+					Logger.w(this.getClass(), "Write blocked timeout, discard message - session " + session.getId());
+					return false;
+				}
+
+				queue.awaitWritable(Math.min(remaining, 100));
+			}
+			return true;
+
+		case BackpressurePolicy.DROP_OLDEST:
+			int count = 0;
+			Message dropped = null;
+			while (queue.getQueuedBytes() + message.length() > this.highWatermark
+					&& null != (dropped = queue.dropOldest())) {
+				dropped.release();
+				++count;
+			}
+			if (count > 0 && Logger.isDebugLevel()) {
+				Logger.d(this.getClass(), "Drop " + count + " messages - session " + session.getId());
+			}
+			return true;
+
+		default:
+			if (changed) {
+				Logger.w(this.getClass(), "Write queue exceeds the high watermark, close session " + session.getId());
+				this.closeOverflowSession(session);
+			}
+			return false;
+		}
+	}
+
+	/** 返回当前线程是否是 I/O 线程，即接入器工作线程或者连接器事件循环线程。
+	 */
+	protected static boolean isIoThread() {
+		Thread thread = Thread.currentThread();
+		return (thread instanceof NonblockingAcceptorWorker || thread instanceof ConnectorEventLoop);
+	}
+
+	/** 关闭写队列超过高水位的会话。
+	 */
+	protected void closeOverflowSession(Session session) {
+		// Nothing
+	}
+
+	/** 通知会话可写状态变化。
+	 */
+	protected void fireWritabilityChanged(Session session, boolean writable) {
+		if (null != this.handler) {
+			this.handler.writabilityChanged(session, writable);
+		}
+	}
+
+	/** 返回指定会话发送数据时使用的缓存池，没有缓存池时返回 null 。
+	 */
+	protected ByteBufferPool getBufferPool(Session session) {
+		return null;
+	}
+
+	/** 将数据包打包为发送给指定会话的消息。
+	 * 会话有缓存池时数据包直接打包到池化缓存，稳定状态下不分配内存，
+	 * 此时返回缓存形式的消息，写入会话后须调用 {@link Message#release()} 。
+	 * 会话设置了数据包合并器时，小数据包延迟到发送时与相邻的数据包合并打包。
+	 * 
+	 * @return 数据包无法打包时返回 null 。
+	 */
+	public Message createMessage(Session session, Packet packet) {
+		int length = packet.encodedLength();
+		PacketCoalescer coalescer = (null != session) ? session.getCoalescer() : null;
+		if (null != coalescer && coalescer.isCoalescible(length)) {
+			return new Message(packet, length);
+		}
+
+		ByteBufferPool pool = (length > 0) ? this.getBufferPool(session) : null;
+		if (null == pool) {
+			byte[] data = Packet.pack(packet);
+			return (null != data) ? new Message(data) : null;
+		}
+
+		ByteBuffer buffer = pool.borrowBuffer(length);
+		Packet.pack(packet, buffer);
+		buffer.flip();
+		return new Message(buffer, pool);
+	}
+
 	/** 写入消息数据。 */
 	public abstract void write(Session session, Message message);
 
+	/** 以低优先级写入批量消息数据，例如大数据包的分片。
+	 * 批量消息之间保持顺序，与普通消息交错发送，不支持批量写的服务按普通消息写入。
+	 */
+	public void writeBulk(Session session, Message message) {
+		this.write(session, message);
+	}
+
 	/** 读取消息数据。 */
 	public abstract void read(Message message, Session session);
 }
@@ -27,7 +27,11 @@ THE SOFTWARE.
 package net.cellcloud.common;
 
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
@@ -35,8 +39,9 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /** 非阻塞网络接收器。
@@ -48,27 +53,76 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 	// 缓存数据块大小
 	protected int block = 8192;
 
-	private ServerSocketChannel channel;
-	private Selector selector;
+	/** 默认的单次唤醒读取字节预算。 */
+	public static final int DEFAULT_READ_BUDGET = 65536;
+
+	// 单次唤醒最多接入的连接数量
+	private static final int MAX_ACCEPT_BATCH = 64;
+
+	/** 默认的负载均衡周期，单位：毫秒。 */
+	public static final long DEFAULT_BALANCE_INTERVAL = 1000;
+	/** 默认的迁移阈值，最高负载超过最低负载的倍数。 */
+	public static final double DEFAULT_MIGRATION_THRESHOLD = 2.0;
+
+	// 每个待发送字节折算的处理耗时，单位：纳秒
+	private static final long QUEUED_BYTE_COST = 1;
+	// 工作线程处理耗时占采样周期的百分比低于该值时不迁移
+	private static final int MIN_BUSY_PERCENT = 10;
+
+	// 监听通道，启用端口复用时每个接入线程持有独立的通道
+	private ServerSocketChannel[] channels;
+	private Selector[] selectors;
 
 	private InetSocketAddress bindAddress;
-	private Thread handleThread;
-	private boolean spinning;
-	private boolean running;
+	// 同时监听的 Unix 域套接字地址
+	private SocketAddress unixAddress;
+	// 当前绑定的 Unix 域套接字地址
+	private SocketAddress boundUnixAddress;
+	private Thread[] handleThreads;
+	private volatile boolean spinning;
+	// 正在运行的接入线程数量
+	private AtomicInteger runningNum;
+
+	// 接入线程数量
+	private int acceptorNum;
+	// 连接等待队列长度
+	private int backlog;
 
 	// 工作线程数组
 	private NonblockingAcceptorWorker[] workers;
 	private int workerNum;
 
-	// 存储 Session 的 Map
-	private ConcurrentHashMap<Integer, NonblockingAcceptorSession> sessions;
+	// 存储 Session 的 Map ，Key 为 Session ID
+	private ConcurrentHashMap<Long, NonblockingAcceptorSession> sessions;
+
+	// 负载采样与均衡的周期，单位：毫秒
+	private volatile long balanceInterval;
+	// 触发迁移的负载倍数
+	private volatile double migrationThreshold;
+	// 下一次负载均衡的时间
+	private AtomicLong nextBalanceTime;
+	// 上一次负载采样的时间，单位：纳秒
+	private long lastSampleTime;
+	// 新 Session 的估算负载，取最近一次采样的平均值
+	private volatile long sessionLoad;
+
+	// 每个 Session 单次唤醒最多读取的字节数
+	private volatile int readBudget;
 
 	public NonblockingAcceptor() {
 		this.spinning = false;
-		this.running = false;
-		this.sessions = new ConcurrentHashMap<Integer, NonblockingAcceptorSession>();
-		// 默认 8 线程
-		this.workerNum = 8;
+		this.runningNum = new AtomicInteger(0);
+		this.acceptorNum = 1;
+		this.backlog = 1024;
+		this.sessions = new ConcurrentHashMap<Long, NonblockingAcceptorSession>();
+		// 默认工作线程数与处理器核数一致
+		this.workerNum = Runtime.getRuntime().availableProcessors();
+		this.balanceInterval = DEFAULT_BALANCE_INTERVAL;
+		this.migrationThreshold = DEFAULT_MIGRATION_THRESHOLD;
+		this.nextBalanceTime = new AtomicLong(0);
+		this.lastSampleTime = System.nanoTime();
+		this.sessionLoad = 1;
+		this.readBudget = DEFAULT_READ_BUDGET;
 	}
 
 	@Override
@@ -78,67 +132,146 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 
 	@Override
 	public boolean bind(InetSocketAddress address) {
-		// 创建工作线程
-		if (null == this.workers) {
-			// 创建工作线程
-			this.workers = new NonblockingAcceptorWorker[this.workerNum];
-			for (int i = 0; i < this.workerNum; ++i) {
-				this.workers[i] = new NonblockingAcceptorWorker(this);
+		return this.bind(address, this.unixAddress);
+	}
+
+	/** 绑定消息接收服务到指定地址，地址可以是 Unix 域套接字地址。
+	 */
+	public boolean bind(SocketAddress address) {
+		if (address instanceof InetSocketAddress) {
+			return this.bind((InetSocketAddress) address, this.unixAddress);
+		}
+		else if (UnixDomainSocket.isUnixAddress(address)) {
+			return this.bind(null, address);
+		}
+
+		Logger.w(NonblockingAcceptor.class, "Unsupported bind address: " + address);
+		return false;
+	}
+
+	/** 绑定 TCP 地址及 Unix 域套接字地址，两者共用工作线程与会话表。
+	 */
+	private boolean bind(InetSocketAddress address, SocketAddress unixAddress) {
+		// 确定监听通道数量，只有支持端口复用时才能在同一端口上绑定多个通道
+		int num = (null != address) ? this.acceptorNum : 0;
+		SocketOption<Boolean> reusePort = (num > 1) ? getReusePortOption() : null;
+		if (num > 1 && null == reusePort) {
+			Logger.w(NonblockingAcceptor.class, "SO_REUSEPORT is not supported, use single acceptor");
+			num = 1;
+		}
+
+		if (null != unixAddress && !UnixDomainSocket.isSupported()) {
+			Logger.w(NonblockingAcceptor.class, "Unix domain socket is not supported");
+			if (null == address) {
+				return false;
 			}
+			unixAddress = null;
 		}
 
+		// Unix 域套接字使用一个额外的监听通道
+		int total = (null != unixAddress) ? num + 1 : num;
+
 		// 打开 Socket channel 并绑定服务
 		try {
-			this.channel = ServerSocketChannel.open();
-			this.selector = Selector.open();
+			// 创建工作线程，每个工作线程持有独立的选择器
+			if (null == this.workers) {
+				this.workers = new NonblockingAcceptorWorker[this.workerNum];
+				for (int i = 0; i < this.workerNum; ++i) {
+					this.workers[i] = new NonblockingAcceptorWorker(this);
+				}
+			}
+
+			this.channels = new ServerSocketChannel[total];
+			this.selectors = new Selector[total];
+
+			for (int i = 0; i < num; ++i) {
+				ServerSocketChannel channel = ServerSocketChannel.open();
+				this.channels[i] = channel;
+
+				if (null != reusePort) {
+					if (!channel.supportedOptions().contains(reusePort)) {
+						throw new IOException("SO_REUSEPORT is not supported by the channel");
+					}
+					channel.setOption(reusePort, true);
+				}
+
+				channel.bind(address, this.backlog);
+				channel.configureBlocking(false);
 
-			this.channel.socket().bind(address);
-			this.channel.configureBlocking(false);
-			this.channel.register(this.selector, SelectionKey.OP_ACCEPT);
+				this.selectors[i] = Selector.open();
+				channel.register(this.selectors[i], SelectionKey.OP_ACCEPT);
+			}
 
-			this.bindAddress = address;
+			if (null != unixAddress) {
+				// 删除上次运行遗留的套接字文件
+				UnixDomainSocket.deleteFile(unixAddress);
+
+				ServerSocketChannel channel = UnixDomainSocket.openServerChannel();
+				this.channels[num] = channel;
+				channel.bind(unixAddress, this.backlog);
+				channel.configureBlocking(false);
+
+				this.selectors[num] = Selector.open();
+				channel.register(this.selectors[num], SelectionKey.OP_ACCEPT);
+				this.boundUnixAddress = unixAddress;
+			}
+
+			this.bindAddress = (null != address) ? address : UnixDomainSocket.LOCAL_ADDRESS;
 
 		} catch (IOException e) {
 			Logger.log(NonblockingAcceptor.class, e, LogLevel.ERROR);
 
+			this.closeChannels();
+
 			// 返回失败
 			return false;
 		}
 
-		// 创建句柄线程
-		this.handleThread = new Thread() {
-			@Override
-			public void run() {
-				running = true;
-				spinning = true;
+		// 启动工作线程
+		for (int i = 0; i < this.workers.length; ++i) {
+			if (!this.workers[i].isWorking())
+				this.workers[i].start();
+		}
 
-				// 启动工作线程
-				for (int i = 0; i < workerNum; ++i) {
-					if (!workers[i].isWorking())
-						workers[i].start();
-				}
+		this.spinning = true;
 
-				// 进入事件分发循环
-				try {
-					loopDispatch();
-				} catch (IOException ioe) {
-					Logger.log(NonblockingAcceptor.class, ioe, LogLevel.WARNING);
-				} catch (CancelledKeyException e) {
-					if (spinning)
+		// 创建接入线程，每个线程处理一个监听通道
+		this.handleThreads = new Thread[total];
+		for (int i = 0; i < total; ++i) {
+			final Selector selector = this.selectors[i];
+			this.handleThreads[i] = new Thread() {
+				@Override
+				public void run() {
+					runningNum.incrementAndGet();
+
+					// 进入事件分发循环
+					try {
+						loopDispatch(selector);
+					} catch (IOException ioe) {
+						Logger.log(NonblockingAcceptor.class, ioe, LogLevel.WARNING);
+					} catch (CancelledKeyException e) {
+						if (spinning)
+							Logger.log(NonblockingAcceptor.class, e, LogLevel.ERROR);
+						else
+							Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
+					} catch (Exception e) {
 						Logger.log(NonblockingAcceptor.class, e, LogLevel.ERROR);
-					else
-						Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
-				} catch (Exception e) {
-					Logger.log(NonblockingAcceptor.class, e, LogLevel.ERROR);
+					}
+
+					runningNum.decrementAndGet();
 				}
+			};
 
-				running = false;
+			// 启动线程
+			if (i < num) {
+				this.handleThreads[i].setName("NonblockingAcceptor@" + this.bindAddress.getAddress().getHostAddress()
+						+ ":" + this.bindAddress.getPort() + "#" + i);
 			}
-		};
-
-		// 启动线程
-		this.handleThread.setName("NonblockingAcceptor@" + this.bindAddress.getAddress().getHostAddress() + ":" + this.bindAddress.getPort());
-		this.handleThread.start();
+			else {
+				this.handleThreads[i].setName("NonblockingAcceptor@" + UnixDomainSocket.getPath(unixAddress));
+			}
+			this.handleThreads[i].start();
+		}
 
 		return true;
 	}
@@ -155,17 +288,7 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 		}
 
 		// 关闭 Channel
-		try {
-			this.channel.close();
-			this.channel.socket().close();
-		} catch (IOException e) {
-			Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
-		}
-		try {
-			this.selector.close();
-		} catch (IOException e) {
-			Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
-		}
+		this.closeChannels();
 
 		// 关闭工作线程
 		if (null != this.workers) {
@@ -176,19 +299,23 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 			}
 
 			int stoppedCount = 0;
-			while (stoppedCount != this.workerNum) {
+			while (stoppedCount != this.workers.length) {
 				try {
 					Thread.sleep(100);
 				} catch (InterruptedException e) {
 					Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
 				}
 
+				stoppedCount = 0;
 				for (NonblockingAcceptorWorker worker : this.workers) {
 					if (!worker.isWorking()) {
 						++stoppedCount;
 					}
 				}
 			}
+
+			// 工作线程不可重复启动
+			this.workers = null;
 		}
 
 		// 控制主线程超时退出
@@ -196,8 +323,8 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 		int count = 0;
 
 		// 等待线程结束
-		if (null != this.handleThread) {
-			while (this.running) {
+		if (null != this.handleThreads) {
+			while (this.runningNum.get() > 0) {
 				++count;
 				try {
 					Thread.sleep(10);
@@ -217,47 +344,117 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 			}
 
 			if (count >= timeout) {
-				try {
-					this.handleThread.interrupt();
-				} catch (Exception e) {
-					Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
+				for (Thread thread : this.handleThreads) {
+					try {
+						thread.interrupt();
+					} catch (Exception e) {
+						Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
+					}
 				}
 			}
 
-			this.handleThread = null;
+			this.handleThreads = null;
 		}
 
 		this.sessions.clear();
 	}
 
-	@Override
-	public void close(Session session) {
-		Iterator<NonblockingAcceptorSession> iter = this.sessions.values().iterator();
-		while (iter.hasNext()) {
-			NonblockingAcceptorSession nas = iter.next();
-			if (nas.getId().longValue() == session.getId().longValue()) {
+	/** 关闭所有监听通道与选择器。
+	 */
+	private void closeChannels() {
+		if (null != this.channels) {
+			for (ServerSocketChannel channel : this.channels) {
+				if (null == channel) {
+					continue;
+				}
+
 				try {
-					nas.socket.close();
+					channel.close();
+				} catch (IOException e) {
+					Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
+				}
+			}
+		}
+
+		if (null != this.boundUnixAddress) {
+			// 删除套接字文件
+			UnixDomainSocket.deleteFile(this.boundUnixAddress);
+			this.boundUnixAddress = null;
+		}
+
+		if (null != this.selectors) {
+			for (Selector selector : this.selectors) {
+				if (null == selector) {
+					continue;
+				}
+
+				try {
+					selector.close();
 				} catch (IOException e) {
 					Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
 				}
-				break;
 			}
 		}
 	}
 
+	@Override
+	public void close(Session session) {
+		NonblockingAcceptorSession nas = this.findSession(session);
+		if (null == nas) {
+			return;
+		}
+
+		if (null != nas.worker) {
+			// 由所属工作线程关闭，保证事件回调与选择器状态一致
+			nas.worker.closeSession(nas);
+		}
+		else {
+			try {
+				nas.channel.close();
+			} catch (IOException e) {
+				Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
+			}
+
+			this.eraseSession(nas);
+		}
+	}
+
 	@Override
 	public void write(Session session, Message message) {
-		Iterator<NonblockingAcceptorSession> iter = this.sessions.values().iterator();
-		while (iter.hasNext()) {
-			NonblockingAcceptorSession nas = iter.next();
-			if (nas.getId().longValue() == session.getId().longValue()) {
-				nas.messages.add(message);
-				break;
+		this.write(session, message, false);
+	}
+
+	@Override
+	public void writeBulk(Session session, Message message) {
+		this.write(session, message, true);
+	}
+
+	private void write(Session session, Message message, boolean bulk) {
+		NonblockingAcceptorSession nas = this.findSession(session);
+		if (null != nas) {
+			if (!this.admitWrite(nas, nas.writeQueue, message, isIoThread())) {
+				return;
+			}
+
+			boolean request = bulk ? nas.writeQueue.offerBulk(message) : nas.writeQueue.offer(message);
+			if ((request || this.releaseCork(nas.writeQueue)) && null != nas.worker) {
+				// 通知工作线程关注可写事件
+				nas.worker.requestWrite(nas);
 			}
 		}
 	}
 
+	@Override
+	public boolean isWritable(Session session) {
+		NonblockingAcceptorSession nas = this.findSession(session);
+		return (null != nas) && nas.writeQueue.isWritable();
+	}
+
+	@Override
+	protected void closeOverflowSession(Session session) {
+		this.close(session);
+	}
+
 	@Override
 	public void read(Message message, Session session) {
 		// Nothing
@@ -269,10 +466,37 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 		return this.bindAddress;
 	}
 
-	/** 设置工作器数量。
+	/** 设置同时监听的 Unix 域套接字路径，设置为 null 则不监听。必须在绑定服务之前设置。
+	 * 
+	 * 仅 JDK 16 及以上版本支持。
+	 */
+	public boolean setUnixDomainPath(String path) {
+		if (null == path) {
+			this.unixAddress = null;
+			return true;
+		}
+
+		SocketAddress address = UnixDomainSocket.createAddress(path);
+		if (null == address) {
+			return false;
+		}
+
+		this.unixAddress = address;
+		return true;
+	}
+
+	/** 返回当前绑定的 Unix 域套接字地址。
+	 */
+	public SocketAddress getUnixDomainAddress() {
+		return this.boundUnixAddress;
+	}
+
+	/** 设置工作器数量。必须在绑定服务之前设置。
 	 */
 	public void setWorkerNum(int num) {
-		this.workerNum = num;
+		if (num > 0) {
+			this.workerNum = num;
+		}
 	}
 	/** 返回工作器数量。
 	 */
@@ -280,36 +504,214 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 		return this.workerNum;
 	}
 
+	/** 设置接入线程数量。必须在绑定服务之前设置。
+	 * 数量大于 1 时使用 SO_REUSEPORT 在同一端口上绑定多个监听通道，每个通道由独立的线程接入连接。
+	 * 运行环境不支持 SO_REUSEPORT 时使用单个监听通道。
+	 */
+	public void setAcceptorNum(int num) {
+		if (num > 0) {
+			this.acceptorNum = num;
+		}
+	}
+
+	/** 返回接入线程数量。
+	 */
+	public int getAcceptorNum() {
+		return this.acceptorNum;
+	}
+
+	/** 设置监听通道的连接等待队列长度。必须在绑定服务之前设置。
+	 */
+	public void setBacklog(int backlog) {
+		this.backlog = backlog;
+	}
+
+	/** 返回监听通道的连接等待队列长度。
+	 */
+	public int getBacklog() {
+		return this.backlog;
+	}
+
+	/** 设置每个 Session 单次唤醒最多读取的字节数。
+	 * 超过预算后转而处理其他就绪的 Session ，剩余数据在下一次事件循环中继续读取。
+	 * 设置为 0 时每次读取直到通道没有数据。
+	 */
+	public void setReadBudget(int budget) {
+		this.readBudget = Math.max(0, budget);
+	}
+
+	/** 返回每个 Session 单次唤醒最多读取的字节数。
+	 */
+	public int getReadBudget() {
+		return this.readBudget;
+	}
+
+	/** 设置负载采样与均衡的周期，单位：毫秒。
+	 * 设置为 0 时不采样负载也不迁移 Session ，新 Session 分配给管理数量最少的工作器。
+	 */
+	public void setBalanceInterval(long interval) {
+		this.balanceInterval = Math.max(0, interval);
+	}
+
+	/** 返回负载采样与均衡的周期，单位：毫秒。
+	 */
+	public long getBalanceInterval() {
+		return this.balanceInterval;
+	}
+
+	/** 设置迁移阈值。最高负载超过最低负载的指定倍数时，每个均衡周期迁移一个 Session 。
+	 * 设置为 0 时只采样负载，不迁移 Session 。
+	 */
+	public void setMigrationThreshold(double threshold) {
+		this.migrationThreshold = (threshold > 1.0) ? threshold : 0;
+	}
+
+	/** 返回迁移阈值。
+	 */
+	public double getMigrationThreshold() {
+		return this.migrationThreshold;
+	}
+
+	/** 返回所有工作器缓存池已分配的直接内存字节数。
+	 */
+	public long getBufferAllocatedBytes() {
+		NonblockingAcceptorWorker[] list = this.workers;
+		long bytes = 0;
+		if (null != list) {
+			for (NonblockingAcceptorWorker worker : list) {
+				bytes += worker.getBufferPool().getAllocatedBytes();
+			}
+		}
+		return bytes;
+	}
+
+	/** 返回所有工作器缓存池的空闲字节数。
+	 */
+	public long getBufferIdleBytes() {
+		NonblockingAcceptorWorker[] list = this.workers;
+		long bytes = 0;
+		if (null != list) {
+			for (NonblockingAcceptorWorker worker : list) {
+				bytes += worker.getBufferPool().getIdleBytes();
+			}
+		}
+		return bytes;
+	}
+
+	/** 返回所有工作器缓存池已借出的缓存数量。
+	 */
+	public int getBufferBorrowedNum() {
+		NonblockingAcceptorWorker[] list = this.workers;
+		int num = 0;
+		if (null != list) {
+			for (NonblockingAcceptorWorker worker : list) {
+				num += worker.getBufferPool().getBorrowedNum();
+			}
+		}
+		return num;
+	}
+
+	/** 返回指定工作器管理的 Session 数量。
+	 */
+	public int getWorkerSessionNum(int index) {
+		NonblockingAcceptorWorker worker = this.getWorker(index);
+		return (null != worker) ? worker.getReceiveSessionNum() : 0;
+	}
+
+	/** 返回指定工作器最近一次事件循环中执行发送任务的 Session 数量。
+	 */
+	public int getWorkerSendSessionNum(int index) {
+		NonblockingAcceptorWorker worker = this.getWorker(index);
+		return (null != worker) ? worker.getSendSessionNum() : 0;
+	}
+
+	/** 返回指定工作器累计读取的字节数。
+	 */
+	public long getWorkerReceivedBytes(int index) {
+		NonblockingAcceptorWorker worker = this.getWorker(index);
+		return (null != worker) ? worker.getReceivedBytes() : 0;
+	}
+
+	/** 返回指定工作器累计写出的字节数。
+	 */
+	public long getWorkerSentBytes(int index) {
+		NonblockingAcceptorWorker worker = this.getWorker(index);
+		return (null != worker) ? worker.getSentBytes() : 0;
+	}
+
+	/** 返回指定工作器累计处理读写事件的耗时，单位：纳秒。
+	 */
+	public long getWorkerBusyTime(int index) {
+		NonblockingAcceptorWorker worker = this.getWorker(index);
+		return (null != worker) ? worker.getBusyTime() : 0;
+	}
+
+	/** 返回指定工作器最近一次负载采样时的待发送字节数。
+	 */
+	public long getWorkerQueuedBytes(int index) {
+		NonblockingAcceptorWorker worker = this.getWorker(index);
+		return (null != worker) ? worker.getQueuedBytes() : 0;
+	}
+
+	/** 返回指定工作器最近一次负载采样得到的负载值。
+	 */
+	public long getWorkerLoad(int index) {
+		NonblockingAcceptorWorker worker = this.getWorker(index);
+		return (null != worker) ? worker.getLoad() : 0;
+	}
+
+	/** 返回指定下标的工作器，服务未启动或者下标无效时返回 null 。
+	 */
+	private NonblockingAcceptorWorker getWorker(int index) {
+		NonblockingAcceptorWorker[] list = this.workers;
+		if (null == list || index < 0 || index >= list.length) {
+			return null;
+		}
+		return list[index];
+	}
+
 	/** 返回所有 Session 。
 	 */
 	public Collection<NonblockingAcceptorSession> getSessions() {
 		return this.sessions.values();
 	}
 
-	/** 从接收器里删除指定的 Session 。
+	/** 返回指定 ID 的 Session 。
 	 */
-	protected synchronized void eraseSession(NonblockingAcceptorSession session) {
-		if (null == session.socket) {
-			return;
+	public NonblockingAcceptorSession getSession(Long id) {
+		return this.sessions.get(id);
+	}
+
+	@Override
+	protected ByteBufferPool getBufferPool(Session session) {
+		NonblockingAcceptorSession nas = this.findSession(session);
+		if (null != nas && null != nas.worker) {
+			return nas.worker.getBufferPool();
 		}
 
-		boolean exist = false;
+		return null;
+	}
 
-		Iterator<Map.Entry<Integer, NonblockingAcceptorSession>> iter = this.sessions.entrySet().iterator();
-		while (iter.hasNext()) {
-			Map.Entry<Integer, NonblockingAcceptorSession> entry = iter.next();
-			Integer hashCode = entry.getKey();
-			NonblockingAcceptorSession nas = entry.getValue();
-			if (nas.getId().longValue() == session.getId().longValue()) {
-				this.sessions.remove(hashCode);
-				exist = true;
-				break;
-			}
+	/** 查找本接收器管理的 Session 实例。
+	 */
+	private NonblockingAcceptorSession findSession(Session session) {
+		if (session instanceof NonblockingAcceptorSession && session.getService() == this) {
+			return (NonblockingAcceptorSession) session;
 		}
 
-		if (exist) {
+		return this.sessions.get(session.getId());
+	}
+
+	/** 从接收器里删除指定的 Session 。
+	 */
+	protected void eraseSession(NonblockingAcceptorSession session) {
+		if (null == session.channel) {
+			return;
+		}
+
+		if (this.sessions.remove(session.getId(), session)) {
 			this.fireSessionDestroyed(session);
-			session.socket = null;
+			session.channel = null;
 		}
 	}
 
@@ -365,11 +767,16 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 		}
 	}
 
-	/** 事件循环。 */
-	private void loopDispatch() throws IOException, Exception {
+	/** 事件循环。仅处理连接接入，读写事件由各工作线程的选择器处理。 */
+	private void loopDispatch(Selector selector) throws IOException, Exception {
 		while (this.spinning) {
-			while (this.selector.isOpen() && this.selector.select() > 0) {
-				Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+			if (!selector.isOpen()) {
+				break;
+			}
+
+			long interval = this.balanceInterval;
+			if (selector.select(interval) > 0) {
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
 				while (it.hasNext()) {
 					SelectionKey key = (SelectionKey) it.next();
 					it.remove();
@@ -378,12 +785,6 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 						if (key.isAcceptable()) {
 							accept(key);
 						}
-						else if (key.isReadable()) {
-							receive(key);
-						}
-						else if (key.isWritable()) {
-							send(key);
-						}
 					}
 					catch (Exception e) {
 						if (this.spinning) {
@@ -395,52 +796,203 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 						}
 					}
 				}
+			}
 
-				try {
-					Thread.sleep(1);
-				} catch (InterruptedException e) {
-					Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
-				}
-			} // # while
-
-			Thread.yield();
+			if (interval > 0) {
+				this.balance(interval);
+			}
 		} // # while
 	}
 
-	/** 处理 Accept */
+	/** 到达均衡周期时采样各工作器负载，负载差距超过阈值时迁移一个 Session 。
+	 * 
+	 * 负载为最近一个周期内处理事件的耗时与待发送字节折算的耗时之和。
+	 */
+	private void balance(long interval) {
+		long now = System.currentTimeMillis();
+		long next = this.nextBalanceTime.get();
+		if (now < next || !this.nextBalanceTime.compareAndSet(next, now + interval)) {
+			// 未到周期或者其他接入线程正在执行
+			return;
+		}
+
+		NonblockingAcceptorWorker[] list = this.workers;
+		if (null == list || list.length == 0) {
+			return;
+		}
+
+		long time = System.nanoTime();
+		long elapsed = time - this.lastSampleTime;
+		this.lastSampleTime = time;
+
+		int num = list.length;
+		long[] queued = new long[num];
+		long[] traffic = new long[num];
+
+		// 统计各 Session 在周期内的流量及待发送字节数
+		for (NonblockingAcceptorSession session : this.sessions.values()) {
+			int index = indexOf(list, session.worker);
+			if (index < 0) {
+				continue;
+			}
+
+			long total = session.receivedBytes + session.writeQueue.getWrittenBytes();
+			session.recentTraffic = total - session.lastTraffic;
+			session.lastTraffic = total;
+
+			queued[index] += session.writeQueue.getQueuedBytes();
+			traffic[index] += session.recentTraffic;
+		}
+
+		long[] busy = new long[num];
+		long[] loads = new long[num];
+		long totalLoad = 0;
+		long totalSessions = 0;
+		int max = 0;
+		int min = 0;
+		for (int i = 0; i < num; ++i) {
+			busy[i] = list[i].sample(queued[i]);
+			loads[i] = busy[i] + queued[i] * QUEUED_BYTE_COST;
+			list[i].setLoad(loads[i]);
+
+			totalLoad += loads[i];
+			totalSessions += list[i].getReceiveSessionNum();
+
+			if (loads[i] > loads[max]) {
+				max = i;
+			}
+			if (loads[i] < loads[min]) {
+				min = i;
+			}
+		}
+
+		this.sessionLoad = (totalSessions > 0) ? Math.max(1, totalLoad / totalSessions) : 1;
+
+		double threshold = this.migrationThreshold;
+		if (num < 2 || threshold <= 0 || max == min
+			|| busy[max] * 100 < elapsed * MIN_BUSY_PERCENT
+			|| loads[max] <= loads[min] * threshold) {
+			return;
+		}
+
+		// 按流量占比估算 Session 负载，选择迁移后不会使两者负载反转的最繁忙的 Session
+		long diff = loads[max] - loads[min];
+		NonblockingAcceptorSession candidate = null;
+		long candidateLoad = 0;
+		for (NonblockingAcceptorSession session : this.sessions.values()) {
+			if (session.worker != list[max] || session.recentTraffic <= 0 || traffic[max] <= 0) {
+				continue;
+			}
+
+			long estimate = (long) ((double) busy[max] * session.recentTraffic / traffic[max]);
+			if (estimate * 2 <= diff && estimate > candidateLoad) {
+				candidate = session;
+				candidateLoad = estimate;
+			}
+		}
+
+		if (null != candidate) {
+			if (Logger.isDebugLevel()) {
+				Logger.d(NonblockingAcceptor.class, "Migrate session " + candidate.getId()
+						+ " from worker #" + max + " to worker #" + min);
+			}
+
+			list[max].setLoad(loads[max] - candidateLoad);
+			list[min].setLoad(loads[min] + candidateLoad);
+			list[max].migrateSession(candidate, list[min]);
+		}
+	}
+
+	/** 返回负载最低的工作器。新 Session 按最近一次采样的平均负载估算。 */
+	private NonblockingAcceptorWorker selectWorker() {
+		NonblockingAcceptorWorker[] list = this.workers;
+		long unit = this.sessionLoad;
+
+		NonblockingAcceptorWorker selected = list[0];
+		long minScore = Long.MAX_VALUE;
+		for (NonblockingAcceptorWorker worker : list) {
+			long score = worker.getLoad() + worker.getReceiveSessionNum() * unit;
+			if (score < minScore) {
+				minScore = score;
+				selected = worker;
+			}
+		}
+
+		return selected;
+	}
+
+	/** 返回工作器在数组中的下标。 */
+	private static int indexOf(NonblockingAcceptorWorker[] list, NonblockingAcceptorWorker worker) {
+		for (int i = 0; i < list.length; ++i) {
+			if (list[i] == worker) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/** 处理 Accept ，每次唤醒批量接入等待队列中的连接。 */
 	private void accept(SelectionKey key) {
 		ServerSocketChannel channel = (ServerSocketChannel)key.channel();
 
+		for (int i = 0; i < MAX_ACCEPT_BATCH; ++i) {
+			SocketChannel clientChannel = null;
+			try {
+				clientChannel = channel.accept();
+			} catch (IOException e) {
+				Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
+				return;
+			}
+
+			if (null == clientChannel) {
+				// 等待队列已清空
+				return;
+			}
+
+			this.acceptSession(clientChannel);
+		}
+	}
+
+	/** 为接入的连接创建 Session 。 */
+	private void acceptSession(SocketChannel clientChannel) {
 		try {
-			SocketChannel clientChannel = channel.accept();
 			if (this.sessions.size() >= this.getMaxConnectNum()) {
-				clientChannel.socket().close();
 				clientChannel.close();
 				return;
 			}
 
 			clientChannel.configureBlocking(false);
-			clientChannel.register(this.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
 
 			// 创建 Session
-			InetSocketAddress address = new InetSocketAddress(clientChannel.socket().getInetAddress().getHostAddress(),
-					clientChannel.socket().getPort());
-			NonblockingAcceptorSession session = new NonblockingAcceptorSession(this, address, this.block);
-			// 设置 Socket
-			session.socket = clientChannel.socket();
+			SocketAddress remote = clientChannel.getRemoteAddress();
+			InetSocketAddress address = null;
+			if (remote instanceof InetSocketAddress) {
+				InetSocketAddress inet = (InetSocketAddress) remote;
+				address = new InetSocketAddress(inet.getAddress().getHostAddress(), inet.getPort());
+			}
+			else {
+				// Unix 域套接字连接没有网络地址
+				address = UnixDomainSocket.LOCAL_ADDRESS;
+			}
+			NonblockingAcceptorSession session = new NonblockingAcceptorSession(this, address);
+			// 设置通道
+			session.channel = clientChannel;
 
-			// 为 Session 选择工作线程
-			int index = (int)(session.getId() % this.workerNum);
-			session.worker = this.workers[index];
+			// 为 Session 选择负载最低的工作线程
+			NonblockingAcceptorWorker worker = this.selectWorker();
+			session.worker = worker;
 
 			// 记录
-			this.sessions.put(clientChannel.socket().hashCode(), session);
+			this.sessions.put(session.getId(), session);
 
 			// 回调事件
 			this.fireSessionCreated(session);
 
 			// 回调事件
 			this.fireSessionOpened(session);
+
+			// 交由工作线程的选择器处理读写
+			worker.addSession(session);
 		} catch (IOException e) {
 			// Nothing
 		} catch (Exception e) {
@@ -448,59 +1000,14 @@ public class NonblockingAcceptor extends MessageService implements MessageAccept
 		}
 	}
 
-	/** 处理 Read */
-	private void receive(SelectionKey key) {
-		SocketChannel channel = (SocketChannel) key.channel();
-
-		if (!channel.isConnected()) {
-			return;
-		}
-
-		NonblockingAcceptorSession session = this.sessions.get(channel.socket().hashCode());
-		if (null == session) {
-			if (Logger.isDebugLevel()) {
-				Logger.d(NonblockingAcceptor.class, "Not found session");
-			}
-			return;
-		}
-
-		// 推入 Worker
-		session.selectionKey = key;
-		session.worker.pushReceiveSession(session);
-
-		try {
-			if (channel.isOpen())
-				channel.register(this.selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-		} catch (IOException e) {
-			Logger.log(NonblockingAcceptor.class, e, LogLevel.DEBUG);
-		}
-	}
-
-	/** 处理 Write */
-	private void send(SelectionKey key) {
-		SocketChannel channel = (SocketChannel) key.channel();
-
-		if (!channel.isConnected()) {
-			return;
-		}
-
-		NonblockingAcceptorSession session = this.sessions.get(channel.socket().hashCode());
-		if (null == session) {
-			if (Logger.isDebugLevel()) {
-				Logger.d(NonblockingAcceptor.class, "Not found session");
-			}
-			return;
-		}
-
-		// 推入 Worker
-		session.selectionKey = key;
-		session.worker.pushSendSession(session);
-
+	/** 返回 SO_REUSEPORT 选项，JDK 9 以下版本返回 null 。 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
 		try {
-			if (channel.isOpen())
-				channel.register(this.selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-		} catch (IOException e) {
-			Logger.log(NonblockingAcceptor.class, e, LogLevel.WARNING);
+			Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+			return (SocketOption<Boolean>) field.get(null);
+		} catch (Exception e) {
+			return null;
 		}
 	}
 }
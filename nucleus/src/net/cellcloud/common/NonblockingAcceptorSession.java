@@ -27,10 +27,8 @@ THE SOFTWARE.
 package net.cellcloud.common;
 
 import java.net.InetSocketAddress;
-import java.net.Socket;
-import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
-import java.util.Vector;
+import java.nio.channels.SocketChannel;
 
 /** 非阻塞网络接收器会话。
  * 
@@ -38,34 +36,30 @@ import java.util.Vector;
  */
 public class NonblockingAcceptorSession extends Session {
 
-	private ByteBuffer readBuffer;
-	private ByteBuffer writeBuffer;
+	// 待发送消息队列
+	protected WriteQueue writeQueue = new WriteQueue();
 
-	// 待发送消息列表
-	protected Vector<Message> messages = new Vector<Message>();
+	// 数据帧解码器
+	protected FrameDecoder decoder = null;
 
 	protected SelectionKey selectionKey = null;
-	protected Socket socket = null;
+	protected SocketChannel channel = null;
 
 	// 所属的工作线程
-	protected NonblockingAcceptorWorker worker = null;
+	protected volatile NonblockingAcceptorWorker worker = null;
+	// 迁移的目标工作线程
+	protected volatile NonblockingAcceptorWorker migrateTarget = null;
+
+	// 累计读取的字节数，仅由所属工作线程更新
+	protected volatile long receivedBytes = 0;
+	// 上一次负载采样时的累计流量及最近一个采样周期内的流量，仅由负载均衡线程访问
+	protected long lastTraffic = 0;
+	protected long recentTraffic = 0;
 
 	/** 构造函数。
 	 */
 	public NonblockingAcceptorSession(MessageService service,
-			InetSocketAddress address, int block) {
+			InetSocketAddress address) {
 		super(service, address);
-		this.readBuffer = ByteBuffer.allocate(block);
-		this.writeBuffer = ByteBuffer.allocate(block);
-	}
-
-	/** 返回读缓存。 */
-	public ByteBuffer getReadBuffer() {
-		return this.readBuffer;
-	}
-
-	/** 返回写缓存。 */
-	public ByteBuffer getWriteBuffer() {
-		return this.writeBuffer;
 	}
 }
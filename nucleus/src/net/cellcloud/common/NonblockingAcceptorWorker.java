@@ -28,32 +28,75 @@ package net.cellcloud.common;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /** 非阻塞网络接收器工作线程。
+ * 
+ * 每个工作线程持有独立的 Selector ，负责其所管理的 Session 的读写事件。
  * 
  * @author Jiangwei Xu
  */
 public final class NonblockingAcceptorWorker extends Thread {
 
-	// 控制线程生命周期的条件变量
-	private byte[] mutex = new byte[0];
 	// 是否处于自旋
-	private boolean spinning = false;
+	private volatile boolean spinning = false;
 	// 是否正在工作
-	private boolean working = false;
+	private volatile boolean working = false;
+	// 是否处于忙轮询阶段，轮询阶段的写请求不需要唤醒选择器
+	private volatile boolean polling = false;
+	// 连续空闲的轮询次数
+	private int idleRounds = 0;
 
 	private NonblockingAcceptor acceptor;
 
-	// 需要执行接收数据任务的 Session 列表
-	private Vector<NonblockingAcceptorSession> receiveSessions = new Vector<NonblockingAcceptorSession>();
-	// 需要执行发送数据任务的 Session 列表
-	private Vector<NonblockingAcceptorSession> sendSessions = new Vector<NonblockingAcceptorSession>();
-
-	public NonblockingAcceptorWorker(NonblockingAcceptor acceptor) {
+	// 工作线程独立的选择器
+	private Selector selector;
+
+	// 等待注册到选择器的 Session 队列
+	private ConcurrentLinkedQueue<NonblockingAcceptorSession> registerQueue = new ConcurrentLinkedQueue<NonblockingAcceptorSession>();
+	// 等待关闭的 Session 队列
+	private ConcurrentLinkedQueue<NonblockingAcceptorSession> closeQueue = new ConcurrentLinkedQueue<NonblockingAcceptorSession>();
+	// 请求写数据的 Session 队列
+	private ConcurrentLinkedQueue<NonblockingAcceptorSession> writeQueue = new ConcurrentLinkedQueue<NonblockingAcceptorSession>();
+	// 等待迁出到其他工作线程的 Session 队列
+	private ConcurrentLinkedQueue<NonblockingAcceptorSession> migrateQueue = new ConcurrentLinkedQueue<NonblockingAcceptorSession>();
+	// 延迟发送的 Session 列表，仅在工作线程内访问
+	private ArrayList<NonblockingAcceptorSession> corkedSessions = new ArrayList<NonblockingAcceptorSession>();
+
+	// 当前管理的 Session 数量
+	private AtomicInteger sessionNum = new AtomicInteger(0);
+	// 最近一次事件循环中执行发送的 Session 数量
+	private volatile int sendSessionNum = 0;
+
+	// 累计读取与写出的字节数，仅由工作线程更新
+	private volatile long receivedBytes = 0;
+	private volatile long sentBytes = 0;
+	// 累计处理事件的耗时，单位：纳秒，仅由工作线程更新
+	private volatile long busyTime = 0;
+
+	// 最近一次负载采样的结果，由负载均衡线程更新
+	private volatile long load = 0;
+	private volatile long queuedBytes = 0;
+	// 上一次负载采样时的累计处理耗时
+	private long lastBusyTime = 0;
+
+	// 工作线程独立的缓存池
+	private ByteBufferPool bufferPool = new ByteBufferPool();
+
+	// 解码输出的数据帧
+	private ArrayList<Message> frames = new ArrayList<Message>();
+
+	public NonblockingAcceptorWorker(NonblockingAcceptor acceptor) throws IOException {
 		this.acceptor = acceptor;
+		this.selector = Selector.open();
 		this.setName("NonblockingAcceptorWorker@" + this.toString());
 	}
 
@@ -61,42 +104,99 @@ public final class NonblockingAcceptorWorker extends Thread {
 	public void run() {
 		this.working = true;
 		this.spinning = true;
-		NonblockingAcceptorSession session = null;
 
 		while (this.spinning) {
-			// 如果没有任务，则线程 wait
-			synchronized (this.mutex) {
-				if (this.receiveSessions.isEmpty()
-					&& this.sendSessions.isEmpty()
-					&& this.spinning) {
-					try {
-						this.mutex.wait();
-					} catch (InterruptedException e) {
-						Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
-					}
-				}
+			int selected = 0;
+			try {
+				selected = this.select();
+			} catch (IOException e) {
+				Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.WARNING);
+				break;
+			} catch (Exception e) {
+				Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
+				break;
+			}
+
+			if (!this.spinning) {
+				break;
 			}
 
-			if (!this.receiveSessions.isEmpty()) {
-				// 执行接收数据任务，并移除已执行的 Session
-				session = this.receiveSessions.remove(0);
-				if (null != session.socket) {
-					processReceive(session);
+			if (selected == 0 && this.writeQueue.isEmpty() && this.registerQueue.isEmpty()
+				&& this.closeQueue.isEmpty() && this.migrateQueue.isEmpty()) {
+				if (this.idleRounds < Integer.MAX_VALUE) {
+					++this.idleRounds;
 				}
 			}
+			else {
+				this.idleRounds = 0;
+			}
+
+			long start = System.nanoTime();
+
+			// 注册新的 Session
+			this.processRegister();
+			// 关闭被请求关闭的 Session
+			this.processClose();
+			// 迁出被请求迁移的 Session
+			this.processMigrate();
+			// 处理新的写请求
+			this.processWriteRequest();
+			// 发送到达截止时间的延迟数据
+			this.processCorked();
+
+			int sendNum = 0;
+
+			Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+
+				NonblockingAcceptorSession session = (NonblockingAcceptorSession) key.attachment();
+				if (null == session) {
+					continue;
+				}
 
-			if (!this.sendSessions.isEmpty()) {
-				// 执行发送数据任务，并移除已执行的 Session
-				session = this.sendSessions.remove(0);
-				if (null != session.socket) {
-					processSend(session);
+				try {
+					if (key.isValid() && key.isReadable()) {
+						processReceive(session);
+					}
+
+					if (key.isValid() && key.isWritable()) {
+						processSend(session);
+						++sendNum;
+					}
+				} catch (Exception e) {
+					if (this.spinning) {
+						Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
+					}
 				}
 			}
 
-			// 让步
-			Thread.yield();
+			this.sendSessionNum = sendNum;
+
+			if (this.idleRounds == 0) {
+				// 仅累计有事件需要处理的循环
+				this.busyTime += System.nanoTime() - start;
+			}
+		}
+
+		// 退出前关闭本线程管理的所有 Session ，使关闭与销毁事件得到通知
+		this.closeAll();
+
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
 		}
 
+		this.registerQueue.clear();
+		this.closeQueue.clear();
+		this.writeQueue.clear();
+		this.migrateQueue.clear();
+		this.corkedSessions.clear();
+
+		this.bufferPool.clear();
+
 		this.working = false;
 	}
 
@@ -105,9 +205,7 @@ public final class NonblockingAcceptorWorker extends Thread {
 	protected void stopSpinning(boolean blockingCheck) {
 		this.spinning = false;
 
-		synchronized (this.mutex) {
-			this.mutex.notifyAll();
-		}
+		this.selector.wakeup();
 
 		if (blockingCheck) {
 			while (this.working) {
@@ -126,65 +224,347 @@ public final class NonblockingAcceptorWorker extends Thread {
 		return this.working;
 	}
 
-	/** 返回当前未处理的接收任务 Session 数量。
+	/** 返回当前工作器管理的 Session 数量。
 	 */
 	protected int getReceiveSessionNum() {
-		return this.receiveSessions.size();
+		return this.sessionNum.get();
 	}
 
-	/** 返回当前未处理的发送任务 Session 数量。
+	/** 返回最近一次事件循环中执行发送任务的 Session 数量。
 	 */
 	protected int getSendSessionNum() {
-		return this.sendSessions.size();
+		return this.sendSessionNum;
 	}
 
-	/** 添加执行接收数据的 Session 。
+	/** 返回累计读取的字节数。
 	 */
-	protected void pushReceiveSession(NonblockingAcceptorSession session) {
-		if (!this.spinning) {
-			return;
+	protected long getReceivedBytes() {
+		return this.receivedBytes;
+	}
+
+	/** 返回累计写出的字节数。
+	 */
+	protected long getSentBytes() {
+		return this.sentBytes;
+	}
+
+	/** 返回累计处理读写事件的耗时，单位：纳秒。
+	 */
+	protected long getBusyTime() {
+		return this.busyTime;
+	}
+
+	/** 返回最近一次负载采样时所管理 Session 的待发送字节数。
+	 */
+	protected long getQueuedBytes() {
+		return this.queuedBytes;
+	}
+
+	/** 返回最近一次负载采样得到的负载值。
+	 */
+	protected long getLoad() {
+		return this.load;
+	}
+
+	/** 记录负载采样结果。
+	 * 
+	 * @return 返回距离上一次采样的处理耗时，单位：纳秒。
+	 */
+	protected long sample(long queuedBytes) {
+		long busy = this.busyTime;
+		long recent = busy - this.lastBusyTime;
+		this.lastBusyTime = busy;
+		this.queuedBytes = queuedBytes;
+		return recent;
+	}
+
+	/** 设置负载值。
+	 */
+	protected void setLoad(long load) {
+		this.load = load;
+	}
+
+	/** 返回工作器的缓存池。
+	 */
+	protected ByteBufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+
+	/** 将 Session 交由本工作器管理。
+	 */
+	protected void addSession(NonblockingAcceptorSession session) {
+		session.worker = this;
+		// 分配时即计数，使连续接入的连接能够按数量分散
+		this.sessionNum.incrementAndGet();
+		this.registerQueue.offer(session);
+		this.selector.wakeup();
+	}
+
+	/** 请求关闭 Session 。关闭操作在工作线程内执行。
+	 */
+	protected void closeSession(NonblockingAcceptorSession session) {
+		this.closeQueue.offer(session);
+		this.selector.wakeup();
+	}
+
+	/** 请求将 Session 迁移到指定的工作器。迁出操作在本工作线程内执行。
+	 */
+	protected void migrateSession(NonblockingAcceptorSession session, NonblockingAcceptorWorker target) {
+		session.migrateTarget = target;
+		this.migrateQueue.offer(session);
+		this.selector.wakeup();
+	}
+
+	/** 请求发送 Session 的待发送数据。
+	 */
+	protected void requestWrite(NonblockingAcceptorSession session) {
+		this.writeQueue.offer(session);
+		if (!this.polling) {
+			this.selector.wakeup();
 		}
+	}
 
-		this.receiveSessions.add(session);
+	/** 按延迟发送的截止时间与轮询策略等待事件。
+	 * 
+	 * @return 返回就绪的通道数量。
+	 */
+	private int select() throws IOException {
+		long timeout = this.nextCorkTimeout();
+		PollStrategy strategy = this.acceptor.getPollStrategy();
+
+		if (null != strategy && timeout != 0 && strategy.isPolling(this.idleRounds)) {
+			// 忙轮询
+			this.polling = true;
+			strategy.pause(this.idleRounds);
+			return this.selector.selectNow();
+		}
 
-		synchronized (this.mutex) {
-			this.mutex.notifyAll();
+		// 阻塞前关闭轮询标记，再检查期间到达的写请求
+		this.polling = false;
+		if (timeout == 0 || !this.writeQueue.isEmpty()) {
+			int num = this.selector.selectNow();
+			if (num == 0 && timeout == 0) {
+				// 截止时间不足 1 毫秒，不阻塞
+				Thread.yield();
+			}
+			return num;
 		}
+
+		return (timeout > 0) ? this.selector.select(timeout) : this.selector.select();
 	}
 
-	/** 添加执行发送数据的 Session 。
+	/** 将等待注册的 Session 注册到选择器。
 	 */
-	protected void pushSendSession(NonblockingAcceptorSession session) {
-		if (!this.spinning) {
-			return;
+	private void processRegister() {
+		NonblockingAcceptorSession session = null;
+		while (null != (session = this.registerQueue.poll())) {
+			SocketChannel channel = session.channel;
+			try {
+				// 仅当有待发送数据时关注可写事件
+				int ops = session.writeQueue.hasPending() ?
+						(SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ;
+				session.selectionKey = channel.register(this.selector, ops, session);
+			} catch (ClosedChannelException e) {
+				Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
+
+				this.sessionNum.decrementAndGet();
+
+				// 通道已关闭
+				this.acceptor.fireSessionClosed(session);
+				this.acceptor.eraseSession(session);
+			}
 		}
+	}
 
-		if (session.messages.isEmpty()) {
-			return;
+	/** 处理写请求，直接尝试发送数据。
+	 */
+	private void processWriteRequest() {
+		NonblockingAcceptorSession session = null;
+		while (null != (session = this.writeQueue.poll())) {
+			if (session.worker != this) {
+				// 已经迁移，转交给当前所属的工作线程
+				session.worker.requestWrite(session);
+				continue;
+			}
+
+			if (null == session.selectionKey) {
+				// 尚未注册，注册时将根据待发送数据关注可写事件
+				continue;
+			}
+
+			if (!session.selectionKey.isValid()) {
+				continue;
+			}
+
+			if (this.acceptor.deferFlush(session.writeQueue)) {
+				// 延迟到截止时间或者达到字节阈值后发送
+				if (!this.corkedSessions.contains(session)) {
+					this.corkedSessions.add(session);
+				}
+			}
+			else {
+				this.processSend(session);
+			}
+		}
+	}
+
+	/** 发送到达截止时间的延迟数据。
+	 */
+	private void processCorked() {
+		for (int i = this.corkedSessions.size() - 1; i >= 0; --i) {
+			NonblockingAcceptorSession session = this.corkedSessions.get(i);
+			if (!session.writeQueue.isCorked() || !session.selectionKey.isValid()) {
+				// 已经解除延迟或者已经关闭
+				this.corkedSessions.remove(i);
+			}
+			else if (!this.acceptor.deferFlush(session.writeQueue)) {
+				this.corkedSessions.remove(i);
+				this.processSend(session);
+			}
+		}
+	}
+
+	/** 返回选择器等待时间，单位：毫秒。没有延迟发送的 Session 时返回 -1 。
+	 */
+	private long nextCorkTimeout() {
+		if (this.corkedSessions.isEmpty()) {
+			return -1;
+		}
+
+		long now = System.nanoTime();
+		long remaining = Long.MAX_VALUE;
+		for (int i = 0, size = this.corkedSessions.size(); i < size; ++i) {
+			remaining = Math.min(remaining, this.corkedSessions.get(i).writeQueue.getCorkDeadline() - now);
+		}
+
+		return (remaining > 0) ? remaining / 1000000L : 0;
+	}
+
+	/** 关闭被请求关闭的 Session 。
+	 */
+	private void processClose() {
+		NonblockingAcceptorSession session = null;
+		while (null != (session = this.closeQueue.poll())) {
+			if (session.worker != this) {
+				// 已经迁移，转交给当前所属的工作线程
+				session.worker.closeSession(session);
+			}
+			else if (null != session.selectionKey && session.selectionKey.isValid()) {
+				this.doClose(session);
+			}
+			else if (null != session.channel) {
+				// 尚未注册或已经失效
+				try {
+					session.channel.close();
+				} catch (IOException e) {
+					Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
+				}
+				this.acceptor.eraseSession(session);
+			}
 		}
+	}
+
+	/** 将被请求迁移的 Session 从选择器注销，再交由目标工作器注册。
+	 */
+	private void processMigrate() {
+		NonblockingAcceptorSession session = null;
+		while (null != (session = this.migrateQueue.poll())) {
+			NonblockingAcceptorWorker target = session.migrateTarget;
+			session.migrateTarget = null;
+
+			if (null == target || target == this || session.worker != this
+				|| null == session.selectionKey || !session.selectionKey.isValid()) {
+				// 已经迁移或者已经关闭
+				continue;
+			}
+
+			// 注销后本线程不再处理该 Session 的读写事件
+			session.selectionKey.cancel();
+			session.selectionKey = null;
+			this.sessionNum.decrementAndGet();
 
-		this.sendSessions.add(session);
+			// 延迟发送的数据由目标工作器注册时直接发送
+			this.corkedSessions.remove(session);
+			session.writeQueue.uncork();
 
-		synchronized (this.mutex) {
-			this.mutex.notifyAll();
+			// 解码器持有的缓存仍然归还到原缓存池，缓存池是线程安全的
+			target.addSession(session);
 		}
 	}
 
-	/** 从所有列表中移除指定的 Session 。
+	/** 关闭所有仍由本线程管理的 Session 。
+	 * 
+	 * 包括等待注册、等待关闭以及注册在选择器上的 Session ，
+	 * 在归还缓存池与关闭选择器之前执行。
 	 */
-	private void removeSession(NonblockingAcceptorSession session) {
-		boolean exist = this.receiveSessions.remove(session);
-		while (exist) {
-			exist = this.receiveSessions.remove(session);
+	private void closeAll() {
+		try {
+			this.processRegister();
+		} catch (Exception e) {
+			Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
 		}
 
-		exist = this.sendSessions.remove(session);
-		while (exist) {
-			exist = this.sendSessions.remove(session);
+		try {
+			this.processClose();
+		} catch (Exception e) {
+			Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
+		}
+
+		// 尚未迁出的 Session 仍然注册在本线程的选择器上
+		this.migrateQueue.clear();
+
+		ArrayList<SelectionKey> keys = new ArrayList<SelectionKey>(this.selector.keys());
+		for (SelectionKey key : keys) {
+			NonblockingAcceptorSession session = (NonblockingAcceptorSession) key.attachment();
+			try {
+				if (null != session && session.selectionKey == key && key.isValid()) {
+					this.doClose(session);
+				}
+				else {
+					key.channel().close();
+				}
+			} catch (Exception e) {
+				Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
+			}
 		}
 	}
 
-	/** 处理接收。
+	/** 关闭 Session 通道并移除 Session 。
+	 */
+	private void doClose(NonblockingAcceptorSession session) {
+		if (null != session.channel) {
+			this.acceptor.fireSessionClosed(session);
+		}
+
+		SocketChannel channel = (SocketChannel) session.selectionKey.channel();
+		try {
+			if (channel.isOpen())
+				channel.close();
+		} catch (IOException ioe) {
+			Logger.log(NonblockingAcceptorWorker.class, ioe, LogLevel.DEBUG);
+		}
+
+		// 归还解码器持有的缓存
+		if (null != session.decoder) {
+			session.decoder.reset();
+		}
+
+		// 丢弃待发送数据，唤醒被阻塞的写入线程
+		session.writeQueue.clear();
+
+		// 释放压缩上下文
+		session.getCompression().close();
+
+		// 移除 Session
+		this.acceptor.eraseSession(session);
+
+		session.selectionKey.cancel();
+
+		this.sessionNum.decrementAndGet();
+	}
+
+	/** 处理接收。每次最多读取预算字节数，通道内剩余的数据使该 Session 在下一次选择时仍然就绪，
+	 * 从而与其他就绪的 Session 轮流读取。
 	 */
 	private void processReceive(NonblockingAcceptorSession session) {
 		SocketChannel channel = (SocketChannel) session.selectionKey.channel();
@@ -193,11 +573,13 @@ public final class NonblockingAcceptorWorker extends Thread {
 			return;
 		}
 
-		// 获取 Session 的读缓存。
-		ByteBuffer buf = session.getReadBuffer();
+		// 仅在读取期间从缓存池借用读缓存
+		ByteBuffer buf = this.bufferPool.borrowBuffer(this.acceptor.block);
+		int budget = this.acceptor.getReadBudget();
+		int total = 0;
 		int read = 0;
-		do {
-			synchronized (buf) {
+		try {
+			do {
 				try {
 					if (channel.isOpen())
 						read = channel.read(buf);
@@ -208,24 +590,7 @@ public final class NonblockingAcceptorWorker extends Thread {
 						Logger.d(this.getClass(), "Remote host has closed the connection.");
 					}
 
-					if (null != session.socket) {
-						this.acceptor.fireSessionClosed(session);
-					}
-
-					try {
-						if (channel.isOpen())
-							channel.close();
-					} catch (IOException ioe) {
-						Logger.log(NonblockingAcceptorWorker.class, ioe, LogLevel.DEBUG);
-					}
-
-					// 移除 Session
-					this.acceptor.eraseSession(session);
-
-					this.removeSession(session);
-
-					session.selectionKey.cancel();
-
+					this.doClose(session);
 					return;
 				}
 
@@ -233,174 +598,122 @@ public final class NonblockingAcceptorWorker extends Thread {
 					break;
 				}
 				else if (read == -1) {
-					if (null != session.socket) {
-						this.acceptor.fireSessionClosed(session);
-					}
-
-					try {
-						if (channel.isOpen())
-							channel.close();
-					} catch (IOException ioe) {
-						Logger.log(NonblockingAcceptorWorker.class, ioe, LogLevel.DEBUG);
-					}
-
-					// 移除 Session
-					this.acceptor.eraseSession(session);
-
-					this.removeSession(session);
-
-					session.selectionKey.cancel();
-
+					this.doClose(session);
 					return;
 				}
 
-				buf.flip();
+				session.receivedBytes += read;
+				this.receivedBytes += read;
 
-				byte[] array = new byte[read];
-				buf.get(array);
+				buf.flip();
 
 				// 解析数据
-				parse(session, array);
+				parse(session, buf);
 
 				buf.clear();
-			}
-		} while (read > 0);
+
+				total += read;
+				if (budget > 0 && total >= budget) {
+					// 超出预算，让出给其他就绪的 Session
+					break;
+				}
+			} while (read > 0);
+		} finally {
+			this.bufferPool.returnBuffer(buf);
+		}
 	}
 
 	/** 处理发送。
 	 */
 	private void processSend(NonblockingAcceptorSession session) {
-		SocketChannel channel = (SocketChannel) session.selectionKey.channel();
+		SelectionKey key = session.selectionKey;
+		SocketChannel channel = (SocketChannel) key.channel();
 
 		if (!channel.isConnected()) {
 			return;
 		}
 
-		if (!session.messages.isEmpty()) {
-			// 有消息，进行发送
-
-			Message message = null;
-
-			// 获取 Session 的写缓存
-			ByteBuffer buf = session.getWriteBuffer();
-			synchronized (buf) {
-				while (!session.messages.isEmpty()) {
-					message = session.messages.remove(0);
-
-					// 根据是否有数据掩码组装数据包
-					if (this.acceptor.existDataMark()) {
-						byte[] data = message.get();
-						byte[] head = this.acceptor.getHeadMark();
-						byte[] tail = this.acceptor.getTailMark();
-						byte[] pd = new byte[data.length + head.length + tail.length];
-						System.arraycopy(head, 0, pd, 0, head.length);
-						System.arraycopy(data, 0, pd, head.length, data.length);
-						System.arraycopy(tail, 0, pd, head.length + data.length, tail.length);
-						buf.put(pd);
-					}
-					else {
-						buf.put(message.get());
-					}
+		WriteQueue queue = session.writeQueue;
+		long written = queue.getWrittenBytes();
+		boolean completed = false;
+		try {
+			completed = queue.write(channel, this.acceptor.getSessionFraming(session),
+					session.getCompression(), session.getCoalescer());
+			this.sentBytes += queue.getWrittenBytes() - written;
+		} catch (IOException e) {
+			Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.DEBUG);
+
+			this.doClose(session);
+			return;
+		}
 
-					buf.flip();
+		// 回调已完成发送的消息
+		Message message = null;
+		while (null != (message = queue.pollSent())) {
+			this.acceptor.fireMessageSent(session, message);
+			message.release();
+		}
 
-					try {
-						channel.write(buf);
-					} catch (IOException e) {
-						Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.WARNING);
-					}
+		// 回落到低水位后恢复可写
+		if (!queue.isWritable() && queue.markWritable(this.acceptor.getLowWatermark())) {
+			this.acceptor.fireWritabilityChanged(session, true);
+		}
 
-					buf.clear();
+		if (!key.isValid()) {
+			return;
+		}
 
-					// 回调事件
-					this.acceptor.fireMessageSent(session, message);
-				}
-			} //# synchronized
+		// 仅在有待发送数据时关注可写事件
+		if (completed && queue.tryIdle()) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		else {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
 		}
 	}
 
 	/** 解析数据格式。
 	 */
-	private void parse(NonblockingAcceptorSession session, byte[] data) {
-		// 拦截器返回 true 则该数据被拦截，不再进行数据解析。
-		if (this.acceptor.fireIntercepted(session, data)) {
-			return;
+	private void parse(NonblockingAcceptorSession session, ByteBuffer data) {
+		if (null != this.acceptor.getInterceptor()) {
+			byte[] raw = new byte[data.remaining()];
+			data.get(raw);
+
+			// 拦截器返回 true 则该数据被拦截，不再进行数据解析。
+			if (this.acceptor.fireIntercepted(session, raw)) {
+				return;
+			}
+
+			data = ByteBuffer.wrap(raw);
 		}
 
-		// 根据数据标志获取数据
-		if (this.acceptor.existDataMark()) {
-			byte[] headMark = this.acceptor.getHeadMark();
-			byte[] tailMark = this.acceptor.getTailMark();
-
-			int cursor = 0;
-			int length = data.length;
-			boolean head = false;
-			boolean tail = false;
-			byte[] buf = new byte[this.acceptor.block];
-			int bufIndex = 0;
-
-			while (cursor < length) {
-				head = true;
-				tail = true;
-
-				byte b = data[cursor];
-
-				// 判断是否是头标识
-				if (b == headMark[0]) {
-					for (int i = 1, len = headMark.length; i < len; ++i) {
-						if (data[cursor + i] != headMark[i]) {
-							head = false;
-							break;
-						}
-					}
-				}
-				else {
-					head = false;
-				}
+		// 根据帧格式获取数据
+		if (this.acceptor.existFraming()) {
+			if (null == session.decoder) {
+				session.decoder = this.acceptor.createDecoder(this.bufferPool);
+				session.decoder.setCompression(session.getCompression());
+			}
 
-				// 判断是否是尾标识
-				if (b == tailMark[0]) {
-					for (int i = 1, len = tailMark.length; i < len; ++i) {
-						if (data[cursor + i] != tailMark[i]) {
-							tail = false;
-							break;
-						}
+			// 由解码器在多次读取之间保留不完整的帧
+			try {
+				session.decoder.decode(data, this.frames);
+				for (int i = 0, size = this.frames.size(); i < size; ++i) {
+					try {
+						this.acceptor.fireMessageReceived(session, this.frames.get(i));
+					} catch (Exception e) {
+						// 处理器异常不影响同批次的其他消息
+						Logger.log(NonblockingAcceptorWorker.class, e, LogLevel.ERROR);
 					}
 				}
-				else {
-					tail = false;
-				}
-
-				if (head) {
-					// 遇到头标识，开始记录数据
-					cursor += headMark.length;
-					bufIndex = 0;
-					buf[bufIndex] = data[cursor];
-				}
-				else if (tail) {
-					// 遇到尾标识，提取 buf 内数据
-					byte[] pdata = new byte[bufIndex + 1];
-					System.arraycopy(buf, 0, pdata, 0, bufIndex + 1);
-					Message message = new Message(pdata);
-					this.acceptor.fireMessageReceived(session, message);
-
-					cursor += tailMark.length;
-					// 后面要移动到下一个字节因此这里先减1
-					cursor -= 1;
-				}
-				else {
-					++bufIndex;
-					buf[bufIndex] = b;
-				}
-
-				// 下一个字节
-				++cursor;
+			} finally {
+				// 帧列表由本工作器的所有 Session 共用，已交付的消息不能留到下一次解码
+				this.frames.clear();
 			}
-
-			buf = null;
 		}
 		else {
-			Message message = new Message(data);
+			byte[] array = new byte[data.remaining()];
+			data.get(array);
+			Message message = new Message(array);
 			this.acceptor.fireMessageReceived(session, message);
 		}
 	}
@@ -28,18 +28,19 @@ package net.cellcloud.common;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
-import java.util.Vector;
+import java.util.ArrayList;
 
 
 /** 非阻塞式网络连接器。
+ * 
+ * 连接器不持有独立的线程与选择器，连接通道注册到共享的事件循环组里的某个事件循环上。
  * 
  * @author Jiangwei Xu
  */
@@ -49,28 +50,42 @@ public class NonblockingConnector extends MessageService implements MessageConne
 	private int block = 8192;
 
 	private InetSocketAddress address;
+	// 实际连接的地址，可以是 Unix 域套接字地址
+	private SocketAddress remoteAddress;
 	private long connectTimeout;
-	private SocketChannel channel;
-	private Selector selector;
+	private volatile SocketChannel channel;
 
 	private Session session;
 
-	private Thread handleThread;
-	private boolean spinning = false;
-	private boolean running = false;
+	// 事件循环组，为 null 时使用默认组
+	private ConnectorEventLoopGroup eventLoopGroup;
+	// 当前连接所在的事件循环
+	private volatile ConnectorEventLoop eventLoop;
+	private volatile SelectionKey selectionKey;
+	// 连接超时的截止时间
+	private long connectDeadline;
+
+	// 连接是否处于活跃状态，从发起连接到连接关闭
+	private volatile boolean running = false;
+	// 是否正在建立连接
+	private volatile boolean connecting = false;
 
-	private ByteBuffer readBuffer;
-	private ByteBuffer writeBuffer;
-	// 待发送消息列表
-	private Vector<Message> messages;
+	// 待发送消息队列
+	private WriteQueue writeQueue;
+
+	// 数据帧解码器
+	private FrameDecoder decoder;
+	// 解码输出的数据帧
+	private ArrayList<Message> frames;
 
 	private boolean closed = false;
 
 	public NonblockingConnector() {
 		this.connectTimeout = 10000;
-		this.readBuffer = ByteBuffer.allocate(this.block);
-		this.writeBuffer = ByteBuffer.allocate(this.block);
-		this.messages = new Vector<Message>();
+		this.eventLoopGroup = null;
+		this.writeQueue = new WriteQueue();
+		this.decoder = null;
+		this.frames = new ArrayList<Message>();
 	}
 
 	/** 返回连接地址。
@@ -79,68 +94,89 @@ public class NonblockingConnector extends MessageService implements MessageConne
 		return this.address;
 	}
 
+	/** 返回实际连接的地址，可能是 Unix 域套接字地址。
+	 */
+	public SocketAddress getRemoteAddress() {
+		return this.remoteAddress;
+	}
+
+	/** 设置事件循环组。必须在连接之前设置。
+	 */
+	public void setEventLoopGroup(ConnectorEventLoopGroup group) {
+		this.eventLoopGroup = group;
+	}
+
+	/** 返回事件循环组。
+	 */
+	public ConnectorEventLoopGroup getEventLoopGroup() {
+		return (null != this.eventLoopGroup) ? this.eventLoopGroup : ConnectorEventLoopGroup.getDefault();
+	}
+
 	@Override
 	public boolean connect(InetSocketAddress address) {
+		return this.connect((SocketAddress) address);
+	}
+
+	/** 连接指定地址，地址可以是 Unix 域套接字地址。
+	 */
+	public boolean connect(SocketAddress address) {
+		boolean unix = UnixDomainSocket.isUnixAddress(address);
+		if (!unix && !(address instanceof InetSocketAddress)) {
+			Logger.w(NonblockingConnector.class, "Unsupported connect address: " + address);
+			return false;
+		}
+
 		if (this.channel != null && this.channel.isConnected()) {
-			Logger.w(NonblockingConnector.class, "Connector has connected to " + address.getAddress().getHostAddress());
+			Logger.w(NonblockingConnector.class, "Connector has connected to " + address);
 			return true;
 		}
 
-		if (this.running && null != this.channel) {
-			this.spinning = false;
-
-			try {
-				if (this.channel.isOpen()) {
-					this.channel.close();
-				}
-
-				if (null != this.selector) {
-					this.selector.close();
-				}
-			} catch (IOException e) {
-				Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
-			}
-
-			while (this.running) {
-				try {
-					Thread.sleep(10);
-				} catch (InterruptedException e) {
-					Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
-					break;
-				}
-			}
+		if (this.running) {
+			// 关闭正在进行的连接
+			this.disconnect();
+		}
 
-			Thread.yield();
+		ConnectorEventLoopGroup group = this.getEventLoopGroup();
+		if (null == group) {
+			this.fireErrorOccurred(MessageErrorCode.SOCKET_FAILED);
+			return false;
 		}
 
 		// 状态初始化
-		this.readBuffer.clear();
-		this.writeBuffer.clear();
-		this.messages.clear();
-		this.address = address;
+		this.writeQueue.clear();
+		if (null != this.decoder) {
+			this.decoder.reset();
+			this.decoder = null;
+		}
+		this.address = UnixDomainSocket.toInetAddress(address);
+		this.remoteAddress = address;
 
+		SocketChannel channel = null;
 		try {
-			this.channel = SocketChannel.open();
-			this.channel.configureBlocking(false);
-
-			// 配置
-			// 以下为 JDK7 的代码
-			this.channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
-			this.channel.setOption(StandardSocketOptions.SO_RCVBUF, this.block);
-			this.channel.setOption(StandardSocketOptions.SO_SNDBUF, this.block);
-			// 以下为 JDK6 的代码
-			/*
-			this.channel.socket().setKeepAlive(true);
-			this.channel.socket().setReceiveBufferSize(this.block);
-			this.channel.socket().setSendBufferSize(this.block);
-			*/
-
-			this.selector = Selector.open();
-			// 注册事件
-			this.channel.register(this.selector, SelectionKey.OP_CONNECT);
+			if (unix) {
+				// Unix 域套接字不支持 TCP 选项
+				channel = UnixDomainSocket.openChannel();
+				channel.configureBlocking(false);
+			}
+			else {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+
+				// 配置
+				// 以下为 JDK7 的代码
+				channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+				channel.setOption(StandardSocketOptions.SO_RCVBUF, this.block);
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, this.block);
+				// 以下为 JDK6 的代码
+				/*
+				channel.socket().setKeepAlive(true);
+				channel.socket().setReceiveBufferSize(this.block);
+				channel.socket().setSendBufferSize(this.block);
+				*/
+			}
 
 			// 连接
-			this.channel.connect(this.address);
+			channel.connect(address);
 		} catch (IOException e) {
 			Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
 
@@ -148,19 +184,12 @@ public class NonblockingConnector extends MessageService implements MessageConne
 			this.fireErrorOccurred(MessageErrorCode.SOCKET_FAILED);
 
 			try {
-				if (null != this.channel) {
-					this.channel.close();
+				if (null != channel) {
+					channel.close();
 				}
 			} catch (Exception ce) {
 				// Nothing
 			}
-			try {
-				if (null != this.selector) {
-					this.selector.close();
-				}
-			} catch (Exception se) {
-				// Nothing
-			}
 
 			return false;
 		} catch (Exception e) {
@@ -170,81 +199,46 @@ public class NonblockingConnector extends MessageService implements MessageConne
 
 		// 创建 Session
 		this.session = new Session(this, this.address);
+		this.channel = channel;
+		this.selectionKey = null;
+		this.connecting = true;
+		this.running = true;
 
-		this.handleThread = new Thread() {
-
-			@Override
-			public void run() {
-				running = true;
-
-				// 通知 Session 创建。
-				fireSessionCreated();
-
-				try {
-					loopDispatch();
-				} catch (Exception e) {
-					spinning = false;
-//					Logger.logException(e, LogLevel.DEBUG);
-				}
-
-				// 通知 Session 销毁。
-				fireSessionDestroyed();
-
-				running = false;
-
-				try {
-					if (null != selector && selector.isOpen())
-						selector.close();
-					if (null != channel && channel.isOpen())
-						channel.close();
-
-					channel = null;
-				} catch (IOException e) {
-					// Nothing
-					channel = null;
-				}
-			}
-		};
-		this.handleThread.setName(new StringBuilder("NonblockingConnector[").append(this.handleThread).append("]@")
-			.append(this.address.getAddress().getHostAddress()).append(":").append(this.address.getPort()).toString());
-		// 启动线程
-		this.handleThread.start();
+		// 注册到事件循环
+		this.eventLoop = group.next();
+		this.eventLoop.register(this);
 
 		return true;
 	}
 
 	@Override
 	public void disconnect() {
-		this.spinning = false;
+		ConnectorEventLoop loop = this.eventLoop;
 
-		if (null != this.channel) {
-			if (this.channel.isConnected()) {
-				fireSessionClosed();
-			}
-
-			try {
-				if (this.channel.isOpen()) {
-					this.channel.close();
+		if (null == loop || !this.running) {
+			SocketChannel channel = this.channel;
+			if (null != channel) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
 				}
-			} catch (Exception e) {
-				Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
 			}
+			return;
+		}
 
-			try {
-				this.channel.socket().close();
-			} catch (Exception e) {
-				//Logger.logException(e, LogLevel.DEBUG);
-			}
+		if (Thread.currentThread() == loop) {
+			this.doClose();
+			return;
 		}
 
-		if (null != this.selector && this.selector.isOpen()) {
-			try {
-				this.selector.wakeup();
-				this.selector.close();
-			} catch (Exception e) {
-				Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
+		// 由事件循环关闭连接，保证事件回调与选择器状态一致
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				doClose();
 			}
-		}
+		});
 
 		int count = 0;
 		while (this.running) {
@@ -252,11 +246,11 @@ public class NonblockingConnector extends MessageService implements MessageConne
 				Thread.sleep(10);
 			} catch (InterruptedException e) {
 				Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
+				break;
 			}
 
 			if (++count >= 300) {
-				this.handleThread.interrupt();
-				this.running = false;
+				break;
 			}
 		}
 	}
@@ -273,13 +267,12 @@ public class NonblockingConnector extends MessageService implements MessageConne
 	@Override
 	public void setBlockSize(int size) {
 		this.block = size;
-		this.readBuffer = ByteBuffer.allocate(this.block);
-		this.writeBuffer = ByteBuffer.allocate(this.block);
 
-		if (null != this.channel) {
+		SocketChannel channel = this.channel;
+		if (null != channel && !UnixDomainSocket.isUnixAddress(this.remoteAddress)) {
 			try {
-				this.channel.socket().setReceiveBufferSize(this.block);
-				this.channel.socket().setSendBufferSize(this.block);
+				channel.socket().setReceiveBufferSize(this.block);
+				channel.socket().setSendBufferSize(this.block);
 			} catch (Exception e) {
 				// ignore
 			}
@@ -293,7 +286,8 @@ public class NonblockingConnector extends MessageService implements MessageConne
 	/** 是否已连接。
 	 */
 	public boolean isConnected() {
-		return (null != this.channel && this.channel.isConnected());
+		SocketChannel channel = this.channel;
+		return (null != channel && channel.isConnected());
 	}
 
 	@Override
@@ -305,9 +299,83 @@ public class NonblockingConnector extends MessageService implements MessageConne
 		this.write(null, message);
 	}
 
+	/** 以低优先级写入批量消息。
+	 */
+	public void writeBulk(Message message) {
+		this.writeBulk(null, message);
+	}
+
 	@Override
 	public void write(Session session, Message message) {
-		this.messages.add(message);
+		this.write(message, false);
+	}
+
+	@Override
+	public void writeBulk(Session session, Message message) {
+		this.write(message, true);
+	}
+
+	private void write(Message message, boolean bulk) {
+		ConnectorEventLoop loop = this.eventLoop;
+
+		if (!this.admitWrite(this.session, this.writeQueue, message, isIoThread())) {
+			return;
+		}
+
+		boolean request = bulk ? this.writeQueue.offerBulk(message) : this.writeQueue.offer(message);
+		if ((request || this.releaseCork(this.writeQueue)) && null != loop) {
+			// 通知事件循环关注可写事件
+			loop.requestWrite(this);
+		}
+	}
+
+	@Override
+	public boolean isWritable(Session session) {
+		return this.writeQueue.isWritable();
+	}
+
+	@Override
+	protected ByteBufferPool getBufferPool(Session session) {
+		ConnectorEventLoop loop = this.eventLoop;
+		return (null != loop) ? loop.getBufferPool() : null;
+	}
+
+	/** 由事件循环判断写队列是否延迟发送。
+	 */
+	protected boolean deferFlush() {
+		return this.deferFlush(this.writeQueue);
+	}
+
+	/** 写队列是否处于延迟发送状态。
+	 */
+	protected boolean isCorked() {
+		return this.writeQueue.isCorked();
+	}
+
+	/** 返回延迟发送的截止时间，单位：纳秒。
+	 */
+	protected long getCorkDeadline() {
+		return this.writeQueue.getCorkDeadline();
+	}
+
+	/** 将数据包直接打包到连接的发送缓存并写入连接。
+	 * 
+	 * @return 数据包无法打包时返回 false 。
+	 */
+	public boolean write(Packet packet) {
+		Message message = this.createMessage(this.session, packet);
+		if (null == message) {
+			return false;
+		}
+
+		this.write(null, message);
+		message.release();
+		return true;
+	}
+
+	@Override
+	protected void closeOverflowSession(Session session) {
+		this.disconnect();
 	}
 
 	@Override
@@ -345,49 +413,57 @@ public class NonblockingConnector extends MessageService implements MessageConne
 		}
 	}
 
-	/** 事件循环。 */
-	private void loopDispatch() throws Exception {
-		// 自旋
-		this.spinning = true;
+	/** 返回选择键。
+	 */
+	protected SelectionKey getSelectionKey() {
+		return this.selectionKey;
+	}
+
+	/** 返回连接超时的截止时间。
+	 */
+	protected long getConnectDeadline() {
+		return this.connectDeadline;
+	}
+
+	/** 是否正在建立连接。
+	 */
+	protected boolean isConnecting() {
+		return this.connecting;
+	}
 
-		while (this.spinning) {
-			while (this.selector.isOpen()
-					&& this.selector.select(this.channel.isConnected() ? 0 : this.connectTimeout) > 0) {
-				Set<SelectionKey> keys = this.selector.selectedKeys();
-				Iterator<SelectionKey> it = keys.iterator();
-				while (it.hasNext()) {
-					SelectionKey key = (SelectionKey) it.next();
-					it.remove();
+	/** 在事件循环线程里将通道注册到选择器。
+	 * 
+	 * @return 如果需要等待连接完成返回 true 。
+	 */
+	protected boolean processRegister(Selector selector) {
+		SocketChannel channel = this.channel;
+		if (null == channel || !channel.isOpen()) {
+			return false;
+		}
 
-					// 当前通道选择器产生连接已经准备就绪事件，并且客户端套接字通道尚未连接到服务端套接字通道
-					if (key.isConnectable()) {
-						if (!doConnect(key)) {
-							this.spinning = false;
-							return;
-						}
-					}
-					else if (key.isReadable()) {
-						receive(key);
-					}
-					else if (key.isWritable()) {
-						send(key);
-					}
-				} //# while
+		try {
+			this.selectionKey = channel.register(selector, SelectionKey.OP_CONNECT, this);
+		} catch (ClosedChannelException e) {
+			Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
+			return false;
+		}
 
-				try {
-					if (!this.spinning) {
-						return;
-					}
+		// 通知 Session 创建。
+		this.fireSessionCreated();
 
-					Thread.sleep(1);
-				} catch (InterruptedException e) {
-					Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
-				}
-			} //# while
-		} // # while
+		if (channel.isConnected()) {
+			// 连接已立即完成
+			this.processConnect(this.selectionKey);
+			return false;
+		}
+
+		this.connectDeadline = System.currentTimeMillis() + this.connectTimeout;
+		return true;
 	}
 
-	private boolean doConnect(SelectionKey key) {
+	/** 处理连接完成事件。
+	 */
+	protected void processConnect(SelectionKey key) {
 		// 获取创建通道选择器事件键的套接字通道
 		SocketChannel channel = (SocketChannel)key.channel();
 
@@ -399,231 +475,212 @@ public class NonblockingConnector extends MessageService implements MessageConne
 			} catch (IOException e) {
 				//Logger.logException(e, LogLevel.DEBUG);
 
-				try {
-					this.channel.close();
-					this.selector.close();
-				} catch (IOException ce) {
-					Logger.log(NonblockingConnector.class, ce, LogLevel.DEBUG);
-				}
-
 				// 连接失败
-				fireErrorOccurred(MessageErrorCode.CONNECT_TIMEOUT);
-				return false;
+				this.connecting = false;
+				this.fireErrorOccurred(MessageErrorCode.CONNECT_TIMEOUT);
+				this.doClose();
+				return;
 			}
-
-			// 连接成功，打开 Session
-			fireSessionOpened();
 		}
 
-		try {
-			channel.register(this.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-		} catch (ClosedChannelException e) {
-			Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
-		}
+		this.connecting = false;
 
-		return true;
+		// 连接成功，打开 Session
+		this.fireSessionOpened();
+
+		if (key.isValid()) {
+			// 仅当有待发送数据时关注可写事件
+			key.interestOps(this.writeQueue.hasPending() ?
+					(SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ);
+		}
 	}
 
-	private void receive(SelectionKey key) {
-		SocketChannel channel = (SocketChannel) key.channel();
+	/** 处理连接超时。
+	 */
+	protected void processTimeout() {
+		this.connecting = false;
+		this.fireErrorOccurred(MessageErrorCode.CONNECT_TIMEOUT);
+		this.doClose();
+	}
 
-		if (!channel.isConnected()) {
+	/** 在事件循环线程里关闭连接。
+	 */
+	protected void doClose() {
+		if (!this.running) {
 			return;
 		}
 
-		int read = 0;
-		do {
-			try {
-				read = channel.read(this.readBuffer);
-			} catch (IOException e) {
-//				Logger.logException(e, LogLevel.DEBUG);
-
-				fireSessionClosed();
-
-				try {
-					if (null != this.channel)
-						this.channel.close();
-					if (null != this.selector)
-						this.selector.close();
-				} catch (IOException ce) {
-					Logger.log(NonblockingConnector.class, ce, LogLevel.DEBUG);
-				}
-
-				// 不能继续进行数据接收
-				this.spinning = false;
+		SocketChannel channel = this.channel;
+		if (null != channel && channel.isConnected()) {
+			this.fireSessionClosed();
+		}
 
-				return;
-			}
+		SelectionKey key = this.selectionKey;
+		if (null != key) {
+			key.cancel();
+		}
 
-			if (read == 0) {
-				break;
+		try {
+			if (null != channel && channel.isOpen()) {
+				channel.close();
 			}
-			else if (read == -1) {
-				fireSessionClosed();
+		} catch (IOException e) {
+			Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
+		}
 
-				try {
-					this.channel.close();
-					this.selector.close();
-				} catch (IOException ce) {
-					Logger.log(NonblockingConnector.class, ce, LogLevel.DEBUG);
-				}
+		// 归还解码器持有的缓存
+		if (null != this.decoder) {
+			this.decoder.reset();
+		}
 
-				// 不能继续进行数据接收
-				this.spinning = false;
+		// 丢弃待发送数据，唤醒被阻塞的写入线程
+		this.writeQueue.clear();
 
-				return;
-			}
+		// 释放压缩上下文
+		if (null != this.session) {
+			this.session.getCompression().close();
+		}
 
-			this.readBuffer.flip();
+		this.connecting = false;
 
-			byte[] array = new byte[read];
-			this.readBuffer.get(array);
+		// 通知 Session 销毁。
+		this.fireSessionDestroyed();
 
-			process(array);
+		this.selectionKey = null;
+		this.channel = null;
+		this.running = false;
+	}
 
-			this.readBuffer.clear();
-		} while (read > 0);
+	/** 处理接收。
+	 */
+	protected void receive(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
 
-		try {
-			// 注册
-			channel.register(this.selector, SelectionKey.OP_WRITE | SelectionKey.OP_READ);
-		} catch (IOException e) {
-			Logger.log(NonblockingConnector.class, e, LogLevel.DEBUG);
-			this.fireErrorOccurred(MessageErrorCode.READ_FAILED);
+		if (!channel.isConnected()) {
+			return;
 		}
-	}
 
-	private void send(SelectionKey key) {
+		// 仅在读取期间从缓存池借用读缓存
+		ByteBufferPool pool = this.eventLoop.getBufferPool();
+		ByteBuffer buf = pool.borrowBuffer(this.block);
+		int read = 0;
 		try {
-			SocketChannel channel = (SocketChannel) key.channel();
+			do {
+				try {
+					read = channel.read(buf);
+				} catch (IOException e) {
+//					Logger.logException(e, LogLevel.DEBUG);
 
-			if (!channel.isConnected()) {
-				fireSessionClosed();
-				return;
-			}
+					// 不能继续进行数据接收
+					this.doClose();
+					return;
+				}
 
-			if (!this.messages.isEmpty()) {
-				// 有消息，进行发送
-
-				Message message = null;
-				for (int i = 0, len = this.messages.size(); i < len; ++i) {
-					message = this.messages.remove(0);
-
-					if (this.existDataMark()) {
-						byte[] data = message.get();
-						byte[] head = this.getHeadMark();
-						byte[] tail = this.getTailMark();
-						byte[] pd = new byte[data.length + head.length + tail.length];
-						System.arraycopy(head, 0, pd, 0, head.length);
-						System.arraycopy(data, 0, pd, head.length, data.length);
-						System.arraycopy(tail, 0, pd, head.length + data.length, tail.length);
-						this.writeBuffer.put(pd);
-					}
-					else {
-						this.writeBuffer.put(message.get());
-					}
+				if (read == 0) {
+					break;
+				}
+				else if (read == -1) {
+					// 不能继续进行数据接收
+					this.doClose();
+					return;
+				}
 
-					this.writeBuffer.flip();
+				buf.flip();
 
-					channel.write(this.writeBuffer);
+				process(buf, pool);
 
-					this.writeBuffer.clear();
+				buf.clear();
+			} while (read > 0);
+		} finally {
+			pool.returnBuffer(buf);
+		}
+	}
 
-					if (null != this.handler) {
-						this.handler.messageSent(this.session, message);
-					}
-				}
-			}
+	/** 处理发送。
+	 */
+	protected void send(SelectionKey key) {
+		SocketChannel channel = (SocketChannel) key.channel();
 
-			try {
-				// 注册
-				channel.register(this.selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
-			} catch (ClosedChannelException ce) {
-				Logger.log(NonblockingConnector.class, ce, LogLevel.DEBUG);
-				this.fireErrorOccurred(MessageErrorCode.WRITE_FAILED);
-			}
+		if (!channel.isConnected()) {
+			// 连接已断开，关闭后不再响应可写事件
+			this.fireSessionClosed();
+			this.doClose();
+			return;
+		}
+
+		boolean completed = false;
+		try {
+			completed = this.writeQueue.write(channel, this.getSessionFraming(this.session),
+					this.session.getCompression(), this.session.getCoalescer());
 		} catch (IOException e) {
 			Logger.log(NonblockingConnector.class, e, LogLevel.WARNING);
+			this.fireErrorOccurred(MessageErrorCode.WRITE_FAILED);
+
+			// 发送失败的连接无法恢复，关闭连接避免反复触发可写事件
+			this.doClose();
+			return;
 		}
-	}
 
-	private void process(byte[] data) {
-		// 根据数据标志获取数据
-		if (this.existDataMark()) {
-			byte[] headMark = this.getHeadMark();
-			byte[] tailMark = this.getTailMark();
+		Message message = null;
+		while (null != (message = this.writeQueue.pollSent())) {
+			if (null != this.handler) {
+				this.handler.messageSent(this.session, message);
+			}
+			message.release();
+		}
 
-			int cursor = 0;
-			int length = data.length;
-			boolean head = false;
-			boolean tail = false;
-			byte[] buf = new byte[this.block];
-			int bufIndex = 0;
+		// 回落到低水位后恢复可写
+		if (!this.writeQueue.isWritable() && this.writeQueue.markWritable(this.getLowWatermark())) {
+			this.fireWritabilityChanged(this.session, true);
+		}
 
-			while (cursor < length) {
-				head = true;
-				tail = true;
+		if (!key.isValid()) {
+			return;
+		}
 
-				byte b = data[cursor];
+		// 仅在有待发送数据时关注可写事件
+		if (completed && this.writeQueue.tryIdle()) {
+			key.interestOps(SelectionKey.OP_READ);
+		}
+		else {
+			key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+	}
 
-				// 判断是否是头标识
-				if (b == headMark[0]) {
-					for (int i = 1, len = headMark.length; i < len; ++i) {
-						if (data[cursor + i] != headMark[i]) {
-							head = false;
-							break;
-						}
-					}
-				}
-				else {
-					head = false;
-				}
+	private void process(ByteBuffer data, ByteBufferPool pool) {
+		// 根据帧格式获取数据
+		if (this.existFraming()) {
+			if (null == this.decoder) {
+				this.decoder = this.createDecoder(pool);
+				this.decoder.setCompression(this.session.getCompression());
+			}
 
-				// 判断是否是尾标识
-				if (b == tailMark[0]) {
-					for (int i = 1, len = tailMark.length; i < len; ++i) {
-						if (data[cursor + i] != tailMark[i]) {
-							tail = false;
-							break;
-						}
+			// 由解码器在多次读取之间保留不完整的帧
+			try {
+				this.decoder.decode(data, this.frames);
+				for (int i = 0, size = this.frames.size(); i < size; ++i) {
+					Message message = this.frames.get(i);
+					if (null == this.handler) {
+						message.release();
+						continue;
 					}
-				}
-				else {
-					tail = false;
-				}
 
-				if (head) {
-					// 遇到头标识，开始记录数据
-					cursor += headMark.length;
-					bufIndex = 0;
-					buf[bufIndex] = data[cursor];
-				}
-				else if (tail) {
-					// 遇到尾标识，提取 buf 内数据
-					byte[] pdata = new byte[bufIndex + 1];
-					System.arraycopy(buf, 0, pdata, 0, bufIndex + 1);
-					Message message = new Message(pdata);
-					if (null != this.handler) {
+					try {
 						this.handler.messageReceived(this.session, message);
+					} catch (Exception e) {
+						// 处理器异常不影响同批次的其他消息
+						Logger.log(NonblockingConnector.class, e, LogLevel.ERROR);
 					}
-
-					cursor += tailMark.length;
-					// 后面要移动到下一个字节因此这里先减1
-					cursor -= 1;
 				}
-				else {
-					++bufIndex;
-					buf[bufIndex] = b;
-				}
-
-				// 下一个字节
-				++cursor;
+			} finally {
+				// 已交付的消息不能留到下一次解码
+				this.frames.clear();
 			}
-
-			buf = null;
 		}
 		else {
-			Message message = new Message(data);
+			byte[] array = new byte[data.remaining()];
+			data.get(array);
+			Message message = new Message(array);
 			if (null != this.handler) {
 				this.handler.messageReceived(this.session, message);
 			}
@@ -0,0 +1,213 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/** 按会话顺序分发回调的消息句柄。
+ * 
+ * 将 I/O 线程上产生的回调提交到执行器执行，同一个会话的回调严格按照产生顺序串行执行，
+ * 不同会话的回调并行执行。I/O 线程只负责网络读写，阻塞的回调不会影响其他会话。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class OrderedDispatchHandler implements MessageHandler {
+
+	private final MessageHandler handler;
+	private final Executor executor;
+
+	// 会话的串行队列，Key 为 Session ID
+	private final ConcurrentHashMap<Long, SerialExecutor> lanes;
+
+	public OrderedDispatchHandler(MessageHandler handler, Executor executor) {
+		this.handler = handler;
+		this.executor = executor;
+		this.lanes = new ConcurrentHashMap<Long, SerialExecutor>();
+	}
+
+	/** 返回被分发的消息句柄。
+	 */
+	public MessageHandler getHandler() {
+		return this.handler;
+	}
+
+	/** 返回执行器。
+	 */
+	public Executor getExecutor() {
+		return this.executor;
+	}
+
+	/** 返回当前持有串行队列的会话数量。
+	 */
+	public int getLaneNum() {
+		return this.lanes.size();
+	}
+
+	@Override
+	public void sessionCreated(final Session session) {
+		this.dispatch(session, new Runnable() {
+			@Override
+			public void run() {
+				handler.sessionCreated(session);
+			}
+		});
+	}
+
+	@Override
+	public void sessionDestroyed(final Session session) {
+		this.dispatch(session, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handler.sessionDestroyed(session);
+				} finally {
+					// 销毁回调是会话的最后一个回调，移除串行队列
+					lanes.remove(session.getId());
+				}
+			}
+		});
+	}
+
+	@Override
+	public void sessionOpened(final Session session) {
+		this.dispatch(session, new Runnable() {
+			@Override
+			public void run() {
+				handler.sessionOpened(session);
+			}
+		});
+	}
+
+	@Override
+	public void sessionClosed(final Session session) {
+		this.dispatch(session, new Runnable() {
+			@Override
+			public void run() {
+				handler.sessionClosed(session);
+			}
+		});
+	}
+
+	@Override
+	public void messageReceived(final Session session, final Message message) {
+		this.dispatch(session, new Runnable() {
+			@Override
+			public void run() {
+				handler.messageReceived(session, message);
+			}
+		});
+	}
+
+	@Override
+	public void messageSent(final Session session, final Message message) {
+		// 发送完成后 I/O 线程会释放消息，因此在回调完成前保持引用
+		message.retain();
+		this.dispatch(session, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					handler.messageSent(session, message);
+				} finally {
+					message.release();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void writabilityChanged(final Session session, final boolean writable) {
+		this.dispatch(session, new Runnable() {
+			@Override
+			public void run() {
+				handler.writabilityChanged(session, writable);
+			}
+		});
+	}
+
+	@Override
+	public void errorOccurred(final int errorCode, final Session session) {
+		this.dispatch(session, new Runnable() {
+			@Override
+			public void run() {
+				handler.errorOccurred(errorCode, session);
+			}
+		});
+	}
+
+	/** 将回调提交到会话的串行队列。
+	 */
+	private void dispatch(Session session, Runnable task) {
+		if (null == session) {
+			// 没有会话的回调直接提交
+			try {
+				this.executor.execute(task);
+			} catch (RejectedExecutionException e) {
+				task.run();
+			}
+			return;
+		}
+
+		SerialExecutor lane = this.lanes.get(session.getId());
+		if (null == lane) {
+			lane = new SerialExecutor(this.executor);
+			SerialExecutor current = this.lanes.putIfAbsent(session.getId(), lane);
+			if (null != current) {
+				lane = current;
+			}
+		}
+
+		lane.execute(task);
+	}
+
+	/** 创建虚拟线程执行器。
+	 * 
+	 * @return 运行环境不支持虚拟线程时返回 null 。
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/** 创建回调执行器。优先使用虚拟线程，否则使用指定大小的线程池。
+	 */
+	public static ExecutorService newExecutor(int threadNum) {
+		ExecutorService executor = newVirtualThreadExecutor();
+		if (null == executor) {
+			executor = Executors.newFixedThreadPool(threadNum);
+		}
+		return executor;
+	}
+}
@@ -26,6 +26,7 @@ THE SOFTWARE.
 
 package net.cellcloud.common;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 
@@ -45,7 +46,8 @@ import java.util.ArrayList;
 	[VER] - 4 <br />
 	[SEN] - 4 <br />
 	[LEN] - 8 <br />
-	[DAT] - {!} 由 LEN 决定，最大 262144 bytes。<br />
+	[DAT] - {!} 由 LEN 决定，十进制包头最大 99999999 bytes。<br />
+	较大的数据包可由 {@link PacketFragmenter} 切分为分片包，与其他数据包交错发送。<br />
 	Packet 提供了对 DAT 段的动态定义能力。
 	依次 DAT 段数据可以进行二次分解，分解为任意长度的子数据段。
 	DAT 段数据格式如下：<br />
@@ -56,7 +58,19 @@ import java.util.ArrayList;
 	[SMN] - 4 <br />
 	[SML] - 8 <br />
 	[SMD] - {!} 由 SML 决定 <br />
-	SML 和 SMD 数据一致，且由 SMN 决定。
+	SML 和 SMD 数据一致，且由 SMN 决定。<br />
+	主版本号不小于 2 的数据包使用二进制包头，数值均为大端整数，格式如下：<br />
+	TAG | 0x00 | MAJOR | MINOR | FLAGS | SEN | LEN | DAT <br />
+	各数据域长度如下（单位：byte）：<br />
+	[TAG] - 4 <br />
+	[0x00] [MAJOR] [MINOR] [FLAGS] - 各 1 <br />
+	[SEN] - 4 <br />
+	[LEN] - 4 <br />
+	FLAGS 的最低位表示 DAT 段为子段格式，此时 SMN 与 SML 均为 4 字节。
+	版本域首字节为 0x00 ，解包时据此区分十进制包头与二进制包头。<br />
+	解包时立即解析包头，包体与子段仅记录在缓存里的偏移与长度，
+	访问时才创建只读视图或复制为字节数组。
+	视图的有效期与缓存一致，缓存形式的消息释放后不能再访问视图。
 */
 public final class Packet {
 	
@@ -66,6 +80,26 @@ public final class Packet {
 	protected static final int PSL_BODY_LENGTH = 8;
 	protected static final int PSL_SUBSEGMENT_NUM = 4;
 	protected static final int PSL_SUBSEGMENT_LENGTH = 8;
+	// 二进制包头中 SN 、长度、子段数量及子段长度均为 4 字节大端整数
+	protected static final int PSL_BINARY_NUMBER = 4;
+
+	/** 使用二进制包头的最低主版本号。 */
+	public static final int BINARY_VERSION = 2;
+
+	// 二进制包头版本域的首字节，十进制包头的版本域总是 ASCII 数字
+	private static final byte BINARY_MARK = 0x00;
+	// 二进制包头标志：包体为子段格式
+	private static final byte FLAG_SUBSEGMENT = 0x01;
+	// 十进制包头能够表示的最大长度
+	private static final int MAX_DECIMAL_LENGTH = 100000000;
+
+	// 打包到直接缓存时使用的包头数组
+	private static final ThreadLocal<byte[]> headerCache = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[64];
+		}
+	};
 
 	private byte[] tag;
 	private int sn;
@@ -75,6 +109,15 @@ public final class Packet {
 	private byte[] body;
 	private ArrayList<byte[]> subsegments;
 
+	// 解包时引用的数据缓存，包体与子段视图均指向该缓存
+	private ByteBuffer source;
+	// 包体在数据缓存里的偏移与长度，偏移小于 0 表示没有包体视图
+	private int bodyOffset = -1;
+	private int bodyViewLength;
+	// 解包得到的前 N 个子段在数据缓存里的偏移与长度，子段数组为 null 表示尚未复制
+	private int[] viewOffsets;
+	private int[] viewLengths;
+
 	/** 构造函数。
 	 */
 	public Packet(byte[] tag, int sn) {
@@ -144,27 +187,82 @@ public final class Packet {
 	 */
 	public void setBody(byte[] body) {
 		this.body = body;
+		this.bodyOffset = -1;
 	}
 	/** 直接返回 Body 数据。
 	 */
 	public byte[] getBody() {
+		if (null == this.body && this.bodyOffset >= 0) {
+			this.body = this.copyView(this.bodyOffset, this.bodyViewLength);
+		}
 		return this.body;
 	}
 
+	/** 返回 Body 数据的只读视图。
+	 */
+	public ByteBuffer getBodyBuffer() {
+		if (this.bodyOffset >= 0) {
+			return view(this.source, this.bodyOffset, this.bodyViewLength);
+		}
+		else if (null != this.body) {
+			return ByteBuffer.wrap(this.body).asReadOnlyBuffer();
+		}
+
+		return null;
+	}
+
 	/** 追加子段。
 	 */
 	public void appendSubsegment(byte[] subsegment) {
 		this.subsegments.add(subsegment);
 		this.body = null;
+		this.bodyOffset = -1;
 	}
 
-	/** 获取子段。
+	/** 设置解包得到的包体视图，包体数据在访问时才复制。 */
+	private void setBodyView(ByteBuffer source, int offset, int length) {
+		this.source = source;
+		this.bodyOffset = offset;
+		this.bodyViewLength = length;
+	}
+
+	/** 设置解包得到的子段视图，子段数据在访问时才复制。 */
+	private void setSubsegmentViews(ByteBuffer source, int[] offsets, int[] lengths) {
+		this.source = source;
+		this.viewOffsets = offsets;
+		this.viewLengths = lengths;
+		this.subsegments.ensureCapacity(offsets.length);
+		for (int i = 0; i < offsets.length; ++i) {
+			this.subsegments.add(null);
+		}
+	}
+
+	/** 获取子段。视图形式的子段首次访问时复制数据。
 	 */
 	public byte[] getSubsegment(int index) {
 		if (index < 0 || index >= this.subsegments.size())
 			return null;
 
-		return this.subsegments.get(index);
+		byte[] subsegment = this.subsegments.get(index);
+		if (null == subsegment) {
+			subsegment = this.copyView(this.viewOffsets[index], this.viewLengths[index]);
+			this.subsegments.set(index, subsegment);
+		}
+
+		return subsegment;
+	}
+
+	/** 获取子段的只读视图。
+	 */
+	public ByteBuffer getSubsegmentBuffer(int index) {
+		if (index < 0 || index >= this.subsegments.size())
+			return null;
+
+		if (this.isSubsegmentView(index)) {
+			return view(this.source, this.viewOffsets[index], this.viewLengths[index]);
+		}
+
+		return ByteBuffer.wrap(this.subsegments.get(index)).asReadOnlyBuffer();
 	}
 
 	/** 返回子段数量。
@@ -177,228 +275,509 @@ public final class Packet {
 		int len = 0;
 
 		if (!this.subsegments.isEmpty()) {
-			len += PSL_SUBSEGMENT_NUM;
-
 			int size = this.subsegments.size();
-			len += (size * PSL_SUBSEGMENT_LENGTH);
+			if (this.major >= BINARY_VERSION) {
+				len += PSL_BINARY_NUMBER + (size * PSL_BINARY_NUMBER);
+			}
+			else {
+				len += PSL_SUBSEGMENT_NUM + (size * PSL_SUBSEGMENT_LENGTH);
+			}
 
 			for (int i = 0; i < size; ++i) {
-				len += this.subsegments.get(i).length;
+				len += this.getSubsegmentLength(i);
 			}
 		}
-		else if (null != this.body) {
-			len = this.body.length;
+		else if (this.hasBody()) {
+			len = this.getBodyDataLength();
 		}
 
 		return len;
 	}
 
-	/** 打包。 */
+	/** 返回子段长度，不复制子段数据。 */
+	private int getSubsegmentLength(int index) {
+		byte[] subsegment = this.subsegments.get(index);
+		if (null != subsegment) {
+			return subsegment.length;
+		}
+
+		return this.viewLengths[index];
+	}
+
+	/** 子段是否引用数据缓存。 */
+	private boolean isSubsegmentView(int index) {
+		return (null != this.viewOffsets && index < this.viewOffsets.length);
+	}
+
+	private boolean hasBody() {
+		return (null != this.body || this.bodyOffset >= 0);
+	}
+
+	private int getBodyDataLength() {
+		return (null != this.body) ? this.body.length : this.bodyViewLength;
+	}
+
+	/** 复制数据缓存指定区间的数据。 */
+	private byte[] copyView(int offset, int length) {
+		byte[] bytes = new byte[length];
+		ByteBuffer dup = this.source.duplicate();
+		dup.position(offset);
+		dup.get(bytes);
+		return bytes;
+	}
+
+	/** 复制子段数据到数组指定位置。 */
+	private void copySubsegment(int index, byte[] dest, int offset) {
+		byte[] subsegment = this.subsegments.get(index);
+		if (null != subsegment) {
+			System.arraycopy(subsegment, 0, dest, offset, subsegment.length);
+		}
+		else {
+			ByteBuffer dup = this.source.duplicate();
+			dup.position(this.viewOffsets[index]);
+			dup.get(dest, offset, this.viewLengths[index]);
+		}
+	}
+
+	/** 将子段数据写入缓存的当前位置。 */
+	private void putSubsegment(int index, ByteBuffer dest) {
+		byte[] subsegment = this.subsegments.get(index);
+		if (null != subsegment) {
+			dest.put(subsegment);
+		}
+		else {
+			dest.put(view(this.source, this.viewOffsets[index], this.viewLengths[index]));
+		}
+	}
+
+	/** 复制包体数据到数组指定位置。 */
+	private void copyBody(byte[] dest, int offset) {
+		if (null != this.body) {
+			System.arraycopy(this.body, 0, dest, offset, this.body.length);
+		}
+		else {
+			ByteBuffer dup = this.source.duplicate();
+			dup.position(this.bodyOffset);
+			dup.get(dest, offset, this.bodyViewLength);
+		}
+	}
+
+	/** 将包体数据写入缓存的当前位置。 */
+	private void putBody(ByteBuffer dest) {
+		if (null != this.body) {
+			dest.put(this.body);
+		}
+		else {
+			dest.put(view(this.source, this.bodyOffset, this.bodyViewLength));
+		}
+	}
+
+	/** 返回包体段编码后的长度。 */
+	private int getEncodedBodyLength() {
+		if (this.hasBody()) {
+			return this.getBodyDataLength();
+		}
+
+		return this.subsegments.isEmpty() ? 0 : this.getBodyLength();
+	}
+
+	/** 返回打包后的数据长度，不进行打包。
+	 * 
+	 * @return 版本号或包体长度超出包头的表示范围时返回 -1 。
+	 */
+	public int encodedLength() {
+		int bodyLength = this.getEncodedBodyLength();
+		if (this.major >= BINARY_VERSION) {
+			if (this.major > 0xFF || this.minor < 0 || this.minor > 0xFF) {
+				return -1;
+			}
+
+			int length = PSL_TAG + PSL_VERSION + PSL_SN + PSL_BINARY_NUMBER + bodyLength;
+			return (bodyLength < 0 || length < 0) ? -1 : length;
+		}
+
+		if (bodyLength < 0 || bodyLength >= MAX_DECIMAL_LENGTH) {
+			return -1;
+		}
+
+		return PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH + bodyLength;
+	}
+
+	/** 打包。主版本号不小于 {@link #BINARY_VERSION} 时使用二进制包头。
+	 * 
+	 * @return 版本号或长度超出包头的表示范围时返回 null 。
+	 */
 	public static byte[] pack(Packet packet) {
-		int ssNum = packet.getSubsegmentCount();
+		int length = packet.encodedLength();
+		if (length < 0) {
+			logEncodeError(packet);
+			return null;
+		}
+
+		byte[] data = new byte[length];
+		packArray(packet, data, 0, length);
+		return data;
+	}
+
+	/** 将数据包打包到缓存的当前位置，打包后缓存位置前移打包长度。
+	 * 缓存剩余空间不足时不写入任何数据，可通过 {@link #encodedLength()} 预先获得所需长度。
+	 * 
+	 * @return 返回写入的字节数。剩余空间不足或无法打包时返回 -1 。
+	 */
+	public static int pack(Packet packet, ByteBuffer buffer) {
+		int length = packet.encodedLength();
+		if (length < 0) {
+			logEncodeError(packet);
+			return -1;
+		}
+
+		if (buffer.remaining() < length) {
+			return -1;
+		}
+
+		packTo(packet, buffer, length);
+		return length;
+	}
 
-		// 计算总长度
-		int bodyLength = (ssNum == 0 ? (null != packet.body ? packet.body.length : 0) : PSL_SUBSEGMENT_NUM + (ssNum * PSL_SUBSEGMENT_LENGTH));
-		int totalLength = PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH + bodyLength;
-		for (int i = 0; i < ssNum; ++i) {
-			totalLength += packet.getSubsegment(i).length;
-			bodyLength += packet.getSubsegment(i).length;
+	private static void logEncodeError(Packet packet) {
+		Logger.e(Packet.class, "Packet can not be encoded, version: " + packet.major + "." + packet.minor
+				+ ", body length: " + packet.getEncodedBodyLength());
+	}
+
+	/** 按版本写入包头与包体，调用方须确保剩余空间不小于 length 。 */
+	private static void packTo(Packet packet, ByteBuffer buffer, int length) {
+		int position = buffer.position();
+
+		if (buffer.hasArray()) {
+			// 堆缓存直接写入底层数组
+			packArray(packet, buffer.array(), buffer.arrayOffset() + position, length);
+		}
+		else {
+			int ssNum = packet.subsegments.size();
+			boolean subsegmented = (ssNum > 0 && !packet.hasBody());
+			int bodyLength = length - getHeaderLength(packet.major, -1);
+			int headerLength = getHeaderLength(packet.major, subsegmented ? ssNum : -1);
+
+			// 直接缓存先在线程本地数组里生成包头，再批量写入
+			byte[] header = headerCache.get();
+			if (header.length < headerLength) {
+				header = new byte[headerLength];
+				headerCache.set(header);
+			}
+			writeHeader(packet, header, 0, bodyLength, subsegmented);
+			buffer.put(header, 0, headerLength);
+
+			if (subsegmented) {
+				for (int i = 0; i < ssNum; ++i) {
+					packet.putSubsegment(i, buffer);
+				}
+			}
+			else if (bodyLength > 0) {
+				packet.putBody(buffer);
+			}
 		}
 
-		byte[] data = new byte[totalLength];
+		buffer.position(position + length);
+	}
+
+	/** 打包到数组指定位置。 */
+	private static void packArray(Packet packet, byte[] data, int offset, int length) {
+		int ssNum = packet.subsegments.size();
+		boolean subsegmented = (ssNum > 0 && !packet.hasBody());
+		int bodyLength = length - getHeaderLength(packet.major, -1);
+
+		writeHeader(packet, data, offset, bodyLength, subsegmented);
+		offset += getHeaderLength(packet.major, subsegmented ? ssNum : -1);
+
+		// 填写包体或各子段数据，视图数据直接复制，不生成中间数组
+		if (subsegmented) {
+			for (int i = 0; i < ssNum; ++i) {
+				packet.copySubsegment(i, data, offset);
+				offset += packet.getSubsegmentLength(i);
+			}
+		}
+		else if (bodyLength > 0) {
+			packet.copyBody(data, offset);
+		}
+	}
+
+	/** 返回包头与子段长度表的总长度，ssNum 小于 0 表示不使用子段格式。 */
+	private static int getHeaderLength(int major, int ssNum) {
+		if (major >= BINARY_VERSION) {
+			int len = PSL_TAG + PSL_VERSION + PSL_SN + PSL_BINARY_NUMBER;
+			return (ssNum < 0) ? len : len + PSL_BINARY_NUMBER + (ssNum * PSL_BINARY_NUMBER);
+		}
+
+		int len = PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH;
+		return (ssNum < 0) ? len : len + PSL_SUBSEGMENT_NUM + (ssNum * PSL_SUBSEGMENT_LENGTH);
+	}
+
+	/** 写入包头，子段格式时同时写入子段数量与子段长度表。 */
+	private static void writeHeader(Packet packet, byte[] data, int offset, int bodyLength, boolean subsegmented) {
+		if (packet.major >= BINARY_VERSION) {
+			writeBinaryHeader(packet, data, offset, bodyLength, subsegmented);
+			return;
+		}
 
 		// 填写 Tag
-		System.arraycopy(packet.getTag(), 0, data, 0, PSL_TAG);
+		System.arraycopy(packet.tag, 0, data, offset, PSL_TAG);
+		offset += PSL_TAG;
 
 		// 填写 Version
-		String sMinor = fastFormatNumber(packet.getMinorVersion(), 2);
-		String sMajor = fastFormatNumber(packet.getMajorVersion(), 2);
-		System.arraycopy(sMinor.getBytes(), 0, data, PSL_TAG, 2);
-		System.arraycopy(sMajor.getBytes(), 0, data, PSL_TAG + 2, 2);
+		writeNumber(data, offset, packet.minor, 2);
+		writeNumber(data, offset + 2, packet.major, 2);
+		offset += PSL_VERSION;
 
 		// 填写 SN
-		String sVersion = fastFormatNumber(packet.getSequenceNumber(), PSL_SN);
-		System.arraycopy(sVersion.getBytes(), 0, data, PSL_TAG + PSL_VERSION, PSL_SN);
+		writeNumber(data, offset, packet.sn, PSL_SN);
+		offset += PSL_SN;
 
 		// 填写 Body 段长度
-		String sLength = fastFormatNumber(bodyLength, PSL_BODY_LENGTH);
-		System.arraycopy(sLength.getBytes(), 0, data, PSL_TAG + PSL_VERSION + PSL_SN, PSL_BODY_LENGTH);
+		writeNumber(data, offset, bodyLength, PSL_BODY_LENGTH);
+		offset += PSL_BODY_LENGTH;
+
+		if (subsegmented) {
+			// 填充子段数量与各子段长度
+			int ssNum = packet.subsegments.size();
+			writeNumber(data, offset, ssNum, PSL_SUBSEGMENT_NUM);
+			offset += PSL_SUBSEGMENT_NUM;
+
+			for (int i = 0; i < ssNum; ++i) {
+				writeNumber(data, offset, packet.getSubsegmentLength(i), PSL_SUBSEGMENT_LENGTH);
+				offset += PSL_SUBSEGMENT_LENGTH;
+			}
+		}
+	}
 
-		// 填写 Body 子段
-		if (bodyLength > 0) {
-			if (null == packet.body) {
-				// 子段格式打包
+	/** 写入二进制包头。 */
+	private static void writeBinaryHeader(Packet packet, byte[] data, int offset, int bodyLength, boolean subsegmented) {
+		// 填写 Tag
+		System.arraycopy(packet.tag, 0, data, offset, PSL_TAG);
+		offset += PSL_TAG;
 
-				String sSubNum = fastFormatNumber(ssNum, PSL_SUBSEGMENT_NUM);
-				System.arraycopy(sSubNum.getBytes(), 0, data, PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH, PSL_SUBSEGMENT_NUM);
-	
-				int begin = PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH + PSL_SUBSEGMENT_NUM;
-	
-				// 填充各子段长度
-				for (int i = 0; i < ssNum; ++i) {
-					int length = packet.getSubsegment(i).length;
-					String sLen = fastFormatNumber(length, PSL_SUBSEGMENT_LENGTH);
-					System.arraycopy(sLen.getBytes(), 0, data, begin, PSL_SUBSEGMENT_LENGTH);
-					begin += PSL_SUBSEGMENT_LENGTH;
-				}
-	
-				// 填充各子段数据
-				for (int i = 0; i < ssNum; ++i) {
-					byte[] subData = packet.getSubsegment(i);
-					System.arraycopy(subData, 0, data, begin, subData.length);
-					begin += subData.length;
-				}
-			}
-			else {
-				System.arraycopy(packet.body, 0, data, PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH, packet.body.length);
+		// 填写 Version
+		data[offset] = BINARY_MARK;
+		data[offset + 1] = (byte) packet.major;
+		data[offset + 2] = (byte) packet.minor;
+		data[offset + 3] = subsegmented ? FLAG_SUBSEGMENT : 0;
+		offset += PSL_VERSION;
+
+		// 填写 SN 与 Body 段长度
+		writeInt(data, offset, packet.sn);
+		writeInt(data, offset + PSL_SN, bodyLength);
+		offset += PSL_SN + PSL_BINARY_NUMBER;
+
+		if (subsegmented) {
+			int ssNum = packet.subsegments.size();
+			writeInt(data, offset, ssNum);
+			offset += PSL_BINARY_NUMBER;
+
+			for (int i = 0; i < ssNum; ++i) {
+				writeInt(data, offset, packet.getSubsegmentLength(i));
+				offset += PSL_BINARY_NUMBER;
 			}
 		}
-
-		return data;
 	}
 
 	/** 解包。 */
 	public static Packet unpack(byte[] data) {
-		int datalen = data.length;
+		return unpack(ByteBuffer.wrap(data));
+	}
+
+	/** 从缓存的 [position, limit) 区间解包，不修改缓存的位置。
+	 * 包体与子段以只读视图引用缓存数据，不进行复制。根据版本域自动识别十进制包头与二进制包头。
+	 */
+	public static Packet unpack(ByteBuffer buffer) {
+		ByteBuffer data = buffer.slice();
+		if (!data.isReadOnly()) {
+			data = data.asReadOnlyBuffer();
+		}
+
+		if (data.remaining() > PSL_TAG && data.get(PSL_TAG) == BINARY_MARK) {
+			return unpackBinary(data);
+		}
+
+		int datalen = data.remaining();
 		if (datalen < PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH) {
 			return null;
 		}
 
 		// 解析 Tag
 		byte[] bTag = new byte[PSL_TAG];
-		System.arraycopy(data, 0, bTag, 0, PSL_TAG);
+		data.get(bTag);
 
 		// 解析 Version
-		byte[] bMinor = new byte[2];
-		byte[] bMajor = new byte[2];
-		System.arraycopy(data, PSL_TAG, bMinor, 0, 2);
-		System.arraycopy(data, PSL_TAG + 2, bMajor, 0, 2);
-		int minor = 0;
-		int major = 0;
-		try {
-			minor = Integer.parseInt(new String(bMinor));
-			major = Integer.parseInt(new String(bMajor));
-		} catch (NumberFormatException e) {
-			Logger.log(Packet.class, e, LogLevel.ERROR);
-			return null;
-		}
+		int minor = parseNumber(data, PSL_TAG, 2);
+		int major = parseNumber(data, PSL_TAG + 2, 2);
 
 		// 解析 SN
-		byte[] bSN = new byte[PSL_SN];
-		System.arraycopy(data, PSL_TAG + PSL_VERSION, bSN, 0, PSL_SN);
-		int sn = Integer.parseInt(new String(bSN));
+		int sn = parseNumber(data, PSL_TAG + PSL_VERSION, PSL_SN);
 
 		// 解析 Body 段长度
-		byte[] bBodyLength = new byte[PSL_BODY_LENGTH];
-		System.arraycopy(data, PSL_TAG + PSL_VERSION + PSL_SN,
-				bBodyLength, 0, PSL_BODY_LENGTH);
-		int bodyLength = Integer.parseInt(new String(bBodyLength));
+		int bodyLength = parseNumber(data, PSL_TAG + PSL_VERSION + PSL_SN, PSL_BODY_LENGTH);
+
+		if (minor < 0 || major < 0 || sn < 0 || bodyLength < 0) {
+			Logger.e(Packet.class, "Packet header format exception");
+			return null;
+		}
 
 		// 创建实例
 		Packet packet = new Packet(bTag, sn, major, minor);
 
 		if (datalen > PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH) {
+			int begin = PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH;
+
 			// 确认有 BODY 段，校验 BODY 段长度
-			if ((datalen - (PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH)) != bodyLength) {
+			if ((datalen - begin) != bodyLength) {
 				Logger.w(Packet.class, "Packet length exception : bytes-length=" + datalen + " body-length=" + bodyLength);
 			}
 
-			int begin = PSL_TAG + PSL_VERSION + PSL_SN + PSL_BODY_LENGTH;
-
 			// 判断是否符合子段分割形式
-			byte[] bSubNum = new byte[PSL_SUBSEGMENT_NUM];
-			System.arraycopy(data, begin, bSubNum, 0, PSL_SUBSEGMENT_NUM);
-			// 判断是否是数字
-			for (int i = 0; i < PSL_SUBSEGMENT_NUM; ++i) {
-				if (false == Character.isDigit(bSubNum[i])) {
-					// 不是数字，直接使用 Body
-					byte[] body = new byte[bodyLength];
-					System.arraycopy(data, begin, body, 0, bodyLength);
-					packet.setBody(body);
-					return packet;
+			int subNum = (begin + PSL_SUBSEGMENT_NUM <= datalen) ? parseNumber(data, begin, PSL_SUBSEGMENT_NUM) : -1;
+			if (subNum < 0) {
+				// 不是数字，直接使用 Body
+				if (bodyLength > datalen - begin) {
+					return null;
 				}
+
+				packet.setBodyView(data, begin, bodyLength);
+				return packet;
 			}
-			
-			// 解析子段数量
-			int subNum = Integer.parseInt(new String(bSubNum));
-			bSubNum = null;
 
-			int[] subsegmentLengthArray = new int[subNum];
 			begin += PSL_SUBSEGMENT_NUM;
-
-			// 解析子段长度
-			for (int i = 0; i < subNum; ++i) {
-				byte[] bSubLength = new byte[PSL_SUBSEGMENT_LENGTH];
-				System.arraycopy(data, begin, bSubLength, 0, PSL_SUBSEGMENT_LENGTH);
-				subsegmentLengthArray[i] = Integer.parseInt(new String(bSubLength));
-				begin += PSL_SUBSEGMENT_LENGTH;
-				bSubLength = null;
+			if (subNum > (datalen - begin) / PSL_SUBSEGMENT_LENGTH) {
+				Logger.e(Packet.class, "Packet subsegment format exception");
+				return null;
 			}
 
-			// 解析子段数据
+			// 子段长度表之后为子段数据，仅记录各子段的偏移与长度
+			int offset = begin + subNum * PSL_SUBSEGMENT_LENGTH;
+			int[] offsets = new int[subNum];
+			int[] lengths = new int[subNum];
 			for (int i = 0; i < subNum; ++i) {
-				int length = subsegmentLengthArray[i];
-				byte[] subsegment = new byte[length];
-				System.arraycopy(data, begin, subsegment, 0, length);
-				begin += length;
+				int length = parseNumber(data, begin, PSL_SUBSEGMENT_LENGTH);
+				if (length < 0) {
+					Logger.e(Packet.class, "Packet subsegment format exception");
+					return null;
+				}
+				if (length > datalen - offset) {
+					Logger.e(Packet.class, "Packet subsegment length exception");
+					return null;
+				}
 
-				// 添加子段
-				packet.appendSubsegment(subsegment);
+				offsets[i] = offset;
+				lengths[i] = length;
+				begin += PSL_SUBSEGMENT_LENGTH;
+				offset += length;
 			}
+
+			packet.setSubsegmentViews(data, offsets, lengths);
 		}
 
 		return packet;
 	}
 
-	private static String fastFormatNumber(int number, int limit) {
-		switch (limit) {
-		case 2:
-			if (number < 10) {
-				return "0" + number;
-			}
-			else {
-				return Integer.toString(number);
-			}
-		case 4:
-			if (number < 10) {
-				return "000" + number;
-			}
-			else if (number >= 10 && number < 100) {
-				return "00" + number;
-			}
-			else if (number >= 100 && number < 1000) {
-				return "0" + number;
-			}
-			else {
-				return Integer.toString(number);
-			}
-		case 8:
-			if (number < 10) {
-				return "0000000" + number;
-			}
-			else if (number >= 10 && number < 100) {
-				return "000000" + number;
-			}
-			else if (number >= 100 && number < 1000) {
-				return "00000" + number;
-			}
-			else if (number >= 1000 && number < 10000) {
-				return "0000" + number;
-			}
-			else if (number >= 10000 && number < 100000) {
-				return "000" + number;
-			}
-			else if (number >= 100000 && number < 1000000) {
-				return "00" + number;
+	/** 解析二进制包头的数据包。 */
+	private static Packet unpackBinary(ByteBuffer data) {
+		int datalen = data.remaining();
+		int begin = PSL_TAG + PSL_VERSION + PSL_SN + PSL_BINARY_NUMBER;
+		if (datalen < begin) {
+			return null;
+		}
+
+		// 解析 Tag
+		byte[] bTag = new byte[PSL_TAG];
+		data.get(bTag);
+
+		int major = data.get(PSL_TAG + 1) & 0xFF;
+		int minor = data.get(PSL_TAG + 2) & 0xFF;
+		byte flags = data.get(PSL_TAG + 3);
+		int sn = data.getInt(PSL_TAG + PSL_VERSION);
+		int bodyLength = data.getInt(PSL_TAG + PSL_VERSION + PSL_SN);
+
+		if (bodyLength < 0 || bodyLength > datalen - begin) {
+			Logger.e(Packet.class, "Packet length exception : bytes-length=" + datalen + " body-length=" + bodyLength);
+			return null;
+		}
+
+		Packet packet = new Packet(bTag, sn, major, minor);
+
+		int end = begin + bodyLength;
+		if ((flags & FLAG_SUBSEGMENT) == 0) {
+			if (bodyLength > 0) {
+				packet.setBodyView(data, begin, bodyLength);
 			}
-			else if (number >= 1000000 && number < 10000000) {
-				return "0" + number;
+			return packet;
+		}
+
+		int subNum = (PSL_BINARY_NUMBER <= end - begin) ? data.getInt(begin) : -1;
+		begin += PSL_BINARY_NUMBER;
+		if (subNum < 0 || subNum > (end - begin) / PSL_BINARY_NUMBER) {
+			Logger.e(Packet.class, "Packet subsegment format exception");
+			return null;
+		}
+
+		// 子段长度表之后为子段数据，仅记录各子段的偏移与长度
+		int offset = begin + subNum * PSL_BINARY_NUMBER;
+		int[] offsets = new int[subNum];
+		int[] lengths = new int[subNum];
+		for (int i = 0; i < subNum; ++i) {
+			int length = data.getInt(begin);
+			if (length < 0 || length > end - offset) {
+				Logger.e(Packet.class, "Packet subsegment length exception");
+				return null;
 			}
-			else {
-				return Integer.toString(number);
+
+			offsets[i] = offset;
+			lengths[i] = length;
+			begin += PSL_BINARY_NUMBER;
+			offset += length;
+		}
+
+		packet.setSubsegmentViews(data, offsets, lengths);
+
+		return packet;
+	}
+
+	/** 创建缓存指定区间的视图。 */
+	private static ByteBuffer view(ByteBuffer data, int offset, int length) {
+		ByteBuffer dup = data.duplicate();
+		dup.limit(offset + length);
+		dup.position(offset);
+		return dup.slice();
+	}
+
+	/** 解析十进制数字字段，字段包含非数字字符时返回 -1 。 */
+	private static int parseNumber(ByteBuffer data, int offset, int length) {
+		int value = 0;
+		for (int i = 0; i < length; ++i) {
+			int b = data.get(offset + i);
+			if (b < '0' || b > '9') {
+				return -1;
 			}
-		default:
-			return Integer.toString(number);
+			value = value * 10 + (b - '0');
 		}
+		return value;
+	}
+
+	/** 以补零的十进制 ASCII 格式写入数字字段，超出宽度的高位被截断。 */
+	private static void writeNumber(byte[] data, int offset, int number, int length) {
+		int i = offset + length - 1;
+		for (; i >= offset && number != 0; --i) {
+			data[i] = (byte) ('0' + (number % 10));
+			number /= 10;
+		}
+		// 高位补零
+		for (; i >= offset; --i) {
+			data[i] = '0';
+		}
+	}
+
+	/** 以大端字节序写入 32 位整数。 */
+	private static void writeInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
 	}
 }
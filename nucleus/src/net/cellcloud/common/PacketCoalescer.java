@@ -0,0 +1,157 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** 数据包合并器。
+ * 
+ * 会话设置合并器后，写入会话的小数据包延迟到发送时打包，发送队列里相邻的多个数据包
+ * 合并为一个批量数据包，以一个消息帧发送。批量数据包的包体由内部数据包依次组成：<br />
+ * LENGTH | PACKET | LENGTH | PACKET ... <br />
+ * LENGTH 为内部数据包打包后的长度，4 字节大端整数。接收方使用 {@link #split(Packet)} 拆分。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class PacketCoalescer {
+
+	/** 内部数据包长度域的长度。 */
+	public static final int LENGTH_SIZE = 4;
+	/** 默认的批量数据包包体最大长度。 */
+	public static final int DEFAULT_BATCH_SIZE = 16384;
+
+	private final byte[] tag;
+	private volatile int batchSize;
+
+	/** 构造函数。
+	 * 
+	 * @param tag 批量数据包的包标签。
+	 */
+	public PacketCoalescer(byte[] tag) {
+		this(tag, DEFAULT_BATCH_SIZE);
+	}
+
+	/** 构造函数。
+	 * 
+	 * @param tag 批量数据包的包标签。
+	 * @param batchSize 批量数据包包体的最大长度。
+	 */
+	public PacketCoalescer(byte[] tag, int batchSize) {
+		this.tag = tag;
+		this.batchSize = batchSize;
+	}
+
+	/** 返回批量数据包的包标签。
+	 */
+	public byte[] getTag() {
+		return this.tag;
+	}
+
+	/** 设置批量数据包包体的最大长度，小于等于 0 时不合并。
+	 */
+	public void setBatchSize(int size) {
+		this.batchSize = size;
+	}
+
+	/** 返回批量数据包包体的最大长度。
+	 */
+	public int getBatchSize() {
+		return this.batchSize;
+	}
+
+	/** 打包长度为 length 的数据包是否可以延迟到发送时合并。
+	 */
+	public boolean isCoalescible(int length) {
+		return (length > 0 && LENGTH_SIZE + length <= this.batchSize);
+	}
+
+	/** 将消息数组里从 offset 开始的 count 个延迟打包的消息合并打包。
+	 * 只有一个消息时直接打包该消息的数据包，批量数据包使用第一个数据包的版本号。
+	 * 
+	 * @return 返回打包后的数据，无法打包时返回 null 。
+	 */
+	protected byte[] coalesce(Message[] messages, int offset, int count) {
+		Packet first = messages[offset].getPacket();
+		if (count == 1) {
+			return Packet.pack(first);
+		}
+
+		int bodyLength = 0;
+		for (int i = offset, end = offset + count; i < end; ++i) {
+			bodyLength += LENGTH_SIZE + messages[i].length();
+		}
+
+		byte[] body = new byte[bodyLength];
+		ByteBuffer buffer = ByteBuffer.wrap(body);
+		for (int i = offset, end = offset + count; i < end; ++i) {
+			int length = messages[i].length();
+			buffer.putInt(length);
+			if (Packet.pack(messages[i].getPacket(), buffer) != length) {
+				// 数据包在写入后被修改
+				return null;
+			}
+		}
+
+		Packet batch = new Packet(this.tag, 0, first.getMajorVersion(), first.getMinorVersion());
+		batch.setBody(body);
+		return Packet.pack(batch);
+	}
+
+	/** 将批量数据包拆分为内部数据包。内部数据包以只读视图引用批量数据包的数据。
+	 * 
+	 * @return 返回按发送顺序排列的数据包列表，批量数据包没有包体时返回 null 。
+	 */
+	public static List<Packet> split(Packet batch) {
+		ByteBuffer body = batch.getBodyBuffer();
+		if (null == body) {
+			return null;
+		}
+
+		ArrayList<Packet> list = new ArrayList<Packet>();
+		while (body.remaining() >= LENGTH_SIZE) {
+			int length = body.getInt();
+			if (length <= 0 || length > body.remaining()) {
+				Logger.w(PacketCoalescer.class, "Batch packet format exception : length=" + length
+						+ " remaining=" + body.remaining());
+				break;
+			}
+
+			ByteBuffer view = body.duplicate();
+			view.limit(view.position() + length);
+			Packet packet = Packet.unpack(view);
+			if (null != packet) {
+				list.add(packet);
+			}
+
+			body.position(body.position() + length);
+		}
+
+		return list;
+	}
+}
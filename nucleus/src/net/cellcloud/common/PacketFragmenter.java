@@ -0,0 +1,150 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 数据包分片器。
+ * 
+ * 将打包后超过分片长度的逻辑数据包切分为多个分片包，分片包的包体格式如下：<br />
+ * FID | OFFSET | TOTAL | DATA <br />
+ * 分片 ID 、分片数据在逻辑数据包里的偏移以及逻辑数据包的总长度均为 4 字节大端整数。
+ * 分片包默认按顺序写入会话，与前后的数据包保持发送顺序；设置交错发送后分片包以批量消息写入，
+ * 与其他消息交错发送，此时分片数据包可能晚于之后发送的数据包到达。接收方使用 {@link PacketReassembler} 重组。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class PacketFragmenter {
+
+	/** 分片头长度。 */
+	public static final int HEADER_LENGTH = 12;
+	/** 默认的分片数据长度。 */
+	public static final int DEFAULT_FRAGMENT_SIZE = 16384;
+
+	private final byte[] tag;
+	private volatile int fragmentSize;
+	private volatile boolean interleaved;
+	private final AtomicInteger fragmentId;
+
+	/** 构造函数。
+	 * 
+	 * @param tag 分片包的包标签。
+	 */
+	public PacketFragmenter(byte[] tag) {
+		this(tag, DEFAULT_FRAGMENT_SIZE);
+	}
+
+	/** 构造函数。
+	 * 
+	 * @param tag 分片包的包标签。
+	 * @param fragmentSize 每个分片包携带的最大数据长度。
+	 */
+	public PacketFragmenter(byte[] tag, int fragmentSize) {
+		this.tag = tag;
+		this.fragmentSize = fragmentSize;
+		this.interleaved = false;
+		this.fragmentId = new AtomicInteger(0);
+	}
+
+	/** 返回分片包的包标签。
+	 */
+	public byte[] getTag() {
+		return this.tag;
+	}
+
+	/** 设置每个分片包携带的最大数据长度，小于等于 0 时不进行分片。
+	 */
+	public void setFragmentSize(int size) {
+		this.fragmentSize = size;
+	}
+
+	/** 返回每个分片包携带的最大数据长度。
+	 */
+	public int getFragmentSize() {
+		return this.fragmentSize;
+	}
+
+	/** 设置分片包是否与其他消息交错发送。
+	 */
+	public void setInterleaved(boolean interleaved) {
+		this.interleaved = interleaved;
+	}
+
+	/** 分片包是否与其他消息交错发送。
+	 */
+	public boolean isInterleaved() {
+		return this.interleaved;
+	}
+
+	/** 数据包打包后的长度是否超过分片长度。
+	 */
+	public boolean isOversize(Packet packet) {
+		int size = this.fragmentSize;
+		return (size > 0 && packet.encodedLength() > size);
+	}
+
+	/** 将数据包打包后切分为分片包。分片包使用与数据包相同的版本号和序号。
+	 * 
+	 * @return 数据包无法打包时返回 null 。
+	 */
+	public List<Packet> fragment(Packet packet) {
+		byte[] data = Packet.pack(packet);
+		if (null == data) {
+			return null;
+		}
+
+		int id = this.fragmentId.incrementAndGet();
+		int size = (this.fragmentSize > 0) ? this.fragmentSize : data.length;
+
+		ArrayList<Packet> list = new ArrayList<Packet>(data.length / size + 1);
+		for (int offset = 0; offset < data.length; offset += size) {
+			int length = Math.min(size, data.length - offset);
+
+			byte[] body = new byte[HEADER_LENGTH + length];
+			writeInt(body, 0, id);
+			writeInt(body, 4, offset);
+			writeInt(body, 8, data.length);
+			System.arraycopy(data, offset, body, HEADER_LENGTH, length);
+
+			Packet fragment = new Packet(this.tag, packet.getSequenceNumber(),
+					packet.getMajorVersion(), packet.getMinorVersion());
+			fragment.setBody(body);
+			list.add(fragment);
+		}
+
+		return list;
+	}
+
+	private static void writeInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+}
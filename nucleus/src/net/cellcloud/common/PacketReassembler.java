@@ -0,0 +1,208 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/** 数据包重组器。
+ * 
+ * 将 {@link PacketFragmenter} 切分的分片包按顺序追加到重组缓存，全部分片到达后解包为逻辑数据包。
+ * 同一数据包的分片在流式连接上按偏移顺序到达，偏移不连续的分片视为格式错误，整个数据包被丢弃。
+ * 重组缓存随分片到达逐步扩容，但声明的总长度在开始重组时即计入上限，
+ * 所有未完成重组的数据总长度受上限约束，超出上限或格式错误的分片被丢弃。
+ * 超过过期时间没有收到新分片的重组数据被丢弃。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class PacketReassembler {
+
+	/** 默认的重组数据总长度上限，每个会话持有独立的重组器。 */
+	public static final int DEFAULT_MAX_PENDING = 16 * 1024 * 1024;
+	/** 默认的重组过期时间，单位：毫秒。 */
+	public static final long DEFAULT_EXPIRY = 60000;
+
+	// 重组数据总长度上限
+	private final long maxPending;
+	// 重组过期时间，单位：毫秒
+	private final long expiry;
+	// 未完成重组的数据总长度
+	private long pendingBytes;
+	// Key：分片 ID
+	private final HashMap<Integer, Assembly> assemblies;
+	// 最近丢弃的分片 ID ，避免同一数据包的后续分片重复记录日志
+	private int droppedId;
+
+	public PacketReassembler() {
+		this(DEFAULT_MAX_PENDING, DEFAULT_EXPIRY);
+	}
+
+	public PacketReassembler(long maxPending) {
+		this(maxPending, DEFAULT_EXPIRY);
+	}
+
+	public PacketReassembler(long maxPending, long expiry) {
+		this.maxPending = maxPending;
+		this.expiry = expiry;
+		this.pendingBytes = 0;
+		this.assemblies = new HashMap<Integer, Assembly>();
+		this.droppedId = 0;
+	}
+
+	/** 重组分片包。
+	 * 
+	 * @return 全部分片到达后返回逻辑数据包，否则返回 null 。
+	 */
+	public synchronized Packet reassemble(Packet fragment) {
+		ByteBuffer body = fragment.getBodyBuffer();
+		if (null == body || body.remaining() < PacketFragmenter.HEADER_LENGTH) {
+			Logger.w(PacketReassembler.class, "Fragment format exception");
+			return null;
+		}
+
+		int begin = body.position();
+		Integer id = Integer.valueOf(body.getInt(begin));
+		int offset = body.getInt(begin + 4);
+		int total = body.getInt(begin + 8);
+		int length = body.remaining() - PacketFragmenter.HEADER_LENGTH;
+
+		long now = System.currentTimeMillis();
+		Assembly assembly = this.assemblies.get(id);
+		if (null == assembly) {
+			// 开始新的重组前清理过期的重组数据
+			this.expire(now);
+
+			// 重组必须从首个分片开始，被丢弃数据包的后续分片同样丢弃
+			if (total <= 0 || offset != 0 || total > this.maxPending - this.pendingBytes) {
+				if (this.droppedId != id.intValue()) {
+					this.droppedId = id.intValue();
+					Logger.w(PacketReassembler.class, "Drop fragmented packet, length: " + total
+							+ ", pending: " + this.pendingBytes);
+				}
+				return null;
+			}
+
+			assembly = new Assembly(total, now);
+			this.assemblies.put(id, assembly);
+			this.pendingBytes += total;
+		}
+
+		if (total != assembly.total || offset != assembly.received || length > total - offset
+			|| (length == 0 && offset < total)) {
+			// 重复、缺失或者重叠的分片都会使重组数据出现空洞
+			this.discard(id, assembly);
+			this.droppedId = id.intValue();
+			Logger.w(PacketReassembler.class, "Fragment length exception : offset=" + offset
+					+ " length=" + length + " received=" + assembly.received + " total=" + total);
+			return null;
+		}
+
+		assembly.ensureCapacity(offset + length);
+		body.position(begin + PacketFragmenter.HEADER_LENGTH);
+		body.get(assembly.data, offset, length);
+		assembly.received += length;
+		assembly.timestamp = now;
+
+		if (assembly.received < assembly.total) {
+			return null;
+		}
+
+		this.discard(id, assembly);
+		return Packet.unpack(assembly.data);
+	}
+
+	/** 返回未完成重组的数据总长度。
+	 */
+	public synchronized long getPendingBytes() {
+		return this.pendingBytes;
+	}
+
+	/** 丢弃所有未完成重组的数据。
+	 */
+	public synchronized void clear() {
+		this.assemblies.clear();
+		this.pendingBytes = 0;
+	}
+
+	/** 丢弃超过过期时间没有收到新分片的重组数据。
+	 */
+	private void expire(long now) {
+		if (this.assemblies.isEmpty()) {
+			return;
+		}
+
+		Iterator<Map.Entry<Integer, Assembly>> iter = this.assemblies.entrySet().iterator();
+		while (iter.hasNext()) {
+			Assembly assembly = iter.next().getValue();
+			if (now - assembly.timestamp > this.expiry) {
+				iter.remove();
+				this.pendingBytes -= assembly.total;
+				Logger.w(PacketReassembler.class, "Drop expired fragmented packet, received: "
+						+ assembly.received + "/" + assembly.total);
+			}
+		}
+	}
+
+	private void discard(Integer id, Assembly assembly) {
+		this.assemblies.remove(id);
+		this.pendingBytes -= assembly.total;
+	}
+
+	/** 正在重组的数据包。
+	 */
+	private static final class Assembly {
+		// 声明的数据包总长度
+		private final int total;
+		// 重组缓存，随分片到达扩容，最大为 total
+		private byte[] data;
+		private int received;
+		// 最近一次收到分片的时间
+		private long timestamp;
+
+		private Assembly(int total, long timestamp) {
+			this.total = total;
+			this.data = EMPTY;
+			this.received = 0;
+			this.timestamp = timestamp;
+		}
+
+		private void ensureCapacity(int length) {
+			if (length <= this.data.length) {
+				return;
+			}
+
+			int capacity = (int) Math.min((long) this.total, Math.max((long) this.data.length * 2, length));
+			byte[] buf = new byte[capacity];
+			System.arraycopy(this.data, 0, buf, 0, this.received);
+			this.data = buf;
+		}
+
+		private static final byte[] EMPTY = new byte[0];
+	}
+}
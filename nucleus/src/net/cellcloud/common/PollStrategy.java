@@ -0,0 +1,97 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+/** 选择器线程的忙轮询策略。
+ * 
+ * 线程空闲时先以 {@link java.nio.channels.Selector#selectNow()} 自旋，
+ * 超过自旋次数后每次轮询前让出 CPU ，超过让出次数后阻塞等待事件。
+ * 处于轮询阶段的线程不需要唤醒，写请求不再调用 {@link java.nio.channels.Selector#wakeup()} ，
+ * 以占用 CPU 为代价消除线程唤醒的延迟。
+ * 仅适用于有空闲 CPU 核心的部署，线程数量超过核心数量时自旋会挤占对端线程的时间片，反而增加延迟，
+ * 此时应减少自旋次数，只使用让出阶段。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class PollStrategy {
+
+	/** 默认的自旋次数。 */
+	public final static int DEFAULT_SPINS = 10000;
+	/** 默认的让出次数。 */
+	public final static int DEFAULT_YIELDS = 1000;
+
+	private final int spins;
+	private final int yields;
+
+	/** 构造函数。使用默认的自旋次数与让出次数。
+	 */
+	public PollStrategy() {
+		this(DEFAULT_SPINS, DEFAULT_YIELDS);
+	}
+
+	/** 构造函数。
+	 * 
+	 * @param spins 阻塞等待前连续空闲自旋的次数。
+	 * @param yields 自旋之后连续空闲让出 CPU 的次数。
+	 */
+	public PollStrategy(int spins, int yields) {
+		this.spins = Math.max(0, spins);
+		this.yields = Math.max(0, yields);
+	}
+
+	/** 返回自旋次数。
+	 */
+	public int getSpins() {
+		return this.spins;
+	}
+
+	/** 返回让出次数。
+	 */
+	public int getYields() {
+		return this.yields;
+	}
+
+	/** 返回阻塞等待前的轮询次数。
+	 */
+	public long getBudget() {
+		return (long) this.spins + this.yields;
+	}
+
+	/** 连续空闲 idleRounds 次后是否继续轮询。
+	 */
+	protected boolean isPolling(int idleRounds) {
+		return idleRounds < this.getBudget();
+	}
+
+	/** 轮询前的等待，自旋阶段不等待，让出阶段让出 CPU 。
+	 */
+	protected void pause(int idleRounds) {
+		if (idleRounds >= this.spins) {
+			Thread.yield();
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** 串行执行器。
+ * 
+ * 提交的任务在底层执行器上按提交顺序逐个执行，多个串行执行器可以共享同一个底层执行器。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class SerialExecutor implements Executor {
+
+	// 每次调度最多连续执行的任务数量
+	private static final int MAX_BATCH = 64;
+
+	private final Executor executor;
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+	// 是否已提交到底层执行器
+	private final AtomicBoolean scheduled;
+
+	private final Runnable runner = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public SerialExecutor(Executor executor) {
+		this.executor = executor;
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.scheduled = new AtomicBoolean(false);
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		this.tasks.offer(task);
+		if (this.scheduled.compareAndSet(false, true)) {
+			this.schedule();
+		}
+	}
+
+	/** 返回等待执行的任务数量。
+	 */
+	public int getPendingNum() {
+		return this.tasks.size();
+	}
+
+	private void schedule() {
+		try {
+			this.executor.execute(this.runner);
+		} catch (RejectedExecutionException e) {
+			// 执行器已关闭，在当前线程执行
+			this.drain();
+		}
+	}
+
+	private void drain() {
+		int count = 0;
+		Runnable task = null;
+		while (count < MAX_BATCH && null != (task = this.tasks.poll())) {
+			try {
+				task.run();
+			} catch (Exception e) {
+				Logger.log(SerialExecutor.class, e, LogLevel.ERROR);
+			}
+			++count;
+		}
+
+		this.scheduled.set(false);
+
+		// 让出执行器，剩余的任务重新排队
+		if (!this.tasks.isEmpty() && this.scheduled.compareAndSet(false, true)) {
+			this.schedule();
+		}
+	}
+}
@@ -39,11 +39,20 @@ public class Session {
 	private Long id;
 	private MessageService service;
 	private InetSocketAddress address;
+	// 发送帧格式，为 null 时使用服务的默认帧格式
+	private volatile Framing framing;
+	// 消息压缩上下文
+	private final CompressionContext compression;
+	// 数据包合并器，为 null 时不合并
+	private volatile PacketCoalescer coalescer;
 
 	public Session(MessageService service, InetSocketAddress address) {
 		this.id = Math.abs(Utils.randomLong());
 		this.service = service;
 		this.address = address;
+		this.framing = null;
+		this.compression = new CompressionContext();
+		this.coalescer = null;
 	}
 
 	/** 返回会话 ID 。
@@ -64,9 +73,69 @@ public class Session {
 		return this.address;
 	}
 
+	/** 返回会话的发送帧格式。
+	 */
+	public Framing getFraming() {
+		return this.framing;
+	}
+
+	/** 设置会话的发送帧格式。
+	 */
+	public void setFraming(Framing framing) {
+		this.framing = framing;
+	}
+
+	/** 返回会话的消息压缩上下文，包含压缩设置与压缩统计。
+	 */
+	public CompressionContext getCompression() {
+		return this.compression;
+	}
+
+	/** 返回会话的数据包合并器。
+	 */
+	public PacketCoalescer getCoalescer() {
+		return this.coalescer;
+	}
+
+	/** 设置会话的数据包合并器。设置后写入的小数据包在发送时合并为批量数据包，
+	 * 仅在对端支持拆分批量数据包时设置，为 null 时不合并。
+	 */
+	public void setCoalescer(PacketCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+
+	/** 返回会话当前是否可写。
+	 * 待发送数据超过服务设置的高水位时不可写。
+	 */
+	public boolean isWritable() {
+		return this.service.isWritable(this);
+	}
+
 	/** 向该会话写消息。
 	 */
 	public void write(Message message) {
 		this.service.write(this, message);
 	}
+
+	/** 以低优先级向该会话写批量消息。
+	 */
+	public void writeBulk(Message message) {
+		this.service.writeBulk(this, message);
+	}
+
+	/** 将数据包直接打包到会话的发送缓存并写入会话。
+	 * 设置了数据包合并器时小数据包延迟到发送时打包。
+	 * 
+	 * @return 数据包无法打包时返回 false 。
+	 */
+	public boolean write(Packet packet) {
+		Message message = this.service.createMessage(this, packet);
+		if (null == message) {
+			return false;
+		}
+
+		this.write(message);
+		message.release();
+		return true;
+	}
 }
@@ -0,0 +1,189 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Unix 域套接字辅助函数。
+ * 
+ * 仅 JDK 16 及以上版本支持 Unix 域套接字，通过反射访问相关接口。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class UnixDomainSocket {
+
+	// Unix 域套接字协议族
+	private static final ProtocolFamily UNIX;
+	// UnixDomainSocketAddress 类
+	private static final Class<?> ADDRESS_CLASS;
+	private static final Method ADDRESS_OF;
+	private static final Method ADDRESS_GET_PATH;
+	private static final Method SERVER_CHANNEL_OPEN;
+	private static final Method CHANNEL_OPEN;
+
+	/** 本地会话使用的占位地址。 */
+	public static final InetSocketAddress LOCAL_ADDRESS = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+	static {
+		ProtocolFamily family = null;
+		Class<?> addressClass = null;
+		Method addressOf = null;
+		Method addressGetPath = null;
+		Method serverChannelOpen = null;
+		Method channelOpen = null;
+
+		try {
+			family = Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+			addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+			addressOf = addressClass.getMethod("of", String.class);
+			addressGetPath = addressClass.getMethod("getPath");
+			serverChannelOpen = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+			channelOpen = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+		} catch (Exception e) {
+			// 当前运行环境不支持
+			family = null;
+		}
+
+		UNIX = family;
+		ADDRESS_CLASS = addressClass;
+		ADDRESS_OF = addressOf;
+		ADDRESS_GET_PATH = addressGetPath;
+		SERVER_CHANNEL_OPEN = serverChannelOpen;
+		CHANNEL_OPEN = channelOpen;
+	}
+
+	private UnixDomainSocket() {
+	}
+
+	/** 当前运行环境是否支持 Unix 域套接字。
+	 */
+	public static boolean isSupported() {
+		return (null != UNIX);
+	}
+
+	/** 创建指定路径的 Unix 域套接字地址。不支持时返回 null 。
+	 */
+	public static SocketAddress createAddress(String path) {
+		if (null == UNIX) {
+			return null;
+		}
+
+		try {
+			return (SocketAddress) ADDRESS_OF.invoke(null, path);
+		} catch (Exception e) {
+			Logger.log(UnixDomainSocket.class, e, LogLevel.WARNING);
+			return null;
+		}
+	}
+
+	/** 判断指定地址是否是 Unix 域套接字地址。
+	 */
+	public static boolean isUnixAddress(SocketAddress address) {
+		return (null != ADDRESS_CLASS && null != address && ADDRESS_CLASS.isInstance(address));
+	}
+
+	/** 返回 Unix 域套接字地址的文件路径。
+	 */
+	public static Path getPath(SocketAddress address) {
+		if (!isUnixAddress(address)) {
+			return null;
+		}
+
+		try {
+			return (Path) ADDRESS_GET_PATH.invoke(address);
+		} catch (Exception e) {
+			Logger.log(UnixDomainSocket.class, e, LogLevel.DEBUG);
+			return null;
+		}
+	}
+
+	/** 删除 Unix 域套接字地址对应的文件。
+	 */
+	public static void deleteFile(SocketAddress address) {
+		Path path = getPath(address);
+		if (null == path) {
+			return;
+		}
+
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			Logger.log(UnixDomainSocket.class, e, LogLevel.DEBUG);
+		}
+	}
+
+	/** 返回用于会话的网络地址，Unix 域套接字地址返回占位地址。
+	 */
+	public static InetSocketAddress toInetAddress(SocketAddress address) {
+		if (address instanceof InetSocketAddress) {
+			return (InetSocketAddress) address;
+		}
+
+		return LOCAL_ADDRESS;
+	}
+
+	/** 打开 Unix 域套接字服务通道。
+	 */
+	protected static ServerSocketChannel openServerChannel() throws IOException {
+		return (ServerSocketChannel) open(SERVER_CHANNEL_OPEN);
+	}
+
+	/** 打开 Unix 域套接字通道。
+	 */
+	protected static SocketChannel openChannel() throws IOException {
+		return (SocketChannel) open(CHANNEL_OPEN);
+	}
+
+	private static Object open(Method method) throws IOException {
+		if (null == UNIX) {
+			throw new IOException("Unix domain socket is not supported");
+		}
+
+		try {
+			return method.invoke(null, UNIX);
+		} catch (InvocationTargetException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		} catch (IllegalAccessException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,526 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** 消息写队列。
+ * 
+ * 多个生产者线程向队列写入消息，由唯一的 I/O 线程以聚集写方式发送，
+ * 未能一次写完的数据保留到下一次可写事件继续发送。
+ * 批量数据（例如设置交错发送的大数据包分片）进入低优先级的批量队列，每批次最多发送一条，
+ * 使其与普通消息交错发送，不会长时间阻塞心跳等小消息。
+ * 相邻的延迟打包消息在取出时由数据包合并器合并为一个批量数据包发送。
+ * 队列可以处于延迟发送状态，由 I/O 线程在截止时间或者达到字节阈值后发送，参见 {@link FlushPolicy} 。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class WriteQueue {
+
+	// 单次聚集写最多包含的消息数量
+	private static final int MAX_GATHERING_MESSAGES = 64;
+	// 单次调用里最多执行的聚集写次数
+	private static final int MAX_WRITE_ROUNDS = 16;
+
+	// 待发送消息队列，多生产者多消费者：I/O 线程取出发送，丢弃策略下生产者线程取出丢弃，
+	// 所有消费者都只使用 poll 取出消息，不能先 peek 再 poll
+	private ConcurrentLinkedQueue<Message> messages;
+	// 低优先级的批量消息队列
+	private ConcurrentLinkedQueue<Message> bulkMessages;
+	// 已经取出但未放入当前批次的消息，仅由 I/O 线程写入
+	private volatile Message pendingMessage;
+
+	// 是否已经请求 I/O 线程执行写操作
+	private AtomicBoolean writeRequested;
+
+	// 已入队但尚未完成发送的数据字节数
+	private AtomicLong queuedBytes;
+	// 累计写入通道的字节数，仅由 I/O 线程更新
+	private volatile long writtenBytes;
+	// 是否可写，超过高水位后置为不可写，回落到低水位后恢复
+	private AtomicBoolean writable;
+
+	// 正在发送的数据缓存，可能跨越多次可写事件
+	private ByteBuffer[] sendingBuffers;
+	private int sendingIndex;
+	private int sendingLength;
+	// 正在发送的消息及其在缓存数组中的最后一个缓存的下标
+	private Message[] sendingMessages;
+	private int[] sendingMessageEnds;
+	private int sendingMessageIndex;
+	private int sendingMessageLength;
+	// 已经完成发送的消息，由 I/O 线程取出并回调
+	private ArrayDeque<Message> sentMessages;
+	// 最近一次发送批次包含的消息数量
+	private int lastBatchSize;
+
+	// 是否处于延迟发送状态
+	private AtomicBoolean corked;
+	// 延迟发送的截止时间，单位：纳秒
+	private long corkDeadline;
+
+	public WriteQueue() {
+		this.messages = new ConcurrentLinkedQueue<Message>();
+		this.bulkMessages = new ConcurrentLinkedQueue<Message>();
+		this.writeRequested = new AtomicBoolean(false);
+		this.queuedBytes = new AtomicLong(0);
+		this.writtenBytes = 0;
+		this.writable = new AtomicBoolean(true);
+		this.sendingBuffers = new ByteBuffer[MAX_GATHERING_MESSAGES * 3];
+		this.sendingMessages = new Message[MAX_GATHERING_MESSAGES];
+		this.sendingMessageEnds = new int[MAX_GATHERING_MESSAGES];
+		this.sentMessages = new ArrayDeque<Message>();
+		this.lastBatchSize = 0;
+		this.corked = new AtomicBoolean(false);
+		this.corkDeadline = 0;
+		this.reset();
+	}
+
+	/** 添加待发送消息。
+	 * 
+	 * @return 如果需要通知 I/O 线程执行写操作返回 true 。
+	 */
+	protected boolean offer(Message message) {
+		// 发送完成前持有消息的引用
+		message.retain();
+		this.queuedBytes.addAndGet(message.length());
+		this.messages.offer(message);
+		return this.writeRequested.compareAndSet(false, true);
+	}
+
+	/** 添加低优先级的批量消息。批量消息之间保持顺序，但可能晚于之后添加的普通消息发送。
+	 * 
+	 * @return 如果需要通知 I/O 线程执行写操作返回 true 。
+	 */
+	protected boolean offerBulk(Message message) {
+		message.retain();
+		this.queuedBytes.addAndGet(message.length());
+		this.bulkMessages.offer(message);
+		return this.writeRequested.compareAndSet(false, true);
+	}
+
+	/** 返回已入队但尚未完成发送的数据字节数。
+	 */
+	protected long getQueuedBytes() {
+		return this.queuedBytes.get();
+	}
+
+	/** 返回累计写入通道的字节数。
+	 */
+	protected long getWrittenBytes() {
+		return this.writtenBytes;
+	}
+
+	/** 是否可写。
+	 */
+	protected boolean isWritable() {
+		return this.writable.get();
+	}
+
+	/** 将队列置为不可写。
+	 * 
+	 * @return 如果状态发生变化返回 true 。
+	 */
+	protected boolean markUnwritable() {
+		return this.writable.compareAndSet(true, false);
+	}
+
+	/** 如果队列数据量已回落到低水位，将队列恢复为可写，并唤醒等待的写入线程。
+	 * 
+	 * @return 如果状态发生变化返回 true 。
+	 */
+	protected boolean markWritable(long lowWatermark) {
+		if (this.queuedBytes.get() <= lowWatermark && this.writable.compareAndSet(false, true)) {
+			synchronized (this) {
+				this.notifyAll();
+			}
+			return true;
+		}
+
+		return false;
+	}
+
+	/** 等待队列恢复为可写。
+	 * 
+	 * @return 如果队列可写返回 true 。
+	 */
+	protected boolean awaitWritable(long timeout) {
+		synchronized (this) {
+			if (!this.writable.get()) {
+				try {
+					this.wait(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		return this.writable.get();
+	}
+
+	/** 丢弃一条尚未开始发送的最早的消息。由生产者线程调用，与 I/O 线程并发取出队列。
+	 * I/O 线程已经取出的消息视为已经开始发送，不会被丢弃。
+	 * 批量队列里的分片不会被丢弃，丢失单个分片会使整个数据包无法重组。
+	 * 
+	 * @return 返回被丢弃的消息，没有可丢弃的消息时返回 null 。
+	 */
+	protected Message dropOldest() {
+		Message message = this.messages.poll();
+		if (null != message) {
+			this.queuedBytes.addAndGet(-message.length());
+		}
+		return message;
+	}
+
+	/** 是否有正在发送的数据。
+	 */
+	protected boolean isSending() {
+		return (this.sendingIndex < this.sendingLength);
+	}
+
+	/** 返回最近一次发送批次包含的消息数量。
+	 */
+	protected int getLastBatchSize() {
+		return this.lastBatchSize;
+	}
+
+	/** 是否处于延迟发送状态。
+	 */
+	protected boolean isCorked() {
+		return this.corked.get();
+	}
+
+	/** 进入或者保持延迟发送状态，由 I/O 线程调用。
+	 * 
+	 * @param delay 首次进入延迟状态时的等待时间，单位：纳秒。
+	 * @return 如果尚未到达截止时间返回 true ，否则解除延迟状态并返回 false 。
+	 */
+	protected boolean cork(long delay) {
+		long now = System.nanoTime();
+		if (!this.corked.get()) {
+			if (delay <= 0) {
+				return false;
+			}
+
+			// 只有 I/O 线程进入延迟状态，先设置截止时间
+			this.corkDeadline = now + delay;
+			this.corked.set(true);
+			return true;
+		}
+
+		if (now - this.corkDeadline < 0) {
+			return true;
+		}
+
+		this.uncork();
+		return false;
+	}
+
+	/** 解除延迟发送状态。
+	 * 
+	 * @return 如果状态发生变化返回 true 。
+	 */
+	protected boolean uncork() {
+		return this.corked.compareAndSet(true, false);
+	}
+
+	/** 返回延迟发送的截止时间，单位：纳秒。
+	 */
+	protected long getCorkDeadline() {
+		return this.corkDeadline;
+	}
+
+	/** 是否有待发送或者正在发送的数据。
+	 */
+	protected boolean hasPending() {
+		return (this.sendingIndex < this.sendingLength) || null != this.pendingMessage
+				|| !this.messages.isEmpty() || !this.bulkMessages.isEmpty();
+	}
+
+	/** 尝试将队列置为空闲状态。
+	 * 
+	 * @return 如果队列已经没有待发送数据返回 true ，I/O 线程可以取消关注可写事件。
+	 */
+	protected boolean tryIdle() {
+		if (this.hasPending()) {
+			return false;
+		}
+
+		this.writeRequested.set(false);
+
+		// 再次检查，避免与生产者竞争时丢失写请求
+		if ((!this.messages.isEmpty() || !this.bulkMessages.isEmpty())
+				&& this.writeRequested.compareAndSet(false, true)) {
+			return false;
+		}
+
+		return true;
+	}
+
+	/** 将队列里的消息写入通道。
+	 * 
+	 * @return 如果所有数据都已写入通道返回 true ，如果通道暂时不可写返回 false 。
+	 */
+	protected boolean write(GatheringByteChannel channel, Framing framing,
+			CompressionContext compression, PacketCoalescer coalescer) throws IOException {
+		for (int round = 0; round < MAX_WRITE_ROUNDS; ++round) {
+			if (this.sendingIndex >= this.sendingLength) {
+				// 从队列里取出一批消息
+				if (!this.prepare(framing, compression, coalescer)) {
+					// 没有待发送数据
+					return true;
+				}
+			}
+
+			this.writtenBytes += channel.write(this.sendingBuffers, this.sendingIndex,
+					this.sendingLength - this.sendingIndex);
+
+			// 跳过已经完全写出的缓存
+			while (this.sendingIndex < this.sendingLength
+					&& !this.sendingBuffers[this.sendingIndex].hasRemaining()) {
+				this.sendingBuffers[this.sendingIndex] = null;
+				++this.sendingIndex;
+			}
+
+			// 标记已完成发送的消息
+			while (this.sendingMessageIndex < this.sendingMessageLength
+					&& this.sendingMessageEnds[this.sendingMessageIndex] < this.sendingIndex) {
+				Message sent = this.sendingMessages[this.sendingMessageIndex];
+				this.queuedBytes.addAndGet(-sent.length());
+				this.sentMessages.offer(sent);
+				this.sendingMessages[this.sendingMessageIndex] = null;
+				++this.sendingMessageIndex;
+			}
+
+			if (this.sendingIndex < this.sendingLength) {
+				// 内核发送缓冲区已满，等待下一次可写事件
+				return false;
+			}
+		}
+
+		return !this.hasPending();
+	}
+
+	/** 取出一条已经完成发送的消息。
+	 */
+	protected Message pollSent() {
+		return this.sentMessages.poll();
+	}
+
+	/** 清空队列。
+	 */
+	protected void clear() {
+		Message message = this.pendingMessage;
+		if (null != message) {
+			this.pendingMessage = null;
+			message.release();
+		}
+		while (null != (message = this.messages.poll())) {
+			message.release();
+		}
+		while (null != (message = this.bulkMessages.poll())) {
+			message.release();
+		}
+		for (int i = 0; i < this.sendingBuffers.length; ++i) {
+			this.sendingBuffers[i] = null;
+		}
+		for (int i = 0; i < this.sendingMessages.length; ++i) {
+			if (null != this.sendingMessages[i]) {
+				this.sendingMessages[i].release();
+				this.sendingMessages[i] = null;
+			}
+		}
+		while (null != (message = this.sentMessages.poll())) {
+			message.release();
+		}
+		this.reset();
+		this.writeRequested.set(false);
+		this.corked.set(false);
+
+		this.queuedBytes.set(0);
+		if (this.writable.compareAndSet(false, true)) {
+			synchronized (this) {
+				this.notifyAll();
+			}
+		}
+	}
+
+	private void reset() {
+		this.sendingIndex = 0;
+		this.sendingLength = 0;
+		this.sendingMessageIndex = 0;
+		this.sendingMessageLength = 0;
+	}
+
+	/** 从消息队列中取出一批消息，并组装为聚集写缓存。
+	 * 普通消息优先，批次未满时再追加一条批量消息。
+	 */
+	private boolean prepare(Framing framing, CompressionContext compression,
+			PacketCoalescer coalescer) {
+		this.reset();
+
+		if (null == this.pendingMessage && this.messages.isEmpty() && this.bulkMessages.isEmpty()) {
+			return false;
+		}
+
+		if (null != compression) {
+			// 上一批次已经全部写出，复用压缩输出缓存
+			compression.rewind();
+		}
+
+		int bufferIndex = 0;
+		int messageIndex = 0;
+		Message message = null;
+		while (messageIndex < MAX_GATHERING_MESSAGES
+				&& null != (message = this.pollMessage())) {
+			if (null != coalescer && null != message.getPacket()) {
+				// 合并相邻的延迟打包消息
+				int count = this.collect(message, messageIndex, coalescer.getBatchSize());
+				byte[] data = coalescer.coalesce(this.sendingMessages, messageIndex, count);
+				if (null == data) {
+					this.discard(messageIndex, count);
+					continue;
+				}
+
+				bufferIndex = this.assemble(new Message(data), bufferIndex, framing, compression);
+				for (int i = 0; i < count; ++i) {
+					this.sendingMessageEnds[messageIndex++] = bufferIndex - 1;
+				}
+			}
+			else {
+				this.sendingMessages[messageIndex] = message;
+				bufferIndex = this.assemble(message, bufferIndex, framing, compression);
+				this.sendingMessageEnds[messageIndex++] = bufferIndex - 1;
+			}
+		}
+
+		if (messageIndex < MAX_GATHERING_MESSAGES
+				&& null != (message = this.bulkMessages.poll())) {
+			this.sendingMessages[messageIndex] = message;
+			bufferIndex = this.assemble(message, bufferIndex, framing, compression);
+			this.sendingMessageEnds[messageIndex++] = bufferIndex - 1;
+		}
+
+		this.sendingLength = bufferIndex;
+		this.sendingMessageLength = messageIndex;
+		this.lastBatchSize = messageIndex;
+
+		return (bufferIndex > 0);
+	}
+
+	/** 从 first 开始取出相邻的延迟打包消息，放入发送消息数组，合并后的包体长度不超过 batchSize 。
+	 * 
+	 * @return 返回取出的消息数量。
+	 */
+	private int collect(Message first, int messageIndex, int batchSize) {
+		this.sendingMessages[messageIndex] = first;
+		int count = 1;
+		int size = PacketCoalescer.LENGTH_SIZE + first.length();
+
+		Message next = null;
+		while (messageIndex + count < MAX_GATHERING_MESSAGES
+				&& null != (next = this.pollMessage())) {
+			if (null == next.getPacket()
+				|| size + PacketCoalescer.LENGTH_SIZE + next.length() > batchSize) {
+				// 不能合并的消息留到下一次取出
+				this.pendingMessage = next;
+				break;
+			}
+
+			this.sendingMessages[messageIndex + count] = next;
+			size += PacketCoalescer.LENGTH_SIZE + next.length();
+			++count;
+		}
+
+		return count;
+	}
+
+	/** 取出下一条普通消息，优先返回上一次未放入批次的消息。
+	 * 队列可能被丢弃策略下的生产者线程同时取出，因此只使用 poll 取出消息。
+	 */
+	private Message pollMessage() {
+		Message message = this.pendingMessage;
+		if (null != message) {
+			this.pendingMessage = null;
+			return message;
+		}
+
+		return this.messages.poll();
+	}
+
+	/** 丢弃发送消息数组里无法打包的消息。
+	 */
+	private void discard(int messageIndex, int count) {
+		Logger.w(WriteQueue.class, "Discard " + count + " packet(s) that can not be encoded");
+
+		for (int i = messageIndex, end = messageIndex + count; i < end; ++i) {
+			this.queuedBytes.addAndGet(-this.sendingMessages[i].length());
+			this.sendingMessages[i].release();
+			this.sendingMessages[i] = null;
+		}
+	}
+
+	/** 将消息组装为聚集写缓存。
+	 * 
+	 * @return 返回下一个缓存的下标。
+	 */
+	private int assemble(Message message, int bufferIndex,
+			Framing framing, CompressionContext compression) {
+		// 根据帧格式组装数据包，数据本身不进行复制
+		if (null != framing) {
+			// 帧格式支持时压缩消息数据
+			ByteBuffer deflated = (null != compression && framing.isCompressible())
+					? compression.deflate(message) : null;
+			if (null != deflated) {
+				this.sendingBuffers[bufferIndex++] = framing.encodeCompressedHead(message, deflated.remaining());
+				this.sendingBuffers[bufferIndex++] = deflated;
+			}
+			else {
+				ByteBuffer head = framing.encodeHead(message);
+				if (null != head) {
+					this.sendingBuffers[bufferIndex++] = head;
+				}
+				this.sendingBuffers[bufferIndex++] = message.getBuffer();
+			}
+			ByteBuffer tail = framing.encodeTail(message);
+			if (null != tail) {
+				this.sendingBuffers[bufferIndex++] = tail;
+			}
+		}
+		else {
+			this.sendingBuffers[bufferIndex++] = message.getBuffer();
+		}
+
+		return bufferIndex;
+	}
+}
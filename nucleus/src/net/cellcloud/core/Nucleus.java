@@ -187,6 +187,13 @@ public final class Nucleus {
 			if (this.config.talk.enable) {
 				// 设置服务端口号
 				this.talkService.setPort(this.config.talk.port);
+				this.talkService.setUnixDomainPath(this.config.talk.unixPath);
+				this.talkService.setFragmentSize(this.config.talk.fragmentSize);
+				this.talkService.setFragmentInterleaved(this.config.talk.fragmentInterleaved);
+				this.talkService.setBatchSize(this.config.talk.batchSize);
+				this.talkService.setFlushPolicy(this.config.talk.flushPolicy,
+						this.config.talk.corkThreshold, this.config.talk.corkDelay);
+				this.talkService.setPollStrategy(this.config.talk.pollStrategy);
 
 				// 启动 Talk Service
 				if (this.talkService.startup()) {
@@ -29,6 +29,12 @@ package net.cellcloud.core;
 import java.net.InetSocketAddress;
 import java.util.List;
 
+import net.cellcloud.common.FlushPolicy;
+import net.cellcloud.common.MessageService;
+import net.cellcloud.common.PacketCoalescer;
+import net.cellcloud.common.PacketFragmenter;
+import net.cellcloud.common.PollStrategy;
+
 /** 内核参数配置描述。
  * 
  * @author Jiangwei Xu
@@ -105,6 +111,30 @@ public final class NucleusConfig {
 		/// Talk 服务端口
 		public int port = 7000;
 
+		/// Talk 服务 Unix 域套接字路径，为 null 时不监听
+		public String unixPath = null;
+
+		/// 大数据包分片长度，超过该长度的数据包分片发送，小于等于 0 时不分片
+		public int fragmentSize = PacketFragmenter.DEFAULT_FRAGMENT_SIZE;
+
+		/// 分片是否与其他数据包交错发送，交错发送时分片的数据包可能晚于之后发送的数据包到达
+		public boolean fragmentInterleaved = false;
+
+		/// 批量数据包包体的最大长度，发送前积压的小数据包合并发送，小于等于 0 时不合并
+		public int batchSize = PacketCoalescer.DEFAULT_BATCH_SIZE;
+
+		/// 写队列的发送策略，参见 FlushPolicy
+		public int flushPolicy = FlushPolicy.IMMEDIATE;
+
+		/// 延迟发送的字节阈值
+		public int corkThreshold = MessageService.DEFAULT_CORK_THRESHOLD;
+
+		/// 延迟发送的时间上限，单位：微秒
+		public long corkDelay = MessageService.DEFAULT_CORK_DELAY;
+
+		/// 选择器线程的忙轮询策略，为 null 时阻塞等待
+		public PollStrategy pollStrategy = null;
+
 		/// 是否使用 HTTP 服务
 		public boolean httpd = false;
 
@@ -205,6 +205,8 @@ public final class FileExpress implements MessageHandler, ExpressTaskListener {
 		byte[] head = {0x10, 0x04, 0x11, 0x24};
 		byte[] tail = {0x11, 0x24, 0x10, 0x04};
 		this.acceptor.defineDataMark(head, tail);
+		// 接收的数据包直接引用缓存
+		this.acceptor.setPooledMessage(true);
 
 		// 设置最大连接数
 		this.acceptor.setMaxConnectNum(maxConnNum);
@@ -675,9 +677,13 @@ public final class FileExpress implements MessageHandler, ExpressTaskListener {
 
 	@Override
 	public void messageReceived(Session session, Message message) {
-		Packet packet = Packet.unpack(message.get());
-		if (null != packet) {
-			this.interpret(session, packet);
+		try {
+			Packet packet = Packet.unpack(message.getBuffer());
+			if (null != packet) {
+				this.interpret(session, packet);
+			}
+		} finally {
+			message.release();
 		}
 	}
 
@@ -686,6 +692,11 @@ public final class FileExpress implements MessageHandler, ExpressTaskListener {
 		// Nothing
 	}
 
+	@Override
+	public void writabilityChanged(Session session, boolean writable) {
+		// Nothing
+	}
+
 	@Override
 	public void errorOccurred(int errorCode, Session session) {
 		// 错误处理
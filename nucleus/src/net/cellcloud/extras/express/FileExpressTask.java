@@ -185,6 +185,7 @@ public final class FileExpressTask implements MessageHandler, Runnable {
 		byte[] headMark = {0x10, 0x04, 0x11, 0x24};
 		byte[] tailMark = {0x11, 0x24, 0x10, 0x04};
 		connector.defineDataMark(headMark, tailMark);
+		connector.setPooledMessage(true);
 		connector.setConnectTimeout(5000);
 		connector.setHandler(this);
 
@@ -474,6 +475,7 @@ public final class FileExpressTask implements MessageHandler, Runnable {
 		byte[] headMark = {0x10, 0x04, 0x11, 0x24};
 		byte[] tailMark = {0x11, 0x24, 0x10, 0x04};
 		connector.defineDataMark(headMark, tailMark);
+		connector.setPooledMessage(true);
 		connector.setConnectTimeout(10000);
 		connector.setHandler(this);
 
@@ -1125,15 +1127,19 @@ public final class FileExpressTask implements MessageHandler, Runnable {
 
 	@Override
 	public void messageReceived(Session session, Message message) {
-		Packet packet = Packet.unpack(message.get());
-		if (null != packet) {
-			interpret(session, packet);
-		}
-		else {
-			this.context.errorCode = FileExpressContext.EC_PACKET_ERROR;
-			if (null != this.listener) {
-				this.listener.expressError(this.context);
+		try {
+			Packet packet = Packet.unpack(message.getBuffer());
+			if (null != packet) {
+				interpret(session, packet);
+			}
+			else {
+				this.context.errorCode = FileExpressContext.EC_PACKET_ERROR;
+				if (null != this.listener) {
+					this.listener.expressError(this.context);
+				}
 			}
+		} finally {
+			message.release();
 		}
 	}
 
@@ -1141,6 +1147,10 @@ public final class FileExpressTask implements MessageHandler, Runnable {
 	public void messageSent(Session session, Message message) {
 	}
 
+	@Override
+	public void writabilityChanged(Session session, boolean writable) {
+	}
+
 	@Override
 	public void errorOccurred(int errorCode, Session session) {
 //		System.out.println("errorOccurred:" + errorCode);
@@ -0,0 +1,217 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.talk;
+
+import java.util.concurrent.Executor;
+
+import net.cellcloud.common.MessageService;
+import net.cellcloud.common.SerialExecutor;
+import net.cellcloud.common.Session;
+import net.cellcloud.common.UnixDomainSocket;
+
+/** 同进程会话。
+ * 
+ * Speaker 请求的 Cellet 位于同一个 Nucleus 内时使用，原语直接在 Speaker 与 Cellet 之间传递，
+ * 不经过序列化、分帧与网络传输。两个方向的处理分别在各自的串行队列里按顺序执行，
+ * 回调语义与网络会话一致。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class LoopbackSession extends Session {
+
+	private final TalkService service;
+	private final Speaker speaker;
+	// 内核标签，同进程内 Speaker 与 Cellet 的标签相同
+	private final String tag;
+
+	// Speaker 到 Cellet 方向的处理队列
+	private final SerialExecutor inbound;
+	// Cellet 到 Speaker 方向的回调队列
+	private final SerialExecutor outbound;
+
+	private volatile boolean closed;
+
+	protected LoopbackSession(TalkService service, MessageService acceptor, Speaker speaker,
+			String tag, Executor executor) {
+		super(acceptor, UnixDomainSocket.LOCAL_ADDRESS);
+		this.service = service;
+		this.speaker = speaker;
+		this.tag = tag;
+		this.inbound = new SerialExecutor(executor);
+		this.outbound = new SerialExecutor(executor);
+		this.closed = false;
+	}
+
+	/** 是否已关闭。
+	 */
+	public boolean isClosed() {
+		return this.closed;
+	}
+
+	/** 请求 Cellet 并协商能力。
+	 */
+	protected void request(final String identifier, final TalkCapacity capacity) {
+		this.inbound.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					return;
+				}
+
+				service.acceptSession(LoopbackSession.this);
+
+				TalkTracker tracker = service.processRequest(LoopbackSession.this, tag, identifier);
+				if (null == tracker || null == tracker.activeCellet) {
+					service.closeSession(LoopbackSession.this);
+					closed = true;
+
+					outbound.execute(new Runnable() {
+						@Override
+						public void run() {
+							speaker.doLocalReply(LoopbackSession.this, null, null);
+						}
+					});
+					return;
+				}
+
+				final TalkCapacity newCapacity = (null != capacity) ?
+						service.processConsult(LoopbackSession.this, tag, capacity) : null;
+
+				outbound.execute(new Runnable() {
+					@Override
+					public void run() {
+						speaker.doLocalReply(LoopbackSession.this, tag, newCapacity);
+					}
+				});
+			}
+		});
+	}
+
+	/** 向 Cellet 发送原语。
+	 */
+	protected void dialogue(Primitive primitive) {
+		final Primitive copy = primitive.copy(this.tag);
+
+		this.inbound.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!closed) {
+					service.processDialogue(LoopbackSession.this, tag, copy);
+				}
+			}
+		});
+	}
+
+	/** 挂起 Cellet 服务。
+	 */
+	protected void suspend(final long duration) {
+		this.inbound.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					return;
+				}
+
+				final boolean ret = service.processSuspend(LoopbackSession.this, tag, duration);
+				final long timestamp = System.currentTimeMillis();
+
+				outbound.execute(new Runnable() {
+					@Override
+					public void run() {
+						speaker.doLocalSuspend(LoopbackSession.this, ret, timestamp);
+					}
+				});
+			}
+		});
+	}
+
+	/** 恢复 Cellet 服务。
+	 */
+	protected void resume(final long startTime) {
+		this.inbound.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!closed) {
+					service.processResume(LoopbackSession.this, tag, startTime);
+				}
+			}
+		});
+	}
+
+	/** 关闭会话。
+	 * 
+	 * @param notify 是否通知 Speaker 会话已关闭。
+	 */
+	protected void close(final boolean notify) {
+		this.inbound.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (closed) {
+					return;
+				}
+
+				closed = true;
+				service.closeSession(LoopbackSession.this);
+
+				if (notify) {
+					outbound.execute(new Runnable() {
+						@Override
+						public void run() {
+							speaker.notifyLocalClosed(LoopbackSession.this);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/** 向 Speaker 投递 Cellet 发送的原语。
+	 */
+	protected void deliverDialogue(Primitive primitive) {
+		final Primitive copy = primitive.copy(this.tag);
+
+		this.outbound.execute(new Runnable() {
+			@Override
+			public void run() {
+				speaker.doLocalDialogue(LoopbackSession.this, copy);
+			}
+		});
+	}
+
+	/** 向 Speaker 投递恢复的原语。
+	 */
+	protected void deliverResume(final long timestamp, Primitive primitive) {
+		final Primitive copy = primitive.copy(this.tag);
+
+		this.outbound.execute(new Runnable() {
+			@Override
+			public void run() {
+				speaker.doLocalResume(LoopbackSession.this, timestamp, copy);
+			}
+		});
+	}
+}
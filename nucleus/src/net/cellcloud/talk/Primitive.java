@@ -26,13 +26,14 @@ THE SOFTWARE.
 
 package net.cellcloud.talk;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import net.cellcloud.core.Cellet;
 import net.cellcloud.talk.dialect.Dialect;
+import net.cellcloud.talk.dialect.DialectEnumerator;
 import net.cellcloud.talk.stuff.AdverbialStuff;
 import net.cellcloud.talk.stuff.AttributiveStuff;
 import net.cellcloud.talk.stuff.ComplementStuff;
@@ -262,6 +263,24 @@ public class Primitive {
 		}
 	}
 
+	/** 以指定的所属端标签复制原语，用于在同进程内传递原语。
+	 * 语素对象被共享，方言按照名称与追踪器重新构建。
+	 */
+	protected Primitive copy(String ownerTag) {
+		Primitive primitive = new Primitive(ownerTag);
+		this.copyStuff(primitive);
+
+		if (null != this.dialect) {
+			Dialect dialect = DialectEnumerator.getInstance().createDialect(this.dialect.getName(), this.dialect.getTracker());
+			if (null != dialect) {
+				primitive.capture(dialect);
+				dialect.build(primitive);
+			}
+		}
+
+		return primitive;
+	}
+
 	/** 清空所有语素。
 	 */
 	public void clearStuffs() {
@@ -294,7 +313,7 @@ public class Primitive {
 
 	/** 从序列化流读取原语数据。
 	*/
-	public void read(ByteArrayInputStream stream) {
+	public void read(InputStream stream) {
 		PrimitiveSerializer.read(this, stream);
 	}
 }
@@ -77,18 +77,53 @@ public final class ServerCheckCommand extends ServerCommand {
 			log.append(" checkin.");
 			this.service.acceptSession(this.session);
 
-			// 包格式：成功码|内核标签
+			// 客户端请求使用长度前缀帧，在发送应答前切换帧格式
+			boolean framing = TalkDefinition.isFramingLength(this.packet, 1)
+					&& this.session.getService().upgradeFraming(this.session);
+
+			// 客户端请求使用二进制包头，应答之后发送的数据包使用新格式
+			boolean binary = TalkDefinition.isPacketBinary(this.packet, 1);
+
+			// 客户端支持大数据包分片
+			boolean fragment = TalkDefinition.isPacketFragment(this.packet, 1);
+
+			// 客户端支持拆分批量数据包
+			boolean batch = TalkDefinition.isPacketBatch(this.packet, 1);
+
+			// 包格式：成功码|内核标签[|帧格式][|包格式][|分片][|批量]
 
 			// 数据打包
 			Packet packet = new Packet(TalkDefinition.TPT_CHECK, 2, 1, 0);
 			packet.appendSubsegment(TalkDefinition.SC_SUCCESS);
 			packet.appendSubsegment(Nucleus.getInstance().getTagAsString().getBytes());
+			if (framing) {
+				packet.appendSubsegment(TalkDefinition.FRAMING_LENGTH);
+			}
+			if (binary) {
+				packet.appendSubsegment(TalkDefinition.PACKET_BINARY);
+			}
+			if (fragment) {
+				packet.appendSubsegment(TalkDefinition.PACKET_FRAGMENT);
+			}
+			if (batch) {
+				packet.appendSubsegment(TalkDefinition.PACKET_BATCH);
+			}
 
 			byte[] data = Packet.pack(packet);
 			if (null != data) {
 				Message message = new Message(data);
 				this.session.write(message);
 			}
+
+			if (binary) {
+				this.service.setPacketVersion(this.session, Packet.BINARY_VERSION);
+			}
+			if (fragment) {
+				this.service.setFragmentEnabled(this.session, true);
+			}
+			if (batch) {
+				this.service.setBatchEnabled(this.session, true);
+			}
 		}
 		else {
 			log.append(" checkout.");
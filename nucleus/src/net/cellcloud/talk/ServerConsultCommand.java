@@ -65,7 +65,7 @@ public final class ServerConsultCommand extends ServerCommand {
 
 		byte[] capdata = TalkCapacity.serialize(ret);
 
-		Packet response = new Packet(TalkDefinition.TPT_CONSULT, 4, 1, 0);
+		Packet response = new Packet(TalkDefinition.TPT_CONSULT, 4, this.service.getPacketVersion(this.session), 0);
 		response.appendSubsegment(this.packet.getSubsegment(0));
 		response.appendSubsegment(capdata);
 
@@ -26,8 +26,7 @@ THE SOFTWARE.
 
 package net.cellcloud.talk;
 
-import java.io.ByteArrayInputStream;
-
+import net.cellcloud.common.ByteBufferInputStream;
 import net.cellcloud.common.Logger;
 import net.cellcloud.common.Packet;
 import net.cellcloud.common.Session;
@@ -57,8 +56,8 @@ public final class ServerDialogueCommand extends ServerCommand {
 			return;
 		}
 
-		byte[] pridata = this.packet.getSubsegment(0);
-		ByteArrayInputStream stream = new ByteArrayInputStream(pridata);
+		// 直接从数据包视图读取原语数据
+		ByteBufferInputStream stream = new ByteBufferInputStream(this.packet.getSubsegmentBuffer(0));
 
 		byte[] tagdata = this.packet.getSubsegment(1);
 		String speakerTag = Utils.bytes2String(tagdata);
@@ -53,15 +53,16 @@ public final class ServerSuspendCommand extends ServerCommand {
 		boolean ret = this.service.processSuspend(this.session, tag, duration);
 
 		Packet response = null;
+		int version = this.service.getPacketVersion(this.session);
 		// 包格式：请求方标签|成功码|时间戳
 		if (ret) {
-			response = new Packet(TalkDefinition.TPT_SUSPEND, 5, 1, 0);
+			response = new Packet(TalkDefinition.TPT_SUSPEND, 5, version, 0);
 			response.appendSubsegment(this.packet.getSubsegment(0));
 			response.appendSubsegment(TalkDefinition.SC_SUCCESS);
 			response.appendSubsegment(Utils.string2Bytes(Long.toString(System.currentTimeMillis())));
 		}
 		else {
-			response = new Packet(TalkDefinition.TPT_SUSPEND, 5, 1, 0);
+			response = new Packet(TalkDefinition.TPT_SUSPEND, 5, version, 0);
 			response.appendSubsegment(this.packet.getSubsegment(0));
 			response.appendSubsegment(TalkDefinition.SC_FAILURE);
 			response.appendSubsegment(Utils.string2Bytes(Long.toString(System.currentTimeMillis())));
@@ -26,16 +26,24 @@ THE SOFTWARE.
 
 package net.cellcloud.talk;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
 
+import net.cellcloud.common.ByteBufferInputStream;
+import net.cellcloud.common.CompressionContext;
 import net.cellcloud.common.Cryptology;
+import net.cellcloud.common.LengthFraming;
 import net.cellcloud.common.Logger;
 import net.cellcloud.common.Message;
 import net.cellcloud.common.NonblockingConnector;
 import net.cellcloud.common.Packet;
+import net.cellcloud.common.PacketCoalescer;
+import net.cellcloud.common.PacketFragmenter;
+import net.cellcloud.common.PacketReassembler;
 import net.cellcloud.common.Session;
+import net.cellcloud.common.UnixDomainSocket;
 import net.cellcloud.core.Nucleus;
 import net.cellcloud.util.Utils;
 
@@ -50,6 +58,9 @@ public class Speaker {
 	private String celletIdentifier;
 	private SpeakerDelegate delegate;
 	private NonblockingConnector connector;
+	// 同进程会话，Cellet 位于本 Nucleus 时使用
+	private volatile LoopbackSession loopback;
+	private SocketAddress loopbackAddress;
 
 	protected TalkCapacity capacity;
 
@@ -57,6 +68,13 @@ public class Speaker {
 
 	private boolean authenticated = false;
 	private int state = SpeakerState.HANGUP;
+	// 发送数据包使用的主版本号，协商使用二进制包头后更新
+	private volatile int packetVersion = 1;
+	// 服务器是否支持大数据包分片
+	private volatile boolean fragmentEnabled = false;
+	private PacketFragmenter fragmenter = new PacketFragmenter(TalkDefinition.TPT_FRAGMENT);
+	private final PacketReassembler reassembler = new PacketReassembler();
+	private PacketCoalescer coalescer = new PacketCoalescer(TalkDefinition.TPT_BATCH);
 
 	// 是否需要重新连接
 	protected boolean lost = false;
@@ -88,34 +106,66 @@ public class Speaker {
 	/** 返回连接地址。
 	 */
 	public InetSocketAddress getAddress() {
-		if (null == this.connector)
-			return null;
+		if (null != this.loopback || null == this.connector)
+			return (null != this.loopbackAddress) ? UnixDomainSocket.toInetAddress(this.loopbackAddress) : null;
 
 		return this.connector.getAddress();
 	}
 
+	/** 返回实际连接的地址，可能是 Unix 域套接字地址。
+	 */
+	public SocketAddress getRemoteAddress() {
+		if (null != this.loopback || null == this.connector)
+			return this.loopbackAddress;
+
+		return this.connector.getRemoteAddress();
+	}
+
 	/** 向指定地址发起请求 Cellet 服务。
 	 */
 	public boolean call(InetSocketAddress address) {
+		return this.call((SocketAddress) address);
+	}
+
+	/** 向指定地址发起请求 Cellet 服务，地址可以是 Unix 域套接字地址。
+	 */
+	public boolean call(SocketAddress address) {
 		if (SpeakerState.CALLING == this.state) {
 			// 正在 Call 返回 false
 			return false;
 		}
 
+		// Cellet 位于本 Nucleus 时使用同进程会话
+		TalkService service = TalkService.getInstance();
+		if (null != service && service.isLocalCellet(address, this.celletIdentifier)) {
+			return this.callLocal(address, service);
+		}
+
+		if (null != this.loopback) {
+			this.loopback.close(false);
+			this.loopback = null;
+		}
+
 		if (null == this.connector) {
 			this.connector = new NonblockingConnector();
 
 			byte[] headMark = {0x20, 0x10, 0x11, 0x10};
 			byte[] tailMark = {0x19, 0x78, 0x10, 0x04};
 			this.connector.defineDataMark(headMark, tailMark);
+			// 支持协商使用长度前缀帧
+			this.connector.setFraming(new LengthFraming());
+			// 接收的数据包直接引用缓存
+			this.connector.setPooledMessage(true);
 
 			this.connector.setHandler(new SpeakerConnectorHandler(this));
+
+			// 使用与服务器相同的发送策略与轮询策略
+			if (null != service) {
+				service.configureService(this.connector);
+			}
 		}
 		else {
-			InetSocketAddress curAddr = this.connector.getAddress();
-			if (this.connector.isConnected()
-				&& curAddr.getAddress().getHostAddress().equals(address.getAddress().getHostAddress())
-				&& curAddr.getPort() == address.getPort()) {
+			if (this.connector.isConnected() && isSameAddress(this.connector.getRemoteAddress(), address)) {
 				// 已经连接，返回 true
 				return true;
 			}
@@ -126,6 +176,9 @@ public class Speaker {
 		// 设置状态
 		this.state = SpeakerState.HANGUP;
 		this.authenticated = false;
+		this.packetVersion = 1;
+		this.fragmentEnabled = false;
+		this.reassembler.clear();
 
 		// 进行连接
 		boolean ret = this.connector.connect(address);
@@ -138,22 +191,66 @@ public class Speaker {
 		return ret;
 	}
 
+	/** 通过同进程会话请求 Cellet 服务。
+	 */
+	private boolean callLocal(SocketAddress address, TalkService service) {
+		if (null != this.loopback) {
+			if (!this.loopback.isClosed() && SpeakerState.HANGUP != this.state) {
+				// 已经调用，返回 true
+				return true;
+			}
+
+			this.loopback.close(false);
+			this.loopback = null;
+		}
+
+		if (null != this.connector) {
+			this.connector.disconnect();
+		}
+
+		// 设置状态
+		this.authenticated = false;
+		this.state = SpeakerState.CALLING;
+		this.lost = false;
+
+		this.loopbackAddress = address;
+		this.loopback = service.createLoopbackSession(this);
+		this.loopback.request(this.celletIdentifier, this.capacity);
+
+		return true;
+	}
+
+	/** 判断两个连接地址是否相同。
+	 */
+	private static boolean isSameAddress(SocketAddress cur, SocketAddress address) {
+		if (cur instanceof InetSocketAddress && address instanceof InetSocketAddress) {
+			InetSocketAddress curAddr = (InetSocketAddress) cur;
+			InetSocketAddress addr = (InetSocketAddress) address;
+			return curAddr.getAddress().getHostAddress().equals(addr.getAddress().getHostAddress())
+				&& curAddr.getPort() == addr.getPort();
+		}
+
+		return (null != cur && cur.equals(address));
+	}
+
 	/** 挂起服务。
 	 */
 	public void suspend(long duration) {
+		if (this.state == SpeakerState.CALLED && null != this.loopback) {
+			this.loopback.suspend(duration);
+			this.state = SpeakerState.SUSPENDED;
+			return;
+		}
+
 		if (this.state == SpeakerState.CALLED) {
 			// 包格式：内核标签|有效时长
 
-			Packet packet = new Packet(TalkDefinition.TPT_SUSPEND, 5, 1, 0);
+			Packet packet = new Packet(TalkDefinition.TPT_SUSPEND, 5, this.packetVersion, 0);
 			packet.appendSubsegment(this.nucleusTag);
 			packet.appendSubsegment(Utils.string2Bytes(Long.toString(duration)));
 
-			byte[] data = Packet.pack(packet);
-			if (null != data) {
-				// 发送数据
-				Message message = new Message(data);
-				this.connector.write(message);
-
+			// 发送数据
+			if (this.connector.write(packet)) {
 				// 更新状态
 				this.state = SpeakerState.SUSPENDED;
 			}
@@ -163,20 +260,23 @@ public class Speaker {
 	/** 恢复服务。
 	 */
 	public void resume(long startTime) {
+		if ((this.state == SpeakerState.SUSPENDED || this.state == SpeakerState.CALLED)
+			&& null != this.loopback) {
+			this.loopback.resume(startTime);
+			this.state = SpeakerState.CALLED;
+			return;
+		}
+
 		if (this.state == SpeakerState.SUSPENDED
 			|| this.state == SpeakerState.CALLED) {
 			// 包格式：内核标签|需要恢复的原语起始时间戳
 
-			Packet packet = new Packet(TalkDefinition.TPT_RESUME, 6, 1, 0);
+			Packet packet = new Packet(TalkDefinition.TPT_RESUME, 6, this.packetVersion, 0);
 			packet.appendSubsegment(this.nucleusTag);
 			packet.appendSubsegment(Utils.string2Bytes(Long.toString(startTime)));
 
-			byte[] data = Packet.pack(packet);
-			if (null != data) {
-				// 发送数据
-				Message message = new Message(data);
-				this.connector.write(message);
-
+			// 发送数据
+			if (this.connector.write(packet)) {
 				// 恢复状态
 				this.state = SpeakerState.CALLED;
 			}
@@ -190,6 +290,17 @@ public class Speaker {
 			this.connector.disconnect();
 		}
 
+		LoopbackSession session = this.loopback;
+		if (null != session) {
+			this.loopback = null;
+			session.close(false);
+
+			if (SpeakerState.HANGUP != this.state) {
+				this.state = SpeakerState.HANGUP;
+				this.fireQuitted();
+			}
+		}
+
 		this.lost = false;
 		this.authenticated = false;
 		this.state = SpeakerState.HANGUP;
@@ -198,6 +309,17 @@ public class Speaker {
 	/** 向 Cellet 发送原语数据。
 	 */
 	public synchronized boolean speak(Primitive primitive) {
+		LoopbackSession session = this.loopback;
+		if (null != session) {
+			if (this.state != SpeakerState.CALLED || session.isClosed()) {
+				return false;
+			}
+
+			// 直接传递原语
+			session.dialogue(primitive);
+			return true;
+		}
+
 		if (null == this.connector
 			|| !this.connector.isConnected()
 			|| this.state != SpeakerState.CALLED) {
@@ -208,16 +330,39 @@ public class Speaker {
 		ByteArrayOutputStream stream = primitive.write();
 
 		// 封装数据包
-		Packet packet = new Packet(TalkDefinition.TPT_DIALOGUE, 99, 1, 0);
+		Packet packet = new Packet(TalkDefinition.TPT_DIALOGUE, 99, this.packetVersion, 0);
 		packet.appendSubsegment(stream.toByteArray());
 		packet.appendSubsegment(this.nucleusTag);
 
-		// 发送数据
-		byte[] data = Packet.pack(packet);
-		Message message = new Message(data);
-		this.connector.write(message);
+		if (this.fragmentEnabled && this.fragmenter.isOversize(packet)) {
+			// 设置交错发送时分片以批量消息发送，不阻塞心跳
+			List<Packet> fragments = this.fragmenter.fragment(packet);
+			if (null == fragments) {
+				return false;
+			}
 
-		return true;
+			boolean interleaved = this.fragmenter.isInterleaved();
+			for (int i = 0, size = fragments.size(); i < size; ++i) {
+				Message message = new Message(Packet.pack(fragments.get(i)));
+				if (interleaved) {
+					this.connector.writeBulk(message);
+				}
+				else {
+					this.connector.write(message);
+				}
+			}
+			return true;
+		}
+
+		// 直接打包到连接的发送缓存
+		return this.connector.write(packet);
+	}
+
+	/** 返回连接的消息压缩上下文，包含压缩比与压缩耗时等统计。未连接时返回 null 。
+	 */
+	public CompressionContext getCompression() {
+		Session session = (null != this.connector) ? this.connector.getSession() : null;
+		return (null != session) ? session.getCompression() : null;
 	}
 
 	/** 是否已经与 Cellet 建立服务。
@@ -231,6 +376,41 @@ public class Speaker {
 		return this.state == SpeakerState.SUSPENDED;
 	}
 
+	/** 设置分片器。 */
+	protected void setFragmenter(PacketFragmenter fragmenter) {
+		this.fragmenter = fragmenter;
+	}
+
+	/** 设置服务器是否支持大数据包分片。 */
+	protected void setFragmentEnabled(boolean enabled) {
+		this.fragmentEnabled = enabled;
+	}
+
+	/** 设置数据包合并器。 */
+	protected void setCoalescer(PacketCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+
+	/** 设置服务器是否支持拆分批量数据包，支持时小数据包在发送时合并。 */
+	protected void setBatchEnabled(Session session, boolean enabled) {
+		session.setCoalescer(enabled ? this.coalescer : null);
+	}
+
+	/** 重组分片包，全部分片到达后返回完整数据包。未协商分片时丢弃分片包。 */
+	protected Packet reassemble(Packet fragment) {
+		if (!this.fragmentEnabled) {
+			Logger.w(Speaker.class, "Drop fragment, fragmentation is not negotiated");
+			return null;
+		}
+
+		return this.reassembler.reassemble(fragment);
+	}
+
+	/** 设置发送数据包使用的主版本号。 */
+	protected void setPacketVersion(int version) {
+		this.packetVersion = version;
+	}
+
 	/** 记录服务端 Tag */
 	protected void recordTag(String tag) {
 		this.remoteTag = tag;
@@ -240,11 +420,9 @@ public class Speaker {
 
 	/** 发送心跳。 */
 	protected void heartbeat() {
-		if (this.authenticated && !this.lost) {
-			Packet packet = new Packet(TalkDefinition.TPT_HEARTBEAT, 9, 1, 0);
-			byte[] data = Packet.pack(packet);
-			Message message = new Message(data);
-			this.connector.write(message);
+		if (this.authenticated && !this.lost && null != this.connector && null == this.loopback) {
+			Packet packet = new Packet(TalkDefinition.TPT_HEARTBEAT, 9, this.packetVersion, 0);
+			this.connector.write(packet);
 		}
 	}
 
@@ -267,6 +445,90 @@ public class Speaker {
 		this.fireQuitted();
 	}
 
+	/** 处理同进程会话的请求应答。
+	 */
+	protected void doLocalReply(LoopbackSession session, String tag, TalkCapacity capacity) {
+		if (session != this.loopback) {
+			return;
+		}
+
+		if (null != tag) {
+			this.recordTag(tag);
+			if (null != capacity) {
+				this.capacity = capacity;
+			}
+
+			// 变更状态
+			this.state = SpeakerState.CALLED;
+
+			Logger.i(Speaker.class, "Cellet '" + this.celletIdentifier + "' has called at local");
+
+			// 回调事件
+			this.fireContacted();
+		}
+		else {
+			this.loopback = null;
+
+			// 变更状态
+			this.state = SpeakerState.HANGUP;
+
+			// 回调事件
+			TalkServiceFailure failure = new TalkServiceFailure(TalkFailureCode.NOTFOUND_CELLET
+					, Speaker.class);
+			failure.setSourceCelletIdentifier(this.celletIdentifier);
+			this.fireFailed(failure);
+		}
+	}
+
+	/** 处理同进程会话的对话原语。
+	 */
+	protected void doLocalDialogue(LoopbackSession session, Primitive primitive) {
+		if (session != this.loopback) {
+			return;
+		}
+
+		primitive.setCelletIdentifier(this.celletIdentifier);
+		this.fireDialogue(primitive);
+	}
+
+	/** 处理同进程会话的挂起应答。
+	 */
+	protected void doLocalSuspend(LoopbackSession session, boolean succeeded, long timestamp) {
+		if (session != this.loopback) {
+			return;
+		}
+
+		if (succeeded) {
+			this.state = SpeakerState.SUSPENDED;
+			this.fireSuspended(timestamp, SuspendMode.INITATIVE);
+		}
+		else {
+			this.state = SpeakerState.CALLED;
+		}
+	}
+
+	/** 处理同进程会话的恢复原语。
+	 */
+	protected void doLocalResume(LoopbackSession session, long timestamp, Primitive primitive) {
+		if (session != this.loopback) {
+			return;
+		}
+
+		primitive.setCelletIdentifier(this.celletIdentifier);
+		this.fireResumed(timestamp, primitive);
+	}
+
+	/** 同进程会话被服务端关闭。
+	 */
+	protected void notifyLocalClosed(LoopbackSession session) {
+		if (session != this.loopback) {
+			return;
+		}
+
+		this.notifySessionClosed();
+		this.loopback = null;
+	}
+
 	protected void fireDialogue(Primitive primitive) {
 		this.delegate.onDialogue(this, primitive);
 	}
@@ -303,6 +565,22 @@ public class Speaker {
 		// 发送响应数据
 		Packet response = new Packet(TalkDefinition.TPT_CHECK, 2, 1, 0);
 		response.appendSubsegment(plaintext);
+		if (TalkDefinition.isFramingLength(packet, 2) && null != session.getService().getFraming()) {
+			// 请求使用长度前缀帧
+			response.appendSubsegment(TalkDefinition.FRAMING_LENGTH);
+		}
+		if (TalkDefinition.isPacketBinary(packet, 2)) {
+			// 请求使用二进制包头
+			response.appendSubsegment(TalkDefinition.PACKET_BINARY);
+		}
+		if (TalkDefinition.isPacketFragment(packet, 2)) {
+			// 支持大数据包分片
+			response.appendSubsegment(TalkDefinition.PACKET_FRAGMENT);
+		}
+		if (TalkDefinition.isPacketBatch(packet, 2)) {
+			// 支持拆分批量数据包
+			response.appendSubsegment(TalkDefinition.PACKET_BATCH);
+		}
 		// 数据打包
 		byte[] data = Packet.pack(response);
 		Message message = new Message(data);
@@ -312,7 +590,7 @@ public class Speaker {
 	protected void requestCellet(Session session) {
 		// 包格式：Cellet标识串|标签
 
-		Packet packet = new Packet(TalkDefinition.TPT_REQUEST, 3, 1, 0);
+		Packet packet = new Packet(TalkDefinition.TPT_REQUEST, 3, this.packetVersion, 0);
 		packet.appendSubsegment(this.celletIdentifier.getBytes());
 		packet.appendSubsegment(this.nucleusTag);
 
@@ -348,6 +626,9 @@ public class Speaker {
 		// 设置新值
 		this.capacity = newCapacity;
 
+		// 按照协商结果启用消息压缩
+		this.connector.enableCompression(session, newCapacity.compression);
+
 		if (Logger.isDebugLevel() && null != this.capacity) {
 			StringBuilder buf = new StringBuilder();
 			buf.append("Update talk capacity from '");
@@ -356,6 +637,8 @@ public class Speaker {
 			buf.append(this.capacity.autoSuspend);
 			buf.append(" SuspendDuration=");
 			buf.append(this.capacity.suspendDuration);
+			buf.append(" Compression=");
+			buf.append(this.capacity.compression);
 
 			Logger.d(Speaker.class, buf.toString());
 
@@ -411,8 +694,7 @@ public class Speaker {
 	protected void doDialogue(Packet packet, Session session) {
 		// 包格式：序列化的原语
 
-		byte[] pridata = packet.getBody();
-		ByteArrayInputStream stream = new ByteArrayInputStream(pridata);
+		ByteBufferInputStream stream = new ByteBufferInputStream(packet.getBodyBuffer());
 
 		// 反序列化原语
 		Primitive primitive = new Primitive(this.remoteTag);
@@ -443,8 +725,7 @@ public class Speaker {
 		// 包格式：目的标签|时间戳|原语序列
 
 		long timestamp = Long.parseLong(Utils.bytes2String(packet.getSubsegment(1)));
-		byte[] pridata = packet.getSubsegment(2);
-		ByteArrayInputStream stream = new ByteArrayInputStream(pridata);
+		ByteBufferInputStream stream = new ByteBufferInputStream(packet.getSubsegmentBuffer(2));
 
 		// 反序列化原语
 		Primitive primitive = new Primitive(this.remoteTag);
@@ -459,10 +740,18 @@ public class Speaker {
 	private void consult(TalkCapacity capacity) {
 		// 包格式：源标签|能力描述序列化数据
 
-		Packet packet = new Packet(TalkDefinition.TPT_CONSULT, 4, 1, 0);
+		Packet packet = new Packet(TalkDefinition.TPT_CONSULT, 4, this.packetVersion, 0);
 		packet.appendSubsegment(Utils.string2Bytes(Nucleus.getInstance().getTagAsString()));
 		packet.appendSubsegment(TalkCapacity.serialize(capacity));
 
+		if (capacity.compression) {
+			// 请求压缩后对端可能随即发送压缩帧
+			Session session = this.connector.getSession();
+			if (null != session) {
+				session.getCompression().setAcceptable(true);
+			}
+		}
+
 		byte[] data = Packet.pack(packet);
 		if (null != data) {
 			Message message = new Message(data);
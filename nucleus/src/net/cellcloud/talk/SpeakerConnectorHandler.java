@@ -26,11 +26,14 @@ THE SOFTWARE.
 
 package net.cellcloud.talk;
 
+import java.util.List;
+
 import net.cellcloud.common.Logger;
 import net.cellcloud.common.Message;
 import net.cellcloud.common.MessageErrorCode;
 import net.cellcloud.common.MessageHandler;
 import net.cellcloud.common.Packet;
+import net.cellcloud.common.PacketCoalescer;
 import net.cellcloud.common.Session;
 import net.cellcloud.util.Utils;
 
@@ -85,11 +88,15 @@ public final class SpeakerConnectorHandler implements MessageHandler {
 	 */
 	@Override
 	public void messageReceived(Session session, Message message) {
-		// 解包
-		Packet packet = Packet.unpack(message.get());
-		if (null != packet) {
-			// 解析数据包
-			interpret(session, packet);
+		try {
+			// 解包，数据包直接引用消息缓存
+			Packet packet = Packet.unpack(message.getBuffer());
+			if (null != packet) {
+				// 解析数据包
+				interpret(session, packet);
+			}
+		} finally {
+			message.release();
 		}
 	}
 
@@ -101,6 +108,14 @@ public final class SpeakerConnectorHandler implements MessageHandler {
 		// Nothing
 	}
 
+	/**
+	 * @copydoc MessageHandler::writabilityChanged(Session, boolean)
+	 */
+	@Override
+	public void writabilityChanged(Session session, boolean writable) {
+		// Nothing
+	}
+
 	/**
 	 * @copydoc MessageHandler::errorOccurred(int, Session)
 	 */
@@ -156,6 +171,26 @@ public final class SpeakerConnectorHandler implements MessageHandler {
 			byte[] rtag = packet.getSubsegment(1);
 			this.speaker.recordTag(Utils.bytes2String(rtag));
 
+			// 服务器同意使用长度前缀帧
+			if (TalkDefinition.isFramingLength(packet, 2)) {
+				session.getService().upgradeFraming(session);
+			}
+
+			// 服务器同意使用二进制包头
+			if (TalkDefinition.isPacketBinary(packet, 2)) {
+				this.speaker.setPacketVersion(Packet.BINARY_VERSION);
+			}
+
+			// 服务器支持大数据包分片
+			if (TalkDefinition.isPacketFragment(packet, 2)) {
+				this.speaker.setFragmentEnabled(true);
+			}
+
+			// 服务器支持拆分批量数据包
+			if (TalkDefinition.isPacketBatch(packet, 2)) {
+				this.speaker.setBatchEnabled(session, true);
+			}
+
 			// 请求 Cellet
 			this.speaker.requestCellet(session);
 		}
@@ -163,5 +198,23 @@ public final class SpeakerConnectorHandler implements MessageHandler {
 			&& TalkDefinition.TPT_INTERROGATE[3] == tag[3]) {
 			this.speaker.requestCheck(packet, session);
 		}
+		else if (TalkDefinition.TPT_FRAGMENT[2] == tag[2]
+			&& TalkDefinition.TPT_FRAGMENT[3] == tag[3]) {
+			// 全部分片到达后按完整数据包处理
+			Packet whole = this.speaker.reassemble(packet);
+			if (null != whole) {
+				this.interpret(session, whole);
+			}
+		}
+		else if (TalkDefinition.TPT_BATCH[2] == tag[2]
+			&& TalkDefinition.TPT_BATCH[3] == tag[3]) {
+			// 按发送顺序处理批量数据包里的数据包
+			List<Packet> packets = PacketCoalescer.split(packet);
+			if (null != packets) {
+				for (int i = 0, size = packets.size(); i < size; ++i) {
+					this.interpret(session, packets.get(i));
+				}
+			}
+		}
 	}
 }
@@ -27,6 +27,7 @@ THE SOFTWARE.
 package net.cellcloud.talk;
 
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
 import net.cellcloud.common.LogLevel;
@@ -34,6 +35,7 @@ import net.cellcloud.common.Logger;
 import net.cellcloud.common.Message;
 import net.cellcloud.common.MessageHandler;
 import net.cellcloud.common.Packet;
+import net.cellcloud.common.PacketCoalescer;
 import net.cellcloud.common.Session;
 
 /** Talk 服务句柄。
@@ -81,10 +83,14 @@ public final class TalkAcceptorHandler implements MessageHandler {
 
 	@Override
 	public void messageReceived(Session session, Message message) {
-		byte[] data = message.get();
-		Packet packet = Packet.unpack(data);
-		if (null != packet) {
-			interpret(session, packet);
+		try {
+			// 数据包直接引用消息缓存，处理完成后释放消息
+			Packet packet = Packet.unpack(message.getBuffer());
+			if (null != packet) {
+				interpret(session, packet);
+			}
+		} finally {
+			message.release();
 		}
 	}
 
@@ -93,6 +99,11 @@ public final class TalkAcceptorHandler implements MessageHandler {
 		// Nothing
 	}
 
+	@Override
+	public void writabilityChanged(Session session, boolean writable) {
+		// Nothing
+	}
+
 	@Override
 	public void errorOccurred(int errorCode, Session session) {
 		// Nothing
@@ -178,6 +189,30 @@ public final class TalkAcceptorHandler implements MessageHandler {
 				Logger.log(TalkAcceptorHandler.class, e, LogLevel.ERROR);
 			}
 		}
+		else if (TalkDefinition.isFragment(tag)) {
+			try {
+				// 全部分片到达后按完整数据包处理
+				Packet whole = this.talkService.reassemble(session, packet);
+				if (null != whole) {
+					this.interpret(session, whole);
+				}
+			} catch (Exception e) {
+				Logger.log(TalkAcceptorHandler.class, e, LogLevel.ERROR);
+			}
+		}
+		else if (TalkDefinition.isBatch(tag)) {
+			try {
+				// 按发送顺序处理批量数据包里的数据包
+				List<Packet> packets = PacketCoalescer.split(packet);
+				if (null != packets) {
+					for (int i = 0, size = packets.size(); i < size; ++i) {
+						this.interpret(session, packets.get(i));
+					}
+				}
+			} catch (Exception e) {
+				Logger.log(TalkAcceptorHandler.class, e, LogLevel.ERROR);
+			}
+		}
 	}
 
 	private ServerDialogueCommand borrowDialogueCommand(Session session, Packet packet) {
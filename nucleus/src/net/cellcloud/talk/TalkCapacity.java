@@ -44,16 +44,27 @@ public final class TalkCapacity {
 	/// 两次连接中间隔时间，单位毫秒
 	public long retryDelay = 1000;
 
+	/// 是否压缩较大的消息，需要双方协商一致且连接使用长度前缀帧
+	public boolean compression = false;
+
 	public TalkCapacity(boolean autoSuspend, long suspendDuration) {
 		this.autoSuspend = autoSuspend;
 		this.suspendDuration = suspendDuration;
 	}
 
+	public TalkCapacity(boolean autoSuspend, long suspendDuration, boolean compression) {
+		this.autoSuspend = autoSuspend;
+		this.suspendDuration = suspendDuration;
+		this.compression = compression;
+	}
+
 	public final static byte[] serialize(TalkCapacity capacity) {
 		StringBuilder buf = new StringBuilder();
 		buf.append(capacity.autoSuspend ? "Y" : "N");
 		buf.append("|");
 		buf.append(capacity.suspendDuration);
+		buf.append("|");
+		buf.append(capacity.compression ? "Y" : "N");
 
 		byte[] bytes = buf.toString().getBytes();
 		buf = null;
@@ -70,6 +81,8 @@ public final class TalkCapacity {
 
 		boolean autoSuspend = array[0].equals("Y") ? true : false;
 		long suspendDuration = Long.parseLong(array[1]);
-		return new TalkCapacity(autoSuspend, suspendDuration);
+		// 旧版本没有压缩字段
+		boolean compression = (array.length >= 3 && array[2].equals("Y"));
+		return new TalkCapacity(autoSuspend, suspendDuration, compression);
 	}
 }
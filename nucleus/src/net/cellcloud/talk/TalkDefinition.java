@@ -26,6 +26,10 @@ THE SOFTWARE.
 
 package net.cellcloud.talk;
 
+import java.util.Arrays;
+
+import net.cellcloud.common.Packet;
+
 /** Talk 服务器网络包定义。
  * 
  * @author Jiangwei Xu
@@ -61,12 +65,68 @@ public final class TalkDefinition {
 	// 恢复指定的 Cellet 服务
 	public static final byte[] TPT_RESUME = {'C', 'T', 'R', 'E'};
 
+	// 大数据包分片
+	public static final byte[] TPT_FRAGMENT = {'C', 'T', 'F', 'G'};
+
+	// 合并多个小数据包的批量数据包
+	public static final byte[] TPT_BATCH = {'C', 'T', 'B', 'T'};
+
 
 	// 状态码
 	protected static final byte[] SC_SUCCESS = {'0', '0', '0', '0'};
 	protected static final byte[] SC_FAILURE = {'0', '0', '0', '1'};
 	protected static final byte[] SC_FAILURE_NOCELLET = {'0', '0', '1', '0'};
 
+	// 帧格式协商标识：长度前缀帧
+	protected static final byte[] FRAMING_LENGTH = {'F', 'L', 'E', 'N'};
+
+	// 包格式协商标识：二进制包头
+	protected static final byte[] PACKET_BINARY = {'P', 'K', 'V', '2'};
+
+	// 包格式协商标识：大数据包分片
+	protected static final byte[] PACKET_FRAGMENT = {'F', 'R', 'A', 'G'};
+
+	// 包格式协商标识：批量数据包
+	protected static final byte[] PACKET_BATCH = {'B', 'A', 'T', 'C'};
+
+
+	/** 判断数据包指定位置的子段是否是长度前缀帧协商标识。
+	 */
+	protected static boolean isFramingLength(Packet packet, int index) {
+		if (packet.getSubsegmentCount() <= index) {
+			return false;
+		}
+
+		return Arrays.equals(FRAMING_LENGTH, packet.getSubsegment(index));
+	}
+
+	/** 判断数据包从指定位置开始的子段里是否包含二进制包头协商标识。
+	 */
+	protected static boolean isPacketBinary(Packet packet, int fromIndex) {
+		return containsToken(packet, fromIndex, PACKET_BINARY);
+	}
+
+	/** 判断数据包从指定位置开始的子段里是否包含分片协商标识。
+	 */
+	protected static boolean isPacketFragment(Packet packet, int fromIndex) {
+		return containsToken(packet, fromIndex, PACKET_FRAGMENT);
+	}
+
+	/** 判断数据包从指定位置开始的子段里是否包含批量数据包协商标识。
+	 */
+	protected static boolean isPacketBatch(Packet packet, int fromIndex) {
+		return containsToken(packet, fromIndex, PACKET_BATCH);
+	}
+
+	private static boolean containsToken(Packet packet, int fromIndex, byte[] token) {
+		for (int i = fromIndex, size = packet.getSubsegmentCount(); i < size; ++i) {
+			if (Arrays.equals(token, packet.getSubsegment(i))) {
+				return true;
+			}
+		}
+
+		return false;
+	}
 
 	/** 判断是否是 INTERROGATE 包。
 	 */
@@ -134,6 +194,28 @@ public final class TalkDefinition {
 		}
 	}
 
+	/** 判断是否是 FRAGMENT 包。
+	 */
+	public static boolean isFragment(final byte[] ptg) {
+		if (ptg[2] == TPT_FRAGMENT[2] && ptg[3] == TPT_FRAGMENT[3]) {
+			return true;
+		}
+		else {
+			return false;
+		}
+	}
+
+	/** 判断是否是 BATCH 包。
+	 */
+	public static boolean isBatch(final byte[] ptg) {
+		if (ptg[2] == TPT_BATCH[2] && ptg[3] == TPT_BATCH[3]) {
+			return true;
+		}
+		else {
+			return false;
+		}
+	}
+
 	/** 判断是否是 DIALOGUE 包。
 	 */
 	public static boolean isDialogue(final byte[] ptg) {
@@ -27,7 +27,11 @@ THE SOFTWARE.
 package net.cellcloud.talk;
 
 import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -35,17 +39,27 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import net.cellcloud.common.CompressionContext;
 import net.cellcloud.common.Cryptology;
+import net.cellcloud.common.FlushPolicy;
 import net.cellcloud.common.LogLevel;
+import net.cellcloud.common.LengthFraming;
 import net.cellcloud.common.Logger;
 import net.cellcloud.common.Message;
+import net.cellcloud.common.MessageService;
 import net.cellcloud.common.NonblockingAcceptor;
+import net.cellcloud.common.OrderedDispatchHandler;
 import net.cellcloud.common.Packet;
+import net.cellcloud.common.PacketCoalescer;
+import net.cellcloud.common.PacketFragmenter;
+import net.cellcloud.common.PollStrategy;
 import net.cellcloud.common.Service;
 import net.cellcloud.common.Session;
+import net.cellcloud.common.UnixDomainSocket;
 import net.cellcloud.core.Cellet;
 import net.cellcloud.core.CelletSandbox;
 import net.cellcloud.core.Nucleus;
@@ -68,6 +82,8 @@ public final class TalkService implements Service, SpeakerDelegate {
 	private static TalkService instance = null;
 
 	private int port;
+	// 同主机通信使用的 Unix 域套接字路径
+	private String unixDomainPath;
 	private int httpPort;
 	private boolean httpEnabled;
 
@@ -77,6 +93,25 @@ public final class TalkService implements Service, SpeakerDelegate {
 
 	// 线程执行器
 	private ExecutorService executor;
+	// 网络回调分发执行器
+	private Executor dispatchExecutor;
+	// 同进程会话的执行器
+	private ExecutorService loopbackExecutor;
+	// 是否允许会话协商使用消息压缩
+	private boolean compressionEnabled;
+	// 消息压缩阈值
+	private int compressionThreshold;
+	// 大数据包分片器
+	private PacketFragmenter fragmenter;
+	// 小数据包合并器
+	private PacketCoalescer coalescer;
+
+	// 写队列发送策略
+	private int flushPolicy;
+	private int corkThreshold;
+	private long corkDelay;
+	// 选择器线程的忙轮询策略
+	private PollStrategy pollStrategy;
 
 	/// 待检验 Session
 	private ConcurrentHashMap<Long, Certificate> unidentifiedSessions;
@@ -105,6 +140,13 @@ public final class TalkService implements Service, SpeakerDelegate {
 			this.port = 7000;
 			this.httpPort = 8181;
 			this.httpEnabled = true;
+			this.compressionEnabled = true;
+			this.compressionThreshold = CompressionContext.DEFAULT_THRESHOLD;
+			this.fragmenter = new PacketFragmenter(TalkDefinition.TPT_FRAGMENT);
+			this.coalescer = new PacketCoalescer(TalkDefinition.TPT_BATCH);
+			this.flushPolicy = FlushPolicy.IMMEDIATE;
+			this.corkThreshold = MessageService.DEFAULT_CORK_THRESHOLD;
+			this.corkDelay = MessageService.DEFAULT_CORK_DELAY;
 
 			// 添加默认方言工厂
 			DialectEnumerator.getInstance().addFactory(new ActionDialectFactory());
@@ -125,12 +167,126 @@ public final class TalkService implements Service, SpeakerDelegate {
 		this.port = port;
 	}
 
+	/** 设置同时监听的 Unix 域套接字路径，同主机的对端可以通过该路径连接。
+	 * 仅 JDK 16 及以上版本支持，设置为 null 则不监听。
+	 */
+	public void setUnixDomainPath(String path) {
+		this.unixDomainPath = path;
+	}
+
+	/** 设置大数据包分片长度。打包后超过该长度的原语拆分为分片发送，
+	 * 小于等于 0 时不分片。仅对支持分片的对端生效。
+	 */
+	public void setFragmentSize(int size) {
+		this.fragmenter.setFragmentSize(size);
+	}
+
+	/** 返回大数据包分片长度。
+	 */
+	public int getFragmentSize() {
+		return this.fragmenter.getFragmentSize();
+	}
+
+	/** 设置分片是否与心跳等其他数据包交错发送。
+	 * 默认不交错，同一会话的数据包按发送顺序到达；交错发送时分片的数据包可能晚于之后发送的数据包到达。
+	 */
+	public void setFragmentInterleaved(boolean interleaved) {
+		this.fragmenter.setInterleaved(interleaved);
+	}
+
+	/** 返回分片是否与其他数据包交错发送。
+	 */
+	public boolean isFragmentInterleaved() {
+		return this.fragmenter.isInterleaved();
+	}
+
+	/** 设置批量数据包包体的最大长度。同一会话在一次发送前积压的多个小数据包合并为一个批量数据包，
+	 * 小于等于 0 时不合并。仅对支持批量数据包的对端生效。
+	 */
+	public void setBatchSize(int size) {
+		this.coalescer.setBatchSize(size);
+	}
+
+	/** 返回批量数据包包体的最大长度。
+	 */
+	public int getBatchSize() {
+		return this.coalescer.getBatchSize();
+	}
+
+	/** 设置服务器与 Speaker 连接的写队列发送策略。
+	 * 
+	 * @param policy 发送策略，参见 {@link FlushPolicy} 。
+	 * @param threshold 延迟发送的字节阈值。
+	 * @param delay 延迟发送的时间上限，单位：微秒。
+	 */
+	public void setFlushPolicy(int policy, int threshold, long delay) {
+		this.flushPolicy = policy;
+		this.corkThreshold = threshold;
+		this.corkDelay = delay;
+
+		if (null != this.acceptor) {
+			this.configureService(this.acceptor);
+		}
+	}
+
+	/** 返回写队列的发送策略。
+	 */
+	public int getFlushPolicy() {
+		return this.flushPolicy;
+	}
+
+	/** 设置服务器与 Speaker 连接的选择器线程忙轮询策略，为 null 时阻塞等待。
+	 * 忙轮询以持续占用 CPU 为代价降低线程唤醒延迟。
+	 */
+	public void setPollStrategy(PollStrategy strategy) {
+		this.pollStrategy = strategy;
+
+		if (null != this.acceptor) {
+			this.configureService(this.acceptor);
+		}
+	}
+
+	/** 返回选择器线程的忙轮询策略。
+	 */
+	public PollStrategy getPollStrategy() {
+		return this.pollStrategy;
+	}
+
+	/** 将发送策略与轮询策略应用到指定的消息服务。
+	 */
+	protected void configureService(MessageService service) {
+		service.setFlushPolicy(this.flushPolicy);
+		service.setCorkThreshold(this.corkThreshold);
+		service.setCorkDelay(this.corkDelay);
+		service.setPollStrategy(this.pollStrategy);
+	}
+
 	/** 设置 HTTP 服务端口。
 	 */
 	public void setHttpPort(int port) {
 		this.httpPort = port;
 	}
 
+	/** 设置网络回调分发执行器。必须在启动服务之前设置。
+	 * 设置后 Cellet 的处理不在网络 I/O 线程上执行，同一会话的消息保持顺序。
+	 * 可以使用 {@link OrderedDispatchHandler#newExecutor(int)} 创建执行器，运行环境支持时使用虚拟线程。
+	 */
+	public void setDispatchExecutor(Executor executor) {
+		this.dispatchExecutor = executor;
+	}
+
+	/** 设置是否允许会话协商使用消息压缩。
+	 */
+	public void setCompressionEnabled(boolean enabled) {
+		this.compressionEnabled = enabled;
+	}
+
+	/** 设置消息压缩阈值，小于该长度的消息不压缩。
+	 */
+	public void setCompressionThreshold(int threshold) {
+		this.compressionThreshold = threshold;
+	}
+
 	/** 启动会话服务。
 	 */
 	@Override
@@ -155,6 +311,10 @@ public final class TalkService implements Service, SpeakerDelegate {
 			byte[] head = {0x20, 0x10, 0x11, 0x10};
 			byte[] tail = {0x19, 0x78, 0x10, 0x04};
 			this.acceptor.defineDataMark(head, tail);
+			// 支持协商使用长度前缀帧
+			this.acceptor.setFraming(new LengthFraming());
+			// 接收的数据包直接引用缓存
+			this.acceptor.setPooledMessage(true);
 
 			// 设置处理器
 			if (null == this.talkHandler) {
@@ -163,9 +323,20 @@ public final class TalkService implements Service, SpeakerDelegate {
 			this.acceptor.setHandler(this.talkHandler);
 		}
 
+		// 回调分发
+		this.acceptor.setDispatchExecutor(this.dispatchExecutor);
+
 		// 最大连接数
 		this.acceptor.setMaxConnectNum(1000);
 
+		// 发送策略与轮询策略
+		this.configureService(this.acceptor);
+
+		// Unix 域套接字
+		if (!this.acceptor.setUnixDomainPath(this.unixDomainPath)) {
+			Logger.w(TalkService.class, "Unix domain socket is not supported, ignore path " + this.unixDomainPath);
+		}
+
 		boolean succeeded = this.acceptor.bind(this.port);
 		if (succeeded) {
 			startDaemon();
@@ -183,6 +354,15 @@ public final class TalkService implements Service, SpeakerDelegate {
 	 */
 	@Override
 	public void shutdown() {
+		// 关闭同进程会话
+		if (null != this.sessionContexts) {
+			for (Session session : this.sessionContexts.keySet()) {
+				if (session instanceof LoopbackSession) {
+					((LoopbackSession) session).close(true);
+				}
+			}
+		}
+
 		if (null != this.acceptor) {
 			this.acceptor.unbind();
 		}
@@ -192,6 +372,11 @@ public final class TalkService implements Service, SpeakerDelegate {
 		if (null != this.executor) {
 			this.executor.shutdown();
 		}
+
+		if (null != this.loopbackExecutor) {
+			this.loopbackExecutor.shutdown();
+			this.loopbackExecutor = null;
+		}
 	}
 
 	/** 设置是否激活 HTTP 服务。
@@ -313,7 +498,7 @@ public final class TalkService implements Service, SpeakerDelegate {
 			return false;
 		}
 
-		Message message = null;
+		boolean delivered = false;
 
 		synchronized (contexts) {
 			for (TalkSessionContext ctx : contexts) {
@@ -323,9 +508,13 @@ public final class TalkService implements Service, SpeakerDelegate {
 					// 判断是否是同一个 Cellet
 					if (tracker.activeCellet == cellet) {
 						Session session = ctx.getSession();
-						message = this.packetDialogue(primitive);
-						if (null != message) {
-							session.write(message);
+						if (session instanceof LoopbackSession) {
+							// 同进程会话直接传递原语
+							((LoopbackSession) session).deliverDialogue(primitive);
+							delivered = true;
+						}
+						else {
+							delivered = this.writePacket(ctx, session, this.packetDialogue(primitive, ctx.packetVersion));
 						}
 						break;
 					}
@@ -333,7 +522,7 @@ public final class TalkService implements Service, SpeakerDelegate {
 			}
 		}
 
-		return (null != message);
+		return delivered;
 	}
 
 	/** 通知对端 Speaker 方言。
@@ -360,6 +549,22 @@ public final class TalkService implements Service, SpeakerDelegate {
 	 * @note Client
 	 */
 	public boolean call(String identifier, InetSocketAddress address, TalkCapacity capacity) {
+		return this.call(identifier, (SocketAddress) address, capacity);
+	}
+
+	/** 申请调用 Cellet 服务，地址可以是 Unix 域套接字地址。
+	 * 
+	 * @note Client
+	 */
+	public boolean call(String identifier, SocketAddress address) {
+		return this.call(identifier, address, null);
+	}
+
+	/** 申请调用 Cellet 服务，地址可以是 Unix 域套接字地址。
+	 * 
+	 * @note Client
+	 */
+	public boolean call(String identifier, SocketAddress address, TalkCapacity capacity) {
 		if (null == this.speakers)
 			this.speakers = new ConcurrentHashMap<String, Speaker>();
 
@@ -374,6 +579,8 @@ public final class TalkService implements Service, SpeakerDelegate {
 		}
 		else {
 			speaker = new Speaker(identifier, this, capacity);
+			speaker.setFragmenter(this.fragmenter);
+			speaker.setCoalescer(this.coalescer);
 			this.speakers.put(identifier, speaker);
 		}
 
@@ -609,6 +816,79 @@ public final class TalkService implements Service, SpeakerDelegate {
 		}
 	}
 
+	/** 判断指定地址上的 Cellet 是否位于本 Nucleus 内。
+	 * 
+	 * @note Client
+	 */
+	protected boolean isLocalCellet(SocketAddress address, String identifier) {
+		if (null == this.acceptor || null == this.daemon || null == address) {
+			return false;
+		}
+
+		if (UnixDomainSocket.isUnixAddress(address)) {
+			if (!address.equals(this.acceptor.getUnixDomainAddress())) {
+				return false;
+			}
+		}
+		else if (address instanceof InetSocketAddress) {
+			InetSocketAddress inetAddress = (InetSocketAddress) address;
+			InetSocketAddress bindAddress = this.acceptor.getBindAddress();
+			if (null == bindAddress || inetAddress.getPort() != bindAddress.getPort()
+				|| !isLocalHost(inetAddress.getAddress(), bindAddress.getAddress())) {
+				return false;
+			}
+		}
+		else {
+			return false;
+		}
+
+		return (null != Nucleus.getInstance().getCellet(identifier, this.nucleusContext));
+	}
+
+	/** 判断地址是否是本机上被监听的地址。
+	 */
+	private static boolean isLocalHost(InetAddress address, InetAddress bindAddress) {
+		if (null == address) {
+			// 未解析的地址
+			return false;
+		}
+
+		if (address.isLoopbackAddress() || address.equals(bindAddress)) {
+			return true;
+		}
+
+		if (null == bindAddress || !bindAddress.isAnyLocalAddress()) {
+			return false;
+		}
+
+		if (address.isAnyLocalAddress()) {
+			return true;
+		}
+
+		try {
+			return (null != NetworkInterface.getByInetAddress(address));
+		} catch (SocketException e) {
+			Logger.log(TalkService.class, e, LogLevel.DEBUG);
+			return false;
+		}
+	}
+
+	/** 为 Speaker 创建同进程会话。
+	 * 
+	 * @note Client
+	 */
+	protected synchronized LoopbackSession createLoopbackSession(Speaker speaker) {
+		Executor executor = this.dispatchExecutor;
+		if (null == executor) {
+			if (null == this.loopbackExecutor) {
+				this.loopbackExecutor = OrderedDispatchHandler.newExecutor(Runtime.getRuntime().availableProcessors());
+			}
+			executor = this.loopbackExecutor;
+		}
+
+		return new LoopbackSession(this, this.acceptor, speaker, Nucleus.getInstance().getTagAsString(), executor);
+	}
+
 	/** 开启 Session 。
 	 */
 	protected void openSession(Session session) {
@@ -803,7 +1083,14 @@ public final class TalkService implements Service, SpeakerDelegate {
 		// 设置超时
 		tracker.setSuspendDuration(capacity.suspendDuration);
 
-		return new TalkCapacity(tracker.isAutoSuspend(), tracker.getSuspendDuration());
+		// 协商消息压缩，连接使用长度前缀帧时才能启用
+		boolean compression = false;
+		if (capacity.compression && this.compressionEnabled && !(session instanceof LoopbackSession)) {
+			session.getCompression().setThreshold(this.compressionThreshold);
+			compression = this.acceptor.enableCompression(session, true);
+		}
+
+		return new TalkCapacity(tracker.isAutoSuspend(), tracker.getSuspendDuration(), compression);
 	}
 
 	/** 对话 Cellet 。
@@ -882,8 +1169,6 @@ public final class TalkService implements Service, SpeakerDelegate {
 			return;
 		}
 
-		Message message = null;
-
 		synchronized (contexts) {
 			for (TalkSessionContext ctx : contexts) {
 				// 查找上文里指定的会话追踪器
@@ -898,10 +1183,12 @@ public final class TalkService implements Service, SpeakerDelegate {
 							Long timestamp = timestampQueue.poll();
 							Primitive primitive = primitiveQueue.poll();
 							if (timestamp.longValue() >= startTime) {
-								message = this.packetResume(targetTag, timestamp, primitive);
-								if (null != message) {
-									session.write(message);
+								if (session instanceof LoopbackSession) {
+									((LoopbackSession) session).deliverResume(timestamp.longValue(), primitive);
+									continue;
 								}
+
+								this.writePacket(ctx, session, this.packetResume(targetTag, timestamp, primitive, ctx.packetVersion));
 							}
 						}
 
@@ -912,6 +1199,85 @@ public final class TalkService implements Service, SpeakerDelegate {
 		}
 	}
 
+	/** 返回向指定 Session 发送数据包使用的主版本号。
+	 */
+	protected int getPacketVersion(Session session) {
+		TalkSessionContext ctx = this.sessionContexts.get(session);
+		return (null != ctx) ? ctx.packetVersion : 1;
+	}
+
+	/** 设置向指定 Session 发送数据包使用的主版本号。
+	 */
+	protected void setPacketVersion(Session session, int version) {
+		TalkSessionContext ctx = this.sessionContexts.get(session);
+		if (null != ctx) {
+			ctx.packetVersion = version;
+		}
+	}
+
+	/** 设置指定 Session 是否支持大数据包分片。
+	 */
+	protected void setFragmentEnabled(Session session, boolean enabled) {
+		TalkSessionContext ctx = this.sessionContexts.get(session);
+		if (null != ctx) {
+			ctx.fragmentEnabled = enabled;
+		}
+	}
+
+	/** 设置指定 Session 是否支持拆分批量数据包，支持时发往该 Session 的小数据包在发送时合并。
+	 */
+	protected void setBatchEnabled(Session session, boolean enabled) {
+		session.setCoalescer(enabled ? this.coalescer : null);
+	}
+
+	/** 重组指定 Session 发来的分片包。
+	 * 
+	 * 未协商分片的 Session 发来的分片包被丢弃。
+	 * 
+	 * @return 全部分片到达后返回完整数据包，否则返回 null 。
+	 */
+	protected Packet reassemble(Session session, Packet fragment) {
+		TalkSessionContext ctx = this.sessionContexts.get(session);
+		if (null == ctx) {
+			return null;
+		}
+
+		if (!ctx.fragmentEnabled) {
+			Logger.w(TalkService.class, "Drop fragment from session " + session.getId()
+					+ ", fragmentation is not negotiated");
+			return null;
+		}
+
+		return ctx.getReassembler().reassemble(fragment);
+	}
+
+	/** 向 Session 发送数据包，对端支持分片时超过分片长度的数据包分片发送。
+	 */
+	private boolean writePacket(TalkSessionContext ctx, Session session, Packet packet) {
+		if (!ctx.fragmentEnabled || !this.fragmenter.isOversize(packet)) {
+			// 直接打包到会话的发送缓存
+			return session.write(packet);
+		}
+
+		List<Packet> fragments = this.fragmenter.fragment(packet);
+		if (null == fragments) {
+			return false;
+		}
+
+		// 分片数量可能很多，使用堆内存数据，避免占满缓存池
+		boolean interleaved = this.fragmenter.isInterleaved();
+		for (int i = 0, size = fragments.size(); i < size; ++i) {
+			Message message = new Message(Packet.pack(fragments.get(i)));
+			if (interleaved) {
+				session.writeBulk(message);
+			}
+			else {
+				session.write(message);
+			}
+		}
+		return true;
+	}
+
 	/** 返回 Session 证书。
 	 */
 	protected Certificate getCertificate(Session session) {
@@ -1083,6 +1449,16 @@ public final class TalkService implements Service, SpeakerDelegate {
 		Packet packet = new Packet(TalkDefinition.TPT_INTERROGATE, 1, 1, 0);
 		packet.appendSubsegment(ciphertext);
 		packet.appendSubsegment(key.getBytes());
+		if (null != this.acceptor.getFraming()) {
+			// 告知客户端支持长度前缀帧
+			packet.appendSubsegment(TalkDefinition.FRAMING_LENGTH);
+		}
+		// 告知客户端支持二进制包头
+		packet.appendSubsegment(TalkDefinition.PACKET_BINARY);
+		// 告知客户端支持大数据包分片
+		packet.appendSubsegment(TalkDefinition.PACKET_FRAGMENT);
+		// 告知客户端支持批量数据包
+		packet.appendSubsegment(TalkDefinition.PACKET_BATCH);
 
 		byte[] data = Packet.pack(packet);
 		if (null != data) {
@@ -1094,40 +1470,34 @@ public final class TalkService implements Service, SpeakerDelegate {
 		packet = null;
 	}
 
-	private Message packetResume(String targetTag, Long timestamp, Primitive primitive) {
+	private Packet packetResume(String targetTag, Long timestamp, Primitive primitive, int version) {
 		// 包格式：目的标签|时间戳|原语序列
 
 		// 序列化原语
 		ByteArrayOutputStream stream = primitive.write();
 
 		// 封装数据包
-		Packet packet = new Packet(TalkDefinition.TPT_RESUME, 6, 1, 0);
+		Packet packet = new Packet(TalkDefinition.TPT_RESUME, 6, version, 0);
 		packet.appendSubsegment(Utils.string2Bytes(targetTag));
 		packet.appendSubsegment(Utils.string2Bytes(timestamp.toString()));
 		packet.appendSubsegment(stream.toByteArray());
 
-		// 打包数据
-		byte[] data = Packet.pack(packet);
-		Message message = new Message(data);
-		return message;
+		return packet;
 	}
 
 	/** 打包对话原语。
 	 */
-	private Message packetDialogue(Primitive primitive) {
+	private Packet packetDialogue(Primitive primitive, int version) {
 		// 包格式：原语序列
 
 		// 序列化原语
 		ByteArrayOutputStream stream = primitive.write();
 
 		// 封装数据包
-		Packet packet = new Packet(TalkDefinition.TPT_DIALOGUE, 99, 1, 0);
+		Packet packet = new Packet(TalkDefinition.TPT_DIALOGUE, 99, version, 0);
 		packet.setBody(stream.toByteArray());
 
-		// 打包数据
-		byte[] data = Packet.pack(packet);
-		Message message = new Message(data);
-		return message;
+		return packet;
 	}
 
 	/** 会话身份证书。
@@ -95,15 +95,13 @@ public final class TalkServiceDaemon extends Thread {
 							buf.append("Retry call cellet ");
 							buf.append(speaker.getIdentifier());
 							buf.append(" at ");
-							buf.append(speaker.getAddress().getAddress().getHostAddress());
-							buf.append(":");
-							buf.append(speaker.getAddress().getPort());
+							buf.append(speaker.getRemoteAddress());
 							Logger.d(TalkServiceDaemon.class, buf.toString());
 							buf = null;
 						}
 
 						// 重连
-						speaker.call(speaker.getAddress());
+						speaker.call(speaker.getRemoteAddress());
 					}
 				}
 			}
@@ -30,6 +30,7 @@ import java.net.InetSocketAddress;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import net.cellcloud.common.PacketReassembler;
 import net.cellcloud.common.Session;
 
 /** Talk 会话上下文。
@@ -45,6 +46,15 @@ public final class TalkSessionContext {
 
 	public long tickTime = 0;
 
+	/// 发送数据包使用的主版本号，协商使用二进制包头后更新
+	protected volatile int packetVersion = 1;
+
+	/// 对端是否支持大数据包分片
+	protected volatile boolean fragmentEnabled = false;
+
+	/// 分片重组器，收到第一个分片时创建
+	private PacketReassembler reassembler;
+
 	/** 构造函数。
 	 */
 	public TalkSessionContext(Session session) {
@@ -82,6 +92,15 @@ public final class TalkSessionContext {
 		return tracker;
 	}
 
+	/** 返回分片重组器。
+	 */
+	protected synchronized PacketReassembler getReassembler() {
+		if (null == this.reassembler) {
+			this.reassembler = new PacketReassembler();
+		}
+		return this.reassembler;
+	}
+
 	/** 删除 Tracker 。
 	 */
 	public void removeTracker(final String tag) {
@@ -119,9 +119,6 @@ public final class PrimitiveSerializer {
 			stream.write(version);
 			stream.write((int)TOKEN_CLOSE_BRACKET);
 
-			ByteBuffer buf = ByteBuffer.allocate(BLOCK);
-			int bufLength = 0;
-
 			// 语素
 			if (null != primitive.subjects()) {
 				Iterator<SubjectStuff> iter = primitive.subjects().iterator();
@@ -131,12 +128,7 @@ public final class PrimitiveSerializer {
 					stream.write(STUFFTYPE_SUBJECT_BYTES);
 					stream.write((int)TOKEN_OPERATE_ASSIGN);
 
-					bufLength = reviseValue(buf, stuff.value.getBytes(Charset.forName("UTF8")));
-					buf.flip();
-					byte[] d = new byte[bufLength];
-					buf.get(d, 0, bufLength);
-					stream.write(d);
-					buf.clear();
+					reviseValue(stream, stuff.value.getBytes(Charset.forName("UTF8")));
 
 					stream.write((int)TOKEN_OPERATE_DECLARE);
 					stream.write(parseLiteralBase(stuff.literalBase));
@@ -151,12 +143,7 @@ public final class PrimitiveSerializer {
 					stream.write(STUFFTYPE_PREDICATE_BYTES);
 					stream.write((int)TOKEN_OPERATE_ASSIGN);
 
-					bufLength = reviseValue(buf, stuff.value.getBytes(Charset.forName("UTF8")));
-					buf.flip();
-					byte[] d = new byte[bufLength];
-					buf.get(d, 0, bufLength);
-					stream.write(d);
-					buf.clear();
+					reviseValue(stream, stuff.value.getBytes(Charset.forName("UTF8")));
 
 					stream.write((int)TOKEN_OPERATE_DECLARE);
 					stream.write(parseLiteralBase(stuff.literalBase));
@@ -171,12 +158,7 @@ public final class PrimitiveSerializer {
 					stream.write(STUFFTYPE_OBJECTIVE_BYTES);
 					stream.write((int)TOKEN_OPERATE_ASSIGN);
 
-					bufLength = reviseValue(buf, stuff.value.getBytes(Charset.forName("UTF8")));
-					buf.flip();
-					byte[] d = new byte[bufLength];
-					buf.get(d, 0, bufLength);
-					stream.write(d);
-					buf.clear();
+					reviseValue(stream, stuff.value.getBytes(Charset.forName("UTF8")));
 
 					stream.write((int)TOKEN_OPERATE_DECLARE);
 					stream.write(parseLiteralBase(stuff.literalBase));
@@ -191,12 +173,7 @@ public final class PrimitiveSerializer {
 					stream.write(STUFFTYPE_ADVERBIAL_BYTES);
 					stream.write((int)TOKEN_OPERATE_ASSIGN);
 
-					bufLength = reviseValue(buf, stuff.value.getBytes(Charset.forName("UTF8")));
-					buf.flip();
-					byte[] d = new byte[bufLength];
-					buf.get(d, 0, bufLength);
-					stream.write(d);
-					buf.clear();
+					reviseValue(stream, stuff.value.getBytes(Charset.forName("UTF8")));
 
 					stream.write((int)TOKEN_OPERATE_DECLARE);
 					stream.write(parseLiteralBase(stuff.literalBase));
@@ -211,12 +188,7 @@ public final class PrimitiveSerializer {
 					stream.write(STUFFTYPE_ATTRIBUTIVE_BYTES);
 					stream.write((int)TOKEN_OPERATE_ASSIGN);
 
-					bufLength = reviseValue(buf, stuff.value.getBytes(Charset.forName("UTF8")));
-					buf.flip();
-					byte[] d = new byte[bufLength];
-					buf.get(d, 0, bufLength);
-					stream.write(d);
-					buf.clear();
+					reviseValue(stream, stuff.value.getBytes(Charset.forName("UTF8")));
 
 					stream.write((int)TOKEN_OPERATE_DECLARE);
 					stream.write(parseLiteralBase(stuff.literalBase));
@@ -231,12 +203,7 @@ public final class PrimitiveSerializer {
 					stream.write(STUFFTYPE_COMPLEMENT_BYTES);
 					stream.write((int)TOKEN_OPERATE_ASSIGN);
 
-					bufLength = reviseValue(buf, stuff.value.getBytes(Charset.forName("UTF8")));
-					buf.flip();
-					byte[] d = new byte[bufLength];
-					buf.get(d, 0, bufLength);
-					stream.write(d);
-					buf.clear();
+					reviseValue(stream, stuff.value.getBytes(Charset.forName("UTF8")));
 
 					stream.write((int)TOKEN_OPERATE_DECLARE);
 					stream.write(parseLiteralBase(stuff.literalBase));
@@ -280,6 +247,10 @@ public final class PrimitiveSerializer {
 			int length = 0;
 
 			while ((read = stream.read()) >= 0) {
+				// 每次最多写入两个字节，空间不足时扩容
+				if (buf.remaining() < 2) {
+					buf = expand(buf);
+				}
 
 				// 判断处理阶段
 				switch (phase) {
@@ -457,10 +428,10 @@ public final class PrimitiveSerializer {
 		}
 	}
 
-	/** 进行数据内容转义。
+	/** 进行数据内容转义，直接写入数据流。
 	 */
-	private static int reviseValue(ByteBuffer buf, byte[] input) {
-		int length = 0;
+	private static void reviseValue(OutputStream stream, byte[] input) throws IOException {
+		int begin = 0;
 		int inputLength = input.length;
 
 		for (int i = 0; i < inputLength; ++i) {
@@ -469,15 +440,23 @@ public final class PrimitiveSerializer {
 				|| b == TOKEN_CLOSE_BRACE
 				|| b == TOKEN_OPERATE_ASSIGN
 				|| b == TOKEN_OPERATE_DECLARE) {
-				buf.put((byte) '\\');
-				++length;
+				// 写入转义符之前的数据
+				stream.write(input, begin, i - begin);
+				stream.write('\\');
+				begin = i;
 			}
-
-			buf.put(b);
-			++length;
 		}
 
-		return length;
+		stream.write(input, begin, inputLength - begin);
+	}
+
+	/** 将缓存容量扩大一倍。
+	 */
+	private static ByteBuffer expand(ByteBuffer buf) {
+		ByteBuffer newBuf = ByteBuffer.allocate(buf.capacity() * 2);
+		buf.flip();
+		newBuf.put(buf);
+		return newBuf;
 	}
 
 	/** 解析字面义。
@@ -0,0 +1,66 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+/** 依次执行所有单元测试，有测试失败时以非零状态退出。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class AllTests {
+
+	private AllTests() {
+	}
+
+	public static void main(String[] args) {
+		TestCase[] tests = new TestCase[] {
+			new WriteQueueTest(),
+			new DataMarkDecoderTest(),
+			new LengthFrameDecoderTest(),
+			new MessageTest(),
+			new CompressionContextTest(),
+			new DatagramSessionTest(),
+			new PacketTest(),
+			new PacketFragmenterTest(),
+			new PacketCoalescerTest(),
+			new NonblockingAcceptorTest(),
+			new NonblockingConnectorTest(),
+			new OrderedDispatchHandlerTest()
+		};
+
+		int failed = 0;
+		for (TestCase test : tests) {
+			failed += test.run();
+		}
+
+		if (failed > 0) {
+			System.out.println(failed + " test(s) failed.");
+			System.exit(1);
+		}
+
+		System.out.println("All tests passed.");
+	}
+}
@@ -0,0 +1,210 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+/** 压缩上下文测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class CompressionContextTest extends TestCase {
+
+	public CompressionContextTest() {
+	}
+
+	public void testDisabled() {
+		CompressionContext context = new CompressionContext();
+		assertFalse("disabled by default", context.isEnabled());
+		assertFalse("not acceptable by default", context.isAcceptable());
+		assertNull("not deflated", context.deflate(new Message(text(4096))));
+	}
+
+	public void testThreshold() {
+		CompressionContext context = enabledContext();
+		context.setThreshold(2048);
+		assertNull("below threshold", context.deflate(new Message(text(2047))));
+		assertNotNull("at threshold", context.deflate(new Message(text(2048))));
+	}
+
+	public void testIncompressible() {
+		CompressionContext context = enabledContext();
+		byte[] data = new byte[4096];
+		new Random(1).nextBytes(data);
+		assertNull("random data does not shrink", context.deflate(new Message(data)));
+		assertEquals("deflated messages", 0, context.getDeflatedMessages());
+	}
+
+	public void testRoundTrip() {
+		CompressionContext context = enabledContext();
+		byte[] data = text(10000);
+		ByteBuffer deflated = context.deflate(new Message(data));
+		assertNotNull("deflated", deflated);
+		assertTrue("smaller", deflated.remaining() < data.length);
+
+		ByteBuffer inflated = context.inflate(deflated, deflated.position(), deflated.limit(), data.length);
+		assertNotNull("inflated", inflated);
+		assertArrayEquals("data", data, bytes(inflated));
+		assertEquals("deflated messages", 1, context.getDeflatedMessages());
+		assertEquals("inflated messages", 1, context.getInflatedMessages());
+		assertEquals("raw bytes", data.length, context.getDeflateRawBytes());
+	}
+
+	public void testBufferedMessage() {
+		CompressionContext context = enabledContext();
+		byte[] data = text(5000);
+		ByteBufferPool pool = new ByteBufferPool();
+		ByteBuffer buffer = pool.borrowBuffer(data.length);
+		buffer.clear();
+		buffer.put(data);
+		buffer.flip();
+		Message message = new Message(buffer, pool);
+
+		ByteBuffer deflated = context.deflate(message);
+		assertNotNull("deflated", deflated);
+		assertEquals("message data untouched", data.length, message.getBuffer().remaining());
+		ByteBuffer inflated = context.inflate(deflated, deflated.position(), deflated.limit(), data.length);
+		assertArrayEquals("data", data, bytes(inflated));
+		message.release();
+	}
+
+	public void testOutputReusedAcrossBatches() {
+		CompressionContext context = enabledContext();
+		byte[] d1 = text(3000);
+		byte[] d2 = sample(3000, 9);
+
+		// 同一批次的压缩帧互不覆盖
+		ByteBuffer f1 = context.deflate(new Message(d1));
+		byte[] c1 = bytes(f1);
+		ByteBuffer f2 = context.deflate(new Message(d2));
+		assertArrayEquals("first frame kept", c1, bytes(f1));
+		assertArrayEquals("second frame", d2, bytes(context.inflate(f2, f2.position(), f2.limit(), d2.length)));
+		assertArrayEquals("first frame", d1, bytes(context.inflate(f1, f1.position(), f1.limit(), d1.length)));
+
+		// 新批次复用输出缓存
+		context.rewind();
+		ByteBuffer f3 = context.deflate(new Message(d2));
+		assertArrayEquals("third frame", d2, bytes(context.inflate(f3, f3.position(), f3.limit(), d2.length)));
+		assertTrue("output reused", f3.array() == f2.array());
+	}
+
+	public void testInflateLimits() {
+		CompressionContext context = enabledContext();
+		byte[] data = text(4000);
+		ByteBuffer deflated = context.deflate(new Message(data));
+		assertNull("exceeds max length",
+				context.inflate(deflated, deflated.position(), deflated.limit(), data.length - 1));
+
+		byte[] broken = bytes(deflated);
+		for (int i = 8; i < broken.length; ++i) {
+			broken[i] = (byte) ~broken[i];
+		}
+		assertNull("broken data", context.inflate(ByteBuffer.wrap(broken), 0, broken.length, data.length));
+		assertNull("too short", context.inflate(ByteBuffer.wrap(new byte[3]), 0, 3, data.length));
+	}
+
+	public void testCompressedFrameRequiresAgreement() throws Exception {
+		byte[] data = text(8000);
+		byte[] stream = compressedStream(data);
+
+		LengthFrameDecoder decoder = new LengthFrameDecoder(null);
+		List<Message> output = DataMarkDecoderTest.decode(decoder, 0, stream);
+		assertEquals("dropped without context", 0, output.size());
+
+		CompressionContext context = new CompressionContext();
+		decoder = new LengthFrameDecoder(null);
+		decoder.setCompression(context);
+		output = DataMarkDecoderTest.decode(decoder, 0, stream);
+		assertEquals("dropped without agreement", 0, output.size());
+
+		context.setAcceptable(true);
+		decoder = new LengthFrameDecoder(null);
+		decoder.setCompression(context);
+		output = DataMarkDecoderTest.decode(decoder, 100, stream);
+		assertEquals("frames", 1, output.size());
+		assertArrayEquals("data", data, output.get(0).get());
+	}
+
+	public void testWriteQueueRoundTrip() throws Exception {
+		CompressionContext sender = enabledContext();
+		byte[] m1 = text(6000);
+		byte[] m2 = sample(10, 1);
+		byte[] m3 = text(20000);
+
+		WriteQueue queue = new WriteQueue();
+		queue.offer(new Message(m1));
+		queue.offer(new Message(m2));
+		queue.offer(new Message(m3));
+		WriteQueueTest.LimitedChannel channel = new WriteQueueTest.LimitedChannel(1000);
+		int rounds = 0;
+		while (!queue.write(channel, new LengthFraming(), sender, null)) {
+			channel.permit(1000);
+			assertTrue("write makes progress", ++rounds < 1000);
+		}
+		assertEquals("deflated messages", 2, sender.getDeflatedMessages());
+		assertTrue("fewer bytes written", channel.toByteArray().length < m1.length + m3.length);
+
+		CompressionContext receiver = new CompressionContext();
+		receiver.setAcceptable(true);
+		LengthFrameDecoder decoder = new LengthFrameDecoder(null);
+		decoder.setCompression(receiver);
+		List<Message> output = DataMarkDecoderTest.decode(decoder, 777, channel.toByteArray());
+		assertEquals("frames", 3, output.size());
+		assertArrayEquals("message 1", m1, output.get(0).get());
+		assertArrayEquals("message 2", m2, output.get(1).get());
+		assertArrayEquals("message 3", m3, output.get(2).get());
+	}
+
+	private static CompressionContext enabledContext() {
+		CompressionContext context = new CompressionContext();
+		context.setEnabled(true);
+		return context;
+	}
+
+	/** 返回一个压缩帧。
+	 */
+	private static byte[] compressedStream(byte[] data) {
+		CompressionContext context = enabledContext();
+		Message message = new Message(data);
+		ByteBuffer deflated = context.deflate(message);
+		ByteBuffer head = new LengthFraming().encodeCompressedHead(message, deflated.remaining());
+		return concat(bytes(head), bytes(deflated));
+	}
+
+	/** 返回可压缩的文本数据。
+	 */
+	private static byte[] text(int length) {
+		byte[] data = new byte[length];
+		byte[] words = "cell cloud talk service speaker ".getBytes();
+		for (int i = 0; i < length; ++i) {
+			data[i] = words[(i * 7 / 5) % words.length];
+		}
+		return data;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** 数据掩码解码器测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class DataMarkDecoderTest extends TestCase {
+
+	private static final byte[] HEAD = new byte[] {0x20, 0x10, 0x11, 0x10};
+	private static final byte[] TAIL = new byte[] {0x19, 0x78, 0x10, 0x04};
+
+	public DataMarkDecoderTest() {
+	}
+
+	public void testIndexOf() {
+		byte[] pattern = new byte[] {1, 2, 1};
+		int[] shift = FrameDecoder.createShiftTable(pattern);
+		ByteBuffer data = ByteBuffer.wrap(new byte[] {0, 1, 2, 0, 1, 2, 1, 5});
+		assertEquals("found", 4, FrameDecoder.indexOf(data, 0, 8, pattern, shift));
+		assertEquals("not found before end", -1, FrameDecoder.indexOf(data, 0, 6, pattern, shift));
+		assertEquals("found at start", 4, FrameDecoder.indexOf(data, 4, 7, pattern, shift));
+		assertEquals("range after match", -1, FrameDecoder.indexOf(data, 5, 8, pattern, shift));
+	}
+
+	public void testSingleRead() {
+		byte[] f1 = sample(10, 1);
+		byte[] f2 = sample(300, 2);
+		List<Message> output = decode(new DataMarkDecoder(HEAD, TAIL), 0, frame(f1), frame(f2));
+		assertEquals("frames", 2, output.size());
+		assertArrayEquals("frame 1", f1, output.get(0).get());
+		assertArrayEquals("frame 2", f2, output.get(1).get());
+	}
+
+	public void testEveryChunkSize() {
+		byte[] f1 = sample(7, 1);
+		byte[] f2 = sample(1500, 2);
+		byte[] f3 = sample(1, 3);
+		byte[] stream = concat(frame(f1), frame(f2), frame(f3));
+
+		// 每种切分长度都会在掩码内部或者帧数据中间截断数据
+		for (int chunk = 1; chunk <= 32; ++chunk) {
+			ByteBufferPool pool = new ByteBufferPool();
+			DataMarkDecoder decoder = new DataMarkDecoder(HEAD, TAIL, pool);
+			List<Message> output = decode(decoder, chunk, stream);
+			assertEquals("frames with chunk " + chunk, 3, output.size());
+			assertArrayEquals("frame 1 with chunk " + chunk, f1, output.get(0).get());
+			assertArrayEquals("frame 2 with chunk " + chunk, f2, output.get(1).get());
+			assertArrayEquals("frame 3 with chunk " + chunk, f3, output.get(2).get());
+			assertEquals("pending length", 0, decoder.getPendingLength());
+			assertEquals("borrowed buffers", 0, pool.getBorrowedNum());
+		}
+	}
+
+	public void testSkipGarbage() {
+		byte[] f1 = sample(20, 1);
+		byte[] stream = concat(new byte[] {1, 2, 0x20, 0x10, 3}, frame(f1), new byte[] {9, 9});
+		List<Message> output = decode(new DataMarkDecoder(HEAD, TAIL), 3, stream);
+		assertEquals("frames", 1, output.size());
+		assertArrayEquals("frame", f1, output.get(0).get());
+	}
+
+	public void testPendingData() {
+		DataMarkDecoder decoder = new DataMarkDecoder(HEAD, TAIL);
+		byte[] data = frame(sample(50, 1));
+		List<Message> output = new ArrayList<Message>();
+		decoder.decode(ByteBuffer.wrap(data, 0, 30), output);
+		assertEquals("no frame yet", 0, output.size());
+		assertEquals("pending length", 30, decoder.getPendingLength());
+
+		decoder.reset();
+		assertEquals("pending length after reset", 0, decoder.getPendingLength());
+	}
+
+	public void testMaxFrameLength() {
+		DataMarkDecoder decoder = new DataMarkDecoder(HEAD, TAIL);
+		decoder.setMaxFrameLength(100);
+		byte[] small = sample(10, 2);
+		List<Message> output = decode(decoder, 16, frame(sample(200, 1)), frame(small));
+		assertEquals("oversize frame dropped", 1, output.size());
+		assertArrayEquals("next frame", small, output.get(0).get());
+	}
+
+	public void testPooledFrame() {
+		ByteBufferPool pool = new ByteBufferPool();
+		DataMarkDecoder decoder = new DataMarkDecoder(HEAD, TAIL, pool);
+		decoder.setPooledFrame(true);
+		byte[] small = sample(10, 1);
+		byte[] large = sample(FrameDecoder.POOLED_FRAME_THRESHOLD + 10, 2);
+		List<Message> output = decode(decoder, 100, frame(small), frame(large));
+		assertEquals("frames", 2, output.size());
+		assertFalse("small frame is copied", output.get(0).hasBuffer());
+		assertTrue("large frame is pooled", output.get(1).hasBuffer());
+		assertArrayEquals("large frame", large, bytes(output.get(1).getBuffer()));
+
+		assertTrue("buffer returned", output.get(1).release());
+		assertEquals("borrowed buffers", 0, pool.getBorrowedNum());
+	}
+
+	private static byte[] frame(byte[] data) {
+		return concat(HEAD, data, TAIL);
+	}
+
+	/** 按指定长度分块解码数据流，chunk 为 0 时每段数据一次解码。
+	 */
+	protected static List<Message> decode(FrameDecoder decoder, int chunk, byte[]... data) {
+		List<Message> output = new ArrayList<Message>();
+		if (chunk <= 0) {
+			for (byte[] d : data) {
+				decoder.decode(ByteBuffer.wrap(d), output);
+			}
+			return output;
+		}
+
+		byte[] stream = concat(data);
+		for (int offset = 0; offset < stream.length; offset += chunk) {
+			int length = Math.min(chunk, stream.length - offset);
+			// 使用独立缓存，避免解码器引用调用方的数组
+			ByteBuffer input = ByteBuffer.allocate(length);
+			input.put(stream, offset, length);
+			input.flip();
+			decoder.decode(input, output);
+		}
+		return output;
+	}
+}
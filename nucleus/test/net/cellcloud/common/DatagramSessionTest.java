@@ -0,0 +1,134 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+/** 数据报会话去重窗口测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class DatagramSessionTest extends TestCase {
+
+	private static final int WINDOW = DatagramSession.RELIABLE_WINDOW;
+
+	public DatagramSessionTest() {
+	}
+
+	public void testInOrder() {
+		DatagramSession session = new DatagramSession(null, null);
+		for (int sn = 1; sn <= 100; ++sn) {
+			assertFalse("new sequence " + sn, session.checkDuplicate(sn));
+		}
+		assertEquals("base", 100, session.reliableBase);
+		assertTrue("duplicate", session.checkDuplicate(100));
+		assertTrue("duplicate", session.checkDuplicate(1));
+	}
+
+	public void testFirstDatagramOvertaken() {
+		DatagramSession session = new DatagramSession(null, null);
+		// 序号 2 先于序号 1 到达
+		assertFalse("sequence 2", session.checkDuplicate(2));
+		assertFalse("sequence 1", session.checkDuplicate(1));
+		assertEquals("base", 2, session.reliableBase);
+		assertTrue("duplicate 1", session.checkDuplicate(1));
+		assertTrue("duplicate 2", session.checkDuplicate(2));
+	}
+
+	public void testOutOfOrder() {
+		DatagramSession session = new DatagramSession(null, null);
+		int[] order = new int[] {3, 1, 5, 4, 2, 7, 6};
+		for (int sn : order) {
+			assertFalse("new sequence " + sn, session.checkDuplicate(sn));
+			assertTrue("duplicate " + sn, session.checkDuplicate(sn));
+		}
+		assertEquals("base", 7, session.reliableBase);
+		assertEquals("no gaps", 0, session.reliableReceived.cardinality());
+	}
+
+	public void testGapInsideWindow() {
+		DatagramSession session = new DatagramSession(null, null);
+		assertFalse("sequence 1", session.checkDuplicate(1));
+		assertFalse("sequence 3", session.checkDuplicate(3));
+		assertEquals("base waits for the gap", 1, session.reliableBase);
+		assertFalse("late sequence 2", session.checkDuplicate(2));
+		assertEquals("base", 3, session.reliableBase);
+	}
+
+	public void testWindowAdvance() {
+		DatagramSession session = new DatagramSession(null, null);
+		assertFalse("sequence 1", session.checkDuplicate(1));
+		// 序号 2 丢失，超出窗口后放弃等待
+		int far = 2 + WINDOW;
+		assertFalse("far sequence", session.checkDuplicate(far));
+		assertEquals("base", 2, session.reliableBase);
+		assertTrue("given up sequence is dropped", session.checkDuplicate(2));
+		for (int sn = 3; sn < far; ++sn) {
+			assertFalse("sequence " + sn, session.checkDuplicate(sn));
+		}
+		assertEquals("base", far, session.reliableBase);
+	}
+
+	public void testPeerRestart() {
+		DatagramSession session = new DatagramSession(null, null);
+		int last = WINDOW * 3;
+		for (int sn = 1; sn <= last; ++sn) {
+			session.checkDuplicate(sn);
+		}
+
+		// 回退不超过窗口时视为重复消息
+		assertTrue("recent duplicate", session.checkDuplicate(last - WINDOW + 1));
+
+		// 对端重启后重新从 1 开始编号
+		assertFalse("restarted sequence 1", session.checkDuplicate(1));
+		assertFalse("restarted sequence 2", session.checkDuplicate(2));
+		assertTrue("duplicate after restart", session.checkDuplicate(1));
+		assertEquals("base", 2, session.reliableBase);
+	}
+
+	public void testStale() {
+		DatagramSession session = new DatagramSession(null, null);
+		assertFalse("first", session.checkStale(5));
+		assertFalse("newer", session.checkStale(6));
+		assertTrue("same", session.checkStale(6));
+		assertTrue("older", session.checkStale(4));
+		assertFalse("skip ahead", session.checkStale(10));
+	}
+
+	public void testStaleAfterRestart() {
+		DatagramSession session = new DatagramSession(null, null);
+		int last = WINDOW * 2;
+		assertFalse("last", session.checkStale(last));
+		assertTrue("inside window", session.checkStale(last - WINDOW));
+		assertFalse("restarted", session.checkStale(1));
+		assertFalse("after restart", session.checkStale(2));
+	}
+
+	public void testSequenceWrap() {
+		DatagramSession session = new DatagramSession(null, null);
+		assertFalse("max", session.checkStale(Integer.MAX_VALUE));
+		assertFalse("wrapped", session.checkStale(Integer.MIN_VALUE));
+	}
+}
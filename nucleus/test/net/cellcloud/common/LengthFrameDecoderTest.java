@@ -0,0 +1,135 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** 长度前缀帧解码器测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class LengthFrameDecoderTest extends TestCase {
+
+	private static final byte[] HEAD = new byte[] {0x20, 0x10, 0x11, 0x10};
+	private static final byte[] TAIL = new byte[] {0x19, 0x78, 0x10, 0x04};
+
+	public LengthFrameDecoderTest() {
+	}
+
+	public void testHead() {
+		LengthFraming framing = new LengthFraming();
+		ByteBuffer head = framing.encodeHead(new Message(sample(300, 1)));
+		assertEquals("head length", LengthFraming.HEAD_LENGTH, head.remaining());
+		assertEquals("magic", LengthFraming.MAGIC[0], head.get(0));
+		assertEquals("magic", LengthFraming.MAGIC[1], head.get(1));
+		assertEquals("flags", 0, head.get(2));
+		assertEquals("length", 300, head.getInt(4));
+		assertNull("no tail", framing.encodeTail(new Message(sample(1, 1))));
+
+		ByteBuffer compressed = framing.encodeCompressedHead(new Message(sample(300, 1)), 120);
+		assertEquals("deflate flag", LengthFraming.FLAG_DEFLATE, compressed.get(2));
+		assertEquals("compressed length", 120, compressed.getInt(4));
+	}
+
+	public void testEveryChunkSize() {
+		byte[] f1 = sample(5, 1);
+		byte[] f2 = sample(2000, 2);
+		byte[] f3 = new byte[0];
+		byte[] f4 = sample(1, 4);
+		byte[] stream = concat(frame(f1), frame(f2), frame(f3), frame(f4));
+
+		for (int chunk = 1; chunk <= 20; ++chunk) {
+			ByteBufferPool pool = new ByteBufferPool();
+			LengthFrameDecoder decoder = new LengthFrameDecoder(pool);
+			List<Message> output = DataMarkDecoderTest.decode(decoder, chunk, stream);
+			assertEquals("frames with chunk " + chunk, 4, output.size());
+			assertArrayEquals("frame 1 with chunk " + chunk, f1, output.get(0).get());
+			assertArrayEquals("frame 2 with chunk " + chunk, f2, output.get(1).get());
+			assertEquals("empty frame with chunk " + chunk, 0, output.get(2).length());
+			assertArrayEquals("frame 4 with chunk " + chunk, f4, output.get(3).get());
+			assertEquals("pending length", 0, decoder.getPendingLength());
+			assertEquals("borrowed buffers", 0, pool.getBorrowedNum());
+		}
+	}
+
+	public void testMixedMarkFrames() {
+		byte[] f1 = sample(30, 1);
+		byte[] f2 = sample(40, 2);
+		byte[] f3 = sample(50, 3);
+		// 协商帧格式前使用数据掩码帧，协商后使用长度前缀帧
+		byte[] stream = concat(HEAD, f1, TAIL, frame(f2), HEAD, f3, TAIL);
+
+		for (int chunk = 1; chunk <= 12; ++chunk) {
+			LengthFrameDecoder decoder = new LengthFrameDecoder(HEAD, TAIL, null);
+			List<Message> output = DataMarkDecoderTest.decode(decoder, chunk, stream);
+			assertEquals("frames with chunk " + chunk, 3, output.size());
+			assertArrayEquals("mark frame with chunk " + chunk, f1, output.get(0).get());
+			assertArrayEquals("length frame with chunk " + chunk, f2, output.get(1).get());
+			assertArrayEquals("mark frame with chunk " + chunk, f3, output.get(2).get());
+		}
+	}
+
+	public void testResynchronize() {
+		byte[] f1 = sample(16, 1);
+		byte[] stream = concat(new byte[] {7, 7, LengthFraming.MAGIC[0], 3}, frame(f1));
+		List<Message> output = DataMarkDecoderTest.decode(new LengthFrameDecoder(null), 3, stream);
+		assertEquals("frames", 1, output.size());
+		assertArrayEquals("frame", f1, output.get(0).get());
+	}
+
+	public void testMaxFrameLength() {
+		LengthFrameDecoder decoder = new LengthFrameDecoder(null);
+		decoder.setMaxFrameLength(100);
+		byte[] small = sample(10, 2);
+		// 超长帧的帧头被跳过，帧数据中没有魔数时直接到达下一帧
+		byte[] oversize = new byte[200];
+		List<Message> output = DataMarkDecoderTest.decode(decoder, 0, frame(oversize), frame(small));
+		assertEquals("oversize frame dropped", 1, output.size());
+		assertArrayEquals("next frame", small, output.get(0).get());
+	}
+
+	public void testWriteQueueRoundTrip() throws Exception {
+		WriteQueue queue = new WriteQueue();
+		byte[] m1 = sample(100, 1);
+		byte[] m2 = sample(3000, 2);
+		queue.offer(new Message(m1));
+		queue.offer(new Message(m2));
+
+		WriteQueueTest.LimitedChannel channel = new WriteQueueTest.LimitedChannel(Integer.MAX_VALUE);
+		assertTrue("write completes", queue.write(channel, new LengthFraming(), null, null));
+
+		List<Message> output = DataMarkDecoderTest.decode(new LengthFrameDecoder(null), 1000, channel.toByteArray());
+		assertEquals("frames", 2, output.size());
+		assertArrayEquals("message 1", m1, output.get(0).get());
+		assertArrayEquals("message 2", m2, output.get(1).get());
+	}
+
+	protected static byte[] frame(byte[] data) {
+		return concat(bytes(new LengthFraming().encodeHead(new Message(data))), data);
+	}
+}
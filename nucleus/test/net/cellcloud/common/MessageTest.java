@@ -0,0 +1,150 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+
+/** 引用计数消息测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class MessageTest extends TestCase {
+
+	public MessageTest() {
+	}
+
+	public void testByteMessage() {
+		byte[] data = sample(10, 1);
+		Message message = new Message(data);
+		assertFalse("not buffered", message.hasBuffer());
+		assertEquals("ref count", 1, message.refCount());
+		message.retain();
+		assertEquals("ref count is fixed", 1, message.refCount());
+		assertFalse("nothing to return", message.release());
+		assertArrayEquals("data", data, message.get());
+		assertArrayEquals("buffer view", data, bytes(message.getBuffer()));
+	}
+
+	public void testRetainRelease() {
+		ByteBufferPool pool = new ByteBufferPool();
+		byte[] data = sample(100, 2);
+		Message message = pooledMessage(pool, data);
+		assertTrue("buffered", message.hasBuffer());
+		assertEquals("length", 100, message.length());
+		assertEquals("borrowed buffers", 1, pool.getBorrowedNum());
+
+		message.retain();
+		assertEquals("ref count", 2, message.refCount());
+		assertFalse("still referenced", message.release());
+		assertEquals("borrowed buffers", 1, pool.getBorrowedNum());
+		assertArrayEquals("data", data, bytes(message.getBuffer()));
+
+		assertTrue("buffer returned", message.release());
+		assertEquals("ref count", 0, message.refCount());
+		assertEquals("borrowed buffers", 0, pool.getBorrowedNum());
+		assertEquals("idle buffers", 1, pool.getIdleNum());
+
+		// 多余的释放不会重复归还缓存
+		assertFalse("released too many times", message.release());
+		assertEquals("ref count", 0, message.refCount());
+		assertEquals("idle buffers", 1, pool.getIdleNum());
+	}
+
+	public void testBufferViewIsReadOnly() {
+		ByteBufferPool pool = new ByteBufferPool();
+		Message message = pooledMessage(pool, sample(10, 3));
+		ByteBuffer view = message.getBuffer();
+		assertTrue("read only", view.isReadOnly());
+		view.get();
+		assertEquals("view does not move message data", 10, message.getBuffer().remaining());
+		message.release();
+	}
+
+	public void testCopiedDataOutlivesBuffer() {
+		ByteBufferPool pool = new ByteBufferPool();
+		byte[] data = sample(64, 4);
+		Message message = pooledMessage(pool, data);
+		byte[] copy = message.get();
+		assertTrue("buffer returned", message.release());
+		assertArrayEquals("copied data", data, copy);
+		assertTrue("cached copy", copy == message.get());
+	}
+
+	public void testUnpackFromBuffer() {
+		Packet packet = new Packet(new byte[] {'T', 'E', 'S', 'T'}, 7, 1, 0);
+		packet.appendSubsegment(sample(30, 5));
+		packet.appendSubsegment(sample(3, 6));
+
+		ByteBufferPool pool = new ByteBufferPool();
+		Message message = pooledMessage(pool, Packet.pack(packet));
+		Packet unpacked = Packet.unpack(message.getBuffer());
+		assertNotNull("unpacked", unpacked);
+		assertEquals("subsegments", 2, unpacked.getSubsegmentCount());
+		assertArrayEquals("subsegment", sample(30, 5), unpacked.getSubsegment(0));
+		assertTrue("buffer returned", message.release());
+	}
+
+	public void testWriteQueueHoldsReference() throws Exception {
+		ByteBufferPool pool = new ByteBufferPool();
+		Message message = pooledMessage(pool, sample(16, 5));
+
+		WriteQueue queue = new WriteQueue();
+		queue.offer(message);
+		// 写入方释放自己的引用，队列仍然持有
+		assertFalse("queue holds a reference", message.release());
+
+		WriteQueueTest.LimitedChannel channel = new WriteQueueTest.LimitedChannel(Integer.MAX_VALUE);
+		assertTrue("write completes", queue.write(channel, null, null, null));
+		assertArrayEquals("written data", sample(16, 5), channel.toByteArray());
+		Message sent = queue.pollSent();
+		assertTrue("sent message", message == sent);
+		assertTrue("buffer returned", sent.release());
+		assertEquals("borrowed buffers", 0, pool.getBorrowedNum());
+	}
+
+	public void testClearReleasesQueuedMessages() {
+		ByteBufferPool pool = new ByteBufferPool();
+		WriteQueue queue = new WriteQueue();
+		for (int i = 0; i < 3; ++i) {
+			Message message = pooledMessage(pool, sample(16, i));
+			queue.offer(message);
+			message.release();
+		}
+		assertEquals("borrowed buffers", 3, pool.getBorrowedNum());
+
+		queue.clear();
+		assertEquals("borrowed buffers", 0, pool.getBorrowedNum());
+	}
+
+	private static Message pooledMessage(ByteBufferPool pool, byte[] data) {
+		ByteBuffer buffer = pool.borrowBuffer(data.length);
+		buffer.clear();
+		buffer.put(data);
+		buffer.flip();
+		return new Message(buffer, pool);
+	}
+}
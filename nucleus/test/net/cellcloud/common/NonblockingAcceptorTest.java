@@ -0,0 +1,456 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 非阻塞接入器工作线程分配、会话迁移与读取预算测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class NonblockingAcceptorTest extends TestCase {
+
+	// 等待网络事件的超时时间，单位：毫秒
+	private static final long TIMEOUT = 5000;
+
+	public NonblockingAcceptorTest() {
+	}
+
+	public void testSpreadSessions() throws Exception {
+		NonblockingAcceptor acceptor = createAcceptor(4);
+		List<Socket> clients = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < 8; ++i) {
+				clients.add(connect(acceptor));
+			}
+			awaitSessions(acceptor, 8);
+
+			for (int i = 0; i < 4; ++i) {
+				assertEquals("sessions of worker " + i, 2, acceptor.getWorkerSessionNum(i));
+			}
+			assertEquals("invalid worker", 0, acceptor.getWorkerSessionNum(4));
+		} finally {
+			close(clients);
+			acceptor.unbind();
+		}
+	}
+
+	public void testWorkerFigures() throws Exception {
+		NonblockingAcceptor acceptor = createAcceptor(2);
+		Socket client = connect(acceptor);
+		try {
+			byte[] data = sample(3000, 1);
+			send(client, data);
+			Received received = ((Recorder) acceptor.getHandler()).poll();
+			assertArrayEquals("received", data, received.data);
+
+			long bytes = acceptor.getWorkerReceivedBytes(0) + acceptor.getWorkerReceivedBytes(1);
+			assertEquals("received bytes", LengthFraming.HEAD_LENGTH + data.length, bytes);
+			// 处理耗时在回调返回后才累计
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (acceptor.getWorkerBusyTime(0) + acceptor.getWorkerBusyTime(1) == 0) {
+				assertTrue("busy time", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertEquals("invalid worker", 0, acceptor.getWorkerReceivedBytes(-1));
+		} finally {
+			client.close();
+			acceptor.unbind();
+		}
+	}
+
+	public void testMigrateSession() throws Exception {
+		NonblockingAcceptor acceptor = createAcceptor(2);
+		Recorder recorder = (Recorder) acceptor.getHandler();
+		Socket c1 = connect(acceptor);
+		Socket c2 = connect(acceptor);
+		try {
+			awaitSessions(acceptor, 2);
+			NonblockingAcceptorSession s1 = null;
+			NonblockingAcceptorSession s2 = null;
+			for (NonblockingAcceptorSession session : acceptor.getSessions()) {
+				if (session.getAddress().getPort() == c1.getLocalPort()) {
+					s1 = session;
+				}
+				else {
+					s2 = session;
+				}
+			}
+			assertTrue("different workers", s1.worker != s2.worker);
+
+			byte[] before = sample(100, 1);
+			send(c1, before);
+			assertArrayEquals("before migration", before, recorder.poll().data);
+
+			NonblockingAcceptorWorker source = s1.worker;
+			NonblockingAcceptorWorker target = s2.worker;
+			source.migrateSession(s1, target);
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (s1.worker != target || null == s1.selectionKey) {
+				assertTrue("migrated in time", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertEquals("source sessions", 0, source.getReceiveSessionNum());
+			assertEquals("target sessions", 2, target.getReceiveSessionNum());
+
+			// 迁移后读写都由目标工作器处理
+			for (int i = 0; i < 10; ++i) {
+				send(c1, sample(2000, i));
+			}
+			for (int i = 0; i < 10; ++i) {
+				Received received = recorder.poll();
+				assertTrue("same session", received.session == s1);
+				assertArrayEquals("after migration " + i, sample(2000, i), received.data);
+			}
+
+			byte[] reply = sample(5000, 7);
+			assertTrue("upgrade framing", acceptor.upgradeFraming(s1));
+			acceptor.write(s1, new Message(reply));
+			assertArrayEquals("reply", reply, receive(c1));
+		} finally {
+			c1.close();
+			c2.close();
+			acceptor.unbind();
+		}
+	}
+
+	public void testHandlerException() throws Exception {
+		NonblockingAcceptor acceptor = createAcceptor(1);
+		acceptor.setPooledMessage(true);
+		Recorder recorder = (Recorder) acceptor.getHandler();
+		recorder.failLength = 2000;
+		Socket client = connect(acceptor);
+		try {
+			byte[] a = sample(2000, 1);
+			byte[] b = sample(3000, 2);
+			client.getOutputStream().write(concat(LengthFrameDecoderTest.frame(a), LengthFrameDecoderTest.frame(b)));
+			assertArrayEquals("failing message", a, recorder.poll().data);
+			assertArrayEquals("message after failure", b, recorder.poll().data);
+
+			// 已交付的消息不会随下一次解码再次交付
+			byte[] c = sample(100, 3);
+			send(client, c);
+			assertArrayEquals("next message", c, recorder.poll().data);
+			recorder.assertIdle(300);
+		} finally {
+			client.close();
+			acceptor.unbind();
+		}
+	}
+
+	public void testUnbindClosesSessions() throws Exception {
+		NonblockingAcceptor acceptor = createAcceptor(2);
+		Recorder recorder = (Recorder) acceptor.getHandler();
+		List<Socket> clients = new ArrayList<Socket>();
+		try {
+			for (int i = 0; i < 4; ++i) {
+				clients.add(connect(acceptor));
+			}
+			awaitSessions(acceptor, 4);
+
+			// 客户端不读取数据，使其中一个 Session 保留待发送数据
+			NonblockingAcceptorSession stalled = acceptor.getSessions().iterator().next();
+			assertTrue("upgrade framing", acceptor.upgradeFraming(stalled));
+			acceptor.write(stalled, new Message(sample(8 * 1024 * 1024, 1)));
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (!stalled.writeQueue.hasPending()) {
+				assertTrue("pending in time", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+
+			acceptor.unbind();
+
+			// 工作线程退出前关闭全部 Session
+			assertEquals("closed", 4, recorder.closed.get());
+			assertEquals("destroyed", 4, recorder.destroyed.get());
+			assertTrue("sessions removed", acceptor.getSessions().isEmpty());
+			assertFalse("write queue cleared", stalled.writeQueue.hasPending());
+			for (Socket client : clients) {
+				client.setSoTimeout((int) TIMEOUT);
+				InputStream input = client.getInputStream();
+				byte[] buf = new byte[64 * 1024];
+				try {
+					while (input.read(buf) >= 0) {
+						// 丢弃关闭前已发送的数据
+					}
+				} catch (SocketTimeoutException e) {
+					throw new AssertionError("connection not closed");
+				} catch (IOException e) {
+					// 连接被重置同样表示已关闭
+				}
+			}
+		} finally {
+			close(clients);
+			acceptor.unbind();
+		}
+	}
+
+	public void testSmallReadBudget() throws Exception {
+		NonblockingAcceptor acceptor = createAcceptor(1);
+		// 每次唤醒只读取一个读缓存块
+		acceptor.setReadBudget(1);
+		Recorder recorder = (Recorder) acceptor.getHandler();
+		Socket client = connect(acceptor);
+		try {
+			byte[] large = sample(200000, 1);
+			send(client, large);
+			for (int i = 0; i < 50; ++i) {
+				send(client, sample(10 + i, i));
+			}
+
+			assertArrayEquals("large frame", large, recorder.poll().data);
+			for (int i = 0; i < 50; ++i) {
+				assertArrayEquals("small frame " + i, sample(10 + i, i), recorder.poll().data);
+			}
+		} finally {
+			client.close();
+			acceptor.unbind();
+		}
+	}
+
+	public void testReadBudgetFairness() throws Exception {
+		NonblockingAcceptor acceptor = createAcceptor(1);
+		acceptor.setReadBudget(NonblockingAcceptor.DEFAULT_READ_BUDGET);
+		Recorder recorder = (Recorder) acceptor.getHandler();
+		final Socket busy = connect(acceptor);
+		Socket idle = connect(acceptor);
+		final int frames = 256;
+		try {
+			awaitSessions(acceptor, 2);
+
+			// 一个连接持续发送大量数据
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < frames; ++i) {
+							send(busy, sample(65536, i));
+						}
+					} catch (IOException e) {
+						// 测试结束时连接被关闭
+					}
+				}
+			};
+			writer.start();
+
+			Received first = recorder.poll();
+			assertTrue("busy session starts first", first.session.getAddress().getPort() == busy.getLocalPort());
+
+			byte[] data = sample(16, 99);
+			send(idle, data);
+
+			// 另一个连接的消息不需要等待繁忙连接的数据全部读完
+			int busyFrames = 1;
+			while (true) {
+				Received received = recorder.poll();
+				if (received.session.getAddress().getPort() == idle.getLocalPort()) {
+					assertArrayEquals("idle session data", data, received.data);
+					break;
+				}
+				++busyFrames;
+			}
+			assertTrue("idle session served before busy session finished", busyFrames < frames);
+
+			while (busyFrames < frames) {
+				recorder.poll();
+				++busyFrames;
+			}
+			writer.join(TIMEOUT);
+		} finally {
+			busy.close();
+			idle.close();
+			acceptor.unbind();
+		}
+	}
+
+	/** 创建使用长度前缀帧的接入器，并绑定到本地随机端口。
+	 */
+	protected static NonblockingAcceptor createAcceptor(int workerNum) {
+		NonblockingAcceptor acceptor = new NonblockingAcceptor();
+		acceptor.setWorkerNum(workerNum);
+		// 关闭负载均衡，工作线程只按会话数量分配
+		acceptor.setBalanceInterval(0);
+		acceptor.setFraming(new LengthFraming());
+		acceptor.setHandler(new Recorder());
+		assertTrue("bind", acceptor.bind(new InetSocketAddress("127.0.0.1", freePort())));
+		return acceptor;
+	}
+
+	private static int freePort() {
+		ServerSocket socket = null;
+		try {
+			socket = new ServerSocket(0);
+			return socket.getLocalPort();
+		} catch (IOException e) {
+			throw new AssertionError("no free port: " + e);
+		} finally {
+			if (null != socket) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// Nothing
+				}
+			}
+		}
+	}
+
+	protected static Socket connect(NonblockingAcceptor acceptor) throws IOException {
+		Socket socket = new Socket();
+		socket.setSoTimeout((int) TIMEOUT);
+		socket.connect(new InetSocketAddress("127.0.0.1", acceptor.getBindAddress().getPort()), (int) TIMEOUT);
+		return socket;
+	}
+
+	protected static void send(Socket socket, byte[] data) throws IOException {
+		OutputStream output = socket.getOutputStream();
+		output.write(LengthFrameDecoderTest.frame(data));
+		output.flush();
+	}
+
+	/** 读取一个长度前缀帧。
+	 */
+	protected static byte[] receive(Socket socket) throws IOException {
+		InputStream input = socket.getInputStream();
+		byte[] head = readFully(input, LengthFraming.HEAD_LENGTH);
+		return readFully(input, ByteBuffer.wrap(head).getInt(4));
+	}
+
+	private static byte[] readFully(InputStream input, int length) throws IOException {
+		byte[] data = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int read = input.read(data, offset, length - offset);
+			if (read < 0) {
+				throw new IOException("Connection closed");
+			}
+			offset += read;
+		}
+		return data;
+	}
+
+	protected static void awaitSessions(NonblockingAcceptor acceptor, int num) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (acceptor.getSessions().size() < num) {
+			assertTrue("sessions accepted in time", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static void close(List<Socket> sockets) throws IOException {
+		for (Socket socket : sockets) {
+			socket.close();
+		}
+	}
+
+	/** 接收到的消息。
+	 */
+	protected static final class Received {
+		protected final Session session;
+		protected final byte[] data;
+
+		private Received(Session session, byte[] data) {
+			this.session = session;
+			this.data = data;
+		}
+	}
+
+	/** 记录接收到的消息。
+	 */
+	protected static final class Recorder implements MessageHandler {
+
+		private final LinkedBlockingQueue<Received> received = new LinkedBlockingQueue<Received>();
+		// 收到该长度的消息时抛出异常
+		protected volatile int failLength = -1;
+		// 关闭与销毁的会话数量
+		protected final AtomicInteger closed = new AtomicInteger(0);
+		protected final AtomicInteger destroyed = new AtomicInteger(0);
+
+		protected Received poll() throws InterruptedException {
+			Received r = this.received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull("message received in time", r);
+			return r;
+		}
+
+		@Override
+		public void sessionCreated(Session session) {
+		}
+
+		@Override
+		public void sessionDestroyed(Session session) {
+			this.destroyed.incrementAndGet();
+		}
+
+		@Override
+		public void sessionOpened(Session session) {
+		}
+
+		@Override
+		public void sessionClosed(Session session) {
+			this.closed.incrementAndGet();
+		}
+
+		@Override
+		public void messageReceived(Session session, Message message) {
+			this.received.offer(new Received(session, message.get()));
+			message.release();
+
+			if (message.length() == this.failLength) {
+				throw new IllegalStateException("Test failure");
+			}
+		}
+
+		/** 在指定时间内没有收到更多消息。
+		 */
+		protected void assertIdle(long timeout) throws InterruptedException {
+			assertNull("no more messages", this.received.poll(timeout, TimeUnit.MILLISECONDS));
+		}
+
+		@Override
+		public void messageSent(Session session, Message message) {
+		}
+
+		@Override
+		public void writabilityChanged(Session session, boolean writable) {
+		}
+
+		@Override
+		public void errorOccurred(int errorCode, Session session) {
+		}
+	}
+}
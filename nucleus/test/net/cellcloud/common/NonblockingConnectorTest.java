@@ -0,0 +1,301 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 非阻塞连接器与事件循环测试，使用本地回环连接。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class NonblockingConnectorTest extends TestCase {
+
+	private static final long TIMEOUT = 5000;
+
+	public NonblockingConnectorTest() {
+	}
+
+	public void testConnectWriteClose() throws Exception {
+		ConnectorEventLoopGroup group = new ConnectorEventLoopGroup(1);
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		NonblockingConnector connector = createConnector(group);
+		Recorder recorder = (Recorder) connector.getHandler();
+		try {
+			assertTrue("connect", connector.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort())));
+			Socket peer = accept(server);
+			recorder.awaitOpened();
+			assertTrue("connected", connector.isConnected());
+			assertTrue("upgrade framing", connector.upgradeFraming(connector.getSession()));
+
+			// 事件循环空闲时写入由写请求唤醒
+			Thread.sleep(200);
+			byte[] request = sample(3000, 1);
+			connector.write(new Message(request));
+			assertArrayEquals("request", request, NonblockingAcceptorTest.receive(peer));
+
+			byte[] reply = sample(70000, 2);
+			peer.getOutputStream().write(LengthFrameDecoderTest.frame(reply));
+			assertArrayEquals("reply", reply, recorder.poll());
+
+			connector.disconnect();
+			assertFalse("disconnected", connector.isConnected());
+			assertEquals("closed", 1, recorder.closed.get());
+			assertEquals("destroyed", 1, recorder.destroyed.get());
+			assertEquals("connector removed", 0, awaitConnectors(group, 0));
+			assertEquals("peer sees close", -1, peer.getInputStream().read());
+			peer.close();
+		} finally {
+			server.close();
+			group.shutdown();
+		}
+	}
+
+	public void testConnectTimeout() throws Exception {
+		ConnectorEventLoopGroup group = new ConnectorEventLoopGroup(1);
+		// 不接受连接，填满队列后新的连接无法完成握手
+		ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		List<Socket> fillers = new ArrayList<Socket>();
+		NonblockingConnector connector = createConnector(group);
+		Recorder recorder = (Recorder) connector.getHandler();
+		try {
+			for (int i = 0; i < 4; ++i) {
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort()), 200);
+					fillers.add(socket);
+				} catch (IOException e) {
+					socket.close();
+					break;
+				}
+			}
+
+			connector.setConnectTimeout(300);
+			long start = System.currentTimeMillis();
+			assertTrue("connect started", connector.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort())));
+			assertEquals("timeout error", MessageErrorCode.CONNECT_TIMEOUT, recorder.pollError());
+			assertTrue("not before timeout", System.currentTimeMillis() - start >= 250);
+			recorder.awaitDestroyed(1);
+			assertFalse("not connected", connector.isConnected());
+			assertEquals("not opened", 0, recorder.opened.get());
+		} finally {
+			for (Socket socket : fillers) {
+				socket.close();
+			}
+			server.close();
+			group.shutdown();
+		}
+	}
+
+	public void testHandlerException() throws Exception {
+		ConnectorEventLoopGroup group = new ConnectorEventLoopGroup(1);
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		NonblockingConnector failing = createConnector(group);
+		Recorder failingRecorder = (Recorder) failing.getHandler();
+		failingRecorder.failOpen = true;
+		NonblockingConnector connector = createConnector(group);
+		Recorder recorder = (Recorder) connector.getHandler();
+		try {
+			// 回调抛出异常的连接被关闭，事件循环继续服务其他连接
+			assertTrue("connect", failing.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort())));
+			Socket failingPeer = accept(server);
+			failingRecorder.awaitDestroyed(1);
+			assertFalse("closed after exception", failing.isConnected());
+			assertEquals("peer sees close", -1, failingPeer.getInputStream().read());
+			failingPeer.close();
+
+			assertTrue("connect", connector.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort())));
+			Socket peer = accept(server);
+			recorder.awaitOpened();
+			recorder.failLength = 100;
+			byte[] a = sample(100, 1);
+			byte[] b = sample(200, 2);
+			peer.getOutputStream().write(concat(LengthFrameDecoderTest.frame(a), LengthFrameDecoderTest.frame(b)));
+			assertArrayEquals("failing message", a, recorder.poll());
+			assertArrayEquals("message after failure", b, recorder.poll());
+			assertTrue("still connected", connector.isConnected());
+
+			connector.disconnect();
+			peer.close();
+		} finally {
+			server.close();
+			group.shutdown();
+		}
+	}
+
+	public void testSendFailure() throws Exception {
+		ConnectorEventLoopGroup group = new ConnectorEventLoopGroup(1);
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		NonblockingConnector connector = createConnector(group);
+		Recorder recorder = (Recorder) connector.getHandler();
+		try {
+			assertTrue("connect", connector.connect(new InetSocketAddress("127.0.0.1", server.getLocalPort())));
+			Socket peer = accept(server);
+			recorder.awaitOpened();
+			assertTrue("upgrade framing", connector.upgradeFraming(connector.getSession()));
+
+			// 关闭发送方向，写入失败而读取仍然正常
+			((SocketChannel) connector.getSelectionKey().channel()).shutdownOutput();
+			connector.write(new Message(sample(1000, 1)));
+
+			assertEquals("write failed", MessageErrorCode.WRITE_FAILED, recorder.pollError());
+			recorder.awaitDestroyed(1);
+			assertFalse("closed", connector.isConnected());
+
+			// 发送失败后不再反复处理可写事件
+			Thread.sleep(300);
+			assertEquals("errors reported once", 0, recorder.errors.size());
+			assertEquals("closed once", 1, recorder.closed.get());
+			assertEquals("destroyed once", 1, recorder.destroyed.get());
+			assertEquals("connector removed", 0, awaitConnectors(group, 0));
+			peer.close();
+		} finally {
+			server.close();
+			group.shutdown();
+		}
+	}
+
+	private static NonblockingConnector createConnector(ConnectorEventLoopGroup group) {
+		NonblockingConnector connector = new NonblockingConnector();
+		connector.setEventLoopGroup(group);
+		connector.setFraming(new LengthFraming());
+		connector.setHandler(new Recorder());
+		return connector;
+	}
+
+	private static Socket accept(ServerSocket server) throws IOException {
+		server.setSoTimeout((int) TIMEOUT);
+		Socket socket = server.accept();
+		socket.setSoTimeout((int) TIMEOUT);
+		return socket;
+	}
+
+	private static int awaitConnectors(ConnectorEventLoopGroup group, int num) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (group.getConnectorNum() != num && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		return group.getConnectorNum();
+	}
+
+	/** 记录连接器回调。
+	 */
+	private static final class Recorder implements MessageHandler {
+
+		private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+		private final LinkedBlockingQueue<Integer> errors = new LinkedBlockingQueue<Integer>();
+		private final AtomicInteger opened = new AtomicInteger(0);
+		private final AtomicInteger closed = new AtomicInteger(0);
+		private final AtomicInteger destroyed = new AtomicInteger(0);
+		// 打开会话时抛出异常
+		private volatile boolean failOpen = false;
+		// 收到该长度的消息时抛出异常
+		private volatile int failLength = -1;
+
+		private byte[] poll() throws InterruptedException {
+			byte[] data = this.received.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull("message received in time", data);
+			return data;
+		}
+
+		private int pollError() throws InterruptedException {
+			Integer code = this.errors.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+			assertNotNull("error in time", code);
+			return code.intValue();
+		}
+
+		private void awaitOpened() throws InterruptedException {
+			await(this.opened, 1, "opened in time");
+		}
+
+		private void awaitDestroyed(int num) throws InterruptedException {
+			await(this.destroyed, num, "destroyed in time");
+		}
+
+		private static void await(AtomicInteger counter, int num, String message) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (counter.get() < num) {
+				assertTrue(message, System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+
+		@Override
+		public void sessionCreated(Session session) {
+		}
+
+		@Override
+		public void sessionDestroyed(Session session) {
+			this.destroyed.incrementAndGet();
+		}
+
+		@Override
+		public void sessionOpened(Session session) {
+			this.opened.incrementAndGet();
+			if (this.failOpen) {
+				throw new IllegalStateException("Test failure");
+			}
+		}
+
+		@Override
+		public void sessionClosed(Session session) {
+			this.closed.incrementAndGet();
+		}
+
+		@Override
+		public void messageReceived(Session session, Message message) {
+			this.received.offer(message.get());
+			message.release();
+
+			if (message.length() == this.failLength) {
+				throw new IllegalStateException("Test failure");
+			}
+		}
+
+		@Override
+		public void messageSent(Session session, Message message) {
+		}
+
+		@Override
+		public void writabilityChanged(Session session, boolean writable) {
+		}
+
+		@Override
+		public void errorOccurred(int errorCode, Session session) {
+			this.errors.offer(Integer.valueOf(errorCode));
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** 按会话顺序分发回调测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class OrderedDispatchHandlerTest extends TestCase {
+
+	private static final long TIMEOUT = 5000;
+
+	public OrderedDispatchHandlerTest() {
+	}
+
+	public void testSessionOrder() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Recorder recorder = new Recorder();
+			OrderedDispatchHandler handler = new OrderedDispatchHandler(recorder, executor);
+			Session[] sessions = new Session[] { new Session(null, null), new Session(null, null), new Session(null, null) };
+
+			int count = 500;
+			for (int i = 0; i < count; ++i) {
+				for (Session session : sessions) {
+					handler.messageReceived(session, new Message(ByteBuffer.allocate(4).putInt(0, i).array()));
+				}
+			}
+
+			recorder.await(count * sessions.length);
+			assertFalse("serial per session", recorder.overlapped.get());
+			for (Session session : sessions) {
+				List<Integer> sequence = recorder.sequences.get(session.getId());
+				assertEquals("messages", count, sequence.size());
+				for (int i = 0; i < count; ++i) {
+					assertEquals("order", i, sequence.get(i).intValue());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testYieldAfterBatch() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+			final CountDownLatch started = new CountDownLatch(1);
+			final CountDownLatch gate = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(1);
+			CountingExecutor counting = new CountingExecutor(executor);
+			SerialExecutor busy = new SerialExecutor(counting);
+			SerialExecutor other = new SerialExecutor(executor);
+
+			// 第一个任务阻塞执行线程，使其余任务全部排队
+			busy.execute(new Runnable() {
+				@Override
+				public void run() {
+					started.countDown();
+					await(gate);
+					order.add("busy");
+				}
+			});
+			assertTrue("started", started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+			for (int i = 1; i < 200; ++i) {
+				final boolean last = (i == 199);
+				busy.execute(new Runnable() {
+					@Override
+					public void run() {
+						order.add("busy");
+						if (last) {
+							done.countDown();
+						}
+					}
+				});
+			}
+			other.execute(new Runnable() {
+				@Override
+				public void run() {
+					order.add("other");
+				}
+			});
+			assertEquals("pending", 199, busy.getPendingNum());
+
+			gate.countDown();
+			assertTrue("drained", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+			// 连续执行 64 个任务后让出执行器
+			assertEquals("tasks", 201, order.size());
+			assertEquals("other runs after the first batch", 64, order.indexOf("other"));
+			assertEquals("schedules", (200 + 63) / 64, counting.count.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testLaneRemoved() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Recorder recorder = new Recorder();
+			OrderedDispatchHandler handler = new OrderedDispatchHandler(recorder, executor);
+			Session s1 = new Session(null, null);
+			Session s2 = new Session(null, null);
+
+			handler.sessionCreated(s1);
+			handler.sessionCreated(s2);
+			handler.messageReceived(s1, new Message(ByteBuffer.allocate(4).array()));
+			assertEquals("lanes", 2, handler.getLaneNum());
+
+			handler.sessionClosed(s1);
+			handler.sessionDestroyed(s1);
+			recorder.awaitDestroyed(1);
+			awaitLanes(handler, 1);
+
+			handler.sessionDestroyed(s2);
+			recorder.awaitDestroyed(2);
+			awaitLanes(handler, 0);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	public void testMessageSentRetained() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			final CountDownLatch gate = new CountDownLatch(1);
+			final byte[][] sent = new byte[1][];
+			final CountDownLatch done = new CountDownLatch(1);
+			MessageHandler recorder = new Recorder() {
+				@Override
+				public void messageSent(Session session, Message message) {
+					OrderedDispatchHandlerTest.await(gate);
+					sent[0] = message.get();
+					done.countDown();
+				}
+			};
+			OrderedDispatchHandler handler = new OrderedDispatchHandler(recorder, executor);
+
+			ByteBufferPool pool = new ByteBufferPool();
+			ByteBuffer buf = pool.borrowBuffer(1024);
+			byte[] data = sample(100, 1);
+			buf.put(data);
+			buf.flip();
+			Message message = new Message(buf, pool);
+
+			// I/O 线程回调后立即释放消息，缓存在分发的回调完成前不能归还
+			handler.messageSent(new Session(null, null), message);
+			assertFalse("io thread release", message.release());
+			assertEquals("retained across dispatch", 1, message.refCount());
+			assertEquals("borrowed", 1, pool.getBorrowedNum());
+
+			gate.countDown();
+			assertTrue("sent callback", done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertArrayEquals("message data", data, sent[0]);
+
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (message.refCount() != 0) {
+				assertTrue("released in time", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+			assertEquals("returned", 0, pool.getBorrowedNum());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static void awaitLanes(OrderedDispatchHandler handler, int num) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (handler.getLaneNum() != num) {
+			assertTrue("lanes removed in time", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** 记录提交次数的执行器。
+	 */
+	private static final class CountingExecutor implements Executor {
+
+		private final Executor executor;
+		private final AtomicInteger count = new AtomicInteger(0);
+
+		private CountingExecutor(Executor executor) {
+			this.executor = executor;
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			this.count.incrementAndGet();
+			this.executor.execute(command);
+		}
+	}
+
+	/** 按会话记录回调。
+	 */
+	private static class Recorder implements MessageHandler {
+
+		private final ConcurrentHashMap<Long, List<Integer>> sequences = new ConcurrentHashMap<Long, List<Integer>>();
+		private final ConcurrentHashMap<Long, AtomicBoolean> active = new ConcurrentHashMap<Long, AtomicBoolean>();
+		private final AtomicBoolean overlapped = new AtomicBoolean(false);
+		private final AtomicInteger received = new AtomicInteger(0);
+		private final AtomicInteger destroyed = new AtomicInteger(0);
+
+		@Override
+		public void sessionCreated(Session session) {
+		}
+
+		@Override
+		public void sessionDestroyed(Session session) {
+			this.destroyed.incrementAndGet();
+		}
+
+		@Override
+		public void sessionOpened(Session session) {
+		}
+
+		@Override
+		public void sessionClosed(Session session) {
+		}
+
+		@Override
+		public void messageReceived(Session session, Message message) {
+			AtomicBoolean flag = this.active.get(session.getId());
+			if (null == flag) {
+				this.active.putIfAbsent(session.getId(), new AtomicBoolean(false));
+				flag = this.active.get(session.getId());
+				this.sequences.putIfAbsent(session.getId(), new ArrayList<Integer>());
+			}
+
+			// 同一会话的回调不能并行执行
+			if (!flag.compareAndSet(false, true)) {
+				this.overlapped.set(true);
+			}
+			this.sequences.get(session.getId()).add(ByteBuffer.wrap(message.get()).getInt());
+			Thread.yield();
+			flag.set(false);
+
+			this.received.incrementAndGet();
+		}
+
+		@Override
+		public void messageSent(Session session, Message message) {
+		}
+
+		@Override
+		public void writabilityChanged(Session session, boolean writable) {
+		}
+
+		@Override
+		public void errorOccurred(int errorCode, Session session) {
+		}
+
+		private void await(int num) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (this.received.get() < num) {
+				assertTrue("callbacks in time", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+
+		private void awaitDestroyed(int num) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while (this.destroyed.get() < num) {
+				assertTrue("destroyed in time", System.currentTimeMillis() < deadline);
+				Thread.sleep(10);
+			}
+		}
+	}
+}
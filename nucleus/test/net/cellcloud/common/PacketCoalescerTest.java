@@ -0,0 +1,179 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/** 数据包合并与拆分测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class PacketCoalescerTest extends TestCase {
+
+	private static final byte[] TAG = new byte[] {'T', 'E', 'S', 'T'};
+	private static final byte[] BATCH_TAG = new byte[] {'B', 'A', 'T', 'C'};
+
+	public PacketCoalescerTest() {
+	}
+
+	public void testCoalescible() {
+		PacketCoalescer coalescer = new PacketCoalescer(BATCH_TAG, 100);
+		assertTrue("fits", coalescer.isCoalescible(96));
+		assertFalse("too large", coalescer.isCoalescible(97));
+		assertFalse("unencodable", coalescer.isCoalescible(-1));
+
+		coalescer.setBatchSize(0);
+		assertFalse("disabled", coalescer.isCoalescible(10));
+	}
+
+	public void testRoundTrip() {
+		for (int major = 1; major <= Packet.BINARY_VERSION; ++major) {
+			PacketCoalescer coalescer = new PacketCoalescer(BATCH_TAG);
+			Message[] messages = new Message[] {
+				deferred(packet(major, 1, 10)), deferred(packet(major, 2, 0)), deferred(packet(major, 3, 300))
+			};
+
+			byte[] data = coalescer.coalesce(messages, 0, messages.length);
+			Packet batch = Packet.unpack(data);
+			assertArrayEquals("batch tag v" + major, BATCH_TAG, batch.getTag());
+			assertEquals("batch version v" + major, major, batch.getMajorVersion());
+
+			List<Packet> packets = PacketCoalescer.split(batch);
+			assertEquals("packets v" + major, 3, packets.size());
+			for (int i = 0; i < messages.length; ++i) {
+				assertSamePacket(messages[i].getPacket(), packets.get(i));
+			}
+		}
+	}
+
+	public void testSingleMessage() {
+		PacketCoalescer coalescer = new PacketCoalescer(BATCH_TAG);
+		Packet packet = packet(1, 7, 20);
+		byte[] data = coalescer.coalesce(new Message[] {deferred(packet)}, 0, 1);
+		assertArrayEquals("packed directly", Packet.pack(packet), data);
+	}
+
+	public void testSplitMalformed() {
+		Packet p1 = packet(1, 1, 10);
+		byte[] d1 = Packet.pack(p1);
+		ByteBuffer body = ByteBuffer.allocate(4 + d1.length + 4 + 2);
+		body.putInt(d1.length);
+		body.put(d1);
+		// 长度域超出剩余数据
+		body.putInt(1000);
+		body.put(new byte[2]);
+
+		Packet batch = new Packet(BATCH_TAG, 0, 1, 0);
+		batch.setBody(body.array());
+		List<Packet> packets = PacketCoalescer.split(batch);
+		assertEquals("packets before the broken one", 1, packets.size());
+		assertSamePacket(p1, packets.get(0));
+
+		assertNull("no body", PacketCoalescer.split(new Packet(BATCH_TAG, 0, 1, 0)));
+	}
+
+	public void testSplitViewsBatchData() {
+		PacketCoalescer coalescer = new PacketCoalescer(BATCH_TAG);
+		Message[] messages = new Message[] {
+			deferred(packet(2, 1, 100)), deferred(packet(2, 2, 100))
+		};
+		byte[] data = coalescer.coalesce(messages, 0, 2);
+		List<Packet> packets = PacketCoalescer.split(Packet.unpack(data));
+
+		// 内部数据包引用批量数据包的数据，修改原始数据后可见
+		ByteBuffer view = packets.get(1).getSubsegmentBuffer(0);
+		byte last = view.get(view.limit() - 1);
+		data[data.length - 1] = (byte) ~data[data.length - 1];
+		assertEquals("view of batch data", (byte) ~last, view.get(view.limit() - 1));
+	}
+
+	public void testWriteQueueKeepsOrder() throws Exception {
+		PacketCoalescer coalescer = new PacketCoalescer(BATCH_TAG, 1000);
+		Packet p1 = packet(2, 1, 50);
+		Packet p2 = packet(2, 2, 60);
+		byte[] plain = sample(30, 9);
+		Packet p3 = packet(2, 3, 70);
+		Packet p4 = packet(2, 4, 900);
+		Packet p5 = packet(2, 5, 10);
+
+		WriteQueue queue = new WriteQueue();
+		queue.offer(deferred(p1));
+		queue.offer(deferred(p2));
+		// 普通消息中断合并
+		queue.offer(new Message(plain));
+		queue.offer(deferred(p3));
+		// 超出批量长度时开始新的批量数据包
+		queue.offer(deferred(p4));
+		queue.offer(deferred(p5));
+
+		WriteQueueTest.LimitedChannel channel = new WriteQueueTest.LimitedChannel(Integer.MAX_VALUE);
+		assertTrue("write completes", queue.write(channel, new LengthFraming(), null, coalescer));
+		for (int i = 0; i < 6; ++i) {
+			assertNotNull("sent message " + i, queue.pollSent());
+		}
+		assertEquals("queued bytes", 0, queue.getQueuedBytes());
+
+		List<Message> frames = DataMarkDecoderTest.decode(new LengthFrameDecoder(null), 0, channel.toByteArray());
+		assertEquals("frames", 4, frames.size());
+
+		List<Packet> first = PacketCoalescer.split(Packet.unpack(frames.get(0).get()));
+		assertEquals("first batch", 2, first.size());
+		assertSamePacket(p1, first.get(0));
+		assertSamePacket(p2, first.get(1));
+
+		assertArrayEquals("plain message", plain, frames.get(1).get());
+
+		// 单个数据包直接打包
+		assertSamePacket(p3, Packet.unpack(frames.get(2).get()));
+
+		List<Packet> last = PacketCoalescer.split(Packet.unpack(frames.get(3).get()));
+		assertEquals("last batch", 2, last.size());
+		assertSamePacket(p4, last.get(0));
+		assertSamePacket(p5, last.get(1));
+	}
+
+	private static Packet packet(int major, int sn, int length) {
+		Packet packet = new Packet(TAG, sn, major, 0);
+		packet.appendSubsegment(sample(length, sn));
+		return packet;
+	}
+
+	private static Message deferred(Packet packet) {
+		return new Message(packet, packet.encodedLength());
+	}
+
+	private static void assertSamePacket(Packet expected, Packet actual) {
+		assertNotNull("packet", actual);
+		assertArrayEquals("tag", expected.getTag(), actual.getTag());
+		assertEquals("sn", expected.getSequenceNumber(), actual.getSequenceNumber());
+		assertEquals("subsegments", expected.getSubsegmentCount(), actual.getSubsegmentCount());
+		for (int i = 0; i < expected.getSubsegmentCount(); ++i) {
+			assertArrayEquals("subsegment " + i, expected.getSubsegment(i), actual.getSubsegment(i));
+		}
+	}
+}
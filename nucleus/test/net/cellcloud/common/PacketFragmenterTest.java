@@ -0,0 +1,260 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/** 数据包分片与重组测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class PacketFragmenterTest extends TestCase {
+
+	private static final byte[] TAG = new byte[] {'T', 'E', 'S', 'T'};
+	private static final byte[] FRAGMENT_TAG = new byte[] {'F', 'R', 'A', 'G'};
+
+	public PacketFragmenterTest() {
+	}
+
+	public void testOversize() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 100);
+		assertFalse("not interleaved by default", fragmenter.isInterleaved());
+		assertFalse("small packet", fragmenter.isOversize(packet(1, 50)));
+		assertTrue("large packet", fragmenter.isOversize(packet(1, 200)));
+
+		fragmenter.setFragmentSize(0);
+		assertFalse("fragmentation disabled", fragmenter.isOversize(packet(1, 200)));
+	}
+
+	public void testInOrder() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 1000);
+		Packet packet = packet(Packet.BINARY_VERSION, 5500);
+		List<Packet> fragments = fragmenter.fragment(packet);
+		int length = Packet.pack(packet).length;
+		assertEquals("fragments", (length + 999) / 1000, fragments.size());
+		for (Packet fragment : fragments) {
+			assertArrayEquals("fragment tag", FRAGMENT_TAG, fragment.getTag());
+			assertEquals("fragment sn", packet.getSequenceNumber(), fragment.getSequenceNumber());
+			assertEquals("fragment version", packet.getMajorVersion(), fragment.getMajorVersion());
+			assertTrue("fragment size", fragment.getBodyLength() <= PacketFragmenter.HEADER_LENGTH + 1000);
+		}
+
+		PacketReassembler reassembler = new PacketReassembler();
+		Packet result = reassemble(reassembler, fragments);
+		assertSamePacket(packet, result);
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+	}
+
+	public void testOutOfOrder() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 700);
+		List<Packet> fragments = new ArrayList<Packet>(fragmenter.fragment(packet(1, 9000)));
+		Collections.swap(fragments, 1, 2);
+
+		// 跳过分片后整个数据包被丢弃，后续分片不再开始重组
+		PacketReassembler reassembler = new PacketReassembler();
+		for (Packet fragment : fragments) {
+			assertNull("out of order", reassembler.reassemble(wire(fragment)));
+		}
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+
+		// 首个分片缺失
+		List<Packet> shuffled = new ArrayList<Packet>(fragments.subList(1, fragments.size()));
+		Collections.shuffle(shuffled, new Random(3));
+		for (Packet fragment : shuffled) {
+			assertNull("missing first", reassembler.reassemble(wire(fragment)));
+		}
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+	}
+
+	public void testDuplicateFragment() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 500);
+		List<Packet> fragments = fragmenter.fragment(packet(1, 3000));
+
+		// 重复的分片不能被计入已接收长度
+		PacketReassembler reassembler = new PacketReassembler();
+		List<Packet> duplicated = new ArrayList<Packet>();
+		for (Packet fragment : fragments) {
+			duplicated.add(fragment);
+			duplicated.add(fragment);
+		}
+		for (Packet fragment : duplicated) {
+			assertNull("duplicated", reassembler.reassemble(wire(fragment)));
+		}
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+	}
+
+	public void testOverlappingFragment() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 500);
+		List<Packet> fragments = fragmenter.fragment(packet(1, 3000));
+
+		PacketReassembler reassembler = new PacketReassembler();
+		assertNull("first fragment", reassembler.reassemble(wire(fragments.get(0))));
+
+		// 第二个分片的偏移回退，与首个分片重叠
+		Packet overlap = wire(fragments.get(1));
+		byte[] body = overlap.getBody();
+		body[7] -= 1;
+		overlap.setBody(body);
+		assertNull("overlapping fragment", reassembler.reassemble(overlap));
+		assertEquals("assembly discarded", 0, reassembler.getPendingBytes());
+
+		for (int i = 2; i < fragments.size(); ++i) {
+			assertNull("after discard", reassembler.reassemble(wire(fragments.get(i))));
+		}
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+	}
+
+	public void testInterleavedPackets() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 500);
+		Packet p1 = packet(Packet.BINARY_VERSION, 3000);
+		Packet p2 = packet(Packet.BINARY_VERSION, 2000);
+		List<Packet> f1 = fragmenter.fragment(p1);
+		List<Packet> f2 = fragmenter.fragment(p2);
+
+		PacketReassembler reassembler = new PacketReassembler();
+		Packet r1 = null;
+		Packet r2 = null;
+		for (int i = 0; i < Math.max(f1.size(), f2.size()); ++i) {
+			if (i < f2.size()) {
+				Packet result = reassembler.reassemble(wire(f2.get(i)));
+				if (null != result) {
+					r2 = result;
+				}
+			}
+			if (i < f1.size()) {
+				Packet result = reassembler.reassemble(wire(f1.get(i)));
+				if (null != result) {
+					r1 = result;
+				}
+			}
+		}
+
+		assertSamePacket(p1, r1);
+		assertSamePacket(p2, r2);
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+	}
+
+	public void testMaxPending() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 500);
+		List<Packet> fragments = fragmenter.fragment(packet(1, 3000));
+
+		PacketReassembler reassembler = new PacketReassembler(1000);
+		assertNull("dropped", reassemble(reassembler, fragments));
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+
+		// 丢弃后不影响较小的数据包
+		Packet small = packet(1, 800);
+		assertSamePacket(small, reassemble(reassembler, fragmenter.fragment(small)));
+	}
+
+	public void testExpiry() throws Exception {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 500);
+		List<Packet> lost = fragmenter.fragment(packet(1, 3000));
+
+		PacketReassembler reassembler = new PacketReassembler(PacketReassembler.DEFAULT_MAX_PENDING, 10);
+		// 丢失最后一个分片
+		assertNull("incomplete", reassemble(reassembler, lost.subList(0, lost.size() - 1)));
+		assertTrue("pending", reassembler.getPendingBytes() > 0);
+
+		Thread.sleep(50);
+
+		Packet next = packet(1, 1200);
+		List<Packet> fragments = fragmenter.fragment(next);
+		assertNull("first fragment", reassembler.reassemble(wire(fragments.get(0))));
+		assertEquals("expired assembly dropped", Packet.pack(next).length, reassembler.getPendingBytes());
+		assertSamePacket(next, reassemble(reassembler, fragments.subList(1, fragments.size())));
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+	}
+
+	public void testInconsistentFragment() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 500);
+		List<Packet> fragments = fragmenter.fragment(packet(1, 3000));
+
+		PacketReassembler reassembler = new PacketReassembler();
+		assertNull("first fragment", reassembler.reassemble(wire(fragments.get(0))));
+
+		// 总长度与已开始重组的数据不一致
+		Packet broken = wire(fragments.get(1));
+		byte[] body = broken.getBody();
+		body[11] += 1;
+		broken.setBody(body);
+		assertNull("broken fragment", reassembler.reassemble(broken));
+		assertEquals("assembly discarded", 0, reassembler.getPendingBytes());
+
+		Packet empty = new Packet(FRAGMENT_TAG, 1, 1, 0);
+		empty.setBody(new byte[4]);
+		assertNull("short fragment", reassembler.reassemble(empty));
+	}
+
+	public void testClear() {
+		PacketFragmenter fragmenter = new PacketFragmenter(FRAGMENT_TAG, 500);
+		List<Packet> fragments = fragmenter.fragment(packet(1, 3000));
+		PacketReassembler reassembler = new PacketReassembler();
+		reassembler.reassemble(wire(fragments.get(0)));
+		assertTrue("pending", reassembler.getPendingBytes() > 0);
+		reassembler.clear();
+		assertEquals("pending bytes", 0, reassembler.getPendingBytes());
+	}
+
+	private static Packet packet(int major, int length) {
+		Packet packet = new Packet(TAG, 42, major, 1);
+		packet.appendSubsegment(sample(length / 2, 1));
+		packet.appendSubsegment(sample(length - length / 2, 2));
+		return packet;
+	}
+
+	/** 经过打包与解包，模拟分片在网络上传输。
+	 */
+	private static Packet wire(Packet fragment) {
+		return Packet.unpack(Packet.pack(fragment));
+	}
+
+	private static Packet reassemble(PacketReassembler reassembler, List<Packet> fragments) {
+		Packet result = null;
+		for (int i = 0; i < fragments.size(); ++i) {
+			result = reassembler.reassemble(wire(fragments.get(i)));
+			if (i < fragments.size() - 1) {
+				assertNull("incomplete at fragment " + i, result);
+			}
+		}
+		return result;
+	}
+
+	private static void assertSamePacket(Packet expected, Packet actual) {
+		assertNotNull("reassembled", actual);
+		assertArrayEquals("tag", expected.getTag(), actual.getTag());
+		assertEquals("sn", expected.getSequenceNumber(), actual.getSequenceNumber());
+		assertEquals("major", expected.getMajorVersion(), actual.getMajorVersion());
+		assertEquals("subsegments", expected.getSubsegmentCount(), actual.getSubsegmentCount());
+		for (int i = 0; i < expected.getSubsegmentCount(); ++i) {
+			assertArrayEquals("subsegment " + i, expected.getSubsegment(i), actual.getSubsegment(i));
+		}
+	}
+}
@@ -0,0 +1,287 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/** 数据包编解码测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class PacketTest extends TestCase {
+
+	private static final byte[] TAG = new byte[] {'T', 'E', 'S', 'T'};
+
+	public PacketTest() {
+	}
+
+	public void testDecimalHeader() {
+		Packet packet = new Packet(TAG, 12, 1, 3);
+		packet.setBody(sample(5, 1));
+		byte[] data = Packet.pack(packet);
+		assertEquals("encoded length", packet.encodedLength(), data.length);
+		assertEquals("header", "TEST03010012" + "00000005", new String(data, 0, 20));
+	}
+
+	public void testBodyRoundTrip() {
+		for (int major = 1; major <= Packet.BINARY_VERSION; ++major) {
+			Packet packet = new Packet(TAG, 321, major, 7);
+			byte[] body = sample(1000, major);
+			packet.setBody(body);
+
+			Packet unpacked = roundTrip(packet);
+			assertArrayEquals("tag v" + major, TAG, unpacked.getTag());
+			assertEquals("sn v" + major, 321, unpacked.getSequenceNumber());
+			assertEquals("major v" + major, major, unpacked.getMajorVersion());
+			assertEquals("minor v" + major, 7, unpacked.getMinorVersion());
+			assertArrayEquals("body v" + major, body, unpacked.getBody());
+		}
+	}
+
+	public void testSubsegmentRoundTrip() {
+		for (int major = 1; major <= Packet.BINARY_VERSION; ++major) {
+			Packet packet = new Packet(TAG, 1, major, 0);
+			byte[] s1 = sample(10, 1);
+			byte[] s2 = new byte[0];
+			byte[] s3 = sample(3000, 3);
+			packet.appendSubsegment(s1);
+			packet.appendSubsegment(s2);
+			packet.appendSubsegment(s3);
+
+			Packet unpacked = roundTrip(packet);
+			assertEquals("subsegments v" + major, 3, unpacked.getSubsegmentCount());
+			assertArrayEquals("subsegment 1 v" + major, s1, unpacked.getSubsegment(0));
+			assertArrayEquals("subsegment 2 v" + major, s2, unpacked.getSubsegment(1));
+			assertArrayEquals("subsegment 3 v" + major, s3, unpacked.getSubsegment(2));
+			assertArrayEquals("subsegment view v" + major, s3, bytes(unpacked.getSubsegmentBuffer(2)));
+		}
+	}
+
+	public void testEmptyPacket() {
+		for (int major = 1; major <= Packet.BINARY_VERSION; ++major) {
+			Packet packet = new Packet(TAG, 9, major, 0);
+			Packet unpacked = roundTrip(packet);
+			assertEquals("sn v" + major, 9, unpacked.getSequenceNumber());
+			assertEquals("subsegments v" + major, 0, unpacked.getSubsegmentCount());
+		}
+	}
+
+	public void testBinaryHeader() {
+		Packet packet = new Packet(TAG, 100000, Packet.BINARY_VERSION, 1);
+		packet.setBody(sample(20, 1));
+		byte[] data = Packet.pack(packet);
+		assertEquals("encoded length", 4 + 4 + 4 + 4 + 20, data.length);
+		assertEquals("binary mark", 0, data[4]);
+
+		// 十进制包头的序号只有 4 位，二进制包头可以使用完整的序号
+		assertEquals("sn", 100000, Packet.unpack(data).getSequenceNumber());
+	}
+
+	public void testEncodedLength() {
+		Packet v1 = new Packet(TAG, 1, 1, 0);
+		v1.appendSubsegment(sample(100, 1));
+		v1.appendSubsegment(sample(7, 2));
+		Packet v2 = new Packet(TAG, 1, Packet.BINARY_VERSION, 0);
+		v2.appendSubsegment(sample(100, 1));
+		v2.appendSubsegment(sample(7, 2));
+
+		assertEquals("v1 encoded length", Packet.pack(v1).length, v1.encodedLength());
+		assertEquals("v2 encoded length", Packet.pack(v2).length, v2.encodedLength());
+		assertTrue("v2 is smaller", v2.encodedLength() < v1.encodedLength());
+	}
+
+	public void testUnencodable() {
+		Packet packet = new Packet(TAG, 1, 0x100, 0);
+		packet.setBody(sample(10, 1));
+		assertEquals("encoded length", -1, packet.encodedLength());
+		assertNull("pack", Packet.pack(packet));
+		assertEquals("pack into buffer", -1, Packet.pack(packet, ByteBuffer.allocate(100)));
+	}
+
+	public void testPackIntoBuffer() {
+		Packet packet = new Packet(TAG, 5, Packet.BINARY_VERSION, 0);
+		packet.appendSubsegment(sample(50, 1));
+		int length = packet.encodedLength();
+
+		ByteBuffer small = ByteBuffer.allocate(length - 1);
+		assertEquals("not enough space", -1, Packet.pack(packet, small));
+		assertEquals("nothing written", 0, small.position());
+
+		ByteBuffer buffer = ByteBuffer.allocate(length + 10);
+		buffer.position(3);
+		assertEquals("written", length, Packet.pack(packet, buffer));
+		assertEquals("position", 3 + length, buffer.position());
+
+		buffer.flip();
+		buffer.position(3);
+		assertArrayEquals("same as array", Packet.pack(packet), bytes(buffer));
+	}
+
+	public void testUnpackKeepsPosition() {
+		Packet packet = new Packet(TAG, 5, 1, 0);
+		packet.setBody(sample(30, 1));
+		byte[] data = Packet.pack(packet);
+
+		ByteBuffer buffer = ByteBuffer.allocate(data.length + 4);
+		buffer.put(new byte[] {1, 2});
+		buffer.put(data);
+		buffer.flip();
+		buffer.position(2);
+		buffer.limit(2 + data.length);
+
+		Packet unpacked = Packet.unpack(buffer);
+		assertArrayEquals("body", sample(30, 1), unpacked.getBody());
+		assertEquals("position", 2, buffer.position());
+	}
+
+	public void testViewsOverReadOnlySlice() {
+		for (int major = 1; major <= Packet.BINARY_VERSION; ++major) {
+			Packet packet = new Packet(TAG, 5, major, 0);
+			packet.appendSubsegment(sample(40, 1));
+			packet.appendSubsegment(sample(60, 2));
+			byte[] data = Packet.pack(packet);
+
+			// 数据包位于只读缓存的中间区间
+			ByteBuffer buffer = ByteBuffer.allocate(data.length + 10);
+			buffer.position(4);
+			buffer.put(data);
+			buffer.position(4);
+			buffer.limit(4 + data.length);
+			ByteBuffer readOnly = buffer.asReadOnlyBuffer();
+
+			Packet unpacked = Packet.unpack(readOnly);
+			assertNotNull("unpacked v" + major, unpacked);
+			assertEquals("position v" + major, 4, readOnly.position());
+			assertEquals("subsegments v" + major, 2, unpacked.getSubsegmentCount());
+			for (int i = 0; i < 2; ++i) {
+				ByteBuffer view = unpacked.getSubsegmentBuffer(i);
+				assertTrue("read only v" + major, view.isReadOnly());
+				assertEquals("view position v" + major, 0, view.position());
+				assertArrayEquals("view v" + major, packet.getSubsegment(i), bytes(view));
+			}
+			assertArrayEquals("repack v" + major, data, Packet.pack(unpacked));
+		}
+	}
+
+	public void testSubsegmentMaterialisedOnDemand() {
+		Packet packet = new Packet(TAG, 5, Packet.BINARY_VERSION, 0);
+		packet.appendSubsegment(sample(40, 1));
+		packet.appendSubsegment(sample(60, 2));
+		byte[] data = Packet.pack(packet);
+		byte[] header = Arrays.copyOf(data, data.length - 100);
+
+		Packet unpacked = Packet.unpack(ByteBuffer.wrap(data));
+		byte[] first = unpacked.getSubsegment(0);
+		assertArrayEquals("first", sample(40, 1), first);
+		assertTrue("cached copy", first == unpacked.getSubsegment(0));
+
+		// 修改数据缓存后，已复制的子段不受影响，视图与未复制的子段引用数据缓存
+		Arrays.fill(data, header.length, data.length, (byte) 0);
+		assertArrayEquals("copied subsegment", sample(40, 1), unpacked.getSubsegment(0));
+		assertArrayEquals("view follows source", new byte[40], bytes(unpacked.getSubsegmentBuffer(0)));
+		assertArrayEquals("materialised from source", new byte[60], unpacked.getSubsegment(1));
+		assertEquals("body length", packet.getBodyLength(), unpacked.getBodyLength());
+	}
+
+	public void testAppendAfterUnpack() {
+		Packet packet = new Packet(TAG, 5, Packet.BINARY_VERSION, 0);
+		packet.appendSubsegment(sample(40, 1));
+		packet.appendSubsegment(sample(60, 2));
+
+		Packet unpacked = Packet.unpack(ByteBuffer.wrap(Packet.pack(packet)));
+		byte[] appended = sample(20, 3);
+		unpacked.appendSubsegment(appended);
+		assertEquals("subsegments", 3, unpacked.getSubsegmentCount());
+
+		// 追加的子段不是视图，两种访问方式返回相同数据
+		assertTrue("appended array", appended == unpacked.getSubsegment(2));
+		ByteBuffer buffer = unpacked.getSubsegmentBuffer(2);
+		assertTrue("read only", buffer.isReadOnly());
+		assertArrayEquals("appended buffer", appended, bytes(buffer));
+		assertArrayEquals("view buffer", sample(60, 2), bytes(unpacked.getSubsegmentBuffer(1)));
+		assertArrayEquals("view copy", sample(40, 1), unpacked.getSubsegment(0));
+		assertNull("out of range", unpacked.getSubsegmentBuffer(3));
+
+		Packet repacked = Packet.unpack(Packet.pack(unpacked));
+		assertEquals("repacked subsegments", 3, repacked.getSubsegmentCount());
+		for (int i = 0; i < 3; ++i) {
+			assertArrayEquals("repacked " + i, unpacked.getSubsegment(i), repacked.getSubsegment(i));
+		}
+	}
+
+	public void testTruncated() {
+		for (int major = 1; major <= Packet.BINARY_VERSION; ++major) {
+			Packet packet = new Packet(TAG, 5, major, 0);
+			packet.appendSubsegment(sample(30, 1));
+			byte[] data = Packet.pack(packet);
+			ByteBuffer truncated = ByteBuffer.wrap(data, 0, data.length - 1);
+			assertNull("truncated v" + major, Packet.unpack(truncated));
+			assertNull("header only v" + major, Packet.unpack(ByteBuffer.wrap(data, 0, 6)));
+		}
+	}
+
+	public void testDeclaredLengthOverflow() {
+		Packet packet = new Packet(TAG, 5, Packet.BINARY_VERSION, 0);
+		packet.setBody(sample(8, 1));
+		byte[] data = Packet.pack(packet);
+		assertEquals("packet length", 24, data.length);
+
+		// 包头声明的包体长度与包头长度相加后溢出
+		ByteBuffer.wrap(data).putInt(12, 0x7FFFFFF5);
+		assertNull("body length overflow", Packet.unpack(data));
+	}
+
+	public void testDeclaredSubsegmentOverflow() {
+		Packet packet = new Packet(TAG, 5, Packet.BINARY_VERSION, 0);
+		packet.appendSubsegment(sample(8, 1));
+		packet.appendSubsegment(sample(8, 2));
+		byte[] data = Packet.pack(packet);
+
+		byte[] count = data.clone();
+		ByteBuffer.wrap(count).putInt(16, 0x7FFFFFFF);
+		assertNull("subsegment count overflow", Packet.unpack(count));
+
+		byte[] length = data.clone();
+		ByteBuffer.wrap(length).putInt(20, 0x7FFFFFFC);
+		assertNull("subsegment length overflow", Packet.unpack(length));
+
+		byte[] second = data.clone();
+		ByteBuffer.wrap(second).putInt(24, 0x7FFFFFF8);
+		assertNull("second subsegment length overflow", Packet.unpack(second));
+	}
+
+	private static Packet roundTrip(Packet packet) {
+		byte[] data = Packet.pack(packet);
+		assertNotNull("packed", data);
+		assertEquals("encoded length", packet.encodedLength(), data.length);
+
+		Packet unpacked = Packet.unpack(data);
+		assertNotNull("unpacked", unpacked);
+		return unpacked;
+	}
+}
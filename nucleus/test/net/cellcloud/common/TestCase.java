@@ -0,0 +1,166 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** 单元测试基类。
+ * 
+ * 子类中以 test 开头的公共无参方法即为测试方法，由 {@link #run()} 依次执行。
+ * 断言失败时抛出 {@link AssertionError} 。
+ * 
+ * @author Jiangwei Xu
+ */
+public abstract class TestCase {
+
+	protected TestCase() {
+	}
+
+	/** 执行所有测试方法。
+	 * 
+	 * @return 返回失败的测试方法数量。
+	 */
+	public int run() {
+		String name = this.getClass().getSimpleName();
+		int failed = 0;
+
+		Method[] methods = this.getClass().getDeclaredMethods();
+		Arrays.sort(methods, new Comparator<Method>() {
+			@Override
+			public int compare(Method m1, Method m2) {
+				return m1.getName().compareTo(m2.getName());
+			}
+		});
+
+		for (Method method : methods) {
+			if (!method.getName().startsWith("test") || method.getParameterTypes().length != 0
+					|| !Modifier.isPublic(method.getModifiers())) {
+				continue;
+			}
+
+			try {
+				method.invoke(this);
+				System.out.println("[PASS] " + name + "." + method.getName());
+			} catch (InvocationTargetException e) {
+				++failed;
+				System.out.println("[FAIL] " + name + "." + method.getName() + " - " + e.getCause());
+				e.getCause().printStackTrace(System.out);
+			} catch (IllegalAccessException e) {
+				++failed;
+				System.out.println("[FAIL] " + name + "." + method.getName() + " - " + e);
+			}
+		}
+
+		return failed;
+	}
+
+	protected static void fail(String message) {
+		throw new AssertionError(message);
+	}
+
+	protected static void assertTrue(String message, boolean condition) {
+		if (!condition) {
+			fail(message);
+		}
+	}
+
+	protected static void assertFalse(String message, boolean condition) {
+		if (condition) {
+			fail(message);
+		}
+	}
+
+	protected static void assertNull(String message, Object object) {
+		if (null != object) {
+			fail(message + " - expected null but was " + object);
+		}
+	}
+
+	protected static void assertNotNull(String message, Object object) {
+		if (null == object) {
+			fail(message + " - expected not null");
+		}
+	}
+
+	protected static void assertEquals(String message, long expected, long actual) {
+		if (expected != actual) {
+			fail(message + " - expected " + expected + " but was " + actual);
+		}
+	}
+
+	protected static void assertEquals(String message, Object expected, Object actual) {
+		if (null == expected ? null != actual : !expected.equals(actual)) {
+			fail(message + " - expected " + expected + " but was " + actual);
+		}
+	}
+
+	protected static void assertArrayEquals(String message, byte[] expected, byte[] actual) {
+		if (!Arrays.equals(expected, actual)) {
+			fail(message + " - expected " + Arrays.toString(expected) + " but was " + Arrays.toString(actual));
+		}
+	}
+
+	/** 返回缓存 [position, limit) 区间的数据，不修改缓存位置。
+	 */
+	protected static byte[] bytes(ByteBuffer buffer) {
+		ByteBuffer view = buffer.duplicate();
+		byte[] data = new byte[view.remaining()];
+		view.get(data);
+		return data;
+	}
+
+	/** 返回指定长度的测试数据。
+	 */
+	protected static byte[] sample(int length, int seed) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			data[i] = (byte) (i * 31 + seed);
+		}
+		return data;
+	}
+
+	/** 连接多个字节数组。
+	 */
+	protected static byte[] concat(byte[]... arrays) {
+		int length = 0;
+		for (byte[] a : arrays) {
+			length += a.length;
+		}
+		byte[] result = new byte[length];
+		int offset = 0;
+		for (byte[] a : arrays) {
+			System.arraycopy(a, 0, result, offset, a.length);
+			offset += a.length;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,364 @@
+/*
+-----------------------------------------------------------------------------
+This source file is part of Cell Cloud.
+
+Copyright (c) 2009-2013 Cell Cloud Team (www.cellcloud.net)
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in
+all copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+THE SOFTWARE.
+-----------------------------------------------------------------------------
+*/
+
+package net.cellcloud.common;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** 写队列与水位控制测试。
+ * 
+ * @author Jiangwei Xu
+ */
+public final class WriteQueueTest extends TestCase {
+
+	public WriteQueueTest() {
+	}
+
+	public void testWriteAll() throws Exception {
+		WriteQueue queue = new WriteQueue();
+		byte[] m1 = sample(10, 1);
+		byte[] m2 = sample(20, 2);
+		queue.offer(new Message(m1));
+		queue.offer(new Message(m2));
+		assertEquals("queued bytes", 30, queue.getQueuedBytes());
+
+		LimitedChannel channel = new LimitedChannel(Integer.MAX_VALUE);
+		assertTrue("write completes", queue.write(channel, null, null, null));
+		assertArrayEquals("written data", concat(m1, m2), channel.toByteArray());
+		assertEquals("queued bytes after write", 0, queue.getQueuedBytes());
+		assertEquals("written bytes", 30, queue.getWrittenBytes());
+		assertEquals("batch size", 2, queue.getLastBatchSize());
+		assertFalse("no pending data", queue.hasPending());
+	}
+
+	public void testPartialWriteCarriesOver() throws Exception {
+		WriteQueue queue = new WriteQueue();
+		byte[] m1 = sample(10, 1);
+		byte[] m2 = sample(20, 2);
+		byte[] m3 = sample(5, 3);
+		Message msg1 = new Message(m1);
+		Message msg2 = new Message(m2);
+		queue.offer(msg1);
+		queue.offer(msg2);
+
+		// 每次只能写出 7 个字节
+		LimitedChannel channel = new LimitedChannel(7);
+		assertFalse("first write is partial", queue.write(channel, null, null, null));
+		assertTrue("still sending", queue.isSending());
+		assertTrue("has pending", queue.hasPending());
+		assertNull("nothing sent yet", queue.pollSent());
+		assertEquals("queued bytes keep unsent data", 30, queue.getQueuedBytes());
+
+		// 发送过程中追加的消息排在未写完的批次之后
+		queue.offer(new Message(m3));
+
+		channel.permit(4);
+		assertFalse("second write is partial", queue.write(channel, null, null, null));
+		assertTrue("first message sent", msg1 == queue.pollSent());
+		assertNull("second message not sent", queue.pollSent());
+		assertEquals("queued bytes after first message", 25, queue.getQueuedBytes());
+
+		int rounds = 0;
+		while (!queue.write(channel, null, null, null)) {
+			channel.permit(7);
+			assertTrue("write makes progress", ++rounds < 100);
+		}
+
+		assertTrue("second message sent", msg2 == queue.pollSent());
+		assertNotNull("third message sent", queue.pollSent());
+		assertArrayEquals("data written in order", concat(m1, m2, m3), channel.toByteArray());
+		assertEquals("queued bytes after write", 0, queue.getQueuedBytes());
+		assertFalse("no pending data", queue.hasPending());
+		assertTrue("queue becomes idle", queue.tryIdle());
+	}
+
+	public void testPartialWriteWithFraming() throws Exception {
+		WriteQueue queue = new WriteQueue();
+		byte[] head = new byte[] {'<', '['};
+		byte[] tail = new byte[] {']', '>'};
+		byte[] m1 = sample(9, 1);
+		byte[] m2 = sample(13, 2);
+		queue.offer(new Message(m1));
+		queue.offer(new Message(m2));
+
+		LimitedChannel channel = new LimitedChannel(3);
+		DataMarkFraming framing = new DataMarkFraming(head, tail);
+		int rounds = 0;
+		while (!queue.write(channel, framing, null, null)) {
+			channel.permit(3);
+			assertTrue("write makes progress", ++rounds < 100);
+		}
+
+		assertArrayEquals("framed data", concat(head, m1, tail, head, m2, tail), channel.toByteArray());
+		assertEquals("written bytes", 30, queue.getWrittenBytes());
+	}
+
+	public void testClearReleasesUnsentMessages() throws Exception {
+		WriteQueue queue = new WriteQueue();
+		queue.offer(new Message(sample(10, 1)));
+		queue.offer(new Message(sample(10, 2)));
+
+		LimitedChannel channel = new LimitedChannel(4);
+		assertFalse("partial write", queue.write(channel, null, null, null));
+
+		queue.clear();
+		assertFalse("no pending data", queue.hasPending());
+		assertFalse("not sending", queue.isSending());
+		assertEquals("queued bytes", 0, queue.getQueuedBytes());
+	}
+
+	public void testUnboundedByDefault() {
+		StubService service = new StubService();
+		assertEquals("high watermark", 0, service.getHighWatermark());
+		assertEquals("policy", BackpressurePolicy.BLOCK, service.getBackpressurePolicy());
+
+		Session session = new Session(service, null);
+		WriteQueue queue = new WriteQueue();
+		for (int i = 0; i < 100; ++i) {
+			Message message = new Message(sample(1024, i));
+			assertTrue("admitted", service.admitWrite(session, queue, message, false));
+			queue.offer(message);
+		}
+		assertTrue("writable", queue.isWritable());
+		assertEquals("writability events", 0, service.unwritable);
+	}
+
+	public void testDropOldest() throws Exception {
+		StubService service = new StubService();
+		service.setWatermark(0, 25);
+		service.setBackpressurePolicy(BackpressurePolicy.DROP_OLDEST);
+		Session session = new Session(service, null);
+
+		WriteQueue queue = new WriteQueue();
+		queue.offer(new Message(sample(10, 1)));
+		queue.offer(new Message(sample(10, 2)));
+		queue.offer(new Message(sample(10, 3)));
+		// 批量队列里的分片不会被丢弃
+		byte[] bulk = sample(10, 4);
+		queue.offerBulk(new Message(bulk));
+
+		byte[] m5 = sample(10, 5);
+		Message message = new Message(m5);
+		assertTrue("admitted", service.admitWrite(session, queue, message, false));
+		queue.offer(message);
+		assertFalse("unwritable", queue.isWritable());
+		assertEquals("writability events", 1, service.unwritable);
+		// 分片占用的 10 字节不能丢弃，三条普通消息都被丢弃
+		assertEquals("queued bytes", 20, queue.getQueuedBytes());
+
+		LimitedChannel channel = new LimitedChannel(Integer.MAX_VALUE);
+		assertTrue("write completes", queue.write(channel, null, null, null));
+		assertArrayEquals("oldest messages dropped", concat(m5, bulk), channel.toByteArray());
+		assertTrue("writable at low watermark", queue.markWritable(service.getLowWatermark()));
+	}
+
+	public void testDropOldestKeepsSendingMessages() throws Exception {
+		WriteQueue queue = new WriteQueue();
+		queue.offer(new Message(sample(10, 1)));
+
+		LimitedChannel channel = new LimitedChannel(4);
+		assertFalse("partial write", queue.write(channel, null, null, null));
+		assertNull("sending message is not dropped", queue.dropOldest());
+		assertEquals("queued bytes", 10, queue.getQueuedBytes());
+	}
+
+	public void testClose() {
+		StubService service = new StubService();
+		service.setWatermark(0, 15);
+		service.setBackpressurePolicy(BackpressurePolicy.CLOSE);
+		Session session = new Session(service, null);
+
+		WriteQueue queue = new WriteQueue();
+		queue.offer(new Message(sample(10, 1)));
+		assertFalse("rejected", service.admitWrite(session, queue, new Message(sample(10, 2)), false));
+		assertFalse("rejected again", service.admitWrite(session, queue, new Message(sample(10, 3)), false));
+		assertEquals("session closed once", 1, service.closed);
+		assertEquals("queued bytes", 10, queue.getQueuedBytes());
+	}
+
+	public void testBlock() throws Exception {
+		final StubService service = new StubService();
+		service.setWatermark(5, 15);
+		service.setBlockTimeout(10000);
+		final Session session = new Session(service, null);
+
+		final WriteQueue queue = new WriteQueue();
+		queue.offer(new Message(sample(10, 1)));
+
+		// 会话自身的 I/O 线程不会被阻塞
+		assertTrue("io thread admitted", service.admitWrite(session, queue, new Message(sample(10, 2)), true));
+		assertFalse("unwritable", queue.isWritable());
+
+		final boolean[] result = new boolean[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				result[0] = service.admitWrite(session, queue, new Message(sample(10, 3)), false);
+			}
+		};
+		writer.start();
+		writer.join(200);
+		assertTrue("writer blocked", writer.isAlive());
+
+		LimitedChannel channel = new LimitedChannel(Integer.MAX_VALUE);
+		assertTrue("write completes", queue.write(channel, null, null, null));
+		assertTrue("writable", queue.markWritable(service.getLowWatermark()));
+
+		writer.join(5000);
+		assertFalse("writer resumed", writer.isAlive());
+		assertTrue("writer admitted", result[0]);
+	}
+
+	public void testBlockOnIoThread() throws Exception {
+		final StubService service = new StubService();
+		service.setWatermark(5, 15);
+		service.setBlockTimeout(10000);
+		final Session session = new Session(service, null);
+
+		final WriteQueue queue = new WriteQueue();
+		queue.offer(new Message(sample(10, 1)));
+		assertFalse("not io thread", MessageService.isIoThread());
+
+		// 其他会话的事件循环线程同样不会被阻塞
+		final LinkedBlockingQueue<Boolean> result = new LinkedBlockingQueue<Boolean>();
+		ConnectorEventLoop loop = new ConnectorEventLoop("WriteQueueTest");
+		loop.start();
+		try {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					result.offer(MessageService.isIoThread()
+							&& service.admitWrite(session, queue, new Message(sample(10, 2)), MessageService.isIoThread()));
+				}
+			});
+			Boolean admitted = result.poll(5000, TimeUnit.MILLISECONDS);
+			assertNotNull("event loop not blocked", admitted);
+			assertTrue("io thread admitted", admitted.booleanValue());
+			assertFalse("unwritable", queue.isWritable());
+		} finally {
+			loop.stopSpinning();
+		}
+	}
+
+	public void testBlockTimeout() {
+		StubService service = new StubService();
+		service.setWatermark(5, 15);
+		service.setBlockTimeout(50);
+		Session session = new Session(service, null);
+
+		WriteQueue queue = new WriteQueue();
+		queue.offer(new Message(sample(10, 1)));
+		assertFalse("rejected after timeout", service.admitWrite(session, queue, new Message(sample(10, 2)), false));
+	}
+
+	/** 每次写入受配额限制的通道，模拟内核发送缓冲区已满。
+	 */
+	protected static final class LimitedChannel implements GatheringByteChannel {
+
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		private int quota;
+
+		protected LimitedChannel(int quota) {
+			this.quota = quota;
+		}
+
+		protected void permit(int quota) {
+			this.quota = quota;
+		}
+
+		protected byte[] toByteArray() {
+			return this.output.toByteArray();
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) {
+			long total = 0;
+			for (int i = offset; i < offset + length && this.quota > 0; ++i) {
+				ByteBuffer src = srcs[i];
+				while (src.hasRemaining() && this.quota > 0) {
+					this.output.write(src.get());
+					--this.quota;
+					++total;
+				}
+			}
+			return total;
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs) {
+			return this.write(srcs, 0, srcs.length);
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			return (int) this.write(new ByteBuffer[] {src}, 0, 1);
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/** 记录水位事件的消息服务。
+	 */
+	private static final class StubService extends MessageService {
+
+		private int unwritable = 0;
+		private int closed = 0;
+
+		private StubService() {
+		}
+
+		@Override
+		public void write(Session session, Message message) {
+		}
+
+		@Override
+		public void read(Message message, Session session) {
+		}
+
+		@Override
+		protected void fireWritabilityChanged(Session session, boolean writable) {
+			if (!writable) {
+				++this.unwritable;
+			}
+		}
+
+		@Override
+		protected void closeOverflowSession(Session session) {
+			++this.closed;
+		}
+	}
+}